@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * BenchmarkData generates filter lists and requests looking like what a
+ * browser sees. Filters are plain host names and substrings or Adblock Plus
+ * rules. The same seed gives the same data.
+ * 
+ * @author Felix Bechstein
+ */
+final class BenchmarkData {
+	/** Seed for generated data. */
+	private static final long SEED = 42L;
+	/** Number of distinct hosts requested. */
+	private static final int HOSTS = 200;
+	/** Share of host names in filter lists in percent. */
+	private static final int HOST_RULES = 60;
+	/** Share of requests to blocked hosts or paths in percent. */
+	private static final int BLOCKED = 10;
+	/** Share of exceptions in Adblock Plus rules in percent. */
+	private static final int EXCEPTIONS = 5;
+
+	/** Words used for host names and paths. */
+	private static final String[] WORDS = { "ads", "cdn", "static", "img",
+			"track", "pixel", "banner", "media", "api", "news", "shop",
+			"video", "stats", "metrics", "assets", "widget", "social", "mail",
+			"search", "promo" };
+	/** Top level domains. */
+	private static final String[] TLDS = { "com", "net", "org", "de",
+			"co.uk", "io" };
+	/** File suffixes. */
+	private static final String[] SUFFIXES = { ".js", ".css", ".png", ".gif",
+			".html", ".json", "" };
+
+	/** Request header sent by a desktop browser. */
+	static final String BROWSER_HEADER = "GET http://www.example.com/news/"
+			+ "2010/05/some-article.html?utm_source=feed&ref=home HTTP/1.1\r\n"
+			+ "Host: www.example.com\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; U; Linux x86_64; en-US; "
+			+ "rv:1.9.2.3) Gecko/20100423 Firefox/3.6.3\r\n"
+			+ "Accept: text/html,application/xhtml+xml,application/xml;"
+			+ "q=0.9,*/*;q=0.8\r\n" + "Accept-Language: en-us,en;q=0.5\r\n"
+			+ "Accept-Encoding: gzip,deflate\r\n"
+			+ "Accept-Charset: ISO-8859-1,utf-8;q=0.7,*;q=0.7\r\n"
+			+ "Keep-Alive: 115\r\n" + "Proxy-Connection: keep-alive\r\n"
+			+ "Referer: http://www.example.com/\r\n"
+			+ "Cookie: __utma=1.1234567890.1273000000.1273000000."
+			+ "1273000000.1; __utmz=1.1273000000.1.1.utmcsr=(direct)|"
+			+ "utmccn=(direct)|utmcmd=(none); session=0123456789abcdef\r\n"
+			+ "\r\n";
+	/** Request header sent by the Android browser. */
+	static final String ANDROID_HEADER = "GET /static/js/app.min.js HTTP/1.1"
+			+ "\r\n" + "Host: cdn.example.net\r\n"
+			+ "Accept-Encoding: gzip\r\n"
+			+ "Accept-Language: de-DE, en-US\r\n"
+			+ "User-Agent: Mozilla/5.0 (Linux; U; Android 2.2; de-de; "
+			+ "Nexus One Build/FRF91) AppleWebKit/533.1 (KHTML, like Gecko) "
+			+ "Version/4.0 Mobile Safari/533.1\r\n"
+			+ "Accept: */*\r\n"
+			+ "Accept-Charset: utf-8, iso-8859-1, utf-16, *;q=0.7\r\n"
+			+ "\r\n";
+	/** CONNECT request header. */
+	static final String CONNECT_HEADER = "CONNECT mail.example.org:443 "
+			+ "HTTP/1.1\r\n" + "Host: mail.example.org:443\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; U; Linux x86_64; en-US; "
+			+ "rv:1.9.2.3) Gecko/20100423 Firefox/3.6.3\r\n"
+			+ "Proxy-Connection: keep-alive\r\n" + "\r\n";
+
+	/** Random numbers. */
+	private final Random random = new Random(SEED);
+	/** Generated filter. */
+	private final ArrayList<String> filter = new ArrayList<String>();
+	/** Hosts of requests matching the filter, null for any host. */
+	private final ArrayList<String> hitHosts = new ArrayList<String>();
+	/** Paths of requests matching the filter, null for any path. */
+	private final ArrayList<String> hitPaths = new ArrayList<String>();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param rules
+	 *            number of filters to generate
+	 */
+	BenchmarkData(final int rules) {
+		this(rules, false);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param rules
+	 *            number of filters to generate
+	 * @param abp
+	 *            generate Adblock Plus rules
+	 */
+	BenchmarkData(final int rules, final boolean abp) {
+		final Random r = this.random;
+		for (int i = 0; i < rules; i++) {
+			if (abp) {
+				this.addAbp(i);
+			} else if (r.nextInt(100) < HOST_RULES) {
+				final String h = this.word() + i + "." + this.word() + "."
+						+ this.tld();
+				this.filter.add(h);
+				this.hit(h, null);
+			} else {
+				switch (r.nextInt(3)) {
+				case 0:
+					final String p = "/" + this.word() + i + "/";
+					this.filter.add(p);
+					this.hit(null, "/" + this.word() + p);
+					break;
+				case 1:
+					final String f = this.word() + "_" + i + this.suffix();
+					this.filter.add(f);
+					this.hit(null, "/" + this.word() + f);
+					break;
+				default:
+					final String h = this.word() + i + "." + this.tld();
+					final String w = this.word();
+					this.filter.add("." + h + "/" + w);
+					this.hit(this.word() + "." + h, "/" + w);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add an Adblock Plus rule like those found in public filter lists.
+	 * 
+	 * @param i
+	 *            number of rule
+	 */
+	private void addAbp(final int i) {
+		final Random r = this.random;
+		final String w = this.word() + i;
+		if (r.nextInt(100) < EXCEPTIONS) {
+			this.filter.add("@@||" + w + "." + this.tld() + "/" + this.word()
+					+ "^");
+		} else if (r.nextInt(100) < HOST_RULES) {
+			final String h = w + "." + this.word() + "." + this.tld();
+			this.filter.add("||" + h + "^");
+			this.hit(h, null);
+		} else {
+			switch (r.nextInt(3)) {
+			case 0:
+				final String s = this.word();
+				this.filter.add("/" + w + "/*/" + s + "^");
+				this.hit(null, "/" + w + "/" + this.word() + "/" + s + "?id=1");
+				break;
+			case 1:
+				final String h = w + "." + this.tld();
+				final String p = "/" + this.word() + "/";
+				this.filter.add("||" + h + p + "$third-party");
+				this.hit(h, p + this.word() + this.suffix());
+				break;
+			default:
+				final String f = "_" + w + this.suffix();
+				this.filter.add(f + "|");
+				this.hit(null, "/" + this.word() + f);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Remember a request matching the filter.
+	 * 
+	 * @param host
+	 *            host, null for any
+	 * @param path
+	 *            path, null for any
+	 */
+	private void hit(final String host, final String path) {
+		this.hitHosts.add(host);
+		this.hitPaths.add(path);
+	}
+
+	/**
+	 * @return random word
+	 */
+	private String word() {
+		return WORDS[this.random.nextInt(WORDS.length)];
+	}
+
+	/**
+	 * @return random top level domain
+	 */
+	private String tld() {
+		return TLDS[this.random.nextInt(TLDS.length)];
+	}
+
+	/**
+	 * @return random file suffix
+	 */
+	private String suffix() {
+		return SUFFIXES[this.random.nextInt(SUFFIXES.length)];
+	}
+
+	/**
+	 * @return generated filter
+	 */
+	ArrayList<String> getFilter() {
+		return this.filter;
+	}
+
+	/**
+	 * Generate request headers. Some of them hit the filter, hosts are
+	 * repeated like they are on real pages.
+	 * 
+	 * @param count
+	 *            number of requests
+	 * @return request headers
+	 */
+	String[] requests(final int count) {
+		final Random r = this.random;
+		final String[] hosts = new String[HOSTS];
+		for (int i = 0; i < HOSTS; i++) {
+			hosts[i] = this.word() + "." + this.word() + i + "." + this.tld();
+		}
+		final int hits = this.hitHosts.size();
+		final String[] ret = new String[count];
+		for (int i = 0; i < count; i++) {
+			String host = hosts[r.nextInt(HOSTS)];
+			String path = "/" + this.word() + "/" + this.word() + r.nextInt(1000)
+					+ this.suffix();
+			if (hits > 0 && r.nextInt(100) < BLOCKED) {
+				final int j = r.nextInt(hits);
+				if (this.hitHosts.get(j) != null) {
+					host = this.hitHosts.get(j);
+				}
+				if (this.hitPaths.get(j) != null) {
+					path = this.hitPaths.get(j);
+				}
+			}
+			ret[i] = "GET http://" + host + path + " HTTP/1.1\r\nHost: " + host
+					+ "\r\nAccept: */*\r\n"
+					+ "Referer: http://www.example.com/\r\n\r\n";
+		}
+		return ret;
+	}
+}
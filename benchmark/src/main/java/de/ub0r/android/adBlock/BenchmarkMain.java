@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the benchmarks. Allocations per operation are always measured, any JMH
+ * command line option may be given.
+ * 
+ * @author Felix Bechstein
+ */
+public final class BenchmarkMain {
+	/**
+	 * No instances.
+	 */
+	private BenchmarkMain() {
+	}
+
+	/**
+	 * Main.
+	 * 
+	 * @param args
+	 *            JMH command line options
+	 * @throws CommandLineOptionException
+	 *             invalid options
+	 * @throws RunnerException
+	 *             benchmark failed
+	 */
+	public static void main(final String[] args)
+			throws CommandLineOptionException, RunnerException {
+		final CommandLineOptions cl = new CommandLineOptions(args);
+		new Runner(new OptionsBuilder().parent(cl).addProfiler(
+				GCProfiler.class).build()).run();
+	}
+}
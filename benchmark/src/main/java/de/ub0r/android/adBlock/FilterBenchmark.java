@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Check requests against filter lists of different size, the work done by
+ * Proxy.checkURL().
+ * 
+ * @author Felix Bechstein
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FilterBenchmark {
+	/** Number of distinct requests. */
+	private static final int REQUESTS = 1024;
+
+	/** Number of filters. */
+	@Param({ "100", "10000", "100000" })
+	private int rules;
+	/** Filter syntax: plain host names and substrings or Adblock Plus. */
+	@Param({ "plain", "abp" })
+	private String syntax;
+
+	/** Filter as used by the proxy, with cached decisions. */
+	private FilterSet filterSet;
+	/** Filter without caches. */
+	private FilterSet uncached;
+	/** Filter without caches, memory mapped from file. */
+	private FilterSet mapped;
+	/** File holding the compiled filter. */
+	private File file;
+	/** Request headers. */
+	private byte[][] buffers;
+	/** Parsed request headers. */
+	private HeaderParser[] headers;
+	/** Target hosts. */
+	private String[] hosts;
+	/** Next request. */
+	private int next = 0;
+
+	/**
+	 * Compile filter and parse requests.
+	 * 
+	 * @throws IOException
+	 *             IOException
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		final BenchmarkData d = this.data();
+		final String[] r = d.requests(REQUESTS);
+		this.buffers = new byte[REQUESTS][];
+		this.headers = new HeaderParser[REQUESTS];
+		this.hosts = new String[REQUESTS];
+		for (int i = 0; i < REQUESTS; i++) {
+			final byte[] b = r[i].getBytes();
+			final HeaderParser h = new HeaderParser();
+			h.parse(b, b.length);
+			this.buffers[i] = b;
+			this.headers[i] = h;
+			this.hosts[i] = HeaderParser.toString(b, h.getHostStart(), h
+					.getHostEnd());
+		}
+		this.filterSet = new FilterSet(d.getFilter(), true);
+		this.uncached = new FilterSet(d.getFilter(), false);
+		this.file = File.createTempFile("filter", ".bin");
+		this.uncached.write(this.file, 1);
+		this.mapped = FilterSet.load(this.file, 1, false);
+	}
+
+	/**
+	 * Remove compiled filter.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.file.delete();
+	}
+
+	/**
+	 * @return index of next request
+	 */
+	private int next() {
+		final int i = this.next;
+		this.next = (i + 1) & (REQUESTS - 1);
+		return i;
+	}
+
+	/**
+	 * Check with host and URL caches.
+	 * 
+	 * @return verdict
+	 */
+	@Benchmark
+	public boolean checkURLCached() {
+		final int i = this.next();
+		return this.filterSet.isBlocked(this.hosts[i], this.buffers[i],
+				this.headers[i]);
+	}
+
+	/**
+	 * Check with host cache only, as the proxy does by default.
+	 * 
+	 * @return verdict
+	 */
+	@Benchmark
+	public boolean checkURL() {
+		final int i = this.next();
+		return this.uncached.isBlocked(this.hosts[i], this.buffers[i],
+				this.headers[i]);
+	}
+
+	/**
+	 * Check with host cache only, filter is memory mapped.
+	 * 
+	 * @return verdict
+	 */
+	@Benchmark
+	public boolean checkURLMapped() {
+		final int i = this.next();
+		return this.mapped.isBlocked(this.hosts[i], this.buffers[i],
+				this.headers[i]);
+	}
+
+	/**
+	 * Map the compiled filter, done on start.
+	 * 
+	 * @return compiled filter
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public FilterSet load() {
+		return FilterSet.load(this.file, 1, false);
+	}
+
+	/**
+	 * Compile the filter, done whenever the filter changes.
+	 * 
+	 * @return compiled filter
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public FilterSet compile() {
+		return new FilterSet(this.data().getFilter(), false);
+	}
+
+	/**
+	 * @return generated data in the chosen syntax
+	 */
+	private BenchmarkData data() {
+		return new BenchmarkData(this.rules, this.syntax.equals("abp"));
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parse request headers sent by browsers, the work done by
+ * Connection.readHeader() and the event loops.
+ * 
+ * @author Felix Bechstein
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HeaderBenchmark {
+	/** Default port for HTTP. */
+	private static final int PORT_HTTP = 80;
+
+	/** Request header. */
+	@Param({ "browser", "android", "connect" })
+	private String request;
+	/**
+	 * Size of chunks the header arrives in, 0 for the whole header at once.
+	 */
+	@Param({ "0", "64" })
+	private int chunk;
+
+	/** Header bytes. */
+	private byte[] buf;
+	/** Parser, reused like the proxy does. */
+	private final HeaderParser parser = new HeaderParser();
+
+	/**
+	 * Encode request.
+	 */
+	@Setup
+	public void setup() {
+		String s;
+		if (this.request.equals("android")) {
+			s = BenchmarkData.ANDROID_HEADER;
+		} else if (this.request.equals("connect")) {
+			s = BenchmarkData.CONNECT_HEADER;
+		} else {
+			s = BenchmarkData.BROWSER_HEADER;
+		}
+		this.buf = s.getBytes();
+	}
+
+	/**
+	 * Parse the header and look up the target.
+	 * 
+	 * @return target port
+	 */
+	@Benchmark
+	public int parse() {
+		final byte[] b = this.buf;
+		final HeaderParser h = this.parser;
+		h.reset(0);
+		final int c = this.chunk;
+		if (c == 0) {
+			h.parse(b, b.length);
+		} else {
+			for (int l = c; h.parse(b, Math.min(l, b.length)) // .
+			== HeaderParser.INCOMPLETE; l += c) {
+				if (l >= b.length) {
+					break;
+				}
+			}
+		}
+		return h.getPort(PORT_HTTP) + h.getHostEnd();
+	}
+}
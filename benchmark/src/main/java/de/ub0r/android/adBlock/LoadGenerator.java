@@ -0,0 +1,657 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * LoadGenerator drives the proxy with closed loop clients: each client sends
+ * a request, waits for the whole response and sends the next one. A local
+ * {@link OriginServer} answers the requests. The same load runs direct to
+ * the origin first and through the proxy afterwards, both are reported side
+ * by side:
+ * 
+ * <pre>
+ * java -cp benchmark/target/benchmarks.jar \
+ *     de.ub0r.android.adBlock.LoadGenerator -c 32
+ * </pre>
+ * 
+ * The proxy runs in process unless another one is given by "-x".
+ * 
+ * @author Felix Bechstein
+ */
+public final class LoadGenerator {
+	/** Path of allowed requests. */
+	private static final String ALLOWED_PATH = "/obj/";
+	/** Path of blocked requests, the filter of the proxy run in process. */
+	private static final String BLOCKED_PATH = "/ads/";
+	/** Origin's host. */
+	private static final String ORIGIN_HOST = "127.0.0.1";
+	/** Initial number of latencies kept per client. */
+	private static final int LATENCIES = 4096;
+	/** Nanoseconds per second. */
+	private static final double NANOS = 1e9;
+	/** Bytes per MiB. */
+	private static final double MIB = 1 << 20;
+	/** Time waited for the proxy to listen in milliseconds. */
+	private static final int START_TIMEOUT = 5000;
+
+	/** Usage. */
+	private static final String USAGE = "usage: LoadGenerator [options]\n"
+			+ "  -c number    concurrent clients, default 16\n"
+			+ "  -d seconds   measured duration per run, default 10\n"
+			+ "  -w seconds   warm up per run, not measured, default 2\n"
+			+ "  -s sizes     response sizes picked at random, default "
+			+ "512,4096,32768\n"
+			+ "  -b percent   blocked requests, default 10\n"
+			+ "  -t percent   clients tunneling by CONNECT, default 0\n"
+			+ "  -k           close connections after each request\n"
+			+ "  -e           run the proxy with event loops\n"
+			+ "  -n number    proxy's event loops, default one per core\n"
+			+ "  -a number    proxy's accepting threads, default 1\n"
+			+ "  -x host:port use a running proxy, its filter must block \""
+			+ BLOCKED_PATH + "\"";
+
+	/** Number of concurrent clients. */
+	private int concurrency = 16;
+	/** Measured duration per run in seconds. */
+	private int duration = 10;
+	/** Warm up per run in seconds. */
+	private int warmup = 2;
+	/** Response sizes. */
+	private int[] sizes = { 512, 4096, 32768 };
+	/** Blocked requests in percent. */
+	private int blocked = 10;
+	/** Tunneling clients in percent. */
+	private int tunnels = 0;
+	/** Keep connections alive? */
+	private boolean keepAlive = true;
+	/** Run the proxy with event loops? */
+	private boolean eventLoop = false;
+	/** Proxy's event loops, 0 for one per core. */
+	private int loops = 0;
+	/** Proxy's threads accepting connections. */
+	private int acceptors = 1;
+	/** Proxy's host, null to run one in process. */
+	private String proxyHost = null;
+	/** Proxy's port. */
+	private int proxyPort = -1;
+	/** Origin's port. */
+	private int originPort = -1;
+
+	/**
+	 * Result of a single run.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	private static final class Result {
+		/** Name of the run. */
+		private final String name;
+		/** Measured time in seconds. */
+		private final double seconds;
+		/** Number of completed requests. */
+		private long requests = 0;
+		/** Number of blocked requests. */
+		private long blocked = 0;
+		/** Number of failed requests. */
+		private long errors = 0;
+		/** Number of received bytes. */
+		private long bytes = 0;
+		/** Latencies in nanoseconds, sorted by {@link #finish()}. */
+		private long[] latencies = new long[0];
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param n
+		 *            name of the run
+		 * @param s
+		 *            measured time in seconds
+		 */
+		Result(final String n, final double s) {
+			this.name = n;
+			this.seconds = s;
+		}
+
+		/**
+		 * Add a client's results.
+		 * 
+		 * @param c
+		 *            {@link Client}
+		 */
+		void add(final Client c) {
+			this.requests += c.requests;
+			this.blocked += c.blocked;
+			this.errors += c.errors;
+			this.bytes += c.bytes;
+			final long[] l = new long[this.latencies.length + c.count];
+			System.arraycopy(this.latencies, 0, l, 0, this.latencies.length);
+			System.arraycopy(c.latencies, 0, l, this.latencies.length,
+					c.count);
+			this.latencies = l;
+		}
+
+		/**
+		 * All clients are added.
+		 */
+		void finish() {
+			Arrays.sort(this.latencies);
+		}
+
+		/**
+		 * @return requests per second
+		 */
+		double getRate() {
+			return this.requests / this.seconds;
+		}
+
+		/**
+		 * @param p
+		 *            percentile, 0..1
+		 * @return latency in nanoseconds
+		 */
+		long getLatency(final double p) {
+			final long[] l = this.latencies;
+			if (l.length == 0) {
+				return 0;
+			}
+			final int i = (int) Math.ceil(p * l.length) - 1;
+			return l[Math.max(0, Math.min(l.length - 1, i))];
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%s: %d requests (%d blocked, "
+					+ "%d errors) in %.1fs, %.0f req/s, %.2f MiB/s, "
+					+ "latency p50 %s, p99 %s, p999 %s", this.name,
+					this.requests, this.blocked, this.errors, this.seconds,
+					this.getRate(), this.bytes / MIB / this.seconds,
+					millis(this.getLatency(.5)),
+					millis(this.getLatency(.99)),
+					millis(this.getLatency(.999)));
+		}
+	}
+
+	/**
+	 * Client sends requests one after another until the run ends.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	private final class Client implements Runnable {
+		/** Random numbers. */
+		private final Random random;
+		/** Send requests through the proxy? */
+		private final boolean proxied;
+		/** Tunnel requests by CONNECT? */
+		private final boolean tunnel;
+		/** Start of measurement, {@link System#nanoTime()}. */
+		private final long start;
+		/** End of run, {@link System#nanoTime()}. */
+		private final long end;
+		/** Buffer for response headers and bodies. */
+		private final byte[] buf = new byte[OriginServer.MAX_SIZE];
+
+		/** Open connection. */
+		private Socket socket = null;
+		/** Stream from connection. */
+		private InputStream in = null;
+		/** Stream to connection. */
+		private OutputStream out = null;
+
+		/** Number of completed requests. */
+		private long requests = 0;
+		/** Number of blocked requests. */
+		private long blocked = 0;
+		/** Number of failed requests. */
+		private long errors = 0;
+		/** Number of received bytes. */
+		private long bytes = 0;
+		/** Latencies in nanoseconds. */
+		private long[] latencies = new long[LATENCIES];
+		/** Number of latencies. */
+		private int count = 0;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param seed
+		 *            seed for random numbers
+		 * @param p
+		 *            send requests through the proxy?
+		 * @param t
+		 *            tunnel requests by CONNECT?
+		 * @param s
+		 *            start of measurement
+		 * @param e
+		 *            end of run
+		 */
+		Client(final long seed, final boolean p, final boolean t,
+				final long s, final long e) {
+			this.random = new Random(seed);
+			this.proxied = p;
+			this.tunnel = t;
+			this.start = s;
+			this.end = e;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void run() {
+			long t = System.nanoTime();
+			while (t < this.end) {
+				boolean ok = false;
+				int status = 0;
+				try {
+					status = this.request();
+					ok = true;
+				} catch (IOException e) {
+					this.close();
+				}
+				final long done = System.nanoTime();
+				if (t >= this.start && done <= this.end) {
+					if (!ok) {
+						++this.errors;
+					} else {
+						++this.requests;
+						if (status != 200) {
+							++this.blocked;
+						}
+						this.addLatency(done - t);
+					}
+				}
+				t = done;
+			}
+			this.close();
+		}
+
+		/**
+		 * @param l
+		 *            latency in nanoseconds
+		 */
+		private void addLatency(final long l) {
+			if (this.count == this.latencies.length) {
+				final long[] n = new long[this.count * 2];
+				System.arraycopy(this.latencies, 0, n, 0, this.count);
+				this.latencies = n;
+			}
+			this.latencies[this.count++] = l;
+		}
+
+		/**
+		 * Open a connection to the proxy or origin.
+		 * 
+		 * @throws IOException
+		 *             IOException
+		 */
+		private void open() throws IOException {
+			final LoadGenerator g = LoadGenerator.this;
+			final Socket s = new Socket();
+			this.socket = s;
+			s.setTcpNoDelay(true);
+			if (this.proxied) {
+				s.connect(new InetSocketAddress(g.proxyHost, g.proxyPort));
+			} else {
+				s.connect(new InetSocketAddress(ORIGIN_HOST, g.originPort));
+			}
+			this.in = new BufferedInputStream(s.getInputStream());
+			this.out = s.getOutputStream();
+			if (this.proxied && this.tunnel) {
+				final String a = ORIGIN_HOST + ":" + g.originPort;
+				this.out.write(("CONNECT " + a + " HTTP/1.1\r\nHost: " + a
+						+ "\r\n\r\n").getBytes("ISO-8859-1"));
+				this.out.flush();
+				final int l = OriginServer.readHeader(this.in, this.buf);
+				if (l == 0 || getStatus(this.buf, l) != 200) {
+					throw new IOException("tunnel failed");
+				}
+			}
+		}
+
+		/**
+		 * Close the connection.
+		 */
+		private void close() {
+			if (this.socket != null) {
+				try {
+					this.socket.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+				this.socket = null;
+			}
+		}
+
+		/**
+		 * Send a request and read the response.
+		 * 
+		 * @return response's status
+		 * @throws IOException
+		 *             IOException
+		 */
+		private int request() throws IOException {
+			final LoadGenerator g = LoadGenerator.this;
+			if (this.socket == null) {
+				this.open();
+			}
+			final Random r = this.random;
+			final String path;
+			if (r.nextInt(100) < g.blocked) {
+				path = BLOCKED_PATH;
+			} else {
+				path = ALLOWED_PATH;
+			}
+			final String host = ORIGIN_HOST + ":" + g.originPort;
+			final StringBuilder sb = new StringBuilder("GET ");
+			if (this.proxied && !this.tunnel) {
+				sb.append("http://").append(host);
+			}
+			sb.append(path).append(g.sizes[r.nextInt(g.sizes.length)]);
+			sb.append(" HTTP/1.1\r\nHost: ").append(host).append("\r\n");
+			if (!g.keepAlive) {
+				sb.append("Connection: close\r\n");
+			}
+			sb.append("\r\n");
+			this.out.write(sb.toString().getBytes("ISO-8859-1"));
+			this.out.flush();
+
+			final byte[] b = this.buf;
+			final int l = OriginServer.readHeader(this.in, b);
+			if (l == 0) {
+				throw new IOException("closed");
+			}
+			this.bytes += l;
+			final int status = getStatus(b, l);
+			final String h = new String(b, 0, l, "ISO-8859-1").toLowerCase();
+			final int i = h.indexOf("\ncontent-length:");
+			if (i < 0) {
+				// read until close
+				int n;
+				while ((n = this.in.read(b)) > 0) {
+					this.bytes += n;
+				}
+				this.close();
+				return status;
+			}
+			long length = Long.parseLong(h.substring(i + 16,
+					h.indexOf('\n', i + 1)).trim());
+			while (length > 0) {
+				final int n = this.in.read(b, 0, (int) Math.min(b.length,
+						length));
+				if (n < 0) {
+					throw new IOException("truncated body");
+				}
+				length -= n;
+				this.bytes += n;
+			}
+			if (!g.keepAlive || h.indexOf("\nconnection: close") >= 0) {
+				this.close();
+			}
+			return status;
+		}
+	}
+
+	/**
+	 * Hide constructor.
+	 */
+	private LoadGenerator() {
+	}
+
+	/**
+	 * @param b
+	 *            response header
+	 * @param l
+	 *            header's length
+	 * @return status, -1 if there is none
+	 */
+	private static int getStatus(final byte[] b, final int l) {
+		int i = 0;
+		while (i < l && b[i] != ' ') {
+			++i;
+		}
+		int s = 0;
+		int digits = 0;
+		for (++i; i < l && b[i] >= '0' && b[i] <= '9'; i++) {
+			s = s * 10 + b[i] - '0';
+			++digits;
+		}
+		if (digits != 3) {
+			return -1;
+		}
+		return s;
+	}
+
+	/**
+	 * @param nanos
+	 *            time in nanoseconds
+	 * @return time in milliseconds as String
+	 */
+	private static String millis(final long nanos) {
+		return String.format(Locale.US, "%.2fms", nanos / 1e6);
+	}
+
+	/**
+	 * Run clients for warm up and measured duration.
+	 * 
+	 * @param name
+	 *            name of the run
+	 * @param proxied
+	 *            send requests through the proxy?
+	 * @return {@link Result}
+	 * @throws InterruptedException
+	 *             interrupted
+	 */
+	private Result run(final String name, final boolean proxied)
+			throws InterruptedException {
+		final long start = System.nanoTime() + this.warmup * (long) NANOS;
+		final long end = start + this.duration * (long) NANOS;
+		final ArrayList<Client> clients = new ArrayList<Client>();
+		final ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < this.concurrency; i++) {
+			final boolean t = i * 100 < this.tunnels * this.concurrency;
+			final Client c = new Client(i, proxied, t, start, end);
+			final Thread th = new Thread(c, "Client-" + i);
+			clients.add(c);
+			threads.add(th);
+			th.start();
+		}
+		for (Thread th : threads) {
+			th.join();
+		}
+		final Result ret = new Result(name, this.duration);
+		for (Client c : clients) {
+			ret.add(c);
+		}
+		ret.finish();
+		return ret;
+	}
+
+	/**
+	 * Start a proxy in process.
+	 * 
+	 * @return {@link ProxyServer}
+	 * @throws IOException
+	 *             proxy did not start listening
+	 */
+	private ProxyServer startProxy() throws IOException {
+		final ServerSocket s = new ServerSocket(0);
+		final int p = s.getLocalPort();
+		s.close();
+		final ArrayList<String> filter = new ArrayList<String>();
+		filter.add(BLOCKED_PATH);
+		final ProxyServer ret = new ProxyServer();
+		ret.setAcceptors(this.acceptors);
+		ret.setPort(p);
+		ret.setShards(this.loops);
+		ret.setEventLoop(this.eventLoop);
+		// measure throughput, not admission control
+		ret.setMaxConnections(Math.max(ProxyServer.DEFAULT_MAX_CONNECTIONS,
+				this.concurrency));
+		ret.setFilter(new FilterSet(filter, false));
+		final Thread t = new Thread(ret, "ProxyServer");
+		t.setDaemon(true);
+		t.start();
+		this.proxyHost = "127.0.0.1";
+		this.proxyPort = p;
+		final long timeout = System.currentTimeMillis() + START_TIMEOUT;
+		while (true) {
+			try {
+				new Socket(this.proxyHost, p).close();
+				return ret;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > timeout) {
+					throw e;
+				}
+			}
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted");
+			}
+		}
+	}
+
+	/**
+	 * Parse the command line.
+	 * 
+	 * @param args
+	 *            options
+	 * @return false, if options are invalid
+	 */
+	private boolean parse(final String[] args) {
+		try {
+			for (int i = 0; i < args.length; i++) {
+				final String a = args[i];
+				if (a.equals("-c")) {
+					this.concurrency = Integer.parseInt(args[++i]);
+				} else if (a.equals("-d")) {
+					this.duration = Integer.parseInt(args[++i]);
+				} else if (a.equals("-w")) {
+					this.warmup = Integer.parseInt(args[++i]);
+				} else if (a.equals("-s")) {
+					final String[] s = args[++i].split(",");
+					this.sizes = new int[s.length];
+					for (int j = 0; j < s.length; j++) {
+						this.sizes[j] = Math.min(OriginServer.MAX_SIZE,
+								Integer.parseInt(s[j].trim()));
+					}
+				} else if (a.equals("-b")) {
+					this.blocked = Integer.parseInt(args[++i]);
+				} else if (a.equals("-t")) {
+					this.tunnels = Integer.parseInt(args[++i]);
+				} else if (a.equals("-k")) {
+					this.keepAlive = false;
+				} else if (a.equals("-e")) {
+					this.eventLoop = true;
+				} else if (a.equals("-n")) {
+					this.loops = Integer.parseInt(args[++i]);
+				} else if (a.equals("-a")) {
+					this.acceptors = Integer.parseInt(args[++i]);
+				} else if (a.equals("-x")) {
+					final String x = args[++i];
+					final int j = x.lastIndexOf(':');
+					this.proxyHost = x.substring(0, j);
+					this.proxyPort = Integer.parseInt(x.substring(j + 1));
+				} else {
+					return false;
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			return false;
+		} catch (StringIndexOutOfBoundsException e) {
+			return false;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return this.concurrency > 0 && this.duration > 0;
+	}
+
+	/**
+	 * Main.
+	 * 
+	 * @param args
+	 *            options
+	 * @throws IOException
+	 *             origin or proxy could not be started
+	 * @throws InterruptedException
+	 *             interrupted
+	 */
+	public static void main(final String[] args) throws IOException,
+			InterruptedException {
+		final LoadGenerator g = new LoadGenerator();
+		if (!g.parse(args)) {
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+		final OriginServer origin = new OriginServer(0);
+		origin.start();
+		g.originPort = origin.getPort();
+		System.out.println("clients: " + g.concurrency + ", sizes: "
+				+ Arrays.toString(g.sizes) + ", blocked: " + g.blocked
+				+ "%, tunnels: " + g.tunnels + "%, keep-alive: " + g.keepAlive
+				+ ", event loop: " + g.eventLoop);
+
+		final Result direct = g.run("direct", false);
+		System.out.println(direct);
+		ProxyServer server = null;
+		if (g.proxyHost == null) {
+			server = g.startProxy();
+		}
+		final Result proxy = g.run("proxy", true);
+		System.out.println(proxy);
+		System.out.println(String.format(Locale.US, "proxy/direct: %.0f%% "
+				+ "req/s, latency p50 x%.1f, p99 x%.1f, p999 x%.1f", 100
+				* proxy.getRate() / direct.getRate(), ratio(proxy, direct,
+				.5), ratio(proxy, direct, .99), ratio(proxy, direct, .999)));
+		if (server != null) {
+			server.stop();
+			System.out.println(ProxyServer.getMetrics());
+		}
+		origin.close();
+		System.exit(0);
+	}
+
+	/**
+	 * @param a
+	 *            {@link Result}
+	 * @param b
+	 *            {@link Result} compared to
+	 * @param p
+	 *            percentile
+	 * @return ratio of latencies
+	 */
+	private static double ratio(final Result a, final Result b,
+			final double p) {
+		return (double) a.getLatency(p) / Math.max(1, b.getLatency(p));
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * OriginServer stands in for the remote hosts in load tests. It answers any
+ * GET with a body of the size given by the path's last part, e.g.
+ * "/obj/4096". Connections are kept alive unless the client asks for close
+ * or speaks HTTP/1.0.
+ * 
+ * @author Felix Bechstein
+ */
+final class OriginServer implements Runnable {
+	/** Largest body served. */
+	static final int MAX_SIZE = 1 << 20;
+	/** Longest request header read. */
+	private static final int MAX_HEADER = 8192;
+	/** Body served, only the first bytes are sent. */
+	private static final byte[] BODY = new byte[MAX_SIZE];
+
+	static {
+		for (int i = 0; i < MAX_SIZE; i++) {
+			BODY[i] = (byte) ('a' + i % 26);
+		}
+	}
+
+	/** Listening socket. */
+	private final ServerSocket socket;
+	/** Threads serving connections. */
+	private final ExecutorService workers = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "OriginServer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/**
+	 * Handler serves a single connection.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	private static final class Handler implements Runnable {
+		/** Client's socket. */
+		private final Socket client;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param s
+		 *            client's socket
+		 */
+		Handler(final Socket s) {
+			this.client = s;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void run() {
+			final byte[] header = new byte[MAX_HEADER];
+			try {
+				this.client.setTcpNoDelay(true);
+				final InputStream in = new BufferedInputStream(this.client
+						.getInputStream());
+				final OutputStream out = this.client.getOutputStream();
+				boolean keepAlive = true;
+				while (keepAlive) {
+					final int l = readHeader(in, header);
+					if (l <= 0) {
+						break;
+					}
+					final String h = new String(header, 0, l, "ISO-8859-1");
+					final int eol = h.indexOf('\n');
+					final String[] line = h.substring(0, eol).trim().split(
+							" ");
+					if (line.length != 3) {
+						break;
+					}
+					final String lh = h.toLowerCase();
+					keepAlive = line[2].equals("HTTP/1.1")
+							&& lh.indexOf("\nconnection: close") < 0;
+					final int size = getSize(line[1]);
+					final StringBuilder sb = new StringBuilder(
+							"HTTP/1.1 200 OK\r\n");
+					sb.append("Content-Type: application/octet-stream\r\n");
+					sb.append("Content-Length: ").append(size).append("\r\n");
+					if (!keepAlive) {
+						sb.append("Connection: close\r\n");
+					}
+					sb.append("\r\n");
+					out.write(sb.toString().getBytes("ISO-8859-1"));
+					if (!line[0].equals("HEAD")) {
+						out.write(BODY, 0, size);
+					}
+					out.flush();
+				}
+			} catch (IOException e) {
+				// client is gone
+			} finally {
+				try {
+					this.client.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+		}
+	}
+
+	/**
+	 * Constructor. Listen on loopback.
+	 * 
+	 * @param port
+	 *            port, 0 for any free port
+	 * @throws IOException
+	 *             IOException
+	 */
+	OriginServer(final int port) throws IOException {
+		this.socket = new ServerSocket(port, 128, InetAddress
+				.getByName("127.0.0.1"));
+	}
+
+	/**
+	 * @return port listened on
+	 */
+	int getPort() {
+		return this.socket.getLocalPort();
+	}
+
+	/**
+	 * Start accepting on a daemon thread.
+	 */
+	void start() {
+		final Thread t = new Thread(this, "OriginServer-accept");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				this.workers.execute(new Handler(this.socket.accept()));
+			}
+		} catch (IOException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * Stop accepting, running connections are served to their end.
+	 */
+	void close() {
+		try {
+			this.socket.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+		this.workers.shutdown();
+	}
+
+	/**
+	 * Read a request header.
+	 * 
+	 * @param in
+	 *            stream
+	 * @param b
+	 *            buffer
+	 * @return length of header including the empty line, 0 on EOF
+	 * @throws IOException
+	 *             IOException, or header too long
+	 */
+	static int readHeader(final InputStream in, final byte[] b)
+			throws IOException {
+		int l = 0;
+		int c;
+		while ((c = in.read()) >= 0) {
+			if (l == b.length) {
+				throw new IOException("header too long");
+			}
+			b[l++] = (byte) c;
+			if (c == '\n'
+					&& (l >= 2 && b[l - 2] == '\n' || l >= 3
+							&& b[l - 2] == '\r' && b[l - 3] == '\n')) {
+				return l;
+			}
+		}
+		if (l > 0) {
+			throw new IOException("incomplete header");
+		}
+		return 0;
+	}
+
+	/**
+	 * @param path
+	 *            requested path
+	 * @return size of body requested by path's last part
+	 */
+	private static int getSize(final String path) {
+		final int i = path.lastIndexOf('/');
+		try {
+			return Math.max(0, Math.min(MAX_SIZE, Integer.parseInt(path
+					.substring(i + 1))));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Relay responses from a remote host to the client over loopback sockets, the
+ * work done by CopyStream and {@link Upstream}. Each operation copies one
+ * response of the given size.
+ * 
+ * @author Felix Bechstein
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RelayBenchmark {
+	/** Size of a response. */
+	@Param({ "16384", "1048576" })
+	private int size;
+
+	/** Remote host, sends a response to each connection and closes it. */
+	private ServerSocket remote;
+	/** Client side of the proxy, data sent here is drained. */
+	private Socket client;
+	/** Stream to the client. */
+	private OutputStream clientOut;
+	/** Buffer, reused like the proxy does. */
+	private final byte[] buf = new byte[Relay.BUFFSIZE];
+
+	/**
+	 * Start remote host and client.
+	 * 
+	 * @throws IOException
+	 *             IOException
+	 */
+	@Setup
+	public void setup() throws IOException {
+		final InetAddress lo = InetAddress.getByName("127.0.0.1");
+		final byte[] response = new byte[this.size];
+		final ServerSocket r = new ServerSocket(0, 50, lo);
+		this.remote = r;
+		daemon(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final Socket s = r.accept();
+						try {
+							s.getOutputStream().write(response);
+						} finally {
+							s.close();
+						}
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		});
+
+		final ServerSocket c = new ServerSocket(0, 1, lo);
+		this.client = new Socket(lo, c.getLocalPort());
+		final Socket drain = c.accept();
+		c.close();
+		this.clientOut = this.client.getOutputStream();
+		daemon(new Runnable() {
+			@Override
+			public void run() {
+				final byte[] b = new byte[Relay.BUFFSIZE];
+				try {
+					final InputStream in = drain.getInputStream();
+					while (in.read(b) >= 0) {
+						continue;
+					}
+					drain.close();
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop remote host and client.
+	 * 
+	 * @throws IOException
+	 *             IOException
+	 */
+	@TearDown
+	public void tearDown() throws IOException {
+		this.remote.close();
+		this.client.close();
+	}
+
+	/**
+	 * Start a daemon thread.
+	 * 
+	 * @param r
+	 *            Runnable
+	 */
+	private static void daemon(final Runnable r) {
+		final Thread t = new Thread(r);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Connect to the remote host and copy it's response to the client.
+	 * 
+	 * @return number of bytes copied
+	 * @throws IOException
+	 *             IOException
+	 */
+	@Benchmark
+	public long relay() throws IOException {
+		final Socket s = new Socket(this.remote.getInetAddress(), this.remote
+				.getLocalPort());
+		try {
+			return Relay.copy(new BufferedInputStream(s.getInputStream(),
+					Relay.BUFFSIZE), this.clientOut, this.buf);
+		} finally {
+			s.close();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link AbpEngine} against checking each of it's rules.
+ * 
+ * @author Felix Bechstein
+ */
+public final class AbpEngineTest {
+	/**
+	 * @param rules
+	 *            rules
+	 * @return engine
+	 */
+	private static AbpEngine engine(final String... rules) {
+		final ArrayList<AbpRule> l = new ArrayList<AbpRule>();
+		for (String s : rules) {
+			l.add(AbpRule.parse(s));
+		}
+		return new AbpEngine(l);
+	}
+
+	/**
+	 * Check a URL, exceptions take precedence.
+	 * 
+	 * @param e
+	 *            engine
+	 * @param url
+	 *            URL, lower case
+	 * @param page
+	 *            host of page, null if unknown
+	 * @return true, if URL is blocked
+	 */
+	private static boolean blocked(final AbpEngine e, final String url,
+			final String page) {
+		final byte[] b = url.getBytes();
+		final int hs = url.indexOf("://") + 3;
+		int he = hs;
+		while (he < b.length && b[he] != '/' && b[he] != ':') {
+			++he;
+		}
+		final String host = url.substring(hs, he);
+		final boolean third = page != null && !host.equals(page)
+				&& !host.endsWith("." + page);
+		return e.block(b, b.length, hs, he, page, third)
+				&& !e.allow(b, b.length, hs, he, page, third);
+	}
+
+	/**
+	 * Blocking rules and exceptions are kept apart.
+	 */
+	@Test
+	public void testExceptions() {
+		final AbpEngine e = engine("||ads.com^", "/banner/*",
+				"@@||ads.com/allowed^", "@@/banner/ok$domain=site.com");
+		assertEquals(4, e.size());
+		assertTrue(e.hasContext());
+		assertTrue(blocked(e, "http://ads.com/x", null));
+		assertTrue(blocked(e, "http://cdn.ads.com/x", null));
+		assertFalse(blocked(e, "http://ads.com/allowed/x", null));
+		assertFalse(blocked(e, "http://other.com/x", null));
+		assertTrue(blocked(e, "http://b.com/banner/ok", "other.com"));
+		assertFalse(blocked(e, "http://b.com/banner/ok", "site.com"));
+		assertFalse(engine("||ads.com^").hasContext());
+	}
+
+	/**
+	 * The engine finds the same rules as checking each rule, however the
+	 * rules are indexed by their tokens.
+	 */
+	@Test
+	public void testIndex() {
+		final String[] rules = { "||ads.example.com^", "/banner/*.gif",
+				"||tracker.net^$third-party", "-ad-", "|http://pop.",
+				"*/ad.js", "@@||example.com/ads/ok^", "com/x^", ".swf|",
+				"@@*ad.js?keep" };
+		final String[] urls = { "http://ads.example.com/a",
+				"http://www.example.com/banner/x.gif",
+				"http://tracker.net/p", "http://a.com/top-ad-1",
+				"http://pop.com/", "http://b.com/ad.js",
+				"http://b.com/ad.js?keep", "http://example.com/ads/ok",
+				"http://ads.example.com/ads/ok", "http://c.com/x",
+				"http://c.com/xy", "http://d.com/f.swf", "http://clean.org/" };
+		final String[] pages = { null, "example.com", "tracker.net" };
+		final AbpEngine e = engine(rules);
+		for (String u : urls) {
+			for (String page : pages) {
+				boolean b = false;
+				boolean a = false;
+				for (String r : rules) {
+					if (AbpRuleTest.matches(r, u, page)) {
+						if (AbpRule.parse(r).isException()) {
+							a = true;
+						} else {
+							b = true;
+						}
+					}
+				}
+				assertEquals(u + " " + page, b && !a, blocked(e, u, page));
+			}
+		}
+	}
+}
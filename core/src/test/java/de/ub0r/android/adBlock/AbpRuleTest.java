@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests parsing and matching of single {@link AbpRule}s.
+ * 
+ * @author Felix Bechstein
+ */
+public final class AbpRuleTest {
+	/**
+	 * Check a URL against a rule.
+	 * 
+	 * @param rule
+	 *            rule
+	 * @param url
+	 *            URL, lower case
+	 * @param page
+	 *            host of page, null if unknown
+	 * @return true, if rule matches
+	 */
+	static boolean matches(final String rule, final String url,
+			final String page) {
+		final AbpRule r = AbpRule.parse(rule);
+		final byte[] b = url.getBytes();
+		final int hs = url.indexOf("://") + 3;
+		int he = hs;
+		while (he < b.length && b[he] != '/' && b[he] != ':') {
+			++he;
+		}
+		final String host = url.substring(hs, he);
+		final boolean third = page != null && !host.equals(page)
+				&& !host.endsWith("." + page);
+		return r.matches(b, b.length, hs, he, page, third);
+	}
+
+	/**
+	 * Plain host names are no Adblock Plus rules.
+	 */
+	@Test
+	public void testIsAbp() {
+		assertFalse(AbpRule.isAbp("ads.example.com"));
+		assertFalse(AbpRule.isAbp(""));
+		assertTrue(AbpRule.isAbp("||example.com^"));
+		assertTrue(AbpRule.isAbp("@@|http://a/"));
+		assertTrue(AbpRule.isAbp("/ads/*.gif"));
+		assertTrue(AbpRule.isAbp("banner$third-party"));
+		assertTrue(AbpRule.isAbp("example.com##.ad"));
+	}
+
+	/**
+	 * Comments, element hiding, regular expressions and unknown options are
+	 * not supported.
+	 */
+	@Test
+	public void testUnsupported() {
+		assertNull(AbpRule.parse("! comment"));
+		assertNull(AbpRule.parse("[Adblock Plus 2.0]"));
+		assertNull(AbpRule.parse("example.com##.ad"));
+		assertNull(AbpRule.parse("example.com#@#.ad"));
+		assertNull(AbpRule.parse("/banner[0-9]+/"));
+		assertNull(AbpRule.parse("/ads/"));
+		assertNull(AbpRule.parse("ads$popup"));
+		// matching is case insensitive, match-case can't be honoured
+		assertNull(AbpRule.parse("/Ads/$match-case"));
+		assertNull(AbpRule.parse("||example.com^$image,match-case"));
+	}
+
+	/**
+	 * "||" anchors at the host or any of it's sub domains.
+	 */
+	@Test
+	public void testDomainAnchor() {
+		final String r = "||ads.example.com^";
+		assertTrue(matches(r, "http://ads.example.com/x", null));
+		assertTrue(matches(r, "https://cdn.ads.example.com/", null));
+		assertTrue(matches(r, "http://ads.example.com", null));
+		assertTrue(matches(r, "http://ads.example.com:8080/", null));
+		assertFalse(matches(r, "http://badads.example.com/", null));
+		assertFalse(matches(r, "http://ads.example.com.evil/", null));
+		assertFalse(matches(r, "http://a.com/?ads.example.com/", null));
+		assertEquals("ads.example.com", AbpRule.parse(r).getHost());
+		assertNull(AbpRule.parse("||ads.example.com/x^").getHost());
+		assertNull(AbpRule.parse(r + "$third-party").getHost());
+	}
+
+	/**
+	 * "^" matches a separator or the end of the URL, "*" anything, "|"
+	 * anchors at start or end.
+	 */
+	@Test
+	public void testPattern() {
+		assertTrue(matches("/ads^", "http://a.com/ads?x=1", null));
+		assertTrue(matches("/ads^", "http://a.com/ads", null));
+		assertFalse(matches("/ads^", "http://a.com/adsx", null));
+		assertFalse(matches("/ads^", "http://a.com/ads-1", null));
+		assertTrue(matches("/ad*/banner", "http://a.com/adx/y/banner", null));
+		assertFalse(matches("/ad*/banner", "http://a.com/banner/ad", null));
+		assertTrue(matches("|http://a.", "http://a.com/", null));
+		assertFalse(matches("|http://a.", "http://b.com/?http://a.", null));
+		assertTrue(matches(".gif|", "http://a.com/b.gif", null));
+		assertFalse(matches(".gif|", "http://a.com/b.gif?x", null));
+		assertTrue(matches("Banner", "http://a.com/banner", null));
+	}
+
+	/**
+	 * Options restrict rules to the page causing the request, content types
+	 * are ignored.
+	 */
+	@Test
+	public void testOptions() {
+		final String r = "||tracker.com^$third-party";
+		assertTrue(matches(r, "http://tracker.com/t", "news.com"));
+		assertFalse(matches(r, "http://tracker.com/t", "tracker.com"));
+		assertFalse(matches(r, "http://tracker.com/t", null));
+		assertTrue(AbpRule.parse(r).hasContext());
+
+		final String f = "/pixel$~third-party";
+		assertTrue(matches(f, "http://a.com/pixel", "a.com"));
+		assertFalse(matches(f, "http://a.com/pixel", "b.com"));
+
+		final String d = "/ads/*$domain=a.com|~b.a.com";
+		assertTrue(matches(d, "http://x.com/ads/", "a.com"));
+		assertTrue(matches(d, "http://x.com/ads/", "www.a.com"));
+		assertFalse(matches(d, "http://x.com/ads/", "b.a.com"));
+		assertFalse(matches(d, "http://x.com/ads/", "ba.com"));
+		assertFalse(matches(d, "http://x.com/ads/", null));
+
+		assertTrue(matches("/ads/*$image,script", "http://x.com/ads/", null));
+		assertFalse(AbpRule.parse("/ads/*$image").hasContext());
+	}
+
+	/**
+	 * "@@" makes a rule an exception.
+	 */
+	@Test
+	public void testException() {
+		final AbpRule r = AbpRule.parse("@@||good.com^");
+		assertTrue(r.isException());
+		assertNull(r.getHost());
+		assertTrue(matches("@@||good.com^", "http://good.com/ads", null));
+		assertFalse(AbpRule.parse("||good.com^").isException());
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link BodyParser} on whole bodies and bodies read in parts.
+ * 
+ * @author Felix Bechstein
+ */
+public final class BodyParserTest {
+	/** Chunked body with extensions and trailers. */
+	private static final String CHUNKED = "5;name=value\r\nhello\r\n"
+			+ "A ; a=\"b;c\"\r\n0123456789\r\n" + "1\nx\n"
+			+ "0;last\r\nTrailer: a\r\nOther: b\r\n\r\n";
+
+	/**
+	 * @param s
+	 *            body
+	 * @return body as bytes
+	 */
+	private static byte[] bytes(final String s) {
+		final byte[] b = new byte[s.length()];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) s.charAt(i);
+		}
+		return b;
+	}
+
+	/**
+	 * Parse a body in parts.
+	 * 
+	 * @param p
+	 *            parser, already reset
+	 * @param b
+	 *            body
+	 * @param step
+	 *            bytes read at once
+	 * @return end of body, {@link BodyParser#ERROR} or b.length if it goes on
+	 */
+	private static int parse(final BodyParser p, final byte[] b,
+			final int step) {
+		int i = 0;
+		while (i < b.length) {
+			final int len = Math.min(b.length, i + step);
+			i = p.parse(b, i, len);
+			if (i == BodyParser.ERROR || p.isDone()) {
+				return i;
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * A body of known length ends after it's length, data is skipped at once.
+	 */
+	@Test
+	public void testLength() {
+		final byte[] b = bytes("0123456789GET / HTTP/1.1");
+		final BodyParser p = new BodyParser();
+		p.reset(10, false);
+		assertFalse(p.isDone());
+		assertEquals(10, p.getData());
+		assertEquals(4, p.parse(b, 0, 4));
+		assertEquals(6, p.getData());
+		assertEquals(10, p.parse(b, 4, b.length));
+		assertTrue(p.isDone());
+		assertEquals(0, p.getData());
+
+		p.reset(0, false);
+		assertTrue(p.isDone());
+		assertEquals(3, p.parse(b, 3, b.length));
+	}
+
+	/**
+	 * The header tells the framing.
+	 */
+	@Test
+	public void testHeader() {
+		final BodyParser p = new BodyParser();
+		final HeaderParser h = new HeaderParser();
+		byte[] b = bytes("GET / HTTP/1.1\r\nHost: a\r\n\r\n");
+		h.parse(b, b.length);
+		assertTrue(p.reset(h));
+		assertTrue(p.isDone());
+
+		h.reset(0);
+		b = bytes("POST / HTTP/1.1\r\nContent-Length: 3\r\n\r\n");
+		h.parse(b, b.length);
+		assertTrue(p.reset(h));
+		assertEquals(3, p.getData());
+
+		h.reset(0);
+		b = bytes("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n");
+		h.parse(b, b.length);
+		assertTrue(p.reset(h));
+		assertFalse(p.isDone());
+		assertEquals(0, p.getData());
+
+		h.reset(0);
+		b = bytes("POST / HTTP/1.1\r\nContent-Length: x\r\n\r\n");
+		h.parse(b, b.length);
+		assertFalse(p.reset(h));
+	}
+
+	/**
+	 * A chunked body with extensions and trailers gives the same end however
+	 * it is read.
+	 */
+	@Test
+	public void testChunked() {
+		final byte[] b = bytes(CHUNKED + "next");
+		final int end = CHUNKED.length();
+		final BodyParser p = new BodyParser();
+		for (int step = 1; step <= b.length; step++) {
+			p.reset(0, true);
+			assertEquals("step " + step, end, parse(p, b, step));
+			assertTrue(p.isDone());
+		}
+	}
+
+	/**
+	 * A chunk size followed directly by it's line's end is handled by the
+	 * extension state, which must read the same byte again.
+	 */
+	@Test
+	public void testSizeEnd() {
+		final String[] bodies = { "3\r\nabc\r\n0\r\n\r\n",
+				"3\nabc\n0\n\n", "3;\r\nabc\r\n0;\r\n\r\n" };
+		final BodyParser p = new BodyParser();
+		for (String s : bodies) {
+			final byte[] b = bytes(s);
+			for (int step = 1; step <= b.length; step++) {
+				p.reset(0, true);
+				assertEquals(s, b.length, parse(p, b, step));
+				assertTrue(s, p.isDone());
+			}
+		}
+	}
+
+	/**
+	 * Chunk data is skipped at once.
+	 */
+	@Test
+	public void testChunkData() {
+		final byte[] b = bytes("10\r\n");
+		final BodyParser p = new BodyParser();
+		p.reset(0, true);
+		assertEquals(b.length, p.parse(b, 0, b.length));
+		assertEquals(16, p.getData());
+	}
+
+	/**
+	 * Malformed framing is an error.
+	 */
+	@Test
+	public void testErrors() {
+		final String[] bodies = { "\r\n", "x\r\n", "3\r\nabcX\r\n",
+				"fffffffffffffffff\r\n" };
+		final BodyParser p = new BodyParser();
+		for (String s : bodies) {
+			p.reset(0, true);
+			final byte[] b = bytes(s);
+			assertEquals(s, BodyParser.ERROR, p.parse(b, 0, b.length));
+		}
+	}
+
+	/**
+	 * A body without framing goes on until the connection is closed.
+	 */
+	@Test
+	public void testUntilClose() {
+		final byte[] b = bytes(CHUNKED);
+		final BodyParser p = new BodyParser();
+		p.reset(BodyParser.UNTIL_CLOSE, false);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(b.length, p.parse(b, 0, b.length));
+			assertFalse(p.isDone());
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.Test;
+
+/**
+ * Tests an {@link EventLoop} apart from the {@link ProxyServer}'s engines.
+ * 
+ * @author Felix Bechstein
+ */
+public final class EventLoopTest {
+	/**
+	 * Buffers have the configured size, but hold a request header at least.
+	 * 
+	 * @throws IOException
+	 *             IOException
+	 */
+	@Test
+	public void testBufferSize() throws IOException {
+		final ProxyServer p = new ProxyServer();
+		final EventLoop big = new EventLoop(p, new Metrics(), 65536, 1);
+		assertEquals(65536, big.getBuffers().getSize());
+		final EventLoop small = new EventLoop(p, new Metrics(), 1024, 1);
+		assertEquals(8192, small.getBuffers().getSize());
+		big.stop();
+		small.stop();
+	}
+
+	/**
+	 * A channel added after the loop stopped is closed at once.
+	 * 
+	 * @throws Exception
+	 *             Exception
+	 */
+	@Test
+	public void testAddAfterStop() throws Exception {
+		final Metrics m = new Metrics();
+		final EventLoop l = new EventLoop(new ProxyServer(), m, 8192, 1);
+		final Thread t = new Thread(l, "EventLoopTest");
+		t.start();
+		l.stop();
+		t.join();
+		final ServerSocketChannel server = ServerSocketChannel.open();
+		try {
+			server.socket().bind(
+					new InetSocketAddress(InetAddress.getByName("127.0.0.1"),
+							0));
+			final SocketChannel client = SocketChannel.open(server.socket()
+					.getLocalSocketAddress());
+			final SocketChannel c = server.accept();
+			m.accepted();
+			l.add(c);
+			assertFalse(c.isOpen());
+			assertEquals(0, l.getSessions());
+			assertEquals(0, m.getActive());
+			client.close();
+		} finally {
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link FilterMatcher} against a plain substring scan.
+ * 
+ * @author Felix Bechstein
+ */
+public final class FilterMatcherTest {
+	/**
+	 * @param filter
+	 *            substrings
+	 * @return compiled filter
+	 */
+	private static FilterMatcher compile(final String... filter) {
+		return new FilterMatcher(Arrays.asList(filter));
+	}
+
+	/**
+	 * @param filter
+	 *            substrings
+	 * @param s
+	 *            String
+	 * @return true, if any substring is in s
+	 */
+	private static boolean scan(final Iterable<String> filter, final String s) {
+		for (String f : filter) {
+			if (f.length() > 0 && s.indexOf(f) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * An empty filter and empty entries match nothing.
+	 */
+	@Test
+	public void testEmpty() {
+		assertFalse(compile().matches("anything"));
+		assertFalse(compile("").matches("anything"));
+		assertFalse(compile("", "ads").matches("anything"));
+		assertTrue(compile("", "ads").matches("/ads/"));
+	}
+
+	/**
+	 * A mismatch deep in one pattern continues in another pattern by the
+	 * failure link.
+	 */
+	@Test
+	public void testFailLinks() {
+		final FilterMatcher m = compile("abcd", "bce");
+		assertTrue(m.matches("abce"));
+		assertTrue(m.matches("xxabcd"));
+		assertFalse(m.matches("abcbd"));
+		final FilterMatcher r = compile("aab");
+		assertTrue(r.matches("aaab"));
+		assertTrue(r.matches("aaaaab"));
+		assertFalse(r.matches("abab"));
+	}
+
+	/**
+	 * A pattern inside another pattern matches while the longer one is still
+	 * possible.
+	 */
+	@Test
+	public void testOverlapping() {
+		final FilterMatcher m = compile("he", "she", "his", "hers");
+		assertTrue(m.matches("ushers"));
+		assertTrue(m.matches("ahis"));
+		assertFalse(m.matches("hrs"));
+		final FilterMatcher n = compile("abcdef", "cd");
+		assertTrue(n.matches("abcdx"));
+		assertFalse(n.matches("abcx"));
+	}
+
+	/**
+	 * Data fed in parts matches like data fed at once.
+	 */
+	@Test
+	public void testParts() {
+		final FilterMatcher m = compile("doubleclick");
+		int st = m.next(FilterMatcher.START, "http://ad.double");
+		assertTrue(st != FilterMatcher.MATCH);
+		st = m.next(st, "click.net/");
+		assertEquals(FilterMatcher.MATCH, st);
+		final byte[] b = "GET /doubleclick HTTP/1.1".getBytes();
+		assertEquals(FilterMatcher.MATCH, m.next(FilterMatcher.START, b, 0,
+				b.length));
+		final int part = m.next(FilterMatcher.START, b, 0, 10);
+		assertTrue(part != FilterMatcher.MATCH);
+	}
+
+	/**
+	 * Random filters and Strings match like a plain scan, the automaton
+	 * read back from a buffer too.
+	 */
+	@Test
+	public void testRandom() {
+		final Random r = new Random(1);
+		final String abc = "abc.";
+		for (int it = 0; it < 500; it++) {
+			final ArrayList<String> filter = new ArrayList<String>();
+			final int n = r.nextInt(6);
+			for (int i = 0; i < n; i++) {
+				filter.add(random(r, abc, 1 + r.nextInt(4)));
+			}
+			final FilterMatcher m = new FilterMatcher(filter);
+			final ByteBuffer b = ByteBuffer.allocate(m.getByteSize());
+			m.write(b);
+			assertEquals(m.getByteSize(), b.position());
+			b.flip();
+			final FilterMatcher read = FilterMatcher.read(b);
+			for (int i = 0; i < 20; i++) {
+				final String s = random(r, abc, r.nextInt(12));
+				final boolean expected = scan(filter, s);
+				assertEquals(filter + " " + s, expected, m.matches(s));
+				assertEquals(filter + " " + s, expected, read.matches(s));
+			}
+		}
+	}
+
+	/**
+	 * @param r
+	 *            random source
+	 * @param chars
+	 *            chars to pick from
+	 * @param length
+	 *            length
+	 * @return random String
+	 */
+	private static String random(final Random r, final String chars,
+			final int length) {
+		final StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			sb.append(chars.charAt(r.nextInt(chars.length())));
+		}
+		return sb.toString();
+	}
+}
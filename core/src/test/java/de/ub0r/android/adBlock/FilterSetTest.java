@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link FilterSet} on host names, substrings and Adblock Plus rules.
+ * 
+ * @author Felix Bechstein
+ */
+public final class FilterSetTest {
+	/** Compiled filter's file. */
+	private File file;
+
+	/**
+	 * Create the file.
+	 * 
+	 * @throws IOException
+	 *             IOException
+	 */
+	@Before
+	public void setUp() throws IOException {
+		this.file = File.createTempFile("filter", ".bin");
+	}
+
+	/**
+	 * Delete the file.
+	 */
+	@After
+	public void tearDown() {
+		this.file.delete();
+	}
+
+	/**
+	 * @param filter
+	 *            filter
+	 * @return compiled filter
+	 */
+	private static FilterSet set(final String... filter) {
+		return new FilterSet(Arrays.asList(filter), true);
+	}
+
+	/**
+	 * A complete domain blocks the host and it's sub domains, it is no
+	 * substring.
+	 */
+	@Test
+	public void testDomain() {
+		final FilterSet f = set("ads.example.com");
+		assertTrue(f.isBlocked("http://ads.example.com/x", null));
+		assertTrue(f.isBlocked("http://a.ads.example.com/", null));
+		assertTrue(f.isBlocked("http://ADS.example.com/", null));
+		assertFalse(f.isBlocked("http://example.com/", null));
+		assertFalse(f.isBlocked("http://a.com/?ads.example.com", null));
+	}
+
+	/**
+	 * A host with a trailing dot is the same host.
+	 */
+	@Test
+	public void testTrailingDot() {
+		final FilterSet f = set("ads.example.com", "||tracker.net^");
+		assertTrue(f.isBlocked("http://ads.example.com./x", null));
+		assertTrue(f.isBlocked("http://a.ads.example.com./", null));
+		assertTrue(f.isBlocked("http://tracker.net./", null));
+		assertFalse(f.isBlocked("http://example.com./", null));
+	}
+
+	/**
+	 * A partial host name is a substring.
+	 */
+	@Test
+	public void testPartialHost() {
+		final FilterSet f = set("ad.doubleclick");
+		assertTrue(f.isBlocked("http://ad.doubleclick.net/x", null));
+		assertTrue(f.isBlocked("http://a.com/?ad.doubleclick", null));
+		assertFalse(f.isBlocked("http://doubleclick.net/", null));
+	}
+
+	/**
+	 * Substrings are case sensitive, a host's decision is not taken for the
+	 * same host written in another case.
+	 */
+	@Test
+	public void testHostCase() {
+		final FilterSet f = set("Ex");
+		assertTrue(f.isBlocked("http://Ex.com/", null));
+		assertFalse(f.isBlocked("http://ex.com/", null));
+		assertTrue(f.isBlocked("http://Ex.com/", null));
+	}
+
+	/**
+	 * Adblock Plus exceptions override all other filters.
+	 */
+	@Test
+	public void testAbp() {
+		final FilterSet f = set("ads.example.com", "/banner/*",
+				"||tracker.net^$third-party", "@@||ads.example.com/ok^");
+		assertTrue(f.isBlocked("http://a.com/banner/1", null));
+		assertTrue(f.isBlocked("http://tracker.net/p", "news.com"));
+		assertFalse(f.isBlocked("http://tracker.net/p", "tracker.net"));
+		assertTrue(f.isBlocked("http://ads.example.com/x", null));
+		assertFalse(f.isBlocked("http://ads.example.com/ok/x", null));
+	}
+
+	/**
+	 * A filter loaded from it's file decides as the compiled one.
+	 * 
+	 * @throws IOException
+	 *             IOException
+	 */
+	@Test
+	public void testWriteLoad() throws IOException {
+		final FilterSet f = set("ads.example.com", "ad.doubleclick",
+				"/banner/*", "||tracker.net^$third-party", "@@/banner/ok",
+				"example.com##.ad", "", "! comment");
+		f.write(this.file, 7);
+		final FilterSet l = FilterSet.load(this.file, 7, false);
+		assertNotNull(l);
+		assertEquals(f.getHosts(), l.getHosts());
+		assertEquals(f.getOthers(), l.getOthers());
+		assertEquals(f.getRules(), l.getRules());
+		assertEquals(f.getHidingRules(), l.getHidingRules());
+		final String[] urls = { "http://a.ads.example.com./",
+				"http://ad.doubleclick.net/", "http://a.com/banner/1",
+				"http://a.com/banner/ok", "http://tracker.net/",
+				"http://clean.org/" };
+		final String[] pages = { null, "news.com" };
+		for (String u : urls) {
+			for (String p : pages) {
+				assertEquals(u + " " + p, f.isBlocked(u, p), l.isBlocked(u,
+						p));
+			}
+		}
+		assertTrue(l.isBlocked("http://tracker.net/", "news.com"));
+		assertFalse(l.isBlocked("http://a.com/banner/ok", null));
+	}
+
+	/**
+	 * A missing, outdated or broken file is not loaded.
+	 * 
+	 * @throws IOException
+	 *             IOException
+	 */
+	@Test
+	public void testLoadInvalid() throws IOException {
+		set("ads.example.com", "/banner/*").write(this.file, 7);
+		assertNull(FilterSet.load(this.file, 8, false));
+		assertNull(FilterSet.load(new File(this.file.getPath() + ".x"), 7,
+				false));
+
+		final RandomAccessFile f = new RandomAccessFile(this.file, "rw");
+		try {
+			f.setLength(f.length() - 4);
+			assertNull(FilterSet.load(this.file, 7, false));
+			f.setLength(10);
+			assertNull(FilterSet.load(this.file, 7, false));
+			f.setLength(0);
+			assertNull(FilterSet.load(this.file, 7, false));
+		} finally {
+			f.close();
+		}
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link HeaderParser} on whole headers and headers read in parts.
+ * 
+ * @author Felix Bechstein
+ */
+public final class HeaderParserTest {
+	/**
+	 * @param s
+	 *            header
+	 * @return header as bytes
+	 */
+	private static byte[] bytes(final String s) {
+		final byte[] b = new byte[s.length()];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) s.charAt(i);
+		}
+		return b;
+	}
+
+	/**
+	 * Parse a whole header.
+	 * 
+	 * @param b
+	 *            header
+	 * @return parser
+	 */
+	private static HeaderParser parse(final byte[] b) {
+		final HeaderParser h = new HeaderParser();
+		h.parse(b, b.length);
+		return h;
+	}
+
+	/**
+	 * @param h
+	 *            parser
+	 * @param b
+	 *            header
+	 * @return host
+	 */
+	private static String host(final HeaderParser h, final byte[] b) {
+		return HeaderParser.toString(b, h.getHostStart(), h.getHostEnd());
+	}
+
+	/**
+	 * Host and port come from the Host header in origin form.
+	 */
+	@Test
+	public void testOriginForm() {
+		final byte[] b = bytes("GET /path?q HTTP/1.1\r\n"
+				+ "Host: example.com:8080\r\nReferer: http://a.b/\r\n\r\n");
+		final HeaderParser h = parse(b);
+		assertEquals(HeaderParser.COMPLETE, h.getResult());
+		assertEquals(HeaderParser.METHOD_GET, h.getMethod());
+		assertEquals(b.length, h.getHeaderEnd());
+		assertFalse(h.isAbsolute());
+		assertTrue(h.hasHost());
+		assertEquals("example.com", host(h, b));
+		assertEquals(8080, h.getPort(80));
+		assertEquals("/path?q", HeaderParser.toString(b, h.getPathStart(), h
+				.getTargetEnd()));
+		assertEquals("http://a.b/", HeaderParser.toString(b, h
+				.getRefererStart(), h.getRefererEnd()));
+		assertEquals(HeaderParser.LENGTH_NONE, h.getContentLength());
+	}
+
+	/**
+	 * Host and port come from the request target in absolute form, the Host
+	 * header is ignored.
+	 */
+	@Test
+	public void testAbsoluteForm() {
+		byte[] b = bytes("POST http://Example.com/a HTTP/1.1\r\n"
+				+ "Host: other\r\nContent-Length: 5\r\n\r\n");
+		HeaderParser h = parse(b);
+		assertEquals(HeaderParser.COMPLETE, h.getResult());
+		assertEquals(HeaderParser.METHOD_POST, h.getMethod());
+		assertTrue(h.isAbsolute());
+		assertEquals("Example.com", host(h, b));
+		assertEquals(80, h.getPort(80));
+		assertEquals("/a", HeaderParser.toString(b, h.getPathStart(), h
+				.getTargetEnd()));
+		assertEquals(5, h.getContentLength());
+
+		b = bytes("HEAD http://example.com:81 HTTP/1.1\r\n\r\n");
+		h = parse(b);
+		assertEquals(HeaderParser.METHOD_HEAD, h.getMethod());
+		assertEquals("example.com", host(h, b));
+		assertEquals(81, h.getPort(80));
+		assertEquals(h.getTargetEnd(), h.getPathStart());
+
+		b = bytes("GET http://[::1]:8080/ HTTP/1.1\r\n\r\n");
+		h = parse(b);
+		assertEquals("::1", host(h, b));
+		assertEquals(8080, h.getPort(80));
+	}
+
+	/**
+	 * CONNECT's target is the authority.
+	 */
+	@Test
+	public void testConnect() {
+		final byte[] b = bytes("CONNECT secure.example.com:443 HTTP/1.1\r\n"
+				+ "Host: secure.example.com:443\r\n\r\n");
+		final HeaderParser h = parse(b);
+		assertEquals(HeaderParser.COMPLETE, h.getResult());
+		assertEquals(HeaderParser.METHOD_CONNECT, h.getMethod());
+		assertTrue(h.hasHost());
+		assertEquals("secure.example.com", host(h, b));
+		assertEquals(443, h.getPort(ProxyServer.PORT_HTTPS));
+	}
+
+	/**
+	 * An invalid port leaves no host to connect to.
+	 */
+	@Test
+	public void testInvalidPort() {
+		assertFalse(parse(bytes("GET http://example.com:99999/ HTTP/1.1\r\n"
+				+ "\r\n")).hasHost());
+		assertFalse(parse(bytes("GET / HTTP/1.1\r\nHost: example.com:x\r\n"
+				+ "\r\n")).hasHost());
+		assertFalse(parse(bytes("GET / HTTP/1.1\r\n\r\n")).hasHost());
+	}
+
+	/**
+	 * Values are found with and without white space around them.
+	 */
+	@Test
+	public void testValues() {
+		final String[] lengths = { "Content-Length:12\r\n",
+				"Content-Length: 12\r\n", "content-length: \t 12 \r\n",
+				"Content-Length:12\n" };
+		for (String l : lengths) {
+			final HeaderParser h = parse(bytes("POST /x HTTP/1.1\r\n"
+					+ "Host:a\r\n" + l + "\r\n"));
+			assertEquals(l, HeaderParser.COMPLETE, h.getResult());
+			assertEquals(l, 12, h.getContentLength());
+		}
+		HeaderParser h = parse(bytes("POST /x HTTP/1.1\r\nContent-Length: 1\r\n"
+				+ "Content-Length: 2\r\n\r\n"));
+		assertEquals(HeaderParser.LENGTH_INVALID, h.getContentLength());
+		h = parse(bytes("POST /x HTTP/1.1\r\nContent-Length: 1x\r\n\r\n"));
+		assertEquals(HeaderParser.LENGTH_INVALID, h.getContentLength());
+		h = parse(bytes("POST /x HTTP/1.1\r\n"
+				+ "Transfer-Encoding: gzip, Chunked\r\n\r\n"));
+		assertTrue(h.isChunked());
+		h = parse(bytes("POST /x HTTP/1.1\r\n"
+				+ "Transfer-Encoding: chunked, gzip\r\n\r\n"));
+		assertFalse(h.isChunked());
+	}
+
+	/**
+	 * A header read in parts gives the same result as read at once.
+	 */
+	@Test
+	public void testParts() {
+		final byte[] b = bytes("GET http://example.com/p HTTP/1.1\r\n"
+				+ "Host: example.com\r\nContent-Length:\t7\r\n"
+				+ "X-Other: v\r\n\r\n");
+		for (int step = 1; step <= b.length; step++) {
+			final HeaderParser h = new HeaderParser();
+			int len = 0;
+			int result = HeaderParser.INCOMPLETE;
+			while (len < b.length) {
+				assertEquals(HeaderParser.INCOMPLETE, result);
+				len = Math.min(b.length, len + step);
+				result = h.parse(b, len);
+			}
+			assertEquals(HeaderParser.COMPLETE, result);
+			assertEquals(b.length, h.getHeaderEnd());
+			assertEquals("example.com", host(h, b));
+			assertEquals(7, h.getContentLength());
+		}
+	}
+
+	/**
+	 * Requests in a row are parsed one after the other.
+	 */
+	@Test
+	public void testPipelined() {
+		final byte[] b = bytes("GET /a HTTP/1.1\r\nHost: a\r\n\r\n"
+				+ "GET /b HTTP/1.1\r\nHost: b\r\n\r\nGET /c");
+		final HeaderParser h = new HeaderParser();
+		assertEquals(HeaderParser.COMPLETE, h.parse(b, b.length));
+		assertEquals("a", host(h, b));
+		h.reset(h.getHeaderEnd());
+		assertEquals(HeaderParser.COMPLETE, h.parse(b, b.length));
+		assertEquals("b", host(h, b));
+		h.reset(h.getHeaderEnd());
+		assertEquals(HeaderParser.INCOMPLETE, h.parse(b, b.length));
+	}
+
+	/**
+	 * Data without a request line is no request.
+	 */
+	@Test
+	public void testNoRequest() {
+		assertEquals(HeaderParser.NO_REQUEST, parse(bytes("xyz garbage\r\n"))
+				.getResult());
+		assertEquals(HeaderParser.NO_REQUEST, parse(bytes(" GET / HTTP/1.1"))
+				.getResult());
+		assertEquals(HeaderParser.NO_REQUEST, parse(
+				bytes("ABCDEFGHIJKLMNOPQRSTUVWXYZ / HTTP/1.1\r\n\r\n"))
+				.getResult());
+		assertEquals(HeaderParser.METHOD_OTHER, parse(
+				bytes("PROPFIND / HTTP/1.1\r\n\r\n")).getMethod());
+	}
+
+	/**
+	 * A header without an end is incomplete however long it is, the callers
+	 * limit it's size. It completes with it's end.
+	 */
+	@Test
+	public void testOversized() {
+		final StringBuilder sb = new StringBuilder("GET / HTTP/1.1\r\n");
+		while (sb.length() < 65536) {
+			sb.append("X-Filler: 0123456789abcdef\r\n");
+		}
+		final byte[] b = bytes(sb.toString());
+		final HeaderParser h = new HeaderParser();
+		assertEquals(HeaderParser.INCOMPLETE, h.parse(b, b.length / 2));
+		assertEquals(HeaderParser.INCOMPLETE, h.parse(b, b.length));
+		final byte[] c = bytes(sb.append("\r\n").toString());
+		assertEquals(HeaderParser.COMPLETE, h.parse(c, c.length));
+		assertEquals(c.length, h.getHeaderEnd());
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link HostIndex} and the classification of host name filters.
+ * 
+ * @author Felix Bechstein
+ */
+public final class HostIndexTest {
+	/**
+	 * Host names have a dot and nothing but letters, digits, dashes and
+	 * dots.
+	 */
+	@Test
+	public void testIsHost() {
+		assertTrue(HostIndex.isHost("ads.example.com"));
+		assertTrue(HostIndex.isHost("ad.doubleclick"));
+		assertTrue(HostIndex.isHost("My-Host.de"));
+		assertFalse(HostIndex.isHost("localhost"));
+		assertFalse(HostIndex.isHost(""));
+		assertFalse(HostIndex.isHost(".example.com"));
+		assertFalse(HostIndex.isHost("example.com."));
+		assertFalse(HostIndex.isHost("a..com"));
+		assertFalse(HostIndex.isHost("example.com/ads"));
+	}
+
+	/**
+	 * Complete domains end in a country code or a generic top level domain,
+	 * partial hosts don't.
+	 */
+	@Test
+	public void testIsDomain() {
+		assertTrue(HostIndex.isDomain("ads.example.com"));
+		assertTrue(HostIndex.isDomain("ads.example.CO.UK"));
+		assertTrue(HostIndex.isDomain("tracker.info"));
+		assertFalse(HostIndex.isDomain("ad.doubleclick"));
+		assertFalse(HostIndex.isDomain("banner.gif"));
+		assertFalse(HostIndex.isDomain("ads.1"));
+		assertFalse(HostIndex.isDomain("10.0.0.1"));
+		assertFalse(HostIndex.isDomain("example.com."));
+	}
+
+	/**
+	 * Host names are lower cased and lose one trailing dot.
+	 */
+	@Test
+	public void testNormalize() {
+		assertEquals("ads.example.com", HostIndex
+				.normalize("Ads.Example.COM."));
+		assertEquals("ads.example.com", HostIndex.normalize("ads.example.com"));
+		assertEquals("a.com.", HostIndex.normalize("a.com.."));
+		assertEquals(".", HostIndex.normalize("."));
+	}
+
+	/**
+	 * A host is found with it's sub domains, written in any case and with a
+	 * trailing dot.
+	 */
+	@Test
+	public void testContains() {
+		final HostIndex h = new HostIndex(Arrays.asList("ads.example.com",
+				"Tracker.NET", "ads.example.com"));
+		assertEquals(2, h.size());
+		assertTrue(h.contains("ads.example.com"));
+		assertTrue(h.contains("a.b.ads.example.com"));
+		assertTrue(h.contains("ADS.example.com"));
+		assertTrue(h.contains("ads.example.com."));
+		assertTrue(h.contains("x.ads.example.com."));
+		assertTrue(h.contains("tracker.net"));
+		assertFalse(h.contains("example.com"));
+		assertFalse(h.contains("badads.example.com"));
+		assertFalse(h.contains("ads.example.com.evil"));
+		assertFalse(h.contains(null));
+		assertFalse(new HostIndex(Arrays.asList("a.com")).contains("b.com"));
+	}
+
+	/**
+	 * An index read from a buffer finds the same hosts.
+	 */
+	@Test
+	public void testWriteRead() {
+		final HostIndex h = new HostIndex(Arrays.asList("ads.example.com",
+				"tracker.net"));
+		final ByteBuffer b = ByteBuffer.allocate(h.getByteSize() + 4);
+		b.order(ByteOrder.nativeOrder());
+		b.putInt(0x12345678);
+		h.write(b);
+		assertEquals(b.capacity(), b.position());
+		b.flip();
+		b.getInt();
+		final HostIndex r = HostIndex.read(b);
+		assertEquals(b.capacity(), b.position());
+		assertEquals(2, r.size());
+		assertTrue(r.contains("x.ads.example.com."));
+		assertTrue(r.contains("tracker.net"));
+		assertFalse(r.contains("example.com"));
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs {@link ListImporter} against a local HTTP server serving a list with
+ * an ETag and a Last-Modified validator.
+ * 
+ * @author Felix Bechstein
+ */
+public final class ListImporterTest {
+	/** Last-Modified of every list. */
+	private static final String MODIFIED = "Sat, 01 May 2010 10:00:00 GMT";
+
+	/** Local server. */
+	private HttpServer server;
+	/** URL of the list. */
+	private String url;
+	/** List served. */
+	private volatile String body;
+	/** ETag of the list served. */
+	private volatile String eTag;
+	/** Status served instead of the list, 0 for none. */
+	private volatile int status = 0;
+	/** If-None-Match of the last request. */
+	private volatile String ifNoneMatch;
+	/** If-Modified-Since of the last request. */
+	private volatile String ifModifiedSince;
+
+	/**
+	 * Start the server.
+	 * 
+	 * @throws IOException
+	 *             IOException
+	 */
+	@Before
+	public void setUp() throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress
+				.getByName("127.0.0.1"), 0), 0);
+		this.server.createContext("/list.txt", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange x) throws IOException {
+				ListImporterTest.this.serve(x);
+			}
+		});
+		this.server.start();
+		this.url = "http://127.0.0.1:" + this.server.getAddress().getPort()
+				+ "/list.txt";
+	}
+
+	/**
+	 * Stop the server.
+	 */
+	@After
+	public void tearDown() {
+		this.server.stop(0);
+	}
+
+	/**
+	 * Answer a request like a static file server.
+	 * 
+	 * @param x
+	 *            exchange
+	 * @throws IOException
+	 *             IOException
+	 */
+	private void serve(final HttpExchange x) throws IOException {
+		this.ifNoneMatch = x.getRequestHeaders().getFirst("If-None-Match");
+		this.ifModifiedSince = x.getRequestHeaders().getFirst(
+				"If-Modified-Since");
+		if (this.status != 0) {
+			x.sendResponseHeaders(this.status, -1);
+		} else if (this.eTag.equals(this.ifNoneMatch)) {
+			x.sendResponseHeaders(304, -1);
+		} else {
+			final byte[] b = this.body.getBytes("UTF-8");
+			x.getResponseHeaders().set("ETag", this.eTag);
+			x.getResponseHeaders().set("Last-Modified", MODIFIED);
+			x.sendResponseHeaders(200, b.length);
+			final OutputStream out = x.getResponseBody();
+			out.write(b);
+			out.close();
+		}
+		x.close();
+	}
+
+	/**
+	 * @param rules
+	 *            rules
+	 * @return rules as a set
+	 */
+	private static HashSet<String> set(final String... rules) {
+		return new HashSet<String>(Arrays.asList(rules));
+	}
+
+	/**
+	 * A first download reads the whole list and keeps the diff.
+	 * 
+	 * @throws IOException
+	 *             IOException
+	 */
+	@Test
+	public void testDownload() throws IOException {
+		this.body = "ads\n\n  banner \nads\ntracker\n/pixel.gif\ntracker\n";
+		this.eTag = "\"v1\"";
+		final List<String> current = Arrays.asList("banner", "popup");
+		final ListImporter li = new ListImporter(this.url, null, null);
+		assertTrue(li.run(current));
+		assertNull(this.ifNoneMatch);
+		assertNull(this.ifModifiedSince);
+		assertEquals(Arrays.asList("ads", "tracker", "/pixel.gif"), li
+				.getAdded());
+		assertEquals(set("popup"), li.getRemoved());
+		assertEquals(4, li.getCount());
+		assertEquals("\"v1\"", li.getETag());
+		assertEquals(MODIFIED, li.getLastModified());
+	}
+
+	/**
+	 * An unchanged list is answered with 304 and nothing changes.
+	 * 
+	 * @throws IOException
+	 *             IOException
+	 */
+	@Test
+	public void testNotModified() throws IOException {
+		this.body = "ads\n";
+		this.eTag = "\"v1\"";
+		final ListImporter li = new ListImporter(this.url, "\"v1\"", MODIFIED);
+		assertFalse(li.run(Arrays.asList("popup")));
+		assertEquals("\"v1\"", this.ifNoneMatch);
+		assertEquals(MODIFIED, this.ifModifiedSince);
+		assertTrue(li.getAdded().isEmpty());
+		assertTrue(li.getRemoved().isEmpty());
+		assertEquals("\"v1\"", li.getETag());
+		assertEquals(MODIFIED, li.getLastModified());
+	}
+
+	/**
+	 * A changed list is downloaded again and only the diff to the imported
+	 * filter is kept.
+	 * 
+	 * @throws IOException
+	 *             IOException
+	 */
+	@Test
+	public void testDiff() throws IOException {
+		this.body = "ads\nbanner\ntracker\n";
+		this.eTag = "\"v1\"";
+		final ListImporter first = new ListImporter(this.url, null, null);
+		assertTrue(first.run(Arrays.<String> asList()));
+		final List<String> current = first.getAdded();
+
+		this.body = "ads\ntracker\ntracker\n||ads.example.com^\n";
+		this.eTag = "\"v2\"";
+		final ListImporter li = new ListImporter(this.url, first.getETag(),
+				first.getLastModified());
+		assertTrue(li.run(current));
+		assertEquals("\"v1\"", this.ifNoneMatch);
+		assertEquals(Arrays.asList("||ads.example.com^"), li.getAdded());
+		assertEquals(set("banner"), li.getRemoved());
+		assertEquals(3, li.getCount());
+		assertEquals("\"v2\"", li.getETag());
+	}
+
+	/**
+	 * Any other status fails the import.
+	 */
+	@Test
+	public void testError() {
+		this.status = 404;
+		final ListImporter li = new ListImporter(this.url, null, null);
+		try {
+			li.run(Arrays.asList("popup"));
+			fail("404 imported");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("HTTP 404"));
+		}
+		assertTrue(li.getRemoved().isEmpty());
+	}
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs a {@link ProxyServer} on a local port in both modes and talks to it
+ * through plain sockets.
+ * 
+ * @author Felix Bechstein
+ */
+public final class ProxyServerTest {
+	/** Timeout for connect and read in milliseconds. */
+	private static final int TIMEOUT = 5000;
+	/** Local address. */
+	private static final String LOCALHOST = "127.0.0.1";
+
+	/** Running proxy. */
+	private ProxyServer proxy;
+	/** Local origin servers. */
+	private final ArrayList<HttpServer> origins = new ArrayList<HttpServer>();
+	/** Port of the proxy. */
+	private int port;
+
+	/**
+	 * Start a proxy blocking "/ads".
+	 * 
+	 * @param eventLoop
+	 *            use event loops?
+	 * @throws Exception
+	 *             Exception
+	 */
+	private void start(final boolean eventLoop) throws Exception {
+		final ServerSocket s = new ServerSocket(0, 1, InetAddress
+				.getByName(LOCALHOST));
+		this.port = s.getLocalPort();
+		s.close();
+		final ArrayList<InetSocketAddress> a = // .
+		new ArrayList<InetSocketAddress>();
+		a.add(new InetSocketAddress(LOCALHOST, this.port));
+		this.proxy = new ProxyServer();
+		this.proxy.setAddresses(a);
+		this.proxy.setEventLoop(eventLoop);
+		this.proxy.setFilter(new FilterSet(Arrays.asList("/ads"), false));
+		new Thread(this.proxy, "ProxyServerTest").start();
+		final long end = System.currentTimeMillis() + TIMEOUT;
+		while (true) {
+			try {
+				new Socket(LOCALHOST, this.port).close();
+				return;
+			} catch (ConnectException e) {
+				if (System.currentTimeMillis() > end) {
+					throw e;
+				}
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	/**
+	 * Stop the proxy.
+	 */
+	@After
+	public void tearDown() {
+		if (this.proxy != null) {
+			this.proxy.stop();
+		}
+		for (HttpServer o : this.origins) {
+			o.stop(0);
+		}
+	}
+
+	/**
+	 * Start an origin server answering any request with a chunked body sent
+	 * in parts.
+	 * 
+	 * @param name
+	 *            body's last part
+	 * @return port of the origin server
+	 * @throws IOException
+	 *             IOException
+	 */
+	private int origin(final String name) throws IOException {
+		final HttpServer o = HttpServer.create(new InetSocketAddress(
+				InetAddress.getByName(LOCALHOST), 0), 0);
+		o.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange x) throws IOException {
+				x.sendResponseHeaders(200, 0);
+				final OutputStream out = x.getResponseBody();
+				for (int i = 0; i < 5; i++) {
+					out.write(("part " + i + "\n").getBytes("ISO-8859-1"));
+					out.flush();
+					try {
+						Thread.sleep(20);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+				out.write(name.getBytes("ISO-8859-1"));
+				out.close();
+			}
+		});
+		o.start();
+		this.origins.add(o);
+		return o.getAddress().getPort();
+	}
+
+	/**
+	 * Send data to the proxy and read until it closes the connection.
+	 * 
+	 * @param data
+	 *            data sent
+	 * @return data received
+	 * @throws IOException
+	 *             IOException
+	 */
+	private String exchange(final String data) throws IOException {
+		final Socket s = new Socket(LOCALHOST, this.port);
+		try {
+			s.setSoTimeout(TIMEOUT);
+			final OutputStream out = s.getOutputStream();
+			out.write(data.getBytes("ISO-8859-1"));
+			out.flush();
+			final InputStream in = s.getInputStream();
+			final ByteArrayOutputStream ret = new ByteArrayOutputStream();
+			final byte[] b = new byte[1024];
+			int n;
+			while ((n = in.read(b)) >= 0) {
+				ret.write(b, 0, n);
+			}
+			return ret.toString("ISO-8859-1");
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * Send data to the proxy and read until the data received ends with the
+	 * given String.
+	 * 
+	 * @param data
+	 *            data sent
+	 * @param last
+	 *            end of data received
+	 * @return data received
+	 * @throws IOException
+	 *             IOException
+	 */
+	private String exchange(final String data, final String last)
+			throws IOException {
+		final Socket s = new Socket(LOCALHOST, this.port);
+		try {
+			s.setSoTimeout(TIMEOUT);
+			final OutputStream out = s.getOutputStream();
+			out.write(data.getBytes("ISO-8859-1"));
+			out.flush();
+			final InputStream in = s.getInputStream();
+			final StringBuilder ret = new StringBuilder();
+			final byte[] b = new byte[1024];
+			int n;
+			while (ret.indexOf(last) < 0 && (n = in.read(b)) >= 0) {
+				ret.append(new String(b, 0, n, "ISO-8859-1"));
+			}
+			return ret.toString();
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * A pipelined request to another host waits for the first response. It
+	 * is checked and counted once.
+	 * 
+	 * @param eventLoop
+	 *            use event loops?
+	 * @throws Exception
+	 *             Exception
+	 */
+	private void checkOnce(final boolean eventLoop) throws Exception {
+		final int a = this.origin("first done");
+		final int b = this.origin("second done");
+		this.start(eventLoop);
+		final Metrics m = ProxyServer.getMetrics();
+		final long allowed = m.getAllowed();
+		final String r = this.exchange("GET http://" + LOCALHOST + ":" + a
+				+ "/first HTTP/1.1\r\nHost: " + LOCALHOST + ":" + a
+				+ "\r\n\r\nGET http://" + LOCALHOST + ":" + b
+				+ "/second HTTP/1.1\r\nHost: " + LOCALHOST + ":" + b
+				+ "\r\n\r\n", "second done");
+		assertTrue(r, r.indexOf("first done") >= 0);
+		assertTrue(r, r.indexOf("first done") < r.indexOf("second done"));
+		assertEquals(allowed + 2, m.getAllowed());
+	}
+
+	/**
+	 * @throws Exception
+	 *             Exception
+	 */
+	@Test
+	public void testCheckOnceThread() throws Exception {
+		this.checkOnce(false);
+	}
+
+	/**
+	 * @throws Exception
+	 *             Exception
+	 */
+	@Test
+	public void testCheckOnceEventLoop() throws Exception {
+		this.checkOnce(true);
+	}
+
+	/**
+	 * Data that is no request closes the connection, a request behind it is
+	 * not served.
+	 * 
+	 * @param eventLoop
+	 *            use event loops?
+	 * @throws Exception
+	 *             Exception
+	 */
+	private void noRequest(final boolean eventLoop) throws Exception {
+		this.start(eventLoop);
+		final long blocked = ProxyServer.getMetrics().getBlocked();
+		final String r = this.exchange("xyz garbage\r\n"
+				+ "GET http://" + LOCALHOST + ":1/ads HTTP/1.1\r\n"
+				+ "Host: " + LOCALHOST + ":1\r\n\r\n");
+		assertEquals(new String(ProxyServer.RESPONSE_ERROR, "ISO-8859-1"), r);
+		assertEquals(blocked, ProxyServer.getMetrics().getBlocked());
+	}
+
+	/**
+	 * @throws Exception
+	 *             Exception
+	 */
+	@Test
+	public void testNoRequestThread() throws Exception {
+		this.noRequest(false);
+	}
+
+	/**
+	 * @throws Exception
+	 *             Exception
+	 */
+	@Test
+	public void testNoRequestEventLoop() throws Exception {
+		this.noRequest(true);
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link Reaper} sweeping at given times.
+ * 
+ * @author Felix Bechstein
+ */
+public final class ReaperTest {
+	/** Nanoseconds per millisecond. */
+	private static final long MS = 1000000L;
+
+	/**
+	 * Target counting how often it was reaped.
+	 */
+	private static final class Counter implements Reaper.Target {
+		/** Number of calls to {@link #reap()}. */
+		private final AtomicInteger count = new AtomicInteger();
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void reap() {
+			this.count.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Each state has it's own timeout, idle connections count from their
+	 * last activity.
+	 */
+	@Test
+	public void testTimeouts() {
+		final Metrics m = new Metrics();
+		final Reaper r = new Reaper(300, 100, 200, m);
+		final Counter header = new Counter();
+		final Counter connect = new Counter();
+		final Counter idle = new Counter();
+		r.add(header);
+		r.add(connect).enter(Reaper.STATE_CONNECT);
+		final Reaper.Entry e = r.add(idle);
+		e.enter(Reaper.STATE_IDLE);
+		assertEquals(Reaper.STATE_IDLE, e.getState());
+		assertEquals(3, r.size());
+
+		final long now = System.nanoTime();
+		assertEquals(0, r.sweep(now + 50 * MS));
+		assertEquals(1, r.sweep(now + 150 * MS));
+		assertEquals(1, header.count.get());
+		assertEquals(1, r.sweep(now + 250 * MS));
+		assertEquals(1, connect.count.get());
+		assertFalse(e.isReaped());
+		e.touch();
+		final long touched = System.nanoTime();
+		assertEquals(0, r.sweep(touched + 250 * MS));
+		assertEquals(1, r.sweep(touched + 350 * MS));
+		assertTrue(e.isReaped());
+		assertEquals(1, idle.count.get());
+		assertEquals(0, r.size());
+		assertEquals(3, m.getReaped());
+	}
+
+	/**
+	 * A connection is reaped once, removed ones are not reaped.
+	 */
+	@Test
+	public void testOnce() {
+		final Reaper r = new Reaper(100, 100, 100, new Metrics());
+		final Counter c = new Counter();
+		final Counter d = new Counter();
+		r.add(c);
+		r.remove(r.add(d));
+		final long late = System.nanoTime() + 1000 * MS;
+		assertEquals(1, r.sweep(late));
+		assertEquals(0, r.sweep(late));
+		assertEquals(1, c.count.get());
+		assertEquals(0, d.count.get());
+	}
+
+	/**
+	 * Connections reaped while stopping are not counted.
+	 */
+	@Test
+	public void testReapAll() {
+		final Metrics m = new Metrics();
+		final Reaper r = new Reaper(100000, 100000, 100000, m);
+		final Counter c = new Counter();
+		for (int i = 0; i < 10; i++) {
+			r.add(c);
+		}
+		assertEquals(10, r.reapAll());
+		assertEquals(0, r.reapAll());
+		assertEquals(10, c.count.get());
+		assertEquals(0, m.getReaped());
+		assertEquals(0, r.size());
+	}
+
+	/**
+	 * Connections swept by many threads at once are reaped once each.
+	 * 
+	 * @throws InterruptedException
+	 *             InterruptedException
+	 */
+	@Test
+	public void testConcurrentSweeps() throws InterruptedException {
+		final Metrics m = new Metrics();
+		final Reaper r = new Reaper(100, 100, 100, m);
+		final int n = 10000;
+		final Counter c = new Counter();
+		for (int i = 0; i < n; i++) {
+			r.add(c);
+		}
+		final long late = System.nanoTime() + 1000 * MS;
+		final AtomicInteger swept = new AtomicInteger();
+		final Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					swept.addAndGet(r.sweep(late));
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(n, swept.get());
+		assertEquals(n, c.count.get());
+		assertEquals(n, m.getReaped());
+		assertEquals(0, r.size());
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link ResponseParser} framing responses without rewriting them.
+ * 
+ * @author Felix Bechstein
+ */
+public final class ResponseParserTest {
+	/**
+	 * @param s
+	 *            responses
+	 * @return responses as bytes
+	 */
+	private static byte[] bytes(final String s) {
+		final byte[] b = new byte[s.length()];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) s.charAt(i);
+		}
+		return b;
+	}
+
+	/**
+	 * Parse responses read in parts, untaken data is fed again with the next
+	 * part.
+	 * 
+	 * @param p
+	 *            parser
+	 * @param b
+	 *            responses
+	 * @param step
+	 *            bytes read at once
+	 * @return end of parsed data or {@link ResponseParser#ERROR}
+	 */
+	private static int parse(final ResponseParser p, final byte[] b,
+			final int step) {
+		int i = 0;
+		int len = 0;
+		while (len < b.length) {
+			len = Math.min(b.length, len + step);
+			i = p.parse(b, i, len);
+			if (i == ResponseParser.ERROR) {
+				return i;
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * Responses of known length and chunked ones follow each other on a kept
+	 * alive connection.
+	 */
+	@Test
+	public void testPipelined() {
+		final byte[] b = bytes("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\n"
+				+ "hello" + "HTTP/1.1 200 OK\r\n"
+				+ "Transfer-Encoding: chunked\r\n\r\n"
+				+ "3;x=y\r\nabc\r\n0\r\nTrailer: t\r\n\r\n"
+				+ "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n");
+		for (int step = 1; step <= b.length; step++) {
+			final ResponseParser p = new ResponseParser();
+			for (int i = 0; i < 3; i++) {
+				assertTrue(p.expect(false, null));
+			}
+			assertEquals("step " + step, b.length, parse(p, b, step));
+			assertTrue(p.isIdle());
+			assertFalse(p.isInBody());
+			assertTrue(p.isKeepAlive());
+			assertEquals(3, p.getResponses());
+		}
+	}
+
+	/**
+	 * Responses to HEAD requests and 204 and 304 responses have no body,
+	 * whatever their header says.
+	 */
+	@Test
+	public void testNoBody() {
+		final byte[] b = bytes("HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n"
+				+ "HTTP/1.1 204 No Content\r\nContent-Length: 100\r\n\r\n"
+				+ "HTTP/1.1 304 Not Modified\r\n"
+				+ "Transfer-Encoding: chunked\r\n\r\n");
+		final ResponseParser p = new ResponseParser();
+		p.expect(true, null);
+		p.expect(false, null);
+		p.expect(false, null);
+		assertEquals(b.length, p.parse(b, 0, b.length));
+		assertTrue(p.isIdle());
+		assertEquals(3, p.getResponses());
+	}
+
+	/**
+	 * Interim responses are skipped, the final one answers the request.
+	 */
+	@Test
+	public void testInterim() {
+		final byte[] b = bytes("HTTP/1.1 100 Continue\r\n\r\n"
+				+ "HTTP/1.1 103 Early Hints\r\nLink: </a>\r\n\r\n"
+				+ "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+		final ResponseParser p = new ResponseParser();
+		p.expect(false, null);
+		assertEquals(b.length, p.parse(b, 0, b.length));
+		assertTrue(p.isIdle());
+		assertEquals(1, p.getResponses());
+	}
+
+	/**
+	 * A body without framing ends with the connection, which is not kept
+	 * alive.
+	 */
+	@Test
+	public void testUntilClose() {
+		final byte[] b = bytes("HTTP/1.1 200 OK\r\n\r\nsome data");
+		final ResponseParser p = new ResponseParser();
+		p.expect(false, null);
+		assertEquals(b.length, p.parse(b, 0, b.length));
+		assertTrue(p.isInBody());
+		assertFalse(p.isIdle());
+		assertFalse(p.isKeepAlive());
+		assertEquals(b.length, p.parse(b, 0, b.length));
+		assertEquals(0, p.getResponses());
+
+		final byte[] c = bytes("HTTP/1.1 101 Switching Protocols\r\n"
+				+ "Upgrade: x\r\n\r\nanything");
+		final ResponseParser q = new ResponseParser();
+		q.expect(false, null);
+		assertEquals(c.length, q.parse(c, 0, c.length));
+		assertTrue(q.isInBody());
+		assertFalse(q.isKeepAlive());
+	}
+
+	/**
+	 * HTTP/1.0 closes the connection unless asked not to, HTTP/1.1 keeps it
+	 * unless asked to close.
+	 */
+	@Test
+	public void testKeepAlive() {
+		final String[] closed = { "HTTP/1.0 200 OK\r\n",
+				"HTTP/1.1 200 OK\r\nConnection: close\r\n" };
+		final String[] kept = { "HTTP/1.1 200 OK\r\n",
+				"HTTP/1.0 200 OK\r\nConnection: Keep-Alive\r\n" };
+		for (String s : closed) {
+			final byte[] b = bytes(s + "Content-Length: 0\r\n\r\n");
+			final ResponseParser p = new ResponseParser();
+			p.expect(false, null);
+			assertEquals(s, b.length, p.parse(b, 0, b.length));
+			assertFalse(s, p.isKeepAlive());
+		}
+		for (String s : kept) {
+			final byte[] b = bytes(s + "Content-Length: 0\r\n\r\n");
+			final ResponseParser p = new ResponseParser();
+			p.expect(false, null);
+			assertEquals(s, b.length, p.parse(b, 0, b.length));
+			assertTrue(s, p.isKeepAlive());
+		}
+	}
+
+	/**
+	 * An incomplete header is not taken.
+	 */
+	@Test
+	public void testIncomplete() {
+		final byte[] b = bytes("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n");
+		final ResponseParser p = new ResponseParser();
+		p.expect(false, null);
+		assertEquals(0, p.parse(b, 0, b.length));
+		assertFalse(p.isInBody());
+		assertEquals(1, p.getPending());
+	}
+
+	/**
+	 * Data nobody asked for, that is no response or has an invalid length is
+	 * an error.
+	 */
+	@Test
+	public void testErrors() {
+		final byte[] ok = bytes("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n");
+		ResponseParser p = new ResponseParser();
+		assertEquals(ResponseParser.ERROR, p.parse(ok, 0, ok.length));
+		p.expect(false, null);
+		assertEquals(ok.length, p.parse(ok, 0, ok.length));
+		assertEquals(ResponseParser.ERROR, p.parse(ok, 0, ok.length));
+
+		final String[] bad = { "<html>garbage",
+				"HTTP/1.1 2x0 OK\r\n\r\n",
+				"HTTP/1.1 200 OK\r\nContent-Length: x\r\n\r\n" };
+		for (String s : bad) {
+			final byte[] b = bytes(s);
+			p = new ResponseParser();
+			p.expect(false, null);
+			assertEquals(s, ResponseParser.ERROR, p.parse(b, 0, b.length));
+		}
+	}
+
+	/**
+	 * No more requests than {@link ResponseParser#MAX_PENDING} wait.
+	 */
+	@Test
+	public void testMaxPending() {
+		final ResponseParser p = new ResponseParser();
+		for (int i = 0; i < ResponseParser.MAX_PENDING; i++) {
+			assertTrue(p.expect(false, null));
+		}
+		assertFalse(p.expect(false, null));
+		assertEquals(ResponseParser.MAX_PENDING, p.getPending());
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link WorkerPool}'s admission of Connections and CopyStreams.
+ * 
+ * @author Felix Bechstein
+ */
+public final class WorkerPoolTest {
+	/** Timeout in seconds. */
+	private static final long TIMEOUT = 5;
+
+	/**
+	 * Task waiting for a latch.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	private static final class Waiting implements Runnable {
+		/** Latch to wait for. */
+		private final CountDownLatch go;
+		/** Latch counted down when done. */
+		private final CountDownLatch done;
+		/** Throw when done? */
+		private final boolean fail;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param g
+		 *            latch to wait for
+		 * @param d
+		 *            latch counted down when done
+		 * @param f
+		 *            throw when done?
+		 */
+		Waiting(final CountDownLatch g, final CountDownLatch d,
+				final boolean f) {
+			this.go = g;
+			this.done = d;
+			this.fail = f;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void run() {
+			try {
+				this.go.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+			this.done.countDown();
+			if (this.fail) {
+				throw new IllegalStateException("failed on purpose");
+			}
+		}
+	}
+
+	/**
+	 * Wait until a pool runs no Connection and no CopyStream.
+	 * 
+	 * @param p
+	 *            pool
+	 * @throws InterruptedException
+	 *             InterruptedException
+	 */
+	private static void awaitIdle(final WorkerPool p)
+			throws InterruptedException {
+		final long end = System.currentTimeMillis() + TIMEOUT * 1000;
+		while ((p.getRunning() > 0 || p.getCopies() > 0)
+				&& System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Connections over the limit wait, any more are rejected.
+	 * 
+	 * @throws InterruptedException
+	 *             InterruptedException
+	 */
+	@Test
+	public void testQueue() throws InterruptedException {
+		final WorkerPool p = new WorkerPool(1, 1, 1);
+		final CountDownLatch go = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(2);
+		assertTrue(p.execute(new Waiting(go, done, false)));
+		assertTrue(p.execute(new Waiting(go, done, false)));
+		assertFalse(p.execute(new Waiting(go, done, false)));
+		assertEquals(1, p.getRunning());
+		assertEquals(1, p.getQueued());
+		assertEquals(1, p.getRejected());
+		go.countDown();
+		assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+		awaitIdle(p);
+		assertEquals(0, p.getRunning());
+	}
+
+	/**
+	 * A failing Connection does not keep the waiting ones from running and
+	 * releases it's slot.
+	 * 
+	 * @throws InterruptedException
+	 *             InterruptedException
+	 */
+	@Test
+	public void testFailingConnection() throws InterruptedException {
+		final WorkerPool p = new WorkerPool(1, 2, 1);
+		final CountDownLatch go = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(3);
+		assertTrue(p.execute(new Waiting(go, done, true)));
+		assertTrue(p.execute(new Waiting(go, done, true)));
+		assertTrue(p.execute(new Waiting(go, done, false)));
+		go.countDown();
+		assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+		awaitIdle(p);
+		assertEquals(0, p.getRunning());
+		assertEquals(0, p.getQueued());
+	}
+
+	/**
+	 * CopyStreams over the limit are rejected, finished or failed ones
+	 * release their slot.
+	 * 
+	 * @throws InterruptedException
+	 *             InterruptedException
+	 */
+	@Test
+	public void testCopies() throws InterruptedException {
+		final WorkerPool p = new WorkerPool(1, 0, 2);
+		final CountDownLatch go = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(2);
+		assertTrue(p.copy(new Waiting(go, done, false)));
+		assertTrue(p.copy(new Waiting(go, done, true)));
+		assertFalse(p.copy(new Waiting(go, done, false)));
+		assertEquals(2, p.getCopies());
+		assertEquals(1, p.getRejectedCopies());
+		go.countDown();
+		assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+		awaitIdle(p);
+		assertEquals(0, p.getCopies());
+		assertTrue(p.copy(new Waiting(go, new CountDownLatch(1), false)));
+	}
+}
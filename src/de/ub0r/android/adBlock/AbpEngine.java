@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * AbpEngine checks URLs against a list of {@link AbpRule}s. Each rule is
+ * indexed by the rarest token it contains, so a URL is checked only against
+ * the rules sharing one of it's tokens. Exception rules are kept in a separate
+ * index and take precedence over blocking rules. An AbpEngine never changes
+ * after it was built and may be used by any number of threads.
+ * 
+ * @author Felix Bechstein
+ */
+final class AbpEngine {
+	/** Blocking rules. */
+	private final Index block;
+	/** Exception rules. */
+	private final Index allow;
+	/** All rules. */
+	private final ArrayList<AbpRule> rules;
+	/** Any rule depends on the page which caused the request. */
+	private final boolean context;
+
+	/**
+	 * Index holds rules by token.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	private static final class Index {
+		/** Token hashes, open addressing. */
+		private final int[] keys;
+		/** Rules for each token, null if slot is empty. */
+		private final AbpRule[][] values;
+		/** Rules without any usable token, checked for each URL. */
+		private final AbpRule[] any;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param list
+		 *            rules
+		 */
+		Index(final List<AbpRule> list) {
+			final int l = list.size();
+			final int[][] tokens = new int[l][];
+			final HashMap<Integer, Integer> count = // .
+			new HashMap<Integer, Integer>();
+			for (int i = 0; i < l; i++) {
+				tokens[i] = list.get(i).getTokens();
+				for (int t : tokens[i]) {
+					final Integer c = count.get(t);
+					count.put(t, c == null ? 1 : c + 1);
+				}
+			}
+			final HashMap<Integer, ArrayList<AbpRule>> byToken = // .
+			new HashMap<Integer, ArrayList<AbpRule>>();
+			final ArrayList<AbpRule> rest = new ArrayList<AbpRule>();
+			for (int i = 0; i < l; i++) {
+				final Integer t = rarest(tokens[i], count);
+				if (t == null) {
+					rest.add(list.get(i));
+					continue;
+				}
+				ArrayList<AbpRule> r = byToken.get(t);
+				if (r == null) {
+					r = new ArrayList<AbpRule>(1);
+					byToken.put(t, r);
+				}
+				r.add(list.get(i));
+			}
+			int size = 2;
+			while (size < byToken.size() * 2) {
+				size <<= 1;
+			}
+			this.keys = new int[size];
+			this.values = new AbpRule[size][];
+			for (Integer t : byToken.keySet()) {
+				int i = t & (size - 1);
+				while (this.values[i] != null) {
+					i = (i + 1) & (size - 1);
+				}
+				final ArrayList<AbpRule> r = byToken.get(t);
+				this.keys[i] = t;
+				this.values[i] = r.toArray(new AbpRule[r.size()]);
+			}
+			this.any = rest.toArray(new AbpRule[rest.size()]);
+		}
+
+		/**
+		 * Pick a rule's token shared with the fewest other rules. Tokens
+		 * found in most URLs are taken only if there is nothing else.
+		 * 
+		 * @param tokens
+		 *            rule's tokens, as returned by {@link AbpRule#getTokens()}
+		 * @param count
+		 *            number of rules per token
+		 * @return token, null if there is none
+		 */
+		private static Integer rarest(final int[] tokens,
+				final HashMap<Integer, Integer> count) {
+			Integer ret = null;
+			int min = Integer.MAX_VALUE;
+			for (int t : tokens) {
+				final int c = count.get(t);
+				if (c < min) {
+					min = c;
+					ret = t;
+				}
+			}
+			return ret;
+		}
+
+		/**
+		 * Check a request against all rules sharing a token with the URL.
+		 * 
+		 * @param url
+		 *            URL, lower case
+		 * @param len
+		 *            length of URL
+		 * @param hostStart
+		 *            start of host in URL
+		 * @param hostEnd
+		 *            end of host
+		 * @param pageHost
+		 *            host of the page which caused the request, null if
+		 *            unknown
+		 * @param thirdParty
+		 *            request goes to a site other than pageHost
+		 * @return true, if any rule matches
+		 */
+		boolean matches(final byte[] url, final int len, final int hostStart,
+				final int hostEnd, final String pageHost,
+				final boolean thirdParty) {
+			final int[] k = this.keys;
+			final AbpRule[][] v = this.values;
+			final int mask = k.length - 1;
+			int i = 0;
+			while (i < len) {
+				if (!AbpRule.isTokenChar(url[i])) {
+					++i;
+					continue;
+				}
+				int h = 0;
+				while (i < len && AbpRule.isTokenChar(url[i])) {
+					h = AbpRule.hash(h, url[i]);
+					++i;
+				}
+				for (int j = h & mask; v[j] != null; j = (j + 1) & mask) {
+					if (k[j] == h) {
+						for (AbpRule r : v[j]) {
+							if (r.matches(url, len, hostStart, hostEnd,
+									pageHost, thirdParty)) {
+								return true;
+							}
+						}
+						break;
+					}
+				}
+			}
+			for (AbpRule r : this.any) {
+				if (r.matches(url, len, hostStart, hostEnd, pageHost,
+						thirdParty)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Constructor. Build the indexes.
+	 * 
+	 * @param list
+	 *            rules
+	 */
+	AbpEngine(final Collection<AbpRule> list) {
+		final ArrayList<AbpRule> b = new ArrayList<AbpRule>();
+		final ArrayList<AbpRule> a = new ArrayList<AbpRule>();
+		boolean c = false;
+		for (AbpRule r : list) {
+			if (r.isException()) {
+				a.add(r);
+			} else {
+				b.add(r);
+			}
+			c |= r.hasContext();
+		}
+		this.block = new Index(b);
+		this.allow = new Index(a);
+		this.rules = new ArrayList<AbpRule>(list);
+		this.context = c;
+	}
+
+	/**
+	 * Check if any blocking rule matches a request. See
+	 * {@link AbpRule#matches(byte[], int, int, int, String, boolean)} for
+	 * parameters.
+	 * 
+	 * @param url
+	 *            URL
+	 * @param len
+	 *            length of URL
+	 * @param hostStart
+	 *            start of host in URL
+	 * @param hostEnd
+	 *            end of host
+	 * @param pageHost
+	 *            host of page
+	 * @param thirdParty
+	 *            request is third party
+	 * @return true, if request should be blocked
+	 */
+	boolean block(final byte[] url, final int len, final int hostStart,
+			final int hostEnd, final String pageHost,
+			final boolean thirdParty) {
+		return this.block.matches(url, len, hostStart, hostEnd, pageHost,
+				thirdParty);
+	}
+
+	/**
+	 * Check if any exception rule matches a request. See
+	 * {@link AbpRule#matches(byte[], int, int, int, String, boolean)} for
+	 * parameters.
+	 * 
+	 * @param url
+	 *            URL
+	 * @param len
+	 *            length of URL
+	 * @param hostStart
+	 *            start of host in URL
+	 * @param hostEnd
+	 *            end of host
+	 * @param pageHost
+	 *            host of page
+	 * @param thirdParty
+	 *            request is third party
+	 * @return true, if request must not be blocked
+	 */
+	boolean allow(final byte[] url, final int len, final int hostStart,
+			final int hostEnd, final String pageHost,
+			final boolean thirdParty) {
+		return this.allow.matches(url, len, hostStart, hostEnd, pageHost,
+				thirdParty);
+	}
+
+	/**
+	 * @return true, if any rule depends on the page which caused the request
+	 */
+	boolean hasContext() {
+		return this.context;
+	}
+
+	/**
+	 * @return all rules
+	 */
+	List<AbpRule> getRules() {
+		return this.rules;
+	}
+
+	/**
+	 * @return number of rules
+	 */
+	int size() {
+		return this.rules.size();
+	}
+}
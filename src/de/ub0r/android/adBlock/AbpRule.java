@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.util.ArrayList;
+
+/**
+ * AbpRule is a single rule in Adblock Plus syntax. Supported are "||domain^"
+ * and "|" anchors, "*" wildcards, "^" separators, "@@" exceptions and the
+ * options "third-party" and "domain=". Content type options are ignored, the
+ * proxy can't tell an image from a script. Rules with any other option,
+ * regular expressions, comments and element hiding rules are not supported.
+ * Matching is case insensitive, URLs need to be lower case, so rules with
+ * "match-case" are not supported either.
+ * 
+ * @author Felix Bechstein
+ */
+final class AbpRule {
+	/** Flag: rule is an exception. */
+	static final int EXCEPTION = 1;
+	/** Flag: pattern is anchored at start of URL. */
+	private static final int ANCHOR_START = 2;
+	/** Flag: pattern is anchored at end of URL. */
+	private static final int ANCHOR_END = 4;
+	/** Flag: pattern is anchored at start of host or any of it's labels. */
+	private static final int ANCHOR_DOMAIN = 8;
+	/** Flag: rule applies to third party requests only. */
+	private static final int THIRD_PARTY = 16;
+	/** Flag: rule applies to first party requests only. */
+	private static final int FIRST_PARTY = 32;
+
+	/** Content type options, ignored. */
+	private static final String[] TYPES = { "script", "image", "stylesheet",
+			"object", "xmlhttprequest", "subdocument", "media", "font",
+			"other", "ping", "websocket", "object-subrequest", "background",
+			"xbl", "dtd" };
+	/** Tokens found in too many URLs to be useful. */
+	private static final String[] COMMON = { "http", "https", "www", "com" };
+	/** Max. length of a token used for hashing. */
+	private static final int MAX_TOKEN = 0xffff;
+
+	/** Rule as given. */
+	private final String source;
+	/** Pattern, lower case. */
+	private final char[] pattern;
+	/** Flags. */
+	private final int flags;
+	/** Domains the rule is limited to, null if it applies everywhere. */
+	private final String[] domains;
+	/** Domains the rule does not apply to, null if none. */
+	private final String[] notDomains;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param s
+	 *            rule as given
+	 * @param p
+	 *            pattern
+	 * @param f
+	 *            flags
+	 * @param d
+	 *            included domains
+	 * @param nd
+	 *            excluded domains
+	 */
+	private AbpRule(final String s, final String p, final int f,
+			final String[] d, final String[] nd) {
+		this.source = s;
+		this.pattern = p.toCharArray();
+		this.flags = f;
+		this.domains = d;
+		this.notDomains = nd;
+	}
+
+	/**
+	 * Check if a rule needs to be parsed as Adblock Plus syntax. Anything else
+	 * is a plain substring or host name.
+	 * 
+	 * @param s
+	 *            rule
+	 * @return true, if s uses any of the Adblock Plus specials
+	 */
+	static boolean isAbp(final String s) {
+		if (s.length() == 0) {
+			return false;
+		}
+		final char c = s.charAt(0);
+		return c == '|' || c == '@' || c == '!' || c == '['
+				|| s.charAt(s.length() - 1) == '|' || s.indexOf('*') >= 0
+				|| s.indexOf('^') >= 0 || s.indexOf('$') >= 0
+				|| s.indexOf('#') >= 0;
+	}
+
+	/**
+	 * Parse a rule.
+	 * 
+	 * @param s
+	 *            rule
+	 * @return {@link AbpRule}, null if s is not supported
+	 */
+	static AbpRule parse(final String s) {
+		String p = s.trim();
+		if (p.length() == 0 || p.charAt(0) == '!' || p.charAt(0) == '['
+				|| p.indexOf("##") >= 0 || p.indexOf("#@#") >= 0
+				|| p.indexOf("#?#") >= 0) {
+			// comment, header or element hiding
+			return null;
+		}
+		int f = 0;
+		if (p.startsWith("@@")) {
+			f |= EXCEPTION;
+			p = p.substring(2);
+		}
+		String[] d = null;
+		String[] nd = null;
+		final int o = p.lastIndexOf('$');
+		if (o >= 0) {
+			final ArrayList<String> inc = new ArrayList<String>();
+			final ArrayList<String> exc = new ArrayList<String>();
+			for (String opt : p.substring(o + 1).toLowerCase().split(",")) {
+				if (opt.equals("third-party")) {
+					f |= THIRD_PARTY;
+				} else if (opt.equals("~third-party")
+						|| opt.equals("first-party")) {
+					f |= FIRST_PARTY;
+				} else if (opt.startsWith("domain=")) {
+					for (String dom : opt.substring(7).split("\\|")) {
+						if (dom.startsWith("~")) {
+							exc.add(dom.substring(1));
+						} else if (dom.length() > 0) {
+							inc.add(dom);
+						}
+					}
+				} else if (!isType(opt)) {
+					// match-case, popup, document, csp, redirect, ...
+					return null;
+				}
+			}
+			if (inc.size() > 0) {
+				d = inc.toArray(new String[inc.size()]);
+			}
+			if (exc.size() > 0) {
+				nd = exc.toArray(new String[exc.size()]);
+			}
+			p = p.substring(0, o);
+		}
+		if (p.length() > 1 && p.charAt(0) == '/'
+				&& p.charAt(p.length() - 1) == '/') {
+			// regular expression
+			return null;
+		}
+		if (p.startsWith("||")) {
+			f |= ANCHOR_DOMAIN;
+			p = p.substring(2);
+		} else if (p.startsWith("|")) {
+			f |= ANCHOR_START;
+			p = p.substring(1);
+		}
+		if (p.endsWith("|")) {
+			f |= ANCHOR_END;
+			p = p.substring(0, p.length() - 1);
+		}
+		if (p.indexOf('|') >= 0) {
+			return null;
+		}
+		return new AbpRule(s, p.toLowerCase(), f, d, nd);
+	}
+
+	/**
+	 * @param opt
+	 *            option
+	 * @return true, if opt is a content type option
+	 */
+	private static boolean isType(final String opt) {
+		final String t = opt.startsWith("~") ? opt.substring(1) : opt;
+		for (String s : TYPES) {
+			if (s.equals(t)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param c
+	 *            char, lower case
+	 * @return true, if c may be part of a token
+	 */
+	static boolean isTokenChar(final int c) {
+		return c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '%';
+	}
+
+	/**
+	 * @param c
+	 *            char
+	 * @return true, if c is matched by "^"
+	 */
+	private static boolean isSeparator(final int c) {
+		return !(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z'
+				|| c >= '0' && c <= '9' || c == '_' || c == '-' || c == '.'
+				|| c == '%' || c >= 0x80);
+	}
+
+	/**
+	 * Hash a token.
+	 * 
+	 * @param h
+	 *            hash of the token's prefix, 0 at start
+	 * @param c
+	 *            next char
+	 * @return hash
+	 */
+	static int hash(final int h, final int c) {
+		return h * 31 + c;
+	}
+
+	/**
+	 * Get all tokens any URL matching this rule must contain. A token is a
+	 * whole run of token chars, so it needs a boundary on both sides within
+	 * the pattern.
+	 * 
+	 * @return hashes of tokens, tokens found in most URLs go last
+	 */
+	int[] getTokens() {
+		final char[] p = this.pattern;
+		final int l = p.length;
+		final ArrayList<Integer> good = new ArrayList<Integer>();
+		final ArrayList<Integer> common = new ArrayList<Integer>();
+		int i = 0;
+		while (i < l) {
+			if (!isTokenChar(p[i])) {
+				++i;
+				continue;
+			}
+			final int s = i;
+			int h = 0;
+			while (i < l && isTokenChar(p[i])) {
+				h = hash(h, p[i]);
+				++i;
+			}
+			final boolean left = s > 0 ? p[s - 1] != '*'
+					: (this.flags & (ANCHOR_START | ANCHOR_DOMAIN)) != 0;
+			final boolean right = i < l ? p[i] != '*'
+					: (this.flags & ANCHOR_END) != 0;
+			if (left && right && i - s <= MAX_TOKEN) {
+				if (this.isCommon(s, i)) {
+					common.add(h);
+				} else {
+					good.add(h);
+				}
+			}
+		}
+		good.addAll(common);
+		final int[] ret = new int[good.size()];
+		for (int j = 0; j < ret.length; j++) {
+			ret[j] = good.get(j);
+		}
+		return ret;
+	}
+
+	/**
+	 * @param s
+	 *            start of token in pattern
+	 * @param e
+	 *            end of token
+	 * @return true, if token is found in too many URLs
+	 */
+	private boolean isCommon(final int s, final int e) {
+		final String t = new String(this.pattern, s, e - s);
+		for (String c : COMMON) {
+			if (c.equals(t)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check a request against this rule.
+	 * 
+	 * @param url
+	 *            URL, lower case
+	 * @param len
+	 *            length of URL
+	 * @param hostStart
+	 *            start of host in URL
+	 * @param hostEnd
+	 *            end of host
+	 * @param pageHost
+	 *            host of the page which caused the request, lower case, null
+	 *            if unknown
+	 * @param thirdParty
+	 *            request goes to a site other than pageHost
+	 * @return true, if rule matches
+	 */
+	boolean matches(final byte[] url, final int len, final int hostStart,
+			final int hostEnd, final String pageHost,
+			final boolean thirdParty) {
+		final int f = this.flags;
+		if ((f & THIRD_PARTY) != 0 && (pageHost == null || !thirdParty)) {
+			return false;
+		}
+		if ((f & FIRST_PARTY) != 0 && (pageHost == null || thirdParty)) {
+			return false;
+		}
+		if (this.domains != null
+				&& (pageHost == null || !isDomain(pageHost, this.domains))) {
+			return false;
+		}
+		if (this.notDomains != null && pageHost != null
+				&& isDomain(pageHost, this.notDomains)) {
+			return false;
+		}
+		if ((f & ANCHOR_DOMAIN) != 0) {
+			for (int i = hostStart; i < hostEnd; i++) {
+				if ((i == hostStart || url[i - 1] == '.')
+						&& this.glob(url, len, i, true)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return this.glob(url, len, 0, (f & ANCHOR_START) != 0);
+	}
+
+	/**
+	 * Match the pattern.
+	 * 
+	 * @param url
+	 *            URL
+	 * @param len
+	 *            length of URL
+	 * @param start
+	 *            start of match
+	 * @param anchored
+	 *            match must start at start, otherwise anywhere behind it
+	 * @return true, if pattern matches
+	 */
+	private boolean glob(final byte[] url, final int len, final int start,
+			final boolean anchored) {
+		final char[] p = this.pattern;
+		final int pl = p.length;
+		final boolean end = (this.flags & ANCHOR_END) != 0;
+		int u = start;
+		int i = 0;
+		// an unanchored pattern starts with an implicit "*"
+		int starP = anchored ? -1 : 0;
+		int starU = start;
+		while (true) {
+			if (i == pl) {
+				if (!end || u == len) {
+					return true;
+				}
+			} else if (p[i] == '*') {
+				starP = ++i;
+				starU = u;
+				continue;
+			} else if (u < len) {
+				final int c = url[u] & 0xff;
+				if (p[i] == c || p[i] == '^' && isSeparator(c)) {
+					++u;
+					++i;
+					continue;
+				}
+			} else if (p[i] == '^') {
+				// "^" matches the end of the URL too
+				++i;
+				continue;
+			}
+			if (starP < 0 || starU >= len) {
+				return false;
+			}
+			u = ++starU;
+			i = starP;
+		}
+	}
+
+	/**
+	 * @param host
+	 *            host, lower case
+	 * @param list
+	 *            domains
+	 * @return true, if host is any of the domains or a sub domain of them
+	 */
+	static boolean isDomain(final String host, final String[] list) {
+		final int hl = host.length();
+		for (String d : list) {
+			final int dl = d.length();
+			if (host.endsWith(d)
+					&& (hl == dl || host.charAt(hl - dl - 1) == '.')) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true, if rule is an exception
+	 */
+	boolean isException() {
+		return (this.flags & EXCEPTION) != 0;
+	}
+
+	/**
+	 * @return true, if rule depends on the page which caused the request
+	 */
+	boolean hasContext() {
+		return (this.flags & (THIRD_PARTY | FIRST_PARTY)) != 0
+				|| this.domains != null || this.notDomains != null;
+	}
+
+	/**
+	 * Check if the rule blocks a host and anything on it, which is true for
+	 * "||example.com^" without options.
+	 * 
+	 * @return host name, null if rule is anything else
+	 */
+	String getHost() {
+		final char[] p = this.pattern;
+		final int l = p.length;
+		if (this.flags != ANCHOR_DOMAIN || this.domains != null
+				|| this.notDomains != null || l < 2 || p[l - 1] != '^') {
+			return null;
+		}
+		final String h = new String(p, 0, l - 1);
+		if (!HostIndex.isHost(h)) {
+			return null;
+		}
+		return h;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return this.source;
+	}
+}
@@ -18,12 +18,9 @@
  */
 package de.ub0r.android.adBlock;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.ArrayList;
 
 import android.app.Activity;
@@ -46,6 +43,7 @@ import android.view.View.OnClickListener;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.Toast;
@@ -66,6 +64,16 @@ public class AdBlock extends Activity implements OnClickListener,
 	private static final String PREFS_LAST_RUN = "lastrun";
 	/** Preferences: import url. */
 	private static final String PREFS_IMPORT_URL = "importurl";
+	/** Preferences: ETag of last import. */
+	private static final String PREFS_IMPORT_ETAG = "importetag";
+	/** Preferences: Last-Modified of last import. */
+	private static final String PREFS_IMPORT_MODIFIED = "importmodified";
+	/** Preferences: hosts file url. */
+	private static final String PREFS_HOSTS_URL = "hostsurl";
+	/** Preferences: ETag of last hosts file import. */
+	private static final String PREFS_HOSTS_ETAG = "hostsetag";
+	/** Preferences: Last-Modified of last hosts file import. */
+	private static final String PREFS_HOSTS_MODIFIED = "hostsmodified";
 
 	/** Filename for export of filter. */
 	// private static final String FILENAME_EXPORT = "/sdcard/filter.txt";
@@ -80,14 +88,32 @@ public class AdBlock extends Activity implements OnClickListener,
 	private static final int DIALOG_IMPORT = 1;
 	/** Dialog: update. */
 	private static final int DIALOG_UPDATE = 2;
+	/** Dialog: metrics. */
+	private static final int DIALOG_METRICS = 3;
 
 	/** Prefs. */
 	private SharedPreferences preferences;
 	/** Prefs. import URL. */
 	private String importUrl = null;
+	/** Prefs. ETag of last import. */
+	private String importETag = null;
+	/** Prefs. Last-Modified of last import. */
+	private String importModified = null;
+	/** Prefs. hosts file URL. */
+	private String hostsUrl = null;
+	/** Prefs. ETag of last hosts file import. */
+	private String hostsETag = null;
+	/** Prefs. Last-Modified of last hosts file import. */
+	private String hostsModified = null;
+	/** Prefs. version of imported hosts file, 0 if there is none. */
+	private long hostsVersion = 0;
+	/** Last import was a hosts file. */
+	private boolean importHosts = false;
 
 	/** The filter. */
 	private ArrayList<String> filter = new ArrayList<String>();
+	/** Filter was changed since it was saved. */
+	private boolean filterChanged = false;
 	/** The ArrayAdapter. */
 	private ArrayAdapter<String> adapter = null;
 
@@ -95,13 +121,59 @@ public class AdBlock extends Activity implements OnClickListener,
 	private int itemToEdit = -1;
 
 	/**
-	 * Import filter from URL on background.
+	 * Import filter from URL on background. Only the differences to the
+	 * current filter are applied. A hosts file is not added to the filter,
+	 * but written to a file of it's own.
 	 * 
 	 * @author Felix Bechstein
 	 */
 	class Importer extends AsyncTask<String, Boolean, Boolean> {
+		/** Import a hosts file. */
+		private final boolean hosts;
 		/** Error message. */
 		private String message = "";
+		/** Downloads the list and compares it to the filter. */
+		private ListImporter importer;
+		/** Copy of the filter, compared on background. */
+		private ArrayList<String> current;
+		/** File for the hosts file. */
+		private File hostsFile;
+		/** Version of the written hosts file. */
+		private long version = 0;
+		/** List changed since last import. */
+		private boolean modified = false;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param h
+		 *            import a hosts file
+		 */
+		Importer(final boolean h) {
+			this.hosts = h;
+		}
+
+		/**
+		 * Copy the filter, it must not be read on background.
+		 */
+		@Override
+		protected final void onPreExecute() {
+			final AdBlock a = AdBlock.this;
+			if (this.hosts) {
+				this.hostsFile = a.getFileStreamPath(Proxy.HOSTS_FILE);
+				if (a.hostsVersion == 0 || !this.hostsFile.isFile()) {
+					// nothing to keep, download it in any case
+					this.importer = new ListImporter(a.hostsUrl, null, null);
+				} else {
+					this.importer = new ListImporter(a.hostsUrl,
+							a.hostsETag, a.hostsModified);
+				}
+			} else {
+				this.current = new ArrayList<String>(a.filter);
+				this.importer = new ListImporter(a.importUrl, a.importETag,
+						a.importModified);
+			}
+		}
 
 		/**
 		 * Do the work.
@@ -113,26 +185,16 @@ public class AdBlock extends Activity implements OnClickListener,
 		@Override
 		protected final Boolean doInBackground(final String... dummy) {
 			try {
-				HttpURLConnection c = (HttpURLConnection) (new URL(
-						AdBlock.this.importUrl)).openConnection();
-				int resp = c.getResponseCode();
-				if (resp != 200) {
-					return false;
-				}
-				BufferedReader reader = new BufferedReader(
-						new InputStreamReader(c.getInputStream()));
-				AdBlock.this.filter.clear();
-				while (true) {
-					String s = reader.readLine();
-					if (s == null) {
-						break;
-					}
-					s = s.trim();
-					if (s.length() > 0) {
-						AdBlock.this.filter.add(s);
+				if (this.hosts) {
+					final HostIndex h = this.importer.runHosts();
+					this.modified = h != null;
+					if (this.modified) {
+						this.version = System.currentTimeMillis();
+						HostsList.write(h, this.hostsFile, this.version);
 					}
+				} else {
+					this.modified = this.importer.run(this.current);
 				}
-				reader.close();
 				return true;
 			} catch (MalformedURLException e) {
 				Log.e(AdBlock.TAG, null, e);
@@ -142,6 +204,8 @@ public class AdBlock extends Activity implements OnClickListener,
 				this.message = e.toString();
 				Log.e(AdBlock.TAG, null, e);
 				return false;
+			} finally {
+				this.current = null;
 			}
 		}
 
@@ -153,14 +217,41 @@ public class AdBlock extends Activity implements OnClickListener,
 		 */
 		@Override
 		protected final void onPostExecute(final Boolean result) {
-			if (result.booleanValue()) {
-				Toast.makeText(AdBlock.this, "imported", Toast.LENGTH_LONG)
-						.show();
-				AdBlock.this.adapter.notifyDataSetChanged();
-			} else {
+			if (!result.booleanValue()) {
 				Toast.makeText(AdBlock.this, "failed: " + this.message,
 						Toast.LENGTH_LONG).show();
+				return;
+			}
+			if (!this.modified) {
+				Toast.makeText(AdBlock.this, "not modified",
+						Toast.LENGTH_LONG).show();
+				return;
 			}
+			final ListImporter li = this.importer;
+			final AdBlock a = AdBlock.this;
+			if (this.hosts) {
+				// the proxy maps the new file on next start
+				a.hostsVersion = this.version;
+				a.hostsETag = li.getETag();
+				a.hostsModified = li.getLastModified();
+				Toast.makeText(a, "imported " + li.getCount() + " hosts",
+						Toast.LENGTH_LONG).show();
+				return;
+			}
+			final int added = li.getAdded().size();
+			final int removed = li.getRemoved().size();
+			if (removed > 0) {
+				a.filter.removeAll(li.getRemoved());
+			}
+			a.filter.addAll(li.getAdded());
+			if (added > 0 || removed > 0) {
+				a.filterChanged = true;
+			}
+			a.importETag = li.getETag();
+			a.importModified = li.getLastModified();
+			Toast.makeText(a, "imported " + li.getCount()
+					+ ": +" + added + " -" + removed, Toast.LENGTH_LONG).show();
+			a.adapter.notifyDataSetChanged();
 		}
 	}
 
@@ -185,6 +276,12 @@ public class AdBlock extends Activity implements OnClickListener,
 
 		((EditText) this.findViewById(R.id.port)).setText(this.preferences
 				.getString(Proxy.PREFS_PORT, "8080"));
+		((CheckBox) this.findViewById(R.id.event_loop))
+				.setChecked(this.preferences.getBoolean(
+						Proxy.PREFS_EVENT_LOOP, false));
+		((CheckBox) this.findViewById(R.id.hide_elements))
+				.setChecked(this.preferences.getBoolean(
+						Proxy.PREFS_HIDE_ELEMENTS, false));
 		String f = this.preferences.getString(Proxy.PREFS_FILTER, this
 				.getString(R.string.default_filter));
 		for (String s : f.split("\n")) {
@@ -192,7 +289,18 @@ public class AdBlock extends Activity implements OnClickListener,
 				this.filter.add(s);
 			}
 		}
+		// save default filter
+		this.filterChanged = !this.preferences.contains(Proxy.PREFS_FILTER);
 		this.importUrl = this.preferences.getString(PREFS_IMPORT_URL, "");
+		this.importETag = this.preferences.getString(PREFS_IMPORT_ETAG, null);
+		this.importModified = this.preferences.getString(
+				PREFS_IMPORT_MODIFIED, null);
+		this.hostsUrl = this.preferences.getString(PREFS_HOSTS_URL, "");
+		this.hostsETag = this.preferences.getString(PREFS_HOSTS_ETAG, null);
+		this.hostsModified = this.preferences.getString(PREFS_HOSTS_MODIFIED,
+				null);
+		this.hostsVersion = this.preferences.getLong(
+				Proxy.PREFS_HOSTS_VERSION, 0);
 
 		((Button) this.findViewById(R.id.start_service))
 				.setOnClickListener(this);
@@ -214,12 +322,28 @@ public class AdBlock extends Activity implements OnClickListener,
 		SharedPreferences.Editor editor = this.preferences.edit();
 		editor.putString(Proxy.PREFS_PORT, ((EditText) this
 				.findViewById(R.id.port)).getText().toString());
-		StringBuilder sb = new StringBuilder();
-		for (String s : this.filter) {
-			sb.append(s + "\n");
+		editor.putBoolean(Proxy.PREFS_EVENT_LOOP, ((CheckBox) this
+				.findViewById(R.id.event_loop)).isChecked());
+		editor.putBoolean(Proxy.PREFS_HIDE_ELEMENTS, ((CheckBox) this
+				.findViewById(R.id.hide_elements)).isChecked());
+		if (this.filterChanged) {
+			// the proxy compiles the filter again on next start
+			StringBuilder sb = new StringBuilder();
+			for (String s : this.filter) {
+				sb.append(s + "\n");
+			}
+			editor.putString(Proxy.PREFS_FILTER, sb.toString());
+			editor.putLong(Proxy.PREFS_FILTER_VERSION, System
+					.currentTimeMillis());
+			this.filterChanged = false;
 		}
-		editor.putString(Proxy.PREFS_FILTER, sb.toString());
 		editor.putString(PREFS_IMPORT_URL, this.importUrl);
+		editor.putString(PREFS_IMPORT_ETAG, this.importETag);
+		editor.putString(PREFS_IMPORT_MODIFIED, this.importModified);
+		editor.putString(PREFS_HOSTS_URL, this.hostsUrl);
+		editor.putString(PREFS_HOSTS_ETAG, this.hostsETag);
+		editor.putString(PREFS_HOSTS_MODIFIED, this.hostsModified);
+		editor.putLong(Proxy.PREFS_HOSTS_VERSION, this.hostsVersion);
 		editor.commit();
 	}
 
@@ -253,6 +377,7 @@ public class AdBlock extends Activity implements OnClickListener,
 					this.itemToEdit = -1;
 				}
 				this.filter.add(f);
+				this.filterChanged = true;
 				et.setText("");
 				this.adapter.notifyDataSetChanged();
 			}
@@ -262,9 +387,26 @@ public class AdBlock extends Activity implements OnClickListener,
 			break;
 		case R.id.ok:
 			this.dismissDialog(DIALOG_IMPORT);
-			this.importUrl = ((EditText) v.getRootView().findViewById(
-					R.id.import_url)).getText().toString();
-			new Importer().execute((String[]) null);
+			final View root = v.getRootView();
+			final String u = ((EditText) root.findViewById(R.id.import_url))
+					.getText().toString();
+			this.importHosts = ((CheckBox) root
+					.findViewById(R.id.import_hosts)).isChecked();
+			if (this.importHosts) {
+				if (!u.equals(this.hostsUrl)) {
+					this.hostsETag = null;
+					this.hostsModified = null;
+				}
+				this.hostsUrl = u;
+			} else {
+				if (!u.equals(this.importUrl)) {
+					// new list, download it in any case
+					this.importETag = null;
+					this.importModified = null;
+				}
+				this.importUrl = u;
+			}
+			new Importer(this.importHosts).execute((String[]) null);
 			break;
 		default:
 			break;
@@ -292,6 +434,9 @@ public class AdBlock extends Activity implements OnClickListener,
 		case R.id.item_import:
 			this.showDialog(DIALOG_IMPORT);
 			return true;
+		case R.id.item_metrics:
+			this.showDialog(DIALOG_METRICS);
+			return true;
 		case R.id.item_donate:
 			try {
 				this.startActivity(new Intent(Intent.ACTION_VIEW, Uri
@@ -379,6 +524,20 @@ public class AdBlock extends Activity implements OnClickListener,
 						}
 					});
 			return builder.create();
+		case DIALOG_METRICS:
+			final AlertDialog.Builder b = new AlertDialog.Builder(this);
+			b.setTitle(R.string.metrics_);
+			b.setIcon(android.R.drawable.ic_menu_info_details);
+			b.setMessage(ProxyServer.getMetrics().toString());
+			b.setCancelable(true);
+			b.setPositiveButton(android.R.string.ok,
+					new DialogInterface.OnClickListener() {
+						public void onClick(final DialogInterface dialog,
+								final int id) {
+							dialog.cancel();
+						}
+					});
+			return b.create();
 		default:
 			return null;
 		}
@@ -393,7 +552,13 @@ public class AdBlock extends Activity implements OnClickListener,
 		switch (id) {
 		case DIALOG_IMPORT:
 			((EditText) dialog.findViewById(R.id.import_url))
-					.setText(this.importUrl);
+					.setText(this.importHosts ? this.hostsUrl : this.importUrl);
+			((CheckBox) dialog.findViewById(R.id.import_hosts))
+					.setChecked(this.importHosts);
+			break;
+		case DIALOG_METRICS:
+			((AlertDialog) dialog).setMessage(ProxyServer.getMetrics()
+					.toString());
 			break;
 		default:
 			break;
@@ -423,6 +588,7 @@ public class AdBlock extends Activity implements OnClickListener,
 							break;
 						case ITEM_DIALOG_DELETE:
 							AdBlock.this.filter.remove(position);
+							AdBlock.this.filterChanged = true;
 							AdBlock.this.adapter.notifyDataSetChanged();
 							break;
 						default:
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * BloomFilter tells in constant time that a key is not in a set. Keys are
+ * given by their 32 bit hash. All bits set for a key are in a single block of
+ * 512 bits, so a check touches a single cache line. About 1% of keys not in
+ * the set are reported to be in it anyway, those need to be verified by an
+ * exact lookup. The bits may be written to and queried in place from a
+ * (memory mapped) {@link ByteBuffer}.
+ * 
+ * @author Felix Bechstein
+ */
+final class BloomFilter {
+	/** Bits per key. */
+	private static final int BITS_PER_KEY = 10;
+	/** Number of bits set per key. */
+	private static final int K = 7;
+	/** Ints per block. */
+	private static final int BLOCK = 16;
+	/** Bits per block, 2^9. */
+	private static final int BLOCK_BITS = BLOCK * Integer.SIZE;
+	/** Shift to get a bit's position in a block from the top bits. */
+	private static final int SHIFT = Integer.SIZE - 9;
+	/** Multiplier deriving the bit positions from the key's hash. */
+	private static final int MULT = 0x9e3779b1;
+
+	/** Bits. */
+	private final IntBuffer bits;
+	/** Number of blocks, a power of two. */
+	private final int blocks;
+
+	/**
+	 * Constructor. Create an empty filter.
+	 * 
+	 * @param keys
+	 *            expected number of keys
+	 */
+	BloomFilter(final int keys) {
+		final long need = (long) keys * BITS_PER_KEY / BLOCK_BITS;
+		int b = 1;
+		while (b < need) {
+			b <<= 1;
+		}
+		this.blocks = b;
+		this.bits = IntBuffer.wrap(new int[b * BLOCK]);
+	}
+
+	/**
+	 * Constructor. Use bits written by {@link #write(ByteBuffer)}, they are
+	 * not copied.
+	 * 
+	 * @param in
+	 *            buffer, it's position is moved behind the filter
+	 */
+	private BloomFilter(final ByteBuffer in) {
+		this.blocks = in.getInt();
+		if (this.blocks <= 0 || (this.blocks & (this.blocks - 1)) != 0) {
+			throw new IllegalArgumentException("blocks: " + this.blocks);
+		}
+		this.bits = FilterMatcher.slice(in,
+				this.blocks * BLOCK * FilterMatcher.INT).asIntBuffer();
+	}
+
+	/**
+	 * Read a filter written by {@link #write(ByteBuffer)}.
+	 * 
+	 * @param in
+	 *            buffer, it's position is moved behind the filter
+	 * @return {@link BloomFilter} querying the buffer in place
+	 */
+	static BloomFilter read(final ByteBuffer in) {
+		return new BloomFilter(in);
+	}
+
+	/**
+	 * @return number of bytes needed by {@link #write(ByteBuffer)}
+	 */
+	int getByteSize() {
+		return FilterMatcher.INT + this.bits.capacity() * FilterMatcher.INT;
+	}
+
+	/**
+	 * Write the filter.
+	 * 
+	 * @param out
+	 *            buffer, needs {@link #getByteSize()} bytes left
+	 */
+	void write(final ByteBuffer out) {
+		final IntBuffer b = this.bits;
+		final int l = b.capacity();
+		out.putInt(this.blocks);
+		for (int i = 0; i < l; i++) {
+			out.putInt(b.get(i));
+		}
+	}
+
+	/**
+	 * Add a key. Must not be called once the filter is shared.
+	 * 
+	 * @param hash
+	 *            key's hash
+	 */
+	void add(final int hash) {
+		final IntBuffer b = this.bits;
+		final int base = (hash & (this.blocks - 1)) * BLOCK;
+		int x = hash * MULT;
+		for (int i = 0; i < K; i++) {
+			final int bit = x >>> SHIFT;
+			final int j = base + (bit >>> 5);
+			b.put(j, b.get(j) | (1 << bit));
+			x *= MULT;
+		}
+	}
+
+	/**
+	 * Check for a key.
+	 * 
+	 * @param hash
+	 *            key's hash
+	 * @return false, if key was never added
+	 */
+	boolean mightContain(final int hash) {
+		final IntBuffer b = this.bits;
+		final int base = (hash & (this.blocks - 1)) * BLOCK;
+		int x = hash * MULT;
+		for (int i = 0; i < K; i++) {
+			final int bit = x >>> SHIFT;
+			if ((b.get(base + (bit >>> 5)) & (1 << bit)) == 0) {
+				return false;
+			}
+			x *= MULT;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+/**
+ * BodyParser finds the end of a message body in place. Bodies are framed by
+ * Content-Length or by chunked transfer coding, requests without either have
+ * no body. Responses without either end when the connection is closed. Feed
+ * it the body's bytes as they arrive, it tells where the body ends and the
+ * next message starts.
+ * 
+ * @author Felix Bechstein
+ */
+final class BodyParser {
+	/** Result: body is malformed. */
+	static final int ERROR = -1;
+	/** Length: body ends when the connection is closed. */
+	static final long UNTIL_CLOSE = Long.MAX_VALUE;
+
+	/** State: body is done. */
+	private static final int S_DONE = 0;
+	/** State: reading body of known length. */
+	private static final int S_DATA = 1;
+	/** State: reading chunk size. */
+	private static final int S_SIZE = 2;
+	/** State: skipping chunk extensions. */
+	private static final int S_EXTENSION = 3;
+	/** State: reading chunk data. */
+	private static final int S_CHUNK = 4;
+	/** State: reading CRLF after chunk data. */
+	private static final int S_CHUNK_END = 5;
+	/** State: start of a trailer line. */
+	private static final int S_TRAILER_START = 6;
+	/** State: reading trailer line. */
+	private static final int S_TRAILER = 7;
+
+	/** Max. chunk size, anything bigger would overflow. */
+	private static final long MAX_SIZE = Long.MAX_VALUE >> 4;
+
+	/** Parser's state. */
+	private int state = S_DONE;
+	/** Bytes left in body or current chunk. */
+	private long left = 0;
+	/** Number of digits of current chunk size. */
+	private int digits = 0;
+
+	/**
+	 * Start parsing the body of a new request.
+	 * 
+	 * @param header
+	 *            request's parsed header
+	 * @return false, if the header's framing is invalid
+	 */
+	boolean reset(final HeaderParser header) {
+		final long l = header.getContentLength();
+		this.reset(Math.max(0, l), header.isChunked());
+		return l != HeaderParser.LENGTH_INVALID;
+	}
+
+	/**
+	 * Start parsing a new body.
+	 * 
+	 * @param length
+	 *            length of body, {@link #UNTIL_CLOSE} if it has none
+	 * @param chunked
+	 *            body is chunked, length is ignored
+	 */
+	void reset(final long length, final boolean chunked) {
+		this.left = 0;
+		this.digits = 0;
+		if (chunked) {
+			this.state = S_SIZE;
+		} else if (length > 0) {
+			this.state = S_DATA;
+			this.left = length;
+		} else {
+			this.state = S_DONE;
+		}
+	}
+
+	/**
+	 * @return true, if the whole body was parsed
+	 */
+	boolean isDone() {
+		return this.state == S_DONE;
+	}
+
+	/**
+	 * @return number of data bytes following in one run, 0 if framing
+	 *         follows
+	 */
+	long getData() {
+		if (this.state == S_DATA || this.state == S_CHUNK) {
+			return this.left;
+		}
+		return 0;
+	}
+
+	/**
+	 * Parse body.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param start
+	 *            start of unparsed data
+	 * @param len
+	 *            end of data in buffer
+	 * @return end of body in buffer, len if the body goes on or
+	 *         {@link #ERROR}
+	 */
+	int parse(final byte[] b, final int start, final int len) {
+		int i = start;
+		int s = this.state;
+		while (i < len && s != S_DONE) {
+			if (s == S_DATA || s == S_CHUNK) {
+				// skip data in one go
+				final int n = (int) Math.min(this.left, len - i);
+				i += n;
+				this.left -= n;
+				if (this.left == 0) {
+					s = s == S_DATA ? S_DONE : S_CHUNK_END;
+				}
+				continue;
+			}
+			final byte c = b[i];
+			switch (s) {
+			case S_SIZE:
+				if (hex(c) >= 0) {
+					if (this.left > MAX_SIZE) {
+						return ERROR;
+					}
+					this.left = (this.left << 4) + hex(c);
+					++this.digits;
+					break;
+				}
+				if (this.digits == 0) {
+					return ERROR;
+				}
+				s = S_EXTENSION;
+				continue; // same char again as S_EXTENSION
+			case S_EXTENSION:
+				if (c == '\n') {
+					s = this.left == 0 ? S_TRAILER_START : S_CHUNK;
+				}
+				break;
+			case S_CHUNK_END:
+				if (c == '\n') {
+					this.digits = 0;
+					s = S_SIZE;
+				} else if (c != '\r') {
+					return ERROR;
+				}
+				break;
+			case S_TRAILER_START:
+				if (c == '\n') {
+					s = S_DONE;
+				} else if (c != '\r') {
+					s = S_TRAILER;
+				}
+				break;
+			case S_TRAILER:
+				if (c == '\n') {
+					s = S_TRAILER_START;
+				}
+				break;
+			default:
+				break;
+			}
+			++i;
+		}
+		this.state = s;
+		return i;
+	}
+
+	/**
+	 * @param c
+	 *            char
+	 * @return value of a hex digit, -1 if c is none
+	 */
+	private static int hex(final byte c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		} else if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		} else if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+/**
+ * BufferPool keeps relay buffers for reuse, so Connections don't leave them
+ * to the garbage collector. Leased buffers must be returned with
+ * {@link #put(byte[])} and not be used afterwards.
+ * 
+ * @author Felix Bechstein
+ */
+final class BufferPool {
+	/** Size of each buffer. */
+	private final int size;
+	/** Idle buffers. */
+	private final byte[][] idle;
+	/** Number of idle buffers. */
+	private int count = 0;
+
+	/** Number of leased buffers. */
+	private int leased = 0;
+	/** Max. number of leased buffers seen. */
+	private int peak = 0;
+	/** Number of buffers taken from the pool. */
+	private long hits = 0;
+	/** Number of buffers allocated, the pool was empty. */
+	private long misses = 0;
+	/** Number of buffers dropped, the pool was full. */
+	private long dropped = 0;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param bufferSize
+	 *            size of each buffer
+	 * @param max
+	 *            max. number of idle buffers kept
+	 */
+	BufferPool(final int bufferSize, final int max) {
+		this.size = Math.max(1, bufferSize);
+		this.idle = new byte[Math.max(0, max)][];
+	}
+
+	/**
+	 * Lease a buffer.
+	 * 
+	 * @return buffer of {@link #getSize()} bytes
+	 */
+	byte[] get() {
+		synchronized (this) {
+			++this.leased;
+			this.peak = Math.max(this.peak, this.leased);
+			if (this.count > 0) {
+				++this.hits;
+				final byte[] b = this.idle[--this.count];
+				this.idle[this.count] = null;
+				return b;
+			}
+			++this.misses;
+		}
+		return new byte[this.size];
+	}
+
+	/**
+	 * Return a leased buffer.
+	 * 
+	 * @param b
+	 *            buffer
+	 */
+	synchronized void put(final byte[] b) {
+		--this.leased;
+		if (this.count < this.idle.length) {
+			this.idle[this.count++] = b;
+		} else {
+			++this.dropped;
+		}
+	}
+
+	/**
+	 * @return size of each buffer
+	 */
+	int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * @return number of idle buffers
+	 */
+	synchronized int getIdle() {
+		return this.count;
+	}
+
+	/**
+	 * @return number of leased buffers
+	 */
+	synchronized int getLeased() {
+		return this.leased;
+	}
+
+	/**
+	 * @return number of buffers allocated as the pool was empty
+	 */
+	synchronized long getMisses() {
+		return this.misses;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized String toString() {
+		return "buffers: " + this.count + "/" + this.idle.length + " idle, "
+				+ this.leased + " leased (peak " + this.peak + "), "
+				+ this.hits + " hits, " + this.misses + " misses, "
+				+ this.dropped + " dropped";
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DecisionCache remembers the filter's verdict for recently checked keys. It
+ * is split into segments with a LRU list and a lock each, so many Connections
+ * may use it at once.
+ * 
+ * @author Felix Bechstein
+ * @param <K>
+ *            key
+ */
+final class DecisionCache<K> {
+	/** Number of segments, power of two. */
+	private static final int SEGMENTS = 16;
+
+	/**
+	 * Segment is a LRU map of limited size.
+	 * 
+	 * @author Felix Bechstein
+	 * @param <K>
+	 *            key
+	 */
+	private static final class Segment<K> extends LinkedHashMap<K, Boolean> {
+		/** Serial version UID. */
+		private static final long serialVersionUID = 1L;
+		/** Max. number of entries. */
+		private final int capacity;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param c
+		 *            max. number of entries
+		 */
+		Segment(final int c) {
+			super(c, 0.75f, true);
+			this.capacity = c;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<K, Boolean> e) {
+			return this.size() > this.capacity;
+		}
+	}
+
+	/** Segments. */
+	private final Segment<K>[] segments;
+	/** Number of hits. */
+	private final AtomicLong hits = new AtomicLong();
+	/** Number of misses. */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param capacity
+	 *            max. number of entries
+	 */
+	DecisionCache(final int capacity) {
+		final int c = Math.max(1, capacity / SEGMENTS);
+		// there are no generic arrays, it is filled with Segment<K> only
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		final Segment<K>[] s = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			s[i] = new Segment<K>(c);
+		}
+		this.segments = s;
+	}
+
+	/**
+	 * @param key
+	 *            key
+	 * @return segment holding the key
+	 */
+	private Segment<K> segment(final K key) {
+		int h = key.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return this.segments[h & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * Get a cached verdict.
+	 * 
+	 * @param key
+	 *            key
+	 * @return verdict, null if unknown
+	 */
+	Boolean get(final K key) {
+		final Segment<K> s = this.segment(key);
+		Boolean ret;
+		synchronized (s) {
+			ret = s.get(key);
+		}
+		if (ret == null) {
+			this.misses.incrementAndGet();
+		} else {
+			this.hits.incrementAndGet();
+		}
+		return ret;
+	}
+
+	/**
+	 * Cache a verdict.
+	 * 
+	 * @param key
+	 *            key
+	 * @param blocked
+	 *            verdict
+	 */
+	void put(final K key, final boolean blocked) {
+		final Segment<K> s = this.segment(key);
+		synchronized (s) {
+			s.put(key, Boolean.valueOf(blocked));
+		}
+	}
+
+	/**
+	 * Forget all verdicts, the filter changed.
+	 */
+	void clear() {
+		for (Segment<K> s : this.segments) {
+			synchronized (s) {
+				s.clear();
+			}
+		}
+		this.hits.set(0);
+		this.misses.set(0);
+	}
+
+	/**
+	 * @return number of hits
+	 */
+	long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * @return number of misses
+	 */
+	long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		final long h = this.hits.get();
+		final long m = this.misses.get();
+		final long t = h + m;
+		return h + " hits, " + m + " misses ("
+				+ (t == 0 ? 0 : (h * 100 / t)) + "% hits)";
+	}
+}
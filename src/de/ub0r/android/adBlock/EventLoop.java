@@ -0,0 +1,896 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * EventLoop handles any number of HTTP Connections on a single Thread with
+ * non-blocking channels. Run this as a Thread and feed it with accepted
+ * channels. Each loop is a shard of it's own: it has it's own buffers and
+ * counts in it's own {@link Metrics}, loops on different cores don't contend.
+ * 
+ * @author Felix Bechstein
+ */
+final class EventLoop implements Runnable {
+	/** Tag for output. */
+	private static final String TAG = "AdBlock.EventLoop";
+
+	/** Min. size of buffer, a request header must fit into it. */
+	private static final int MIN_BUFFSIZE = 8192;
+	/** Time between sweeps of the {@link Reaper} in nanoseconds. */
+	private static final long SWEEP = Reaper.TICK * 1000000L;
+
+	/** Proxy holding the filter. */
+	private final ProxyServer proxy;
+	/** {@link Metrics} shard of this loop. */
+	private final Metrics metrics;
+	/** Buffers of this loop's Sessions. */
+	private final BufferPool buffers;
+	/** Selector. */
+	private final Selector selector;
+	/** Accepted channels not yet registered. */
+	private final ConcurrentLinkedQueue<SocketChannel> pending = // .
+	new ConcurrentLinkedQueue<SocketChannel>();
+	/** Tasks posted by other threads, run by the loop. */
+	private final ConcurrentLinkedQueue<Runnable> tasks = // .
+	new ConcurrentLinkedQueue<Runnable>();
+	/** Stop loop? */
+	private volatile boolean stop = false;
+	/** {@link Reaper} closing stalled Sessions, swept by the loop. */
+	private final Reaper reaper;
+	/** Time of last sweep in nanoseconds. */
+	private long lastSweep = System.nanoTime();
+
+	/**
+	 * Session handles a single HTTP Connection: the local channel and the
+	 * channel to the remote host it currently talks to.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	private final class Session implements Reaper.Target {
+		/** Local channel. */
+		private final SocketChannel local;
+		/** State and activity tracked by the {@link Reaper}. */
+		private final Reaper.Entry activity;
+		/** Local channel's key. */
+		private SelectionKey localKey;
+		/** Remote channel. */
+		private SocketChannel remote;
+		/** Remote channel's key. */
+		private SelectionKey remoteKey;
+		/** Remote host is being resolved. */
+		private boolean resolving = false;
+		/** Number of lookups started, identifies the current one. */
+		private int lookups = 0;
+		/** Remote channel is connected. */
+		private boolean connected = false;
+
+		/** Data read from local side. */
+		private final byte[] inBuf;
+		/** Bytes in inBuf. */
+		private int inLen = 0;
+		/** Bytes in inBuf checked and ready to send to remote side. */
+		private int inReady = 0;
+		/** Data read from remote side. */
+		private final byte[] outBuf;
+		/** Bytes in outBuf. */
+		private int outLen = 0;
+		/** Bytes in outBuf framed and ready to send to local side. */
+		private int outReady = 0;
+		/** Splits remote side's data into responses, null if none. */
+		private ResponseParser responses = null;
+		/** Remote side's data is not framed, it is copied until closed. */
+		private boolean raw = false;
+
+		/** Remote host. */
+		private String host = null;
+		/** Remote port. */
+		private int port = -1;
+		/** Tunnel opened by CONNECT. */
+		private boolean tunnel = false;
+		/** Close local channel after flushing outBuf. */
+		private boolean closing = false;
+		/** Parser for request headers. */
+		private final HeaderParser header = new HeaderParser();
+		/** Parser finding the end of current request's body. */
+		private final BodyParser body = new BodyParser();
+		/** Drop current request's body, the request was blocked. */
+		private boolean dropBody = false;
+		/** Next request was checked and waits for it's turn. */
+		private boolean checked = false;
+		/** Next request was checked and is blocked. */
+		private boolean blocked = false;
+		/** Time spent parsing the current header in nanoseconds. */
+		private long parseNanos = 0;
+		/** Start of connecting remote channel in nanoseconds. */
+		private long connectStart = 0;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param channel
+		 *            local channel
+		 * @throws IOException
+		 *             IOException
+		 */
+		Session(final SocketChannel channel) throws IOException {
+			this.local = channel;
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			this.localKey = channel.register(EventLoop.this.selector,
+					SelectionKey.OP_READ, this);
+			final BufferPool bp = EventLoop.this.buffers;
+			this.inBuf = bp.get();
+			this.outBuf = bp.get();
+			this.activity = EventLoop.this.reaper.add(this);
+		}
+
+		/**
+		 * Handle ready operations.
+		 * 
+		 * @param key
+		 *            selected key
+		 * @throws IOException
+		 *             IOException
+		 */
+		void handle(final SelectionKey key) throws IOException {
+			if (key == this.localKey) {
+				if (key.isWritable()) {
+					this.writeLocal();
+				}
+				if (key.isValid() && key.isReadable()) {
+					this.readLocal();
+				}
+			} else if (key == this.remoteKey) {
+				if (key.isConnectable()) {
+					this.finishConnect();
+				}
+				if (key.isValid() && key.isWritable()) {
+					this.writeRemote();
+				}
+				if (key.isValid() && key.isReadable()) {
+					this.readRemote();
+				}
+			}
+			this.updateInterest();
+		}
+
+		/**
+		 * Read from local side.
+		 * 
+		 * @throws IOException
+		 *             IOException
+		 */
+		private void readLocal() throws IOException {
+			final int read = this.local.read(ByteBuffer.wrap(this.inBuf,
+					this.inLen, this.inBuf.length - this.inLen));
+			if (read < 0) {
+				this.close();
+				return;
+			}
+			this.activity.touch();
+			this.inLen += read;
+			if (this.tunnel) {
+				if (this.connected) {
+					this.inReady = this.inLen;
+				}
+			} else {
+				this.parse();
+			}
+		}
+
+		/**
+		 * Write to local side.
+		 * 
+		 * @throws IOException
+		 *             IOException
+		 */
+		private void writeLocal() throws IOException {
+			final int written = this.local.write(ByteBuffer.wrap(this.outBuf,
+					0, this.outReady));
+			this.activity.touch();
+			this.outLen = shift(this.outBuf, this.outLen, written);
+			this.outReady -= written;
+			if (this.outLen == 0 && this.closing) {
+				this.close();
+			} else if (this.inReady < this.inLen && !this.tunnel) {
+				// a blocked request might wait for space
+				this.parse();
+			}
+		}
+
+		/**
+		 * Read from remote side.
+		 * 
+		 * @throws IOException
+		 *             IOException
+		 */
+		private void readRemote() throws IOException {
+			final int read = this.remote.read(ByteBuffer.wrap(this.outBuf,
+					this.outLen, this.outBuf.length - this.outLen));
+			final ResponseParser rp = this.responses;
+			if (read < 0) {
+				if (!this.raw && rp.isIdle() && this.inReady == 0
+						&& this.outReady == this.outLen) {
+					// all responses are complete, keep local side
+					this.closeRemote();
+					this.parse();
+					return;
+				}
+				// remote is done, close local side after flushing
+				this.closeRemote();
+				this.outReady = this.outLen;
+				this.closing = true;
+				if (this.outLen == 0) {
+					this.close();
+				}
+				return;
+			}
+			this.activity.touch();
+			this.outLen += read;
+			EventLoop.this.metrics.received(read);
+			if (this.raw) {
+				this.outReady = this.outLen;
+				return;
+			}
+			final long before = rp.getResponses();
+			final int end = rp.parse(this.outBuf, this.outReady, this.outLen);
+			if (end == ResponseParser.ERROR
+					|| end == 0 && this.outLen == this.outBuf.length) {
+				// no idea what this is, just copy it
+				this.raw = true;
+				this.outReady = this.outLen;
+				return;
+			}
+			this.outReady = end;
+			if (rp.getResponses() != before && this.inReady < this.inLen) {
+				// a request might wait for responses to be done
+				this.parse();
+			}
+		}
+
+		/**
+		 * Write to remote side.
+		 * 
+		 * @throws IOException
+		 *             IOException
+		 */
+		private void writeRemote() throws IOException {
+			final int written = this.remote.write(ByteBuffer.wrap(this.inBuf,
+					0, this.inReady));
+			this.activity.touch();
+			this.inLen = shift(this.inBuf, this.inLen, written);
+			this.inReady -= written;
+			EventLoop.this.metrics.sent(written);
+			if (this.inReady == 0 && !this.tunnel) {
+				// a request might wait for the old remote to be drained
+				this.parse();
+			}
+		}
+
+		/**
+		 * Parse unchecked data from local side. Requests are split by their
+		 * headers' framing, each is checked against the filter on it's own.
+		 * Anything else is sent to the current remote side.
+		 * 
+		 * @throws IOException
+		 *             IOException
+		 */
+		private void parse() throws IOException {
+			final HeaderParser h = this.header;
+			final BodyParser bp = this.body;
+			final Reaper.Entry a = this.activity;
+			while (this.inReady < this.inLen && !this.closing
+					&& !this.tunnel && this.localKey.isValid()) {
+				final int start = this.inReady;
+				if (!bp.isDone()) {
+					final int end = bp.parse(this.inBuf, start, this.inLen);
+					if (end == BodyParser.ERROR) {
+						Log.d(TAG, "invalid body");
+						this.error();
+					} else if (this.dropBody) {
+						this.inLen = shift(this.inBuf, this.inLen, end - start,
+								start);
+					} else {
+						this.inReady = end;
+					}
+					continue;
+				}
+				h.reset(start);
+				final long t = System.nanoTime();
+				final int result = h.parse(this.inBuf, this.inLen);
+				this.parseNanos += System.nanoTime() - t;
+				if (result != HeaderParser.INCOMPLETE) {
+					if (result == HeaderParser.COMPLETE) {
+						EventLoop.this.metrics.parsed(this.parseNanos);
+					}
+					this.parseNanos = 0;
+					if (a.getState() == Reaper.STATE_HEADER) {
+						a.enter(Reaper.STATE_IDLE);
+					}
+				} else if (a.getState() == Reaper.STATE_IDLE) {
+					// header deadline starts with it's first byte
+					a.enter(Reaper.STATE_HEADER);
+				}
+				switch (result) {
+				case HeaderParser.INCOMPLETE:
+					if (this.inLen == this.inBuf.length && start == 0) {
+						Log.d(TAG, "header too long");
+						this.error();
+					}
+					return; // wait for more data
+				case HeaderParser.NO_REQUEST:
+					// bodies are framed, anything else might hide requests
+					// from the filter behind it
+					Log.d(TAG, "no request line");
+					this.error();
+					return;
+				default:
+					if (!this.request(start)) {
+						return;
+					}
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Handle a single request header.
+		 * 
+		 * @param start
+		 *            start of header in inBuf
+		 * @return false, if request is waiting for remote side
+		 * @throws IOException
+		 *             IOException
+		 */
+		private boolean request(final int start) throws IOException {
+			final HeaderParser h = this.header;
+			final byte[] b = this.inBuf;
+			final int end = h.getHeaderEnd();
+			if (!h.hasHost()) {
+				// no idea where to send this, stick to current remote
+				if (this.remote == null && !this.resolving) {
+					Log.d(TAG, "unknown target");
+					this.error();
+					return false;
+				}
+				if (!this.responses.expect(h.getMethod() == // .
+						HeaderParser.METHOD_HEAD, this.newHtmlFilter(this.host,
+						h))) {
+					return false; // too many pending responses
+				}
+				this.inReady = end;
+				return this.body(h, false);
+			}
+			final boolean connect = h.getMethod() == // .
+			HeaderParser.METHOD_CONNECT;
+			final String tHost = HeaderParser.toString(b, h.getHostStart(), h
+					.getHostEnd());
+			final int tPort = h.getPort(connect ? ProxyServer.PORT_HTTPS
+					: ProxyServer.PORT_HTTP);
+			final ResponseParser rp = this.responses;
+			final boolean idle = rp == null || rp.isIdle();
+			if (!this.checked) {
+				// check once, the request might wait for it's turn
+				this.blocked = EventLoop.this.proxy.checkURL(tHost, b, h,
+						EventLoop.this.metrics);
+				this.checked = true;
+			}
+			if (this.blocked) {
+				final byte[] response = ProxyServer.getBlockResponse(h);
+				if (!idle
+						|| this.outBuf.length - this.outLen < response.length) {
+					return false; // keep responses in order and whole
+				}
+				this.checked = false;
+				Log.d(TAG, "blocked: " + tHost);
+				this.inLen = shift(b, this.inLen, end - start, start);
+				this.respond(response);
+				return this.body(h, true);
+			}
+
+			final boolean reuse = (this.remote != null || this.resolving)
+					&& !connect
+					&& tHost.equals(this.host) && tPort == this.port;
+			if (!reuse && (start > 0 || !idle)) {
+				return false; // drain old remote first
+			}
+			if (reuse && !rp.expect(h.getMethod() == // .
+					HeaderParser.METHOD_HEAD, this.newHtmlFilter(tHost, h))) {
+				return false; // too many pending responses
+			}
+			this.checked = false;
+			int strip = 0;
+			if (!connect && h.isAbsolute()) {
+				// remove "http://host:port" from request line
+				strip = h.getPathStart() - h.getTargetStart();
+				if (h.getPathStart() == h.getTargetEnd()) {
+					// no path, keep a single byte for "/"
+					--strip;
+					b[h.getPathStart() - 1] = '/';
+				}
+				this.inLen = shift(b, this.inLen, strip, h.getTargetStart());
+			}
+			final int reqEnd = end - strip;
+			if (reuse) {
+				this.inReady = reqEnd;
+				return this.body(h, false);
+			}
+			// new connection needed
+			this.closeRemote();
+			if (connect) {
+				this.inLen = shift(b, this.inLen, end);
+				this.inReady = 0;
+				this.tunnel = true;
+			} else {
+				this.inReady = reqEnd;
+			}
+			this.connect(tHost, tPort);
+			if (connect) {
+				return true;
+			}
+			this.responses.expect(h.getMethod() == HeaderParser.METHOD_HEAD,
+					this.newHtmlFilter(tHost, h));
+			return this.body(h, false);
+		}
+
+		/**
+		 * @param page
+		 *            target host, may be null
+		 * @param h
+		 *            request's parsed header
+		 * @return {@link HtmlFilter} for the response, null if none
+		 */
+		private HtmlFilter newHtmlFilter(final String page,
+				final HeaderParser h) {
+			if (page == null) {
+				return null;
+			}
+			return EventLoop.this.proxy.newHtmlFilter(page, h,
+					EventLoop.this.metrics);
+		}
+
+		/**
+		 * Start framing current request's body.
+		 * 
+		 * @param h
+		 *            request's parsed header
+		 * @param drop
+		 *            drop the body instead of sending it
+		 * @return false, if framing is invalid
+		 */
+		private boolean body(final HeaderParser h, final boolean drop) {
+			this.dropBody = drop;
+			if (!this.body.reset(h)) {
+				Log.d(TAG, "invalid content length");
+				this.error();
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Resolve remote host on background, connect when it's done.
+		 * 
+		 * @param tHost
+		 *            host
+		 * @param tPort
+		 *            port
+		 */
+		private void connect(final String tHost, final int tPort) {
+			this.host = tHost;
+			this.port = tPort;
+			this.responses = new ResponseParser();
+			this.raw = false;
+			this.resolving = true;
+			this.activity.enter(Reaper.STATE_CONNECT);
+			final int id = ++this.lookups;
+			EventLoop.this.proxy.getResolver().resolve(tHost,
+					new Resolver.Callback() {
+						/**
+						 * {@inheritDoc}
+						 */
+						@Override
+						public void resolved(final String h,
+								final InetAddress a) {
+							EventLoop.this.post(new Runnable() {
+								/**
+								 * {@inheritDoc}
+								 */
+								@Override
+								public void run() {
+									Session.this.resolved(id, a);
+								}
+							});
+						}
+					});
+		}
+
+		/**
+		 * Remote host was resolved, open new remote channel. Results of
+		 * outdated lookups are ignored.
+		 * 
+		 * @param id
+		 *            lookup's number
+		 * @param a
+		 *            address, null if host is unknown
+		 */
+		private void resolved(final int id, final InetAddress a) {
+			if (!this.resolving || id != this.lookups) {
+				return;
+			}
+			this.resolving = false;
+			try {
+				if (a == null) {
+					Log.d(TAG, "unresolved: " + this.host);
+					this.error();
+				} else {
+					Log.d(TAG, "new socket: " + this.host + ":" + this.port);
+					final SocketChannel c = SocketChannel.open();
+					this.remote = c;
+					c.configureBlocking(false);
+					c.socket().setTcpNoDelay(true);
+					this.connectStart = System.nanoTime();
+					final boolean done = c.connect(new InetSocketAddress(a,
+							this.port));
+					this.remoteKey = c.register(EventLoop.this.selector,
+							SelectionKey.OP_CONNECT, this);
+					if (done) {
+						this.connected();
+					}
+				}
+				this.updateInterest();
+			} catch (IOException e) {
+				Log.d(TAG, "connect failed: " + this.host, e);
+				this.close();
+			}
+		}
+
+		/**
+		 * Finish connecting remote channel.
+		 * 
+		 * @throws IOException
+		 *             IOException
+		 */
+		private void finishConnect() throws IOException {
+			try {
+				if (this.remote.finishConnect()) {
+					this.connected();
+				}
+			} catch (IOException e) {
+				Log.d(TAG, "connect failed: " + this.host, e);
+				this.error();
+			}
+		}
+
+		/** Remote channel got connected. */
+		private void connected() {
+			this.connected = true;
+			this.activity.enter(Reaper.STATE_IDLE);
+			EventLoop.this.metrics.connected(
+					System.nanoTime() - this.connectStart);
+			if (this.tunnel) {
+				this.respond(ProxyServer.RESPONSE_CONNECTED);
+				this.inReady = this.inLen;
+			}
+		}
+
+		/**
+		 * Queue a response for local side.
+		 * 
+		 * @param response
+		 *            response
+		 */
+		private void respond(final byte[] response) {
+			final int l = Math.min(response.length, this.outBuf.length
+					- this.outLen);
+			System.arraycopy(response, 0, this.outBuf, this.outLen, l);
+			this.outLen += l;
+			this.outReady = this.outLen;
+		}
+
+		/** Send error to local side and close it. */
+		private void error() {
+			this.closeRemote();
+			this.inLen = 0;
+			this.inReady = 0;
+			this.outLen = 0;
+			this.outReady = 0;
+			this.respond(ProxyServer.RESPONSE_ERROR);
+			this.closing = true;
+		}
+
+		/** Set interest ops according to buffer's fill levels. */
+		private void updateInterest() {
+			final SelectionKey lk = this.localKey;
+			if (lk.isValid()) {
+				int ops = 0;
+				if (this.inLen < this.inBuf.length && !this.closing) {
+					ops |= SelectionKey.OP_READ;
+				}
+				if (this.outReady > 0) {
+					ops |= SelectionKey.OP_WRITE;
+				}
+				lk.interestOps(ops);
+			}
+			final SelectionKey rk = this.remoteKey;
+			if (rk != null && rk.isValid()) {
+				int ops = 0;
+				if (!this.connected) {
+					ops = SelectionKey.OP_CONNECT;
+				} else {
+					if (this.outLen < this.outBuf.length) {
+						ops |= SelectionKey.OP_READ;
+					}
+					if (this.inReady > 0) {
+						ops |= SelectionKey.OP_WRITE;
+					}
+				}
+				rk.interestOps(ops);
+			}
+		}
+
+		/** Close remote channel. */
+		private void closeRemote() {
+			if (this.remote != null) {
+				closeQuietly(this.remote);
+				this.remote = null;
+				this.remoteKey = null;
+			}
+			this.responses = null;
+			this.resolving = false;
+			this.connected = false;
+			if (this.activity.getState() == Reaper.STATE_CONNECT) {
+				this.activity.enter(Reaper.STATE_IDLE);
+			}
+			this.host = null;
+			this.port = -1;
+		}
+
+		/**
+		 * Close all channels, the Session is past it's deadline.
+		 */
+		@Override
+		public void reap() {
+			this.close();
+		}
+
+		/** Close all channels. */
+		void close() {
+			Log.d(TAG, "close connection");
+			EventLoop.this.reaper.remove(this.activity);
+			this.closeRemote();
+			if (this.local.isOpen()) {
+				closeQuietly(this.local);
+				// no more events for this Session, buffers are free
+				final BufferPool bp = EventLoop.this.buffers;
+				bp.put(this.inBuf);
+				bp.put(this.outBuf);
+				EventLoop.this.metrics.closed();
+			}
+		}
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param p
+	 *            Proxy holding the filter
+	 * @param m
+	 *            {@link Metrics} shard of this loop
+	 * @param size
+	 *            size of buffer, one per direction and connection
+	 * @param pool
+	 *            max. number of idle buffers kept
+	 * @throws IOException
+	 *             IOException
+	 */
+	EventLoop(final ProxyServer p, final Metrics m, final int size,
+			final int pool) throws IOException {
+		this.proxy = p;
+		this.metrics = m;
+		this.buffers = new BufferPool(Math.max(MIN_BUFFSIZE, size), pool);
+		this.reaper = p.newReaper(m);
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Add an accepted channel to this loop. A stopped loop closes it at once.
+	 * 
+	 * @param channel
+	 *            channel
+	 */
+	void add(final SocketChannel channel) {
+		this.pending.add(channel);
+		if (this.stop) {
+			// the loop might be gone already, no one else would close it
+			SocketChannel c;
+			while ((c = this.pending.poll()) != null) {
+				closeQuietly(c);
+				this.metrics.closed();
+			}
+			return;
+		}
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Run a task on this loop's thread.
+	 * 
+	 * @param task
+	 *            task
+	 */
+	void post(final Runnable task) {
+		this.tasks.add(task);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * @return number of Sessions served or waiting to be served
+	 */
+	int getSessions() {
+		return this.reaper.size() + this.pending.size();
+	}
+
+	/**
+	 * @return {@link BufferPool} of this loop's Sessions
+	 */
+	BufferPool getBuffers() {
+		return this.buffers;
+	}
+
+	/**
+	 * Stop this loop and close all it's channels.
+	 */
+	void stop() {
+		this.stop = true;
+		this.selector.wakeup();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void run() {
+		final Selector s = this.selector;
+		try {
+			while (!this.stop) {
+				// wake up for sweeping, even if nothing happens
+				s.select(Reaper.TICK);
+				SocketChannel c;
+				while ((c = this.pending.poll()) != null) {
+					try {
+						new Session(c);
+					} catch (IOException e) {
+						Log.e(TAG, null, e);
+						closeQuietly(c);
+						this.metrics.closed();
+					}
+				}
+				Runnable r;
+				while ((r = this.tasks.poll()) != null) {
+					r.run();
+				}
+				final Iterator<SelectionKey> it = s.selectedKeys().iterator();
+				while (it.hasNext()) {
+					final SelectionKey key = it.next();
+					it.remove();
+					final Session session = (Session) key.attachment();
+					try {
+						if (key.isValid()) {
+							session.handle(key);
+						}
+					} catch (ClosedChannelException e) {
+						session.close();
+					} catch (IOException e) {
+						Log.d(TAG, null, e);
+						session.close();
+					}
+				}
+				final long now = System.nanoTime();
+				if (now - this.lastSweep >= SWEEP) {
+					this.lastSweep = now;
+					this.reaper.sweep(now);
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, null, e);
+		} finally {
+			for (SelectionKey key : s.keys()) {
+				final Object session = key.attachment();
+				if (session instanceof Session) {
+					((Session) session).close();
+				} else {
+					closeQuietly(key.channel());
+				}
+			}
+			SocketChannel c;
+			while ((c = this.pending.poll()) != null) {
+				closeQuietly(c);
+				this.metrics.closed();
+			}
+			try {
+				s.close();
+			} catch (IOException e) {
+				Log.e(TAG, null, e);
+			}
+		}
+	}
+
+	/**
+	 * Remove bytes from the beginning of a buffer.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param len
+	 *            bytes in buffer
+	 * @param count
+	 *            bytes to remove
+	 * @return new length
+	 */
+	private static int shift(final byte[] b, final int len, final int count) {
+		return shift(b, len, count, 0);
+	}
+
+	/**
+	 * Remove bytes from a buffer.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param len
+	 *            bytes in buffer
+	 * @param count
+	 *            bytes to remove
+	 * @param offset
+	 *            offset of bytes to remove
+	 * @return new length
+	 */
+	private static int shift(final byte[] b, final int len, final int count,
+			final int offset) {
+		if (count > 0) {
+			System.arraycopy(b, offset + count, b, offset, len - offset
+					- count);
+		}
+		return len - count;
+	}
+
+	/**
+	 * Close a channel, ignore errors.
+	 * 
+	 * @param c
+	 *            channel
+	 */
+	private static void closeQuietly(final java.nio.channels.Channel c) {
+		try {
+			c.close();
+		} catch (IOException e) {
+			Log.d(TAG, null, e);
+		}
+	}
+}
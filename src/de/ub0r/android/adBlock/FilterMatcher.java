@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.Collection;
+
+/**
+ * FilterMatcher checks a String against a whole list of substrings in a single
+ * pass. The filter is compiled into an Aho-Corasick automaton once and may be
+ * used by any number of threads afterwards. The automaton's tables may be
+ * written to and queried in place from a (memory mapped) {@link ByteBuffer}.
+ * 
+ * @author Felix Bechstein
+ */
+final class FilterMatcher {
+	/** Root state. */
+	private static final int ROOT = 0;
+	/** No transition. */
+	private static final int NONE = -1;
+	/** State: nothing fed yet. */
+	static final int START = ROOT;
+	/** State: a filter was found. */
+	static final int MATCH = -2;
+	/** Bytes per int. */
+	static final int INT = 4;
+	/** Bytes per char. */
+	private static final int CHAR = 2;
+
+	/** First edge of each state, edges of state i are in base[i]..base[i+1]. */
+	private final IntBuffer base;
+	/** Edge's label, sorted per state. */
+	private final CharBuffer labels;
+	/** Edge's target state. */
+	private final IntBuffer targets;
+	/** Failure link of each state. */
+	private final IntBuffer fail;
+	/** State (or one of it's suffixes) ends a filter, 1 if so. */
+	private final ByteBuffer terminal;
+	/** Number of states. */
+	private final int states;
+	/** Number of edges. */
+	private final int edges;
+
+	/**
+	 * Constructor. Compile the filter.
+	 * 
+	 * @param filter
+	 *            list of substrings, empty entries are ignored
+	 */
+	public FilterMatcher(final Collection<String> filter) {
+		// build trie as first child / next sibling lists
+		int size = 1;
+		for (String s : filter) {
+			size += s.length();
+		}
+		int[] child = new int[size];
+		int[] sibling = new int[size];
+		char[] label = new char[size];
+		boolean[] term = new boolean[size];
+		child[ROOT] = NONE;
+		int states = 1;
+		int edges = 0;
+		for (String s : filter) {
+			final int l = s.length();
+			if (l == 0) {
+				continue;
+			}
+			int state = ROOT;
+			for (int i = 0; i < l; i++) {
+				final char c = s.charAt(i);
+				int prev = NONE;
+				int next = child[state];
+				while (next != NONE && label[next] < c) {
+					prev = next;
+					next = sibling[next];
+				}
+				if (next == NONE || label[next] != c) {
+					// insert new state, keep siblings sorted
+					final int n = states++;
+					++edges;
+					label[n] = c;
+					child[n] = NONE;
+					sibling[n] = next;
+					if (prev == NONE) {
+						child[state] = n;
+					} else {
+						sibling[prev] = n;
+					}
+					next = n;
+				}
+				state = next;
+			}
+			term[state] = true;
+		}
+
+		// flatten in BFS order: state ids are renumbered by queue position
+		final int[] queue = new int[states];
+		final int[] bfsId = new int[size];
+		final int[] b = new int[states + 1];
+		final char[] l = new char[edges];
+		final int[] tg = new int[edges];
+		final int[] fl = new int[states];
+		final byte[] tm = new byte[states];
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = ROOT;
+		bfsId[ROOT] = 0;
+		int e = 0;
+		while (head < tail) {
+			final int old = queue[head];
+			final int id = head++;
+			b[id] = e;
+			tm[id] = term[old] ? (byte) 1 : 0;
+			for (int n = child[old]; n != NONE; n = sibling[n]) {
+				bfsId[n] = tail;
+				queue[tail++] = n;
+				l[e] = label[n];
+				tg[e] = bfsId[n];
+				++e;
+			}
+		}
+		b[states] = e;
+		this.states = states;
+		this.edges = edges;
+		this.base = IntBuffer.wrap(b);
+		this.labels = CharBuffer.wrap(l);
+		this.targets = IntBuffer.wrap(tg);
+		this.fail = IntBuffer.wrap(fl);
+		this.terminal = ByteBuffer.wrap(tm);
+
+		// failure links, parents are always handled before their children
+		fl[ROOT] = ROOT;
+		for (int s = 0; s < states; s++) {
+			for (int i = b[s]; i < b[s + 1]; i++) {
+				final int t = tg[i];
+				final char c = l[i];
+				if (s == ROOT) {
+					fl[t] = ROOT;
+				} else {
+					int f = fl[s];
+					int g = this.step(f, c);
+					while (g == NONE && f != ROOT) {
+						f = fl[f];
+						g = this.step(f, c);
+					}
+					if (g == NONE) {
+						g = ROOT;
+					}
+					fl[t] = g;
+				}
+				if (tm[fl[t]] != 0) {
+					tm[t] = 1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Constructor. Use a compiled filter written by
+	 * {@link #write(ByteBuffer)}, it's tables are not copied.
+	 * 
+	 * @param in
+	 *            buffer, it's position is moved behind the compiled filter
+	 */
+	private FilterMatcher(final ByteBuffer in) {
+		final int s = in.getInt();
+		final int e = in.getInt();
+		this.states = s;
+		this.edges = e;
+		this.base = slice(in, (s + 1) * INT).asIntBuffer();
+		this.targets = slice(in, e * INT).asIntBuffer();
+		this.fail = slice(in, s * INT).asIntBuffer();
+		this.labels = slice(in, e * CHAR).asCharBuffer();
+		this.terminal = slice(in, s);
+		align(in);
+	}
+
+	/**
+	 * Take the next bytes of a buffer.
+	 * 
+	 * @param in
+	 *            buffer
+	 * @param length
+	 *            number of bytes
+	 * @return view of the next length bytes
+	 */
+	static ByteBuffer slice(final ByteBuffer in, final int length) {
+		final ByteBuffer ret = in.slice();
+		ret.limit(length);
+		ret.order(in.order());
+		in.position(in.position() + length);
+		return ret;
+	}
+
+	/**
+	 * Move a buffer's position to the next multiple of {@link #INT}.
+	 * 
+	 * @param b
+	 *            buffer
+	 */
+	static void align(final ByteBuffer b) {
+		b.position((b.position() + INT - 1) & -INT);
+	}
+
+	/**
+	 * Read a compiled filter written by {@link #write(ByteBuffer)}.
+	 * 
+	 * @param in
+	 *            buffer, it's position is moved behind the compiled filter
+	 * @return {@link FilterMatcher} querying the buffer in place
+	 */
+	static FilterMatcher read(final ByteBuffer in) {
+		return new FilterMatcher(in);
+	}
+
+	/**
+	 * @return number of bytes needed by {@link #write(ByteBuffer)}
+	 */
+	int getByteSize() {
+		final int l = 2 * INT + (this.states + 1) * INT + this.edges * INT
+				+ this.states * INT + this.edges * CHAR + this.states;
+		return (l + INT - 1) & -INT;
+	}
+
+	/**
+	 * Write the compiled filter.
+	 * 
+	 * @param out
+	 *            buffer, needs {@link #getByteSize()} bytes left
+	 */
+	void write(final ByteBuffer out) {
+		final int s = this.states;
+		final int e = this.edges;
+		out.putInt(s);
+		out.putInt(e);
+		for (int i = 0; i <= s; i++) {
+			out.putInt(this.base.get(i));
+		}
+		for (int i = 0; i < e; i++) {
+			out.putInt(this.targets.get(i));
+		}
+		for (int i = 0; i < s; i++) {
+			out.putInt(this.fail.get(i));
+		}
+		for (int i = 0; i < e; i++) {
+			out.putChar(this.labels.get(i));
+		}
+		for (int i = 0; i < s; i++) {
+			out.put(this.terminal.get(i));
+		}
+		align(out);
+	}
+
+	/**
+	 * Follow a single edge.
+	 * 
+	 * @param state
+	 *            current state
+	 * @param c
+	 *            next char
+	 * @return next state or NONE
+	 */
+	private int step(final int state, final char c) {
+		final CharBuffer l = this.labels;
+		int lo = this.base.get(state);
+		int hi = this.base.get(state + 1) - 1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			final char m = l.get(mid);
+			if (m < c) {
+				lo = mid + 1;
+			} else if (m > c) {
+				hi = mid - 1;
+			} else {
+				return this.targets.get(mid);
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * Check if any filter is a substring of s.
+	 * 
+	 * @param s
+	 *            String to check
+	 * @return true, if s contains any of the filters
+	 */
+	public boolean matches(final String s) {
+		return this.next(START, s) == MATCH;
+	}
+
+	/**
+	 * Feed a part of the checked String. Parts may be fed one after another
+	 * starting with {@link #START}.
+	 * 
+	 * @param state
+	 *            state returned by last call
+	 * @param s
+	 *            next part
+	 * @return new state, {@link #MATCH} if any filter was found
+	 */
+	public int next(final int state, final String s) {
+		final int l = s.length();
+		int st = state;
+		for (int i = 0; i < l && st != MATCH; i++) {
+			st = this.next(st, s.charAt(i));
+		}
+		return st;
+	}
+
+	/**
+	 * Feed a part of the checked String, ISO-8859-1 encoded. Parts may be fed
+	 * one after another starting with {@link #START}.
+	 * 
+	 * @param state
+	 *            state returned by last call
+	 * @param b
+	 *            buffer
+	 * @param start
+	 *            start of next part
+	 * @param end
+	 *            end of next part
+	 * @return new state, {@link #MATCH} if any filter was found
+	 */
+	public int next(final int state, final byte[] b, final int start,
+			final int end) {
+		int st = state;
+		for (int i = start; i < end && st != MATCH; i++) {
+			st = this.next(st, (char) (b[i] & 0xff));
+		}
+		return st;
+	}
+
+	/**
+	 * Feed a single char.
+	 * 
+	 * @param state
+	 *            current state
+	 * @param c
+	 *            next char
+	 * @return new state, {@link #MATCH} if any filter was found
+	 */
+	private int next(final int state, final char c) {
+		final IntBuffer f = this.fail;
+		int st = state;
+		int n = this.step(st, c);
+		while (n == NONE && st != ROOT) {
+			st = f.get(st);
+			n = this.step(st, c);
+		}
+		if (n == NONE) {
+			return ROOT;
+		}
+		if (this.terminal.get(n) != 0) {
+			return MATCH;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,765 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * FilterSet decides whether a request is blocked. It holds the compiled filter
+ * and the decisions made with it. A FilterSet never changes after it was
+ * built, apart from it's thread safe caches, so it may be shared by any number
+ * of threads. A new FilterSet is built whenever the filter changes. The
+ * compiled filter may be written to a file and memory mapped later on, so it
+ * does not need to be compiled again.
+ * <p>
+ * Filters are host names, plain substrings or rules in Adblock Plus syntax,
+ * see {@link AbpRule}. A filter which is a complete domain like
+ * "ads.example.com" blocks that host and it's sub domains, it no longer
+ * matches anywhere in the URL. Anything else with dots, like
+ * "ad.doubleclick", is still a substring. Adblock Plus exception rules
+ * override all others. Element hiding rules are kept for the
+ * {@link HtmlFilter}, see {@link HidingRule}. Large hosts files are imported
+ * into a {@link HostsList} of their own, which is shared by all FilterSets
+ * built while it does not change.
+ * 
+ * @author Felix Bechstein
+ */
+final class FilterSet {
+	/** Scheme prepended to checked URLs. */
+	private static final String SCHEME_HTTP = "http://";
+	/** Scheme prepended to tunneled hosts. */
+	private static final String SCHEME_HTTPS = "https://";
+	/** Max. number of cached decisions for hosts. */
+	private static final int CACHE_HOSTS = 1024;
+	/** Max. number of cached decisions for URLs. */
+	private static final int CACHE_URLS = 4096;
+	/** File: magic number. */
+	private static final int MAGIC = 0x41444246;
+	/** File: format version. */
+	private static final int FORMAT = 5;
+	/** File: size of header. */
+	private static final int HEADER = 24;
+	/** File: encoding of Adblock Plus rules. */
+	private static final String CHARSET = "UTF-8";
+
+	/** Filter: host names. */
+	private final HostIndex hosts;
+	/** Compiled filter: everything but host names. */
+	private final FilterMatcher matcher;
+	/** Number of filters in matcher. */
+	private final int others;
+	/** Adblock Plus rules, null if there are none. */
+	private final AbpEngine engine;
+	/** Element hiding rules, null if there are none. */
+	private final HidingIndex hiding;
+	/** Hosts imported from a hosts file, null if there are none. */
+	private final HostIndex list;
+	/** Decisions for recently checked hosts. */
+	private final DecisionCache<String> hostCache = // .
+	new DecisionCache<String>(CACHE_HOSTS);
+	/** Decisions for recently checked URLs, null if disabled. */
+	private final DecisionCache<String> urlCache;
+
+	/** Per thread buffer for lower case URLs checked by the engine. */
+	private static final ThreadLocal<byte[]> SCRATCH = // .
+	new ThreadLocal<byte[]>() {
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected byte[] initialValue() {
+			return new byte[Relay.BUFFSIZE];
+		}
+	};
+
+	/**
+	 * Constructor. Compile the filter.
+	 * 
+	 * @param filter
+	 *            filter, empty entries are ignored
+	 * @param cacheURLs
+	 *            cache decisions for full URLs, not only hosts
+	 */
+	FilterSet(final Collection<String> filter, final boolean cacheURLs) {
+		this(filter, null, cacheURLs);
+	}
+
+	/**
+	 * Constructor. Compile the filter.
+	 * 
+	 * @param filter
+	 *            filter, empty entries are ignored
+	 * @param l
+	 *            hosts imported from a hosts file, may be null
+	 * @param cacheURLs
+	 *            cache decisions for full URLs, not only hosts
+	 */
+	FilterSet(final Collection<String> filter, final HostIndex l,
+			final boolean cacheURLs) {
+		final ArrayList<String> h = new ArrayList<String>();
+		final ArrayList<String> rest = new ArrayList<String>();
+		final ArrayList<AbpRule> abp = new ArrayList<AbpRule>();
+		final ArrayList<HidingRule> hide = new ArrayList<HidingRule>();
+		for (String s : filter) {
+			if (HidingRule.isHiding(s)) {
+				final HidingRule r = HidingRule.parse(s);
+				if (r != null) {
+					hide.add(r);
+				}
+			} else if (AbpRule.isAbp(s)) {
+				final AbpRule r = AbpRule.parse(s);
+				if (r == null) {
+					continue;
+				}
+				// "||example.com^" blocks the host as a whole
+				final String rh = r.getHost();
+				if (rh != null) {
+					h.add(rh);
+				} else {
+					abp.add(r);
+				}
+			} else if (HostIndex.isDomain(s)) {
+				h.add(s);
+			} else if (s.length() > 0) {
+				rest.add(s);
+			}
+		}
+		this.hosts = new HostIndex(h);
+		this.matcher = new FilterMatcher(rest);
+		this.others = rest.size();
+		this.engine = newEngine(abp);
+		this.hiding = newHiding(hide);
+		this.list = l;
+		this.urlCache = newURLCache(cacheURLs);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param h
+	 *            host names
+	 * @param m
+	 *            compiled filter
+	 * @param o
+	 *            number of filters in m
+	 * @param abp
+	 *            Adblock Plus rules
+	 * @param hide
+	 *            element hiding rules
+	 * @param l
+	 *            hosts imported from a hosts file, may be null
+	 * @param cacheURLs
+	 *            cache decisions for full URLs, not only hosts
+	 */
+	private FilterSet(final HostIndex h, final FilterMatcher m, final int o,
+			final Collection<AbpRule> abp,
+			final Collection<HidingRule> hide, final HostIndex l,
+			final boolean cacheURLs) {
+		this.hosts = h;
+		this.matcher = m;
+		this.others = o;
+		this.engine = newEngine(abp);
+		this.hiding = newHiding(hide);
+		this.list = l;
+		this.urlCache = newURLCache(cacheURLs);
+	}
+
+	/**
+	 * @param abp
+	 *            Adblock Plus rules
+	 * @return new engine, null if there are no rules
+	 */
+	private static AbpEngine newEngine(final Collection<AbpRule> abp) {
+		if (abp.isEmpty()) {
+			return null;
+		}
+		return new AbpEngine(abp);
+	}
+
+	/**
+	 * @param hide
+	 *            element hiding rules
+	 * @return new index, null if there are no rules
+	 */
+	private static HidingIndex newHiding(final Collection<HidingRule> hide) {
+		if (hide.isEmpty()) {
+			return null;
+		}
+		return new HidingIndex(hide);
+	}
+
+	/**
+	 * @param cacheURLs
+	 *            cache decisions for full URLs
+	 * @return new cache, null if disabled
+	 */
+	private static DecisionCache<String> newURLCache(final boolean cacheURLs) {
+		if (cacheURLs) {
+			return new DecisionCache<String>(CACHE_URLS);
+		}
+		return null;
+	}
+
+	/**
+	 * Write the compiled filter to a file.
+	 * 
+	 * @param file
+	 *            file, replaced atomically
+	 * @param version
+	 *            version of the filter, checked by
+	 *            {@link #load(File, long, boolean)}
+	 * @throws IOException
+	 *             IOException
+	 */
+	void write(final File file, final long version) throws IOException {
+		final HostIndex h = this.hosts;
+		final FilterMatcher m = this.matcher;
+		// Adblock Plus rules are stored as given and parsed again on load
+		final byte[][] abp = this.getAbpSources();
+		final byte[][] hide = this.getHidingSources();
+		int l = HEADER + h.getByteSize() + m.getByteSize() + 2
+				* FilterMatcher.INT;
+		for (byte[] r : abp) {
+			l += FilterMatcher.INT + r.length;
+		}
+		for (byte[] r : hide) {
+			l += FilterMatcher.INT + r.length;
+		}
+		l = (l + FilterMatcher.INT - 1) & -FilterMatcher.INT;
+		final ByteBuffer b = ByteBuffer.allocate(l);
+		b.order(ByteOrder.nativeOrder());
+		b.putInt(MAGIC);
+		b.putInt(FORMAT);
+		b.putLong(version);
+		b.putInt(l);
+		b.putInt(this.others);
+		h.write(b);
+		m.write(b);
+		b.putInt(abp.length);
+		for (byte[] r : abp) {
+			b.putInt(r.length);
+			b.put(r);
+		}
+		b.putInt(hide.length);
+		for (byte[] r : hide) {
+			b.putInt(r.length);
+			b.put(r);
+		}
+		FilterMatcher.align(b);
+		b.flip();
+		writeFile(file, b);
+	}
+
+	/**
+	 * Write a buffer to a file.
+	 * 
+	 * @param file
+	 *            file, replaced atomically
+	 * @param b
+	 *            buffer, written from position to limit
+	 * @throws IOException
+	 *             IOException
+	 */
+	static void writeFile(final File file, final ByteBuffer b)
+			throws IOException {
+		final File tmp = new File(file.getPath() + ".tmp");
+		final FileOutputStream os = new FileOutputStream(tmp);
+		try {
+			final FileChannel c = os.getChannel();
+			while (b.hasRemaining()) {
+				c.write(b);
+			}
+		} finally {
+			os.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("could not replace " + file);
+		}
+	}
+
+	/**
+	 * Load a compiled filter written by {@link #write(File, long)}. The file
+	 * is memory mapped and queried in place.
+	 * 
+	 * @param file
+	 *            file
+	 * @param version
+	 *            expected version of the filter
+	 * @param cacheURLs
+	 *            cache decisions for full URLs, not only hosts
+	 * @return {@link FilterSet}, null if file is missing, broken or outdated
+	 */
+	static FilterSet load(final File file, final long version,
+			final boolean cacheURLs) {
+		return load(file, version, null, cacheURLs);
+	}
+
+	/**
+	 * Load a compiled filter written by {@link #write(File, long)}. The file
+	 * is memory mapped and queried in place.
+	 * 
+	 * @param file
+	 *            file
+	 * @param version
+	 *            expected version of the filter
+	 * @param l
+	 *            hosts imported from a hosts file, may be null
+	 * @param cacheURLs
+	 *            cache decisions for full URLs, not only hosts
+	 * @return {@link FilterSet}, null if file is missing, broken or outdated
+	 */
+	static FilterSet load(final File file, final long version,
+			final HostIndex l, final boolean cacheURLs) {
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			final ByteBuffer b = mapFile(file);
+			if (b.getInt() != MAGIC || b.getInt() != FORMAT
+					|| b.getLong() != version || b.getInt() != b.capacity()) {
+				return null;
+			}
+			final int o = b.getInt();
+			final HostIndex h = HostIndex.read(b);
+			final FilterMatcher m = FilterMatcher.read(b);
+			final int n = b.getInt();
+			final ArrayList<AbpRule> abp = new ArrayList<AbpRule>(n);
+			for (int i = 0; i < n; i++) {
+				final byte[] r = new byte[b.getInt()];
+				b.get(r);
+				final AbpRule rule = AbpRule.parse(new String(r, CHARSET));
+				if (rule == null) {
+					return null;
+				}
+				abp.add(rule);
+			}
+			final int k = b.getInt();
+			final ArrayList<HidingRule> hide = new ArrayList<HidingRule>(k);
+			for (int i = 0; i < k; i++) {
+				final byte[] r = new byte[b.getInt()];
+				b.get(r);
+				final HidingRule rule = HidingRule.parse(new String(r,
+						CHARSET));
+				if (rule == null) {
+					return null;
+				}
+				hide.add(rule);
+			}
+			return new FilterSet(h, m, o, abp, hide, l, cacheURLs);
+		} catch (IOException e) {
+			return null;
+		} catch (BufferUnderflowException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		} catch (NegativeArraySizeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Memory map a file.
+	 * 
+	 * @param file
+	 *            file
+	 * @return read only buffer in native byte order
+	 * @throws IOException
+	 *             IOException
+	 */
+	static ByteBuffer mapFile(final File file) throws IOException {
+		final RandomAccessFile f = new RandomAccessFile(file, "r");
+		ByteBuffer b;
+		try {
+			final FileChannel c = f.getChannel();
+			b = c.map(FileChannel.MapMode.READ_ONLY, 0, c.size());
+		} finally {
+			f.close();
+		}
+		b.order(ByteOrder.nativeOrder());
+		return b;
+	}
+
+	/**
+	 * @return Adblock Plus rules as given, encoded
+	 * @throws IOException
+	 *             IOException
+	 */
+	private byte[][] getAbpSources() throws IOException {
+		final AbpEngine e = this.engine;
+		if (e == null) {
+			return new byte[0][];
+		}
+		final List<AbpRule> rules = e.getRules();
+		final byte[][] ret = new byte[rules.size()][];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = rules.get(i).toString().getBytes(CHARSET);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return element hiding rules as given, encoded
+	 * @throws IOException
+	 *             IOException
+	 */
+	private byte[][] getHidingSources() throws IOException {
+		final HidingIndex x = this.hiding;
+		if (x == null) {
+			return new byte[0][];
+		}
+		final List<HidingRule> rules = x.getRules();
+		final byte[][] ret = new byte[rules.size()][];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = rules.get(i).toString().getBytes(CHARSET);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return element hiding rules, null if there are none
+	 */
+	HidingIndex getHiding() {
+		return this.hiding;
+	}
+
+	/**
+	 * Check if a URL found in a page is blocked, as if the page requested it.
+	 * 
+	 * @param url
+	 *            absolute "http://" URL
+	 * @param page
+	 *            page's host, null if unknown
+	 * @return if request is blocked?
+	 */
+	boolean isBlocked(final String url, final String page) {
+		final StringBuilder sb = new StringBuilder("GET ");
+		sb.append(url);
+		sb.append(" HTTP/1.1\r\n");
+		if (page != null) {
+			sb.append("Referer: ");
+			sb.append(SCHEME_HTTP);
+			sb.append(page);
+			sb.append("/\r\n");
+		}
+		sb.append("\r\n");
+		final int l = sb.length();
+		final byte[] b = new byte[l];
+		for (int i = 0; i < l; i++) {
+			b[i] = (byte) sb.charAt(i);
+		}
+		final HeaderParser header = new HeaderParser();
+		if (header.parse(b, l) != HeaderParser.COMPLETE
+				|| !header.hasHost()) {
+			return false;
+		}
+		return this.isBlocked(HeaderParser.toString(b,
+				header.getHostStart(), header.getHostEnd()), b, header);
+	}
+
+	/**
+	 * Check if a request is blocked.
+	 * 
+	 * @param host
+	 *            target host
+	 * @param b
+	 *            buffer holding the request
+	 * @param header
+	 *            parsed request header
+	 * @return if request is blocked?
+	 */
+	boolean isBlocked(final String host, final byte[] b,
+			final HeaderParser header) {
+		final FilterMatcher m = this.matcher;
+		final AbpEngine e = this.engine;
+		final boolean connect = header.getMethod() == // .
+		HeaderParser.METHOD_CONNECT;
+		// a blocked host blocks any URL on it, "host." is the same host
+		final DecisionCache<String> hc = this.hostCache;
+		Boolean blocked = hc.get(host);
+		if (blocked == null) {
+			// substrings are case sensitive, the cache is keyed as given
+			final String h = HostIndex.normalize(host);
+			final HostIndex l = this.list;
+			blocked = this.hosts.contains(h) || (l != null && l.contains(h))
+					|| m.matches(host);
+			hc.put(host, blocked);
+		}
+		if (e == null && (blocked || connect)) {
+			// there is nothing but the host to check
+			return blocked;
+		}
+		String page = null;
+		if (e != null && e.hasContext()) {
+			page = getPageHost(b, header);
+		}
+		final DecisionCache<String> uc = this.urlCache;
+		String url = null;
+		if (uc != null) {
+			url = HeaderParser.toString(b, header.getAuthorityStart(), header
+					.getAuthorityEnd())
+					+ HeaderParser.toString(b, header.getPathStart(), header
+							.getTargetEnd());
+			if (page != null) {
+				url = page + " " + url;
+			}
+			final Boolean cached = uc.get(url);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		boolean ret = blocked;
+		if (!ret && !connect) {
+			// check "http://host:port/path" without building it
+			int st = m.next(FilterMatcher.START, SCHEME_HTTP);
+			st = m.next(st, b, header.getAuthorityStart(), header
+					.getAuthorityEnd());
+			st = m.next(st, b, header.getPathStart(), header.getTargetEnd());
+			ret = st == FilterMatcher.MATCH;
+		}
+		if (e != null) {
+			ret = this.checkAbp(e, ret, connect, host, page, b, header);
+		}
+		if (url != null) {
+			uc.put(url, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * Check a request against the Adblock Plus rules.
+	 * 
+	 * @param e
+	 *            engine
+	 * @param blocked
+	 *            request is blocked by any other filter
+	 * @param connect
+	 *            request is a tunnel
+	 * @param host
+	 *            target host
+	 * @param page
+	 *            host of the page which caused the request, null if unknown
+	 * @param b
+	 *            buffer holding the request
+	 * @param header
+	 *            parsed request header
+	 * @return if request is blocked?
+	 */
+	private boolean checkAbp(final AbpEngine e, final boolean blocked,
+			final boolean connect, final String host, final String page,
+			final byte[] b, final HeaderParser header) {
+		// build lower case "scheme://host:port/path"
+		final String scheme = connect ? SCHEME_HTTPS : SCHEME_HTTP;
+		final int as = header.getAuthorityStart();
+		final int ae = header.getAuthorityEnd();
+		final int ps = header.getPathStart();
+		final int pe = header.getTargetEnd();
+		final int sl = scheme.length();
+		final int len = sl + ae - as + pe - ps;
+		byte[] u = SCRATCH.get();
+		if (u.length < len) {
+			u = new byte[len];
+			SCRATCH.set(u);
+		}
+		for (int i = 0; i < sl; i++) {
+			u[i] = (byte) scheme.charAt(i);
+		}
+		final int j = lower(b, as, ae, u, sl);
+		lower(b, ps, pe, u, j);
+		final int hs = sl + header.getHostStart() - as;
+		final int he = sl + header.getHostEnd() - as;
+		final boolean thirdParty = page != null
+				&& !getSite(host.toLowerCase()).equals(getSite(page));
+		if (!blocked && !e.block(u, len, hs, he, page, thirdParty)) {
+			return false;
+		}
+		return !e.allow(u, len, hs, he, page, thirdParty);
+	}
+
+	/**
+	 * Copy bytes in lower case.
+	 * 
+	 * @param b
+	 *            source
+	 * @param s
+	 *            start
+	 * @param e
+	 *            end
+	 * @param to
+	 *            target
+	 * @param offset
+	 *            offset in target
+	 * @return end in target
+	 */
+	private static int lower(final byte[] b, final int s, final int e,
+			final byte[] to, final int offset) {
+		int j = offset;
+		for (int i = s; i < e; i++) {
+			final byte c = b[i];
+			if (c >= 'A' && c <= 'Z') {
+				to[j++] = (byte) (c + 'a' - 'A');
+			} else {
+				to[j++] = c;
+			}
+		}
+		return j;
+	}
+
+	/**
+	 * Get the host of the page which caused the request from the Referer
+	 * header.
+	 * 
+	 * @param b
+	 *            buffer holding the request
+	 * @param header
+	 *            parsed request header
+	 * @return host, lower case, null if unknown
+	 */
+	private static String getPageHost(final byte[] b,
+			final HeaderParser header) {
+		final int rs = header.getRefererStart();
+		final int re = header.getRefererEnd();
+		if (rs < 0) {
+			return null;
+		}
+		int s = rs;
+		while (s + 2 < re && !(b[s] == ':' && b[s + 1] == '/'
+				&& b[s + 2] == '/')) {
+			++s;
+		}
+		s += 3;
+		if (s >= re) {
+			return null;
+		}
+		int e = s;
+		while (e < re && b[e] != '/' && b[e] != '?' && b[e] != '#') {
+			if (b[e] == '@') {
+				// skip user info
+				s = e + 1;
+			}
+			++e;
+		}
+		// strip port
+		for (int i = e - 1; i > s && b[i] != ']'; i--) {
+			if (b[i] == ':') {
+				e = i;
+				break;
+			}
+		}
+		if (s >= e) {
+			return null;
+		}
+		return HeaderParser.toString(b, s, e).toLowerCase();
+	}
+
+	/**
+	 * Guess the registered domain of a host: the last two labels, or three if
+	 * the second to last is a short label under a country code like "co.uk".
+	 * 
+	 * @param host
+	 *            host, lower case
+	 * @return site
+	 */
+	static String getSite(final String host) {
+		final int l = host.length();
+		final int last = host.lastIndexOf('.');
+		if (last < 0 || host.indexOf(':') >= 0 || l == 0
+				|| Character.isDigit(host.charAt(l - 1))) {
+			// single label or IP address
+			return host;
+		}
+		final int second = host.lastIndexOf('.', last - 1);
+		if (second < 0) {
+			return host;
+		}
+		if (l - last - 1 == 2 && last - second - 1 <= 3) {
+			final int third = host.lastIndexOf('.', second - 1);
+			return host.substring(third + 1);
+		}
+		return host.substring(second + 1);
+	}
+
+	/**
+	 * @return number of host names
+	 */
+	int getHosts() {
+		return this.hosts.size();
+	}
+
+	/**
+	 * @return number of other filters
+	 */
+	int getOthers() {
+		return this.others;
+	}
+
+	/**
+	 * @return number of hosts imported from a hosts file
+	 */
+	int getListed() {
+		final HostIndex l = this.list;
+		return l == null ? 0 : l.size();
+	}
+
+	/**
+	 * @return number of Adblock Plus rules
+	 */
+	int getRules() {
+		final AbpEngine e = this.engine;
+		return e == null ? 0 : e.size();
+	}
+
+	/**
+	 * @return number of element hiding rules
+	 */
+	int getHidingRules() {
+		final HidingIndex x = this.hiding;
+		return x == null ? 0 : x.size();
+	}
+
+	/**
+	 * @return decisions cached for hosts and URLs
+	 */
+	String getCacheStats() {
+		final DecisionCache<String> uc = this.urlCache;
+		return "host cache: " + this.hostCache + ", url cache: "
+				+ (uc == null ? "off" : uc.toString());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return "filter: " + this.getHosts() + " hosts, " + this.others
+				+ " others, " + this.getRules() + " rules, "
+				+ this.getHidingRules() + " hiding rules, " + this.getListed()
+				+ " listed hosts";
+	}
+}
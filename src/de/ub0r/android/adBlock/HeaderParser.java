@@ -0,0 +1,686 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+/**
+ * HeaderParser parses a HTTP request header in place. It finds method, request
+ * target, host, port, the body's framing and the end of the header without
+ * creating any objects.
+ * Feed it the same buffer again after more data was appended, it will go on
+ * where it stopped.
+ * 
+ * @author Felix Bechstein
+ */
+final class HeaderParser {
+	/** Result: header is not complete yet. */
+	static final int INCOMPLETE = 0;
+	/** Result: header is complete. */
+	static final int COMPLETE = 1;
+	/** Result: data is no HTTP request. */
+	static final int NO_REQUEST = 2;
+
+	/** Method: unknown. */
+	static final int METHOD_OTHER = 0;
+	/** Method: GET. */
+	static final int METHOD_GET = 1;
+	/** Method: POST. */
+	static final int METHOD_POST = 2;
+	/** Method: HEAD. */
+	static final int METHOD_HEAD = 3;
+	/** Method: CONNECT. */
+	static final int METHOD_CONNECT = 4;
+
+	/** Content-Length: none given. */
+	static final long LENGTH_NONE = -1;
+	/** Content-Length: invalid or ambiguous. */
+	static final long LENGTH_INVALID = -2;
+
+	/** Max. length of a request's method. */
+	private static final int MAX_METHOD = 16;
+
+	/** State: reading method. */
+	private static final int S_METHOD = 0;
+	/** State: reading request target. */
+	private static final int S_TARGET = 1;
+	/** State: reading rest of request line. */
+	private static final int S_VERSION = 2;
+	/** State: start of a header line. */
+	private static final int S_LINE_START = 3;
+	/** State: reading header name. */
+	private static final int S_NAME = 4;
+	/** State: skipping white space before header value. */
+	private static final int S_VALUE_START = 5;
+	/** State: reading header value. */
+	private static final int S_VALUE = 6;
+	/** State: got CR of empty line. */
+	private static final int S_END = 7;
+	/** State: done. */
+	private static final int S_DONE = 8;
+
+	/** Field: not interesting. */
+	private static final int F_OTHER = 0;
+	/** Field: Host. */
+	private static final int F_HOST = 1;
+	/** Field: Referer. */
+	private static final int F_REFERER = 2;
+	/** Field: Content-Length. */
+	private static final int F_LENGTH = 3;
+	/** Field: Transfer-Encoding. */
+	private static final int F_ENCODING = 4;
+
+	/** Scheme of absolute request targets. */
+	private static final byte[] HTTP = { 'h', 't', 't', 'p', ':', '/', '/' };
+	/** Header name: Host, lower case. */
+	private static final byte[] HOST = { 'h', 'o', 's', 't' };
+	/** Header name: Referer, lower case. */
+	private static final byte[] REFERER = { 'r', 'e', 'f', 'e', 'r', 'e',
+			'r' };
+	/** Header name: Content-Length, lower case. */
+	private static final byte[] CONTENT_LENGTH = { 'c', 'o', 'n', 't', 'e',
+			'n', 't', '-', 'l', 'e', 'n', 'g', 't', 'h' };
+	/** Header name: Transfer-Encoding, lower case. */
+	private static final byte[] TRANSFER_ENCODING = { 't', 'r', 'a', 'n',
+			's', 'f', 'e', 'r', '-', 'e', 'n', 'c', 'o', 'd', 'i', 'n', 'g' };
+	/** Transfer coding: chunked, lower case. */
+	private static final byte[] CHUNKED = { 'c', 'h', 'u', 'n', 'k', 'e', 'd' };
+
+	/** Parser's state. */
+	private int state;
+	/** Result of last parse(). */
+	private int result;
+	/** Position to go on parsing. */
+	private int pos;
+
+	/** Start of header. */
+	private int start;
+	/** End of method. */
+	private int methodEnd;
+	/** Method. */
+	private int method;
+	/** Start of request target. */
+	private int targetStart;
+	/** End of request target. */
+	private int targetEnd;
+	/** Start of path in request target. */
+	private int pathStart;
+	/** Start of authority, host and optional port. */
+	private int authorityStart;
+	/** End of authority. */
+	private int authorityEnd;
+	/** Authority is part of request target. */
+	private boolean absolute;
+	/** Start of host name. */
+	private int hostStart;
+	/** End of host name. */
+	private int hostEnd;
+	/** Port, -1 if none was given. */
+	private int port;
+	/** Start of Referer header's value, -1 if there is none. */
+	private int refererStart;
+	/** End of Referer header's value. */
+	private int refererEnd;
+	/** Content-Length, one of LENGTH_* if there is none. */
+	private long contentLength;
+	/** Body is chunked. */
+	private boolean chunked;
+	/** End of header. */
+	private int headerEnd;
+
+	/** Start of current header name or value. */
+	private int fieldStart;
+	/** End of current header value without trailing white space. */
+	private int fieldEnd;
+	/** Current header, one of F_*. */
+	private int field;
+
+	/**
+	 * Constructor.
+	 */
+	HeaderParser() {
+		this.reset(0);
+	}
+
+	/**
+	 * Start parsing a new header.
+	 * 
+	 * @param offset
+	 *            start of header in buffer
+	 */
+	void reset(final int offset) {
+		this.state = S_METHOD;
+		this.result = INCOMPLETE;
+		this.pos = offset;
+		this.start = offset;
+		this.method = METHOD_OTHER;
+		this.methodEnd = -1;
+		this.targetStart = -1;
+		this.targetEnd = -1;
+		this.pathStart = -1;
+		this.authorityStart = -1;
+		this.authorityEnd = -1;
+		this.absolute = false;
+		this.hostStart = -1;
+		this.hostEnd = -1;
+		this.port = -1;
+		this.refererStart = -1;
+		this.refererEnd = -1;
+		this.contentLength = LENGTH_NONE;
+		this.chunked = false;
+		this.headerEnd = -1;
+		this.field = F_OTHER;
+	}
+
+	/**
+	 * Parse header.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param len
+	 *            end of data in buffer
+	 * @return {@link #INCOMPLETE}, {@link #COMPLETE} or {@link #NO_REQUEST}
+	 */
+	int parse(final byte[] b, final int len) {
+		if (this.state == S_DONE) {
+			return this.result;
+		}
+		int i = this.pos;
+		int s = this.state;
+		while (i < len && s != S_DONE) {
+			final byte c = b[i];
+			switch (s) {
+			case S_METHOD:
+				if (c == ' ' && i > this.start) {
+					this.methodEnd = i;
+					this.method = this.parseMethod(b);
+					this.targetStart = i + 1;
+					s = S_TARGET;
+				} else if (c < 'A' || c > 'Z' || i - this.start >= MAX_METHOD) {
+					this.state = S_DONE;
+					this.result = NO_REQUEST;
+					return NO_REQUEST;
+				}
+				break;
+			case S_TARGET:
+				if (c == ' ') {
+					this.targetEnd = i;
+					this.parseTarget(b);
+					s = S_VERSION;
+				} else if (c == '\r' || c == '\n') {
+					this.state = S_DONE;
+					this.result = NO_REQUEST;
+					return NO_REQUEST;
+				}
+				break;
+			case S_VERSION:
+				if (c == '\n') {
+					s = S_LINE_START;
+				}
+				break;
+			case S_LINE_START:
+				if (c == '\r') {
+					s = S_END;
+				} else if (c == '\n') {
+					this.headerEnd = i + 1;
+					s = S_DONE;
+				} else {
+					this.fieldStart = i;
+					s = S_NAME;
+				}
+				break;
+			case S_NAME:
+				if (c == ':') {
+					this.field = parseField(b, this.fieldStart, i);
+					s = S_VALUE_START;
+				} else if (c == '\n') {
+					s = S_LINE_START;
+				}
+				break;
+			case S_VALUE_START:
+				if (c == ' ' || c == '\t') {
+					break;
+				}
+				this.fieldStart = i;
+				this.fieldEnd = i;
+				s = S_VALUE;
+				continue; // same char again as S_VALUE
+			case S_VALUE:
+				if (c == '\n') {
+					this.parseValue(b);
+					this.field = F_OTHER;
+					s = S_LINE_START;
+				} else if (c != ' ' && c != '\t' && c != '\r') {
+					this.fieldEnd = i + 1;
+				}
+				break;
+			case S_END:
+				this.headerEnd = i + 1;
+				s = S_DONE;
+				if (c != '\n') {
+					// bare CR, take it as end of header anyway
+					this.headerEnd = i;
+				}
+				break;
+			default:
+				break;
+			}
+			++i;
+		}
+		this.pos = i;
+		this.state = s;
+		if (s == S_DONE) {
+			this.parseAuthority(b);
+			this.result = COMPLETE;
+		}
+		return this.result;
+	}
+
+	/**
+	 * Find out which header a name belongs to.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param s
+	 *            start of name
+	 * @param e
+	 *            end of name
+	 * @return field, one of F_*
+	 */
+	private static int parseField(final byte[] b, final int s, final int e) {
+		if (equalsIgnoreCase(b, s, e, HOST)) {
+			return F_HOST;
+		} else if (equalsIgnoreCase(b, s, e, REFERER)) {
+			return F_REFERER;
+		} else if (equalsIgnoreCase(b, s, e, CONTENT_LENGTH)) {
+			return F_LENGTH;
+		} else if (equalsIgnoreCase(b, s, e, TRANSFER_ENCODING)) {
+			return F_ENCODING;
+		}
+		return F_OTHER;
+	}
+
+	/**
+	 * Take the value of current header.
+	 * 
+	 * @param b
+	 *            buffer
+	 */
+	private void parseValue(final byte[] b) {
+		final int fs = this.fieldStart;
+		final int fe = this.fieldEnd;
+		switch (this.field) {
+		case F_HOST:
+			if (!this.absolute) {
+				this.authorityStart = fs;
+				this.authorityEnd = fe;
+			}
+			break;
+		case F_REFERER:
+			this.refererStart = fs;
+			this.refererEnd = fe;
+			break;
+		case F_LENGTH:
+			final long l = parseLength(b, fs, fe);
+			if (this.contentLength == LENGTH_NONE) {
+				this.contentLength = l;
+			} else if (this.contentLength != l) {
+				// conflicting lengths, don't guess
+				this.contentLength = LENGTH_INVALID;
+			}
+			break;
+		case F_ENCODING:
+			// chunked is always the last coding if there is any
+			this.chunked = fe - fs >= CHUNKED.length
+					&& equalsIgnoreCase(b, fe - CHUNKED.length, fe, CHUNKED);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Parse a Content-Length.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param s
+	 *            start of value
+	 * @param e
+	 *            end of value
+	 * @return length or {@link #LENGTH_INVALID}
+	 */
+	static long parseLength(final byte[] b, final int s, final int e) {
+		if (s >= e) {
+			return LENGTH_INVALID;
+		}
+		long l = 0;
+		for (int i = s; i < e; i++) {
+			final byte c = b[i];
+			if (c < '0' || c > '9' || l > Long.MAX_VALUE / 10 - 1) {
+				return LENGTH_INVALID;
+			}
+			l = l * 10 + c - '0';
+		}
+		return l;
+	}
+
+	/**
+	 * Parse method.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @return method
+	 */
+	private int parseMethod(final byte[] b) {
+		final int o = this.start;
+		switch (this.methodEnd - o) {
+		case 3:
+			if (b[o] == 'G' && b[o + 1] == 'E' && b[o + 2] == 'T') {
+				return METHOD_GET;
+			}
+			break;
+		case 4:
+			if (b[o] == 'P' && b[o + 1] == 'O' && b[o + 2] == 'S'
+					&& b[o + 3] == 'T') {
+				return METHOD_POST;
+			}
+			if (b[o] == 'H' && b[o + 1] == 'E' && b[o + 2] == 'A'
+					&& b[o + 3] == 'D') {
+				return METHOD_HEAD;
+			}
+			break;
+		case 7:
+			if (b[o] == 'C' && b[o + 1] == 'O' && b[o + 2] == 'N'
+					&& b[o + 3] == 'N' && b[o + 4] == 'E' && b[o + 5] == 'C'
+					&& b[o + 6] == 'T') {
+				return METHOD_CONNECT;
+			}
+			break;
+		default:
+			break;
+		}
+		return METHOD_OTHER;
+	}
+
+	/**
+	 * Parse request target for authority and path.
+	 * 
+	 * @param b
+	 *            buffer
+	 */
+	private void parseTarget(final byte[] b) {
+		final int ts = this.targetStart;
+		final int te = this.targetEnd;
+		if (this.method == METHOD_CONNECT) {
+			this.authorityStart = ts;
+			this.authorityEnd = te;
+			this.pathStart = te;
+			this.absolute = true;
+		} else if (te - ts > HTTP.length
+				&& equalsIgnoreCase(b, ts, ts + HTTP.length, HTTP)) {
+			final int as = ts + HTTP.length;
+			int i = as;
+			while (i < te && b[i] != '/' && b[i] != '?') {
+				++i;
+			}
+			this.authorityStart = as;
+			this.authorityEnd = i;
+			this.pathStart = i;
+			this.absolute = true;
+		} else {
+			this.pathStart = ts;
+		}
+	}
+
+	/**
+	 * Split authority into host and port.
+	 * 
+	 * @param b
+	 *            buffer
+	 */
+	private void parseAuthority(final byte[] b) {
+		final int as = this.authorityStart;
+		final int ae = this.authorityEnd;
+		if (as < 0 || as >= ae) {
+			this.authorityStart = -1;
+			return;
+		}
+		int colon = -1;
+		if (b[as] == '[') {
+			// IPv6 literal
+			int i = as + 1;
+			while (i < ae && b[i] != ']') {
+				++i;
+			}
+			this.hostStart = as + 1;
+			this.hostEnd = i;
+			if (i + 1 < ae && b[i + 1] == ':') {
+				colon = i + 1;
+			}
+		} else {
+			this.hostStart = as;
+			this.hostEnd = ae;
+			for (int i = ae - 1; i >= as; i--) {
+				if (b[i] == ':') {
+					colon = i;
+					this.hostEnd = i;
+					break;
+				}
+			}
+		}
+		if (colon >= 0) {
+			int p = 0;
+			for (int i = colon + 1; i < ae && p >= 0; i++) {
+				final byte c = b[i];
+				if (c < '0' || c > '9' || p > 0xffff) {
+					p = -1;
+				} else {
+					p = p * 10 + c - '0';
+				}
+			}
+			if (p <= 0 || p > 0xffff) {
+				// invalid port, no host to connect to
+				this.authorityStart = -1;
+				this.hostStart = -1;
+				return;
+			}
+			this.port = p;
+		}
+	}
+
+	/**
+	 * Compare bytes to a lower case ASCII pattern, ignoring case.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param s
+	 *            start
+	 * @param e
+	 *            end
+	 * @param pattern
+	 *            lower case pattern
+	 * @return true, if equal
+	 */
+	static boolean equalsIgnoreCase(final byte[] b, final int s,
+			final int e, final byte[] pattern) {
+		if (e - s != pattern.length) {
+			return false;
+		}
+		for (int i = 0; i < pattern.length; i++) {
+			int c = b[s + i];
+			if (c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
+			}
+			if (c != pattern[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return result of last parse()
+	 */
+	int getResult() {
+		return this.result;
+	}
+
+	/**
+	 * @return method, one of METHOD_*
+	 */
+	int getMethod() {
+		return this.method;
+	}
+
+	/**
+	 * @return start of header
+	 */
+	int getStart() {
+		return this.start;
+	}
+
+	/**
+	 * @return end of header, after the empty line
+	 */
+	int getHeaderEnd() {
+		return this.headerEnd;
+	}
+
+	/**
+	 * @return start of request target
+	 */
+	int getTargetStart() {
+		return this.targetStart;
+	}
+
+	/**
+	 * @return end of request target
+	 */
+	int getTargetEnd() {
+		return this.targetEnd;
+	}
+
+	/**
+	 * @return start of path, equals {@link #getTargetStart()} if the target is
+	 *         no absolute URL
+	 */
+	int getPathStart() {
+		return this.pathStart;
+	}
+
+	/**
+	 * @return request target is an absolute URL or an authority
+	 */
+	boolean isAbsolute() {
+		return this.absolute;
+	}
+
+	/**
+	 * @return true, if request names a host to connect to
+	 */
+	boolean hasHost() {
+		return this.hostStart >= 0 && this.hostStart < this.hostEnd;
+	}
+
+	/**
+	 * @return start of host and port, -1 if there is none
+	 */
+	int getAuthorityStart() {
+		return this.authorityStart;
+	}
+
+	/**
+	 * @return end of host and port
+	 */
+	int getAuthorityEnd() {
+		return this.authorityEnd;
+	}
+
+	/**
+	 * @return start of host
+	 */
+	int getHostStart() {
+		return this.hostStart;
+	}
+
+	/**
+	 * @return end of host
+	 */
+	int getHostEnd() {
+		return this.hostEnd;
+	}
+
+	/**
+	 * @return start of Referer header's value, -1 if there is none
+	 */
+	int getRefererStart() {
+		return this.refererStart;
+	}
+
+	/**
+	 * @return end of Referer header's value
+	 */
+	int getRefererEnd() {
+		return this.refererEnd;
+	}
+
+	/**
+	 * @return Content-Length, {@link #LENGTH_NONE} or {@link #LENGTH_INVALID}
+	 */
+	long getContentLength() {
+		return this.contentLength;
+	}
+
+	/**
+	 * @return true, if the body is sent with chunked transfer coding
+	 */
+	boolean isChunked() {
+		return this.chunked;
+	}
+
+	/**
+	 * @param defaultPort
+	 *            port to use if none was given
+	 * @return port
+	 */
+	int getPort(final int defaultPort) {
+		if (this.port < 0) {
+			return defaultPort;
+		}
+		return this.port;
+	}
+
+	/**
+	 * Decode a part of the buffer.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param s
+	 *            start
+	 * @param e
+	 *            end
+	 * @return String
+	 */
+	static String toString(final byte[] b, final int s, final int e) {
+		final char[] c = new char[e - s];
+		for (int i = s; i < e; i++) {
+			c[i - s] = (char) (b[i] & 0xff);
+		}
+		return new String(c);
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * HidingIndex finds the element hiding rules matching a start tag. Each rule
+ * is indexed by the most selective part of it's selector: it's id, it's first
+ * class, it's first attribute or it's tag name, in that order. A tag is only
+ * checked against the rules indexed by any of it's own id, classes,
+ * attributes and name, and against the few rules matching any element.
+ * 
+ * @author Felix Bechstein
+ */
+final class HidingIndex {
+	/** Rules by id. */
+	private final HashMap<String, List<HidingRule>> ids = // .
+	new HashMap<String, List<HidingRule>>();
+	/** Rules by class. */
+	private final HashMap<String, List<HidingRule>> classes = // .
+	new HashMap<String, List<HidingRule>>();
+	/** Rules by attribute's name. */
+	private final HashMap<String, List<HidingRule>> attributes = // .
+	new HashMap<String, List<HidingRule>>();
+	/** Rules by tag name. */
+	private final HashMap<String, List<HidingRule>> tags = // .
+	new HashMap<String, List<HidingRule>>();
+	/** Rules matching any element. */
+	private final ArrayList<HidingRule> any = new ArrayList<HidingRule>();
+	/** Exceptions by selector. */
+	private final HashMap<String, List<HidingRule>> exceptions = // .
+	new HashMap<String, List<HidingRule>>();
+	/** All rules as given. */
+	private final ArrayList<HidingRule> rules;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param r
+	 *            rules, including exceptions
+	 */
+	HidingIndex(final Collection<HidingRule> r) {
+		this.rules = new ArrayList<HidingRule>(r);
+		for (HidingRule h : r) {
+			if (h.isException()) {
+				add(this.exceptions, h.getSelector(), h);
+			} else if (h.getId() != null) {
+				add(this.ids, h.getId(), h);
+			} else if (h.getFirstClass() != null) {
+				add(this.classes, h.getFirstClass(), h);
+			} else if (h.getFirstAttribute() != null) {
+				add(this.attributes, h.getFirstAttribute(), h);
+			} else if (h.getTag() != null) {
+				add(this.tags, h.getTag(), h);
+			} else {
+				this.any.add(h);
+			}
+		}
+	}
+
+	/**
+	 * Add a rule to a map of lists.
+	 * 
+	 * @param m
+	 *            map
+	 * @param key
+	 *            key
+	 * @param r
+	 *            rule
+	 */
+	private static void add(final HashMap<String, List<HidingRule>> m,
+			final String key, final HidingRule r) {
+		List<HidingRule> l = m.get(key);
+		if (l == null) {
+			l = new ArrayList<HidingRule>(1);
+			m.put(key, l);
+		}
+		l.add(r);
+	}
+
+	/**
+	 * Check if an element is hidden.
+	 * 
+	 * @param e
+	 *            start tag
+	 * @param page
+	 *            page's host, lower case, null if unknown
+	 * @return true, if any rule hides it
+	 */
+	boolean hides(final HidingRule.Element e, final String page) {
+		final String id = e.getAttribute("id");
+		if (id != null && this.check(this.ids.get(id), e, page)) {
+			return true;
+		}
+		final String c = e.getAttribute("class");
+		if (c != null && !this.classes.isEmpty()) {
+			final int l = c.length();
+			int i = 0;
+			while (i < l) {
+				while (i < l && c.charAt(i) <= ' ') {
+					++i;
+				}
+				final int s = i;
+				while (i < l && c.charAt(i) > ' ') {
+					++i;
+				}
+				if (i > s
+						&& this.check(this.classes.get(c.substring(s, i)), e,
+								page)) {
+					return true;
+				}
+			}
+		}
+		if (!this.attributes.isEmpty()) {
+			final int n = e.getAttributeCount();
+			for (int i = 0; i < n; i++) {
+				if (this.check(this.attributes.get(e.getAttributeName(i)), e,
+						page)) {
+					return true;
+				}
+			}
+		}
+		return this.check(this.tags.get(e.getTag()), e, page)
+				|| this.check(this.any, e, page);
+	}
+
+	/**
+	 * Check an element against a list of rules.
+	 * 
+	 * @param l
+	 *            rules, may be null
+	 * @param e
+	 *            start tag
+	 * @param page
+	 *            page's host, null if unknown
+	 * @return true, if any rule without exception hides it
+	 */
+	private boolean check(final List<HidingRule> l,
+			final HidingRule.Element e, final String page) {
+		if (l == null) {
+			return false;
+		}
+		final int n = l.size();
+		for (int i = 0; i < n; i++) {
+			final HidingRule r = l.get(i);
+			if (r.appliesTo(page) && r.matches(e)
+					&& !this.isExcepted(r, page)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param r
+	 *            matching rule
+	 * @param page
+	 *            page's host, null if unknown
+	 * @return true, if an exception for r's selector applies to the page
+	 */
+	private boolean isExcepted(final HidingRule r, final String page) {
+		final List<HidingRule> l = this.exceptions.get(r.getSelector());
+		if (l == null) {
+			return false;
+		}
+		for (HidingRule x : l) {
+			if (x.appliesTo(page)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return all rules as given, including exceptions
+	 */
+	List<HidingRule> getRules() {
+		return this.rules;
+	}
+
+	/**
+	 * @return number of rules, including exceptions
+	 */
+	int size() {
+		return this.rules.size();
+	}
+}
@@ -0,0 +1,508 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.util.ArrayList;
+
+/**
+ * HidingRule is a single element hiding rule in Adblock Plus syntax:
+ * "domains##selector" hides matching elements, "domains#@#selector" is an
+ * exception for a hiding rule with the same selector. Domains are optional,
+ * "~" excludes a domain. Only simple selectors are supported: a tag name or
+ * "*", followed by any number of "#id", ".class" and "[attribute]" parts with
+ * the operators "=", "^=", "$=" and "*=". Anything with combinators, pseudo
+ * classes or selector lists can't be decided from a single tag and is not
+ * supported.
+ * 
+ * @author Felix Bechstein
+ */
+final class HidingRule {
+	/** Attribute selector: attribute is present. */
+	private static final int OP_PRESENT = 0;
+	/** Attribute selector: value equals. */
+	private static final int OP_EQUALS = 1;
+	/** Attribute selector: value starts with. */
+	private static final int OP_PREFIX = 2;
+	/** Attribute selector: value ends with. */
+	private static final int OP_SUFFIX = 3;
+	/** Attribute selector: value contains. */
+	private static final int OP_CONTAINS = 4;
+
+	/**
+	 * Element is a start tag checked against the rules.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	interface Element {
+		/**
+		 * @return tag name, lower case
+		 */
+		String getTag();
+
+		/**
+		 * @param name
+		 *            attribute's name, lower case
+		 * @return attribute's value, "" if it has none, null if the
+		 *         attribute is missing
+		 */
+		String getAttribute(String name);
+
+		/**
+		 * @return number of attributes
+		 */
+		int getAttributeCount();
+
+		/**
+		 * @param i
+		 *            index
+		 * @return name of i-th attribute, lower case
+		 */
+		String getAttributeName(int i);
+	}
+
+	/** Rule as given. */
+	private final String source;
+	/** Selector as given. */
+	private final String selector;
+	/** Rule is an exception. */
+	private final boolean exception;
+	/** Tag name, lower case, null for any. */
+	private final String tag;
+	/** Id, null for any. */
+	private final String id;
+	/** Classes, the element needs all of them. */
+	private final String[] classes;
+	/** Names of selected attributes, lower case. */
+	private final String[] names;
+	/** Operators of selected attributes. */
+	private final int[] ops;
+	/** Values of selected attributes. */
+	private final String[] values;
+	/** Domains the rule is limited to, null if it applies everywhere. */
+	private final String[] domains;
+	/** Domains the rule does not apply to, null if none. */
+	private final String[] notDomains;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param s
+	 *            rule as given
+	 * @param sel
+	 *            selector as given
+	 * @param e
+	 *            rule is an exception
+	 * @param t
+	 *            tag name
+	 * @param i
+	 *            id
+	 * @param c
+	 *            classes
+	 * @param n
+	 *            attributes' names
+	 * @param o
+	 *            attributes' operators
+	 * @param v
+	 *            attributes' values
+	 * @param d
+	 *            included domains
+	 * @param nd
+	 *            excluded domains
+	 */
+	private HidingRule(final String s, final String sel, final boolean e,
+			final String t, final String i, final String[] c,
+			final String[] n, final int[] o, final String[] v,
+			final String[] d, final String[] nd) {
+		this.source = s;
+		this.selector = sel;
+		this.exception = e;
+		this.tag = t;
+		this.id = i;
+		this.classes = c;
+		this.names = n;
+		this.ops = o;
+		this.values = v;
+		this.domains = d;
+		this.notDomains = nd;
+	}
+
+	/**
+	 * @param s
+	 *            rule
+	 * @return true, if s is an element hiding rule
+	 */
+	static boolean isHiding(final String s) {
+		return s.indexOf("##") >= 0 || s.indexOf("#@#") >= 0;
+	}
+
+	/**
+	 * Parse a rule.
+	 * 
+	 * @param s
+	 *            rule
+	 * @return {@link HidingRule}, null if s is not supported
+	 */
+	static HidingRule parse(final String s) {
+		final String p = s.trim();
+		boolean e = false;
+		int i = p.indexOf("##");
+		int l = 2;
+		final int x = p.indexOf("#@#");
+		if (x >= 0 && (i < 0 || x < i)) {
+			e = true;
+			i = x;
+			l = 3;
+		}
+		if (i < 0 || p.startsWith("!")) {
+			return null;
+		}
+		final String sel = p.substring(i + l).trim();
+		final int sl = sel.length();
+		if (sl == 0) {
+			return null;
+		}
+		// domains
+		String[] d = null;
+		String[] nd = null;
+		if (i > 0) {
+			final ArrayList<String> inc = new ArrayList<String>();
+			final ArrayList<String> exc = new ArrayList<String>();
+			for (String dom : p.substring(0, i).toLowerCase().split(",")) {
+				final String t = dom.trim();
+				if (t.startsWith("~")) {
+					exc.add(t.substring(1));
+				} else if (t.length() > 0) {
+					inc.add(t);
+				}
+			}
+			if (inc.size() > 0) {
+				d = inc.toArray(new String[inc.size()]);
+			}
+			if (exc.size() > 0) {
+				nd = exc.toArray(new String[exc.size()]);
+			}
+		}
+		// selector
+		int j = 0;
+		while (j < sl && isNameChar(sel.charAt(j))) {
+			++j;
+		}
+		String t = null;
+		if (j > 0) {
+			t = sel.substring(0, j).toLowerCase();
+		} else if (j < sl && sel.charAt(j) == '*') {
+			++j;
+		}
+		String id = null;
+		final ArrayList<String> c = new ArrayList<String>();
+		final ArrayList<String> n = new ArrayList<String>();
+		final ArrayList<Integer> o = new ArrayList<Integer>();
+		final ArrayList<String> v = new ArrayList<String>();
+		while (j < sl) {
+			final char ch = sel.charAt(j);
+			if (ch == '#' || ch == '.') {
+				final int st = ++j;
+				while (j < sl && isNameChar(sel.charAt(j))) {
+					++j;
+				}
+				if (j == st) {
+					return null;
+				}
+				if (ch == '.') {
+					c.add(sel.substring(st, j));
+				} else if (id == null) {
+					id = sel.substring(st, j);
+				} else {
+					return null;
+				}
+			} else if (ch == '[') {
+				j = parseAttribute(sel, j + 1, n, o, v);
+				if (j < 0) {
+					return null;
+				}
+			} else {
+				// combinator, pseudo class or selector list
+				return null;
+			}
+		}
+		final int[] ops = new int[o.size()];
+		for (int k = 0; k < ops.length; k++) {
+			ops[k] = o.get(k);
+		}
+		return new HidingRule(p, sel, e, t, id, c.toArray(new String[c
+				.size()]), n.toArray(new String[n.size()]), ops, v
+				.toArray(new String[v.size()]), d, nd);
+	}
+
+	/**
+	 * Parse an attribute selector.
+	 * 
+	 * @param sel
+	 *            selector
+	 * @param start
+	 *            start of attribute's name, behind "["
+	 * @param n
+	 *            names
+	 * @param o
+	 *            operators
+	 * @param v
+	 *            values
+	 * @return end of attribute selector, behind "]", -1 if invalid
+	 */
+	private static int parseAttribute(final String sel, final int start,
+			final ArrayList<String> n, final ArrayList<Integer> o,
+			final ArrayList<String> v) {
+		final int sl = sel.length();
+		int j = start;
+		while (j < sl && isNameChar(sel.charAt(j))) {
+			++j;
+		}
+		if (j == start || j >= sl) {
+			return -1;
+		}
+		final String name = sel.substring(start, j).toLowerCase();
+		char ch = sel.charAt(j);
+		if (ch == ']') {
+			n.add(name);
+			o.add(OP_PRESENT);
+			v.add(null);
+			return j + 1;
+		}
+		int op;
+		if (ch == '=') {
+			op = OP_EQUALS;
+		} else if (j + 1 < sl && sel.charAt(j + 1) == '=') {
+			if (ch == '^') {
+				op = OP_PREFIX;
+			} else if (ch == '$') {
+				op = OP_SUFFIX;
+			} else if (ch == '*') {
+				op = OP_CONTAINS;
+			} else {
+				return -1; // "~=", "|=", ...
+			}
+			++j;
+		} else {
+			return -1;
+		}
+		++j;
+		if (j >= sl) {
+			return -1;
+		}
+		ch = sel.charAt(j);
+		String value;
+		if (ch == '"' || ch == '\'') {
+			final int e = sel.indexOf(ch, j + 1);
+			if (e < 0) {
+				return -1;
+			}
+			value = sel.substring(j + 1, e);
+			j = e + 1;
+		} else {
+			final int st = j;
+			while (j < sl && isNameChar(sel.charAt(j))) {
+				++j;
+			}
+			value = sel.substring(st, j);
+		}
+		if (j >= sl || sel.charAt(j) != ']') {
+			return -1;
+		}
+		n.add(name);
+		o.add(op);
+		v.add(value);
+		return j + 1;
+	}
+
+	/**
+	 * @param c
+	 *            char
+	 * @return true, if c may be part of a tag, id, class or attribute name
+	 */
+	private static boolean isNameChar(final char c) {
+		return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0'
+				&& c <= '9' || c == '-' || c == '_' || c >= 0x80;
+	}
+
+	/**
+	 * Check if the rule applies to a page.
+	 * 
+	 * @param page
+	 *            page's host, lower case, null if unknown
+	 * @return true, if the rule applies
+	 */
+	boolean appliesTo(final String page) {
+		if (this.domains != null
+				&& (page == null || !AbpRule.isDomain(page, this.domains))) {
+			return false;
+		}
+		return this.notDomains == null || page == null
+				|| !AbpRule.isDomain(page, this.notDomains);
+	}
+
+	/**
+	 * Check if the selector matches an element.
+	 * 
+	 * @param e
+	 *            {@link Element}
+	 * @return true, if it matches
+	 */
+	boolean matches(final Element e) {
+		if (this.tag != null && !this.tag.equals(e.getTag())) {
+			return false;
+		}
+		if (this.id != null && !this.id.equals(e.getAttribute("id"))) {
+			return false;
+		}
+		if (this.classes.length > 0
+				&& !hasClasses(e.getAttribute("class"), this.classes)) {
+			return false;
+		}
+		final String[] n = this.names;
+		for (int i = 0; i < n.length; i++) {
+			final String a = e.getAttribute(n[i]);
+			if (a == null) {
+				return false;
+			}
+			final String v = this.values[i];
+			switch (this.ops[i]) {
+			case OP_EQUALS:
+				if (!a.equals(v)) {
+					return false;
+				}
+				break;
+			case OP_PREFIX:
+				if (!a.startsWith(v)) {
+					return false;
+				}
+				break;
+			case OP_SUFFIX:
+				if (!a.endsWith(v)) {
+					return false;
+				}
+				break;
+			case OP_CONTAINS:
+				if (a.indexOf(v) < 0) {
+					return false;
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param value
+	 *            value of class attribute, may be null
+	 * @param classes
+	 *            classes
+	 * @return true, if value holds all classes
+	 */
+	private static boolean hasClasses(final String value,
+			final String[] classes) {
+		if (value == null) {
+			return false;
+		}
+		for (String c : classes) {
+			if (!hasClass(value, c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param value
+	 *            value of class attribute
+	 * @param c
+	 *            class
+	 * @return true, if value holds c as a whole word
+	 */
+	static boolean hasClass(final String value, final String c) {
+		final int vl = value.length();
+		final int cl = c.length();
+		int i = value.indexOf(c);
+		while (i >= 0) {
+			if ((i == 0 || value.charAt(i - 1) <= ' ')
+					&& (i + cl == vl || value.charAt(i + cl) <= ' ')) {
+				return true;
+			}
+			i = value.indexOf(c, i + 1);
+		}
+		return false;
+	}
+
+	/**
+	 * @return true, if rule is an exception
+	 */
+	boolean isException() {
+		return this.exception;
+	}
+
+	/**
+	 * @return selector as given
+	 */
+	String getSelector() {
+		return this.selector;
+	}
+
+	/**
+	 * @return tag name, null if the rule matches any
+	 */
+	String getTag() {
+		return this.tag;
+	}
+
+	/**
+	 * @return id, null if the rule matches any
+	 */
+	String getId() {
+		return this.id;
+	}
+
+	/**
+	 * @return first class, null if the rule has none
+	 */
+	String getFirstClass() {
+		if (this.classes.length == 0) {
+			return null;
+		}
+		return this.classes[0];
+	}
+
+	/**
+	 * @return name of first selected attribute, null if the rule has none
+	 */
+	String getFirstAttribute() {
+		if (this.names.length == 0) {
+			return null;
+		}
+		return this.names[0];
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return this.source;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram records values into a fixed number of buckets, one per power of
+ * two. Recording is lock-free, percentiles are approximated by the bucket's
+ * upper bound.
+ * 
+ * @author Felix Bechstein
+ */
+final class Histogram {
+	/** Number of buckets. */
+	private static final int BUCKETS = Long.SIZE;
+	/** Percent. */
+	private static final int PERCENT = 100;
+
+	/** Name of recorded values. */
+	private final String name;
+	/** Unit of recorded values. */
+	private final String unit;
+	/** Bucket i counts values of bit length i. */
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	/** Number of recorded values. */
+	private final AtomicLong count = new AtomicLong();
+	/** Sum of recorded values. */
+	private final AtomicLong sum = new AtomicLong();
+	/** Max. recorded value. */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param n
+	 *            name of recorded values
+	 * @param u
+	 *            unit of recorded values
+	 */
+	Histogram(final String n, final String u) {
+		this.name = n;
+		this.unit = u;
+	}
+
+	/**
+	 * Record a value.
+	 * 
+	 * @param value
+	 *            value, negative values are recorded as 0
+	 */
+	void record(final long value) {
+		final long v = Math.max(0, value);
+		this.buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(v));
+		this.count.incrementAndGet();
+		this.sum.addAndGet(v);
+		long m = this.max.get();
+		while (v > m && !this.max.compareAndSet(m, v)) {
+			m = this.max.get();
+		}
+	}
+
+	/**
+	 * Add all recorded values to another Histogram.
+	 * 
+	 * @param h
+	 *            {@link Histogram}
+	 */
+	void addTo(final Histogram h) {
+		for (int i = 0; i < BUCKETS; i++) {
+			h.buckets.addAndGet(i, this.buckets.get(i));
+		}
+		h.count.addAndGet(this.count.get());
+		h.sum.addAndGet(this.sum.get());
+		final long v = this.max.get();
+		long m = h.max.get();
+		while (v > m && !h.max.compareAndSet(m, v)) {
+			m = h.max.get();
+		}
+	}
+
+	/**
+	 * @return number of recorded values
+	 */
+	long getCount() {
+		return this.count.get();
+	}
+
+	/**
+	 * Get a percentile.
+	 * 
+	 * @param p
+	 *            percentile, 0..100
+	 * @return upper bound of the bucket holding the percentile
+	 */
+	long getPercentile(final int p) {
+		final AtomicLongArray b = this.buckets;
+		long total = 0;
+		final long[] c = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			c[i] = b.get(i);
+			total += c[i];
+		}
+		final long rank = (total * p + PERCENT - 1) / PERCENT;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += c[i];
+			if (seen >= rank && seen > 0) {
+				return Math.min(this.max.get(), (1L << i) - 1);
+			}
+		}
+		return this.max.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		final long n = this.count.get();
+		if (n == 0) {
+			return this.name + ": -";
+		}
+		final String u = this.unit;
+		return this.name + ": " + n + ", avg " + (this.sum.get() / n) + u
+				+ ", p50 " + this.getPercentile(50) + u + ", p90 "
+				+ this.getPercentile(90) + u + ", p99 "
+				+ this.getPercentile(99) + u + ", max " + this.max.get() + u;
+	}
+}
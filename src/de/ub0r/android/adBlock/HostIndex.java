@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * HostIndex holds all filters which are plain host names. A host is blocked if
+ * it or any of it's parent domains is in the index. Host names are kept in an
+ * open addressing hash table, which may be written to and queried in place
+ * from a (memory mapped) {@link ByteBuffer}. A {@link BloomFilter} in front of
+ * the table answers most lookups of hosts not in the index without touching
+ * the table at all, which matters for lists with hundreds of thousands of
+ * hosts.
+ * 
+ * @author Felix Bechstein
+ */
+final class HostIndex {
+	/** FNV-1a: offset basis. */
+	private static final int FNV_BASIS = 0x811c9dc5;
+	/** FNV-1a: prime. */
+	private static final int FNV_PRIME = 0x01000193;
+	/** Max. length of a host name. */
+	static final int MAX_LENGTH = 255;
+	/** Generic top level domains, country codes are not listed. */
+	private static final String[] GENERIC_TLDS = { "com", "net", "org",
+			"info", "biz", "edu", "gov", "mil", "int", "name", "mobi", "pro",
+			"aero", "asia", "cat", "coop", "jobs", "museum", "tel", "travel",
+			"xxx", "arpa" };
+
+	/** Hash table, offset + 1 of host name in names, 0 for empty slots. */
+	private final IntBuffer table;
+	/** Host names, lower case, each prefixed by it's length. */
+	private final ByteBuffer names;
+	/** Number of host names. */
+	private final int count;
+	/** Hashes of all host names. */
+	private final BloomFilter bloom;
+
+	/**
+	 * Check if a filter is a plain host name like "ads.example.com".
+	 * 
+	 * @param filter
+	 *            filter
+	 * @return true, if filter is a host name
+	 */
+	static boolean isHost(final String filter) {
+		final int l = filter.length();
+		if (l == 0 || l > MAX_LENGTH || filter.charAt(0) == '.'
+				|| filter.charAt(l - 1) == '.') {
+			return false;
+		}
+		boolean dot = false;
+		char last = 0;
+		for (int i = 0; i < l; i++) {
+			final char c = filter.charAt(i);
+			if (c == '.') {
+				if (last == '.') {
+					return false;
+				}
+				dot = true;
+			} else if (!(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z')
+					&& !(c >= '0' && c <= '9') && c != '-') {
+				return false;
+			}
+			last = c;
+		}
+		return dot;
+	}
+
+	/**
+	 * Check if a filter is a complete domain like "ads.example.com": a host
+	 * name ending in a known top level domain. A filter like "ad.doubleclick"
+	 * is a host name, but only part of one, it is kept as a substring.
+	 * 
+	 * @param filter
+	 *            filter
+	 * @return true, if filter is a complete domain
+	 */
+	static boolean isDomain(final String filter) {
+		if (!isHost(filter)) {
+			return false;
+		}
+		final String tld = filter.substring(filter.lastIndexOf('.') + 1)
+				.toLowerCase();
+		if (tld.length() == 2) {
+			// country code
+			return tld.charAt(0) >= 'a' && tld.charAt(1) >= 'a';
+		}
+		for (String s : GENERIC_TLDS) {
+			if (s.equals(tld)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Constructor. Build the index.
+	 * 
+	 * @param filter
+	 *            filters, anything but host names is ignored
+	 */
+	HostIndex(final Collection<String> filter) {
+		this(toNames(filter));
+	}
+
+	/**
+	 * Constructor. Build the index.
+	 * 
+	 * @param b
+	 *            host names, lower case, each prefixed by it's length,
+	 *            duplicates are dropped in place
+	 */
+	HostIndex(final byte[] b) {
+		int n = 0;
+		for (int o = 0; o < b.length; o += (b[o] & 0xff) + 1) {
+			++n;
+		}
+		int slots = 2;
+		while (slots < n * 2) {
+			slots <<= 1;
+		}
+		final int[] t = new int[slots];
+		final BloomFilter bf = new BloomFilter(n);
+		n = 0;
+		int to = 0;
+		for (int o = 0; o < b.length;) {
+			final int sl = b[o] & 0xff;
+			final int h = hash(b, o + 1, sl);
+			int i = h & (slots - 1);
+			while (t[i] != 0 && !equals(b, t[i] - 1, o)) {
+				i = (i + 1) & (slots - 1);
+			}
+			if (t[i] == 0) {
+				System.arraycopy(b, o, b, to, sl + 1);
+				t[i] = to + 1;
+				to += sl + 1;
+				bf.add(h);
+				++n;
+			}
+			o += sl + 1;
+		}
+		this.table = IntBuffer.wrap(t);
+		this.names = ByteBuffer.wrap(b, 0, to).slice();
+		this.count = n;
+		this.bloom = bf;
+	}
+
+	/**
+	 * Encode host names for {@link #HostIndex(byte[])}.
+	 * 
+	 * @param filter
+	 *            filters, anything but host names is ignored
+	 * @return host names, lower case, each prefixed by it's length
+	 */
+	private static byte[] toNames(final Collection<String> filter) {
+		final HashSet<String> hosts = new HashSet<String>();
+		int l = 0;
+		for (String s : filter) {
+			if (isHost(s) && hosts.add(s.toLowerCase())) {
+				l += s.length() + 1;
+			}
+		}
+		final byte[] b = new byte[l];
+		int o = 0;
+		for (String s : hosts) {
+			final int sl = s.length();
+			b[o++] = (byte) sl;
+			for (int j = 0; j < sl; j++) {
+				b[o++] = (byte) s.charAt(j);
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * Compare two length prefixed host names.
+	 * 
+	 * @param b
+	 *            host names
+	 * @param o1
+	 *            offset of first host name
+	 * @param o2
+	 *            offset of second host name
+	 * @return true, if equal
+	 */
+	private static boolean equals(final byte[] b, final int o1, final int o2) {
+		final int l = b[o1] & 0xff;
+		if ((b[o2] & 0xff) != l) {
+			return false;
+		}
+		for (int i = 1; i <= l; i++) {
+			if (b[o1 + i] != b[o2 + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Constructor. Use an index written by {@link #write(ByteBuffer)}, it's
+	 * tables are not copied.
+	 * 
+	 * @param in
+	 *            buffer, it's position is moved behind the index
+	 */
+	private HostIndex(final ByteBuffer in) {
+		this.count = in.getInt();
+		final int slots = in.getInt();
+		final int l = in.getInt();
+		this.table = FilterMatcher.slice(in, slots * FilterMatcher.INT)
+				.asIntBuffer();
+		this.names = FilterMatcher.slice(in, l);
+		FilterMatcher.align(in);
+		this.bloom = BloomFilter.read(in);
+	}
+
+	/**
+	 * Read an index written by {@link #write(ByteBuffer)}.
+	 * 
+	 * @param in
+	 *            buffer, it's position is moved behind the index
+	 * @return {@link HostIndex} querying the buffer in place
+	 */
+	static HostIndex read(final ByteBuffer in) {
+		return new HostIndex(in);
+	}
+
+	/**
+	 * @return number of bytes needed by {@link #write(ByteBuffer)}
+	 */
+	int getByteSize() {
+		final int l = 3 * FilterMatcher.INT + this.table.capacity()
+				* FilterMatcher.INT + this.names.capacity();
+		return ((l + FilterMatcher.INT - 1) & -FilterMatcher.INT)
+				+ this.bloom.getByteSize();
+	}
+
+	/**
+	 * Write the index.
+	 * 
+	 * @param out
+	 *            buffer, needs {@link #getByteSize()} bytes left
+	 */
+	void write(final ByteBuffer out) {
+		final IntBuffer t = this.table;
+		final ByteBuffer b = this.names;
+		final int slots = t.capacity();
+		final int l = b.capacity();
+		out.putInt(this.count);
+		out.putInt(slots);
+		out.putInt(l);
+		for (int i = 0; i < slots; i++) {
+			out.putInt(t.get(i));
+		}
+		for (int i = 0; i < l; i++) {
+			out.put(b.get(i));
+		}
+		FilterMatcher.align(out);
+		this.bloom.write(out);
+	}
+
+	/**
+	 * @param c
+	 *            char
+	 * @return c in lower case, if it is ASCII
+	 */
+	private static char lower(final char c) {
+		if (c >= 'A' && c <= 'Z') {
+			return (char) (c + ('a' - 'A'));
+		}
+		return c;
+	}
+
+	/**
+	 * Hash a host name ignoring case.
+	 * 
+	 * @param s
+	 *            host name
+	 * @param start
+	 *            start of host name in s
+	 * @return hash
+	 */
+	private static int hash(final String s, final int start) {
+		final int l = s.length();
+		int h = FNV_BASIS;
+		for (int i = start; i < l; i++) {
+			h = (h ^ lower(s.charAt(i))) * FNV_PRIME;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Hash a lower case host name.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param start
+	 *            start of host name
+	 * @param length
+	 *            length of host name
+	 * @return hash, equal to {@link #hash(String, int)}
+	 */
+	private static int hash(final byte[] b, final int start, final int length) {
+		int h = FNV_BASIS;
+		for (int i = start; i < start + length; i++) {
+			h = (h ^ (b[i] & 0xff)) * FNV_PRIME;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Check if a host name is in the index.
+	 * 
+	 * @param s
+	 *            host name
+	 * @param start
+	 *            start of host name in s
+	 * @return true, if host is in index
+	 */
+	private boolean find(final String s, final int start) {
+		final int h = hash(s, start);
+		if (!this.bloom.mightContain(h)) {
+			return false;
+		}
+		final IntBuffer t = this.table;
+		final ByteBuffer b = this.names;
+		final int mask = t.capacity() - 1;
+		final int l = s.length() - start;
+		int i = h & mask;
+		int o;
+		while ((o = t.get(i)) != 0) {
+			--o;
+			if ((b.get(o) & 0xff) == l) {
+				int j = 0;
+				while (j < l
+						&& (b.get(o + 1 + j) & 0xff) == lower(s
+								.charAt(start + j))) {
+					++j;
+				}
+				if (j == l) {
+					return true;
+				}
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	/**
+	 * Normalize a host name: "Ads.Example.COM." is the same host as
+	 * "ads.example.com".
+	 * 
+	 * @param host
+	 *            host name
+	 * @return host name in lower case without a trailing dot
+	 */
+	static String normalize(final String host) {
+		String h = host;
+		final int l = h.length();
+		if (l > 1 && h.charAt(l - 1) == '.') {
+			h = h.substring(0, l - 1);
+		}
+		for (int i = h.length() - 1; i >= 0; i--) {
+			final char c = h.charAt(i);
+			if (c >= 'A' && c <= 'Z') {
+				return h.toLowerCase();
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * Check if host or any of it's parent domains is blocked.
+	 * 
+	 * @param host
+	 *            host name, a trailing dot is ignored
+	 * @return true, if host is blocked
+	 */
+	boolean contains(final String host) {
+		if (this.count == 0 || host == null) {
+			return false;
+		}
+		final String h = normalize(host);
+		int start = 0;
+		while (true) {
+			if (this.find(h, start)) {
+				return true;
+			}
+			final int i = h.indexOf('.', start);
+			if (i < 0) {
+				return false;
+			}
+			start = i + 1;
+		}
+	}
+
+	/**
+	 * @return number of hosts in index
+	 */
+	int size() {
+		return this.count;
+	}
+}
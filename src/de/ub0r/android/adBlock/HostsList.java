@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * HostsList reads hosts files like "0.0.0.0 ads.example.com" or plain lists of
+ * domains into a {@link HostIndex}. Lists with hundreds of thousands of hosts
+ * are streamed into the index without creating a String for each host. The
+ * index is kept in a file of it's own and memory mapped, so it takes neither
+ * heap nor preferences and is not compiled again with the filter.
+ * 
+ * @author Felix Bechstein
+ */
+final class HostsList {
+	/** File: magic number. */
+	private static final int MAGIC = 0x41444248;
+	/** File: format version. */
+	private static final int FORMAT = 1;
+	/** File: size of header. */
+	private static final int HEADER = 20;
+	/** Max. length of a line, longer lines are skipped. */
+	private static final int MAX_LINE = 1024;
+	/** Initial size of buffer for host names. */
+	private static final int INITIAL = 65536;
+	/** Host names pointing to the local host, never blocked. */
+	private static final String LOCALHOST = "localhost.localdomain";
+
+	/** Host names, lower case, each prefixed by it's length. */
+	private byte[] names = new byte[INITIAL];
+	/** Length of host names. */
+	private int length = 0;
+
+	/**
+	 * No instances outside.
+	 */
+	private HostsList() {
+	}
+
+	/**
+	 * Read a hosts file.
+	 * 
+	 * @param in
+	 *            hosts file, not closed
+	 * @return {@link HostIndex}
+	 * @throws IOException
+	 *             IOException
+	 */
+	static HostIndex parse(final InputStream in) throws IOException {
+		final HostsList l = new HostsList();
+		final byte[] buf = new byte[Relay.BUFFSIZE];
+		final byte[] line = new byte[MAX_LINE];
+		int ll = 0;
+		int read;
+		while ((read = in.read(buf)) >= 0) {
+			for (int i = 0; i < read; i++) {
+				final byte c = buf[i];
+				if (c == '\n' || c == '\r') {
+					if (ll >= 0) {
+						l.parseLine(line, ll);
+					}
+					ll = 0;
+				} else if (ll >= 0 && ll < MAX_LINE) {
+					line[ll++] = c;
+				} else {
+					// line too long
+					ll = -1;
+				}
+			}
+		}
+		if (ll > 0) {
+			l.parseLine(line, ll);
+		}
+		final byte[] b = new byte[l.length];
+		System.arraycopy(l.names, 0, b, 0, l.length);
+		l.names = null;
+		return new HostIndex(b);
+	}
+
+	/**
+	 * Parse a single line.
+	 * 
+	 * @param b
+	 *            line
+	 * @param len
+	 *            length of line
+	 */
+	private void parseLine(final byte[] b, final int len) {
+		int e = 0;
+		while (e < len && b[e] != '#') {
+			++e;
+		}
+		int s = skipSpace(b, 0, e);
+		if (s == e || b[s] == '!') {
+			return;
+		}
+		int t = skipToken(b, s, e);
+		if (skipSpace(b, t, e) == e) {
+			// plain list of domains
+			this.add(b, s, t);
+			return;
+		}
+		if (!isAddress(b, s, t)) {
+			return;
+		}
+		// any number of hosts behind the address
+		s = skipSpace(b, t, e);
+		while (s < e) {
+			t = skipToken(b, s, e);
+			this.add(b, s, t);
+			s = skipSpace(b, t, e);
+		}
+	}
+
+	/**
+	 * @param b
+	 *            line
+	 * @param s
+	 *            start
+	 * @param e
+	 *            end
+	 * @return position of next non white space or e
+	 */
+	private static int skipSpace(final byte[] b, final int s, final int e) {
+		int i = s;
+		while (i < e && (b[i] == ' ' || b[i] == '\t')) {
+			++i;
+		}
+		return i;
+	}
+
+	/**
+	 * @param b
+	 *            line
+	 * @param s
+	 *            start
+	 * @param e
+	 *            end
+	 * @return position of next white space or e
+	 */
+	private static int skipToken(final byte[] b, final int s, final int e) {
+		int i = s;
+		while (i < e && b[i] != ' ' && b[i] != '\t') {
+			++i;
+		}
+		return i;
+	}
+
+	/**
+	 * @param b
+	 *            line
+	 * @param s
+	 *            start of token
+	 * @param e
+	 *            end of token
+	 * @return true, if token is an IPv4 or IPv6 address
+	 */
+	private static boolean isAddress(final byte[] b, final int s, final int e) {
+		boolean v6 = false;
+		for (int i = s; i < e; i++) {
+			final byte c = b[i];
+			if (c == ':') {
+				v6 = true;
+			} else if (!(c >= '0' && c <= '9') && c != '.'
+					&& !(c >= 'a' && c <= 'f') && !(c >= 'A' && c <= 'F')) {
+				return false;
+			}
+		}
+		if (v6) {
+			return true;
+		}
+		for (int i = s; i < e; i++) {
+			if (b[i] != '.' && !(b[i] >= '0' && b[i] <= '9')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Add a host name, anything else is ignored.
+	 * 
+	 * @param b
+	 *            line
+	 * @param s
+	 *            start of host name
+	 * @param e
+	 *            end of host name
+	 */
+	private void add(final byte[] b, final int s, final int e) {
+		final int l = e - s;
+		if (l <= 0 || l > HostIndex.MAX_LENGTH || b[s] == '.'
+				|| b[e - 1] == '.' || isAddress(b, s, e)) {
+			return;
+		}
+		boolean dot = false;
+		for (int i = s; i < e; i++) {
+			final byte c = b[i];
+			if (c == '.') {
+				if (b[i - 1] == '.') {
+					return;
+				}
+				dot = true;
+			} else if (!(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z')
+					&& !(c >= '0' && c <= '9') && c != '-') {
+				return;
+			}
+		}
+		if (!dot || isLocalhost(b, s, e)) {
+			return;
+		}
+		if (this.length + l + 1 > this.names.length) {
+			final byte[] n = new byte[Math.max(this.names.length * 2,
+					this.length + l + 1)];
+			System.arraycopy(this.names, 0, n, 0, this.length);
+			this.names = n;
+		}
+		final byte[] n = this.names;
+		int o = this.length;
+		n[o++] = (byte) l;
+		for (int i = s; i < e; i++) {
+			final byte c = b[i];
+			if (c >= 'A' && c <= 'Z') {
+				n[o++] = (byte) (c + 'a' - 'A');
+			} else {
+				n[o++] = c;
+			}
+		}
+		this.length = o;
+	}
+
+	/**
+	 * @param b
+	 *            line
+	 * @param s
+	 *            start of host name
+	 * @param e
+	 *            end of host name
+	 * @return true, if host name points to the local host
+	 */
+	private static boolean isLocalhost(final byte[] b, final int s,
+			final int e) {
+		if (e - s != LOCALHOST.length()) {
+			return false;
+		}
+		for (int i = s; i < e; i++) {
+			if ((b[i] | 0x20) != LOCALHOST.charAt(i - s)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write an index to a file.
+	 * 
+	 * @param h
+	 *            index
+	 * @param file
+	 *            file, replaced atomically
+	 * @param version
+	 *            version of the list, checked by {@link #load(File, long)}
+	 * @throws IOException
+	 *             IOException
+	 */
+	static void write(final HostIndex h, final File file, final long version)
+			throws IOException {
+		final int l = HEADER + h.getByteSize();
+		final ByteBuffer b = ByteBuffer.allocate(l);
+		b.order(ByteOrder.nativeOrder());
+		b.putInt(MAGIC);
+		b.putInt(FORMAT);
+		b.putLong(version);
+		b.putInt(l);
+		h.write(b);
+		b.flip();
+		FilterSet.writeFile(file, b);
+	}
+
+	/**
+	 * Load an index written by {@link #write(HostIndex, File, long)}. The
+	 * file is memory mapped and queried in place.
+	 * 
+	 * @param file
+	 *            file
+	 * @param version
+	 *            expected version of the list
+	 * @return {@link HostIndex}, null if file is missing, broken or outdated
+	 */
+	static HostIndex load(final File file, final long version) {
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			final ByteBuffer b = FilterSet.mapFile(file);
+			if (b.getInt() != MAGIC || b.getInt() != FORMAT
+					|| b.getLong() != version || b.getInt() != b.capacity()) {
+				return null;
+			}
+			return HostIndex.read(b);
+		} catch (IOException e) {
+			return null;
+		} catch (BufferUnderflowException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,821 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.util.Arrays;
+
+/**
+ * HtmlFilter rewrites a single HTML response's body on the fly. Elements
+ * matched by element hiding rules are removed, so are scripts and images
+ * whose URL is blocked by the filter. Removed elements are overwritten by
+ * spaces in place: the body keeps it's length and framing, so it is passed on
+ * chunk by chunk and never held as a whole.
+ * <p>
+ * The tokenizer only needs a tag as a whole. A tag at the end of the data read
+ * so far is kept back until the rest of it arrives. Tags split by the
+ * remote host's chunks or longer than {@link #MAX_TAG} can't be kept back,
+ * they are passed on as they are but still tracked. An element starting with
+ * such a tag loses it's content only.
+ * 
+ * @author Felix Bechstein
+ */
+final class HtmlFilter implements HidingRule.Element {
+	/** Max. length of a tag kept back. */
+	static final int MAX_TAG = 2048;
+	/** Max. number of attributes per tag taken into account. */
+	private static final int MAX_ATTRIBUTES = 32;
+
+	/** State: reading text. */
+	private static final int S_TEXT = 0;
+	/** State: reading a comment. */
+	private static final int S_COMMENT = 1;
+	/** State: reading a script, style or other raw text element. */
+	private static final int S_RAW = 2;
+	/** State: skipping the rest of a tag. */
+	private static final int S_SKIP = 3;
+	/** State: collecting a tag split by the chunks. */
+	private static final int S_PARTIAL = 4;
+
+	/** End of a tag. */
+	private static final byte GT = '>';
+	/** Filler for removed bytes. */
+	private static final byte SPACE = ' ';
+	/** Start of a comment. */
+	private static final byte[] COMMENT = { '<', '!', '-', '-' };
+	/** Tag: script. */
+	private static final String SCRIPT = "script";
+	/** Tag: img. */
+	private static final String IMG = "img";
+	/** Tag: body. */
+	private static final String BODY = "body";
+	/** Tag: html. */
+	private static final String HTML = "html";
+	/** Attribute: src. */
+	private static final String SRC = "src";
+	/** Elements without content. */
+	private static final String[] VOID = { "area", "base", "br", "col",
+			"embed", "hr", IMG, "input", "link", "meta", "param", "source",
+			"track", "wbr" };
+	/** Elements holding raw text, tags inside are no tags. */
+	private static final String[] RAW = { SCRIPT, "style", "textarea",
+			"title" };
+	/** Elements which may miss their end tag. */
+	private static final String[] OPTIONAL_END = { "li", "p", "dt", "dd",
+			"option", "tr", "td", "th" };
+
+	/** Filter checking stripped URLs. */
+	private final FilterSet filter;
+	/** Element hiding rules, null if there are none. */
+	private final HidingIndex index;
+	/** Page's host, lower case. */
+	private final String page;
+	/** {@link Metrics} counting removed elements. */
+	private final Metrics metrics;
+
+	/** Tokenizer's state. */
+	private int state = S_TEXT;
+	/** Name of the hidden element, null if nothing is hidden. */
+	private String hidden = null;
+	/** Number of open elements named like the hidden one. */
+	private int depth = 0;
+	/** Number of open elements inside and including the hidden one. */
+	private int level = 0;
+	/** End tag of current raw text element, lower case. */
+	private byte[] rawEnd = null;
+	/** Number of bytes of rawEnd matched. */
+	private int rawMatch = 0;
+	/** Number of dashes in a row inside a comment. */
+	private int dashes = 0;
+	/** Quote of the attribute value skipped, 0 if none. */
+	private byte quote = 0;
+	/** Last byte of a skipped tag outside quotes was '='. */
+	private boolean afterEquals = false;
+	/** Name of raw text element ended by the skipped tag, null if none. */
+	private String skipEnd = null;
+	/** Tag split by the chunks, null until needed. */
+	private byte[] partial = null;
+	/** Length of partial tag. */
+	private int partialLen = 0;
+
+	/** Buffer holding current tag. */
+	private byte[] buf;
+	/** Current tag's name, lower case. */
+	private String name;
+	/** Current tag's attributes: start and end of name and value. */
+	private final int[] attributes = new int[MAX_ATTRIBUTES * 4];
+	/** Number of current tag's attributes. */
+	private int attributeCount = 0;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param f
+	 *            filter checking stripped URLs
+	 * @param i
+	 *            element hiding rules, may be null
+	 * @param p
+	 *            page's host
+	 * @param m
+	 *            {@link Metrics} counting removed elements
+	 */
+	HtmlFilter(final FilterSet f, final HidingIndex i, final String p,
+			final Metrics m) {
+		this.filter = f;
+		this.index = i;
+		this.page = p.toLowerCase();
+		this.metrics = m;
+	}
+
+	/**
+	 * The response is HTML, it's body is rewritten.
+	 */
+	void start() {
+		this.metrics.rewritten();
+	}
+
+	/**
+	 * Rewrite the next part of the body in place.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param start
+	 *            start of next part
+	 * @param end
+	 *            end of next part
+	 * @param hold
+	 *            a tag starting within the last hold bytes may be kept back,
+	 *            0 if the part can't be fed again
+	 * @return end of rewritten data, less than end if an incomplete tag is
+	 *         kept back, feed it again after more data arrived
+	 */
+	int rewrite(final byte[] b, final int start, final int end,
+			final int hold) {
+		int i = start;
+		while (i < end) {
+			final int s = this.state;
+			if (s == S_TEXT) {
+				int lt = i;
+				while (lt < end && b[lt] != '<') {
+					++lt;
+				}
+				this.blank(b, i, lt);
+				if (lt == end) {
+					break;
+				}
+				i = this.tag(b, lt, end);
+				if (i < 0) {
+					if (lt >= end - hold) {
+						return lt;
+					}
+					i = this.split(b, lt, end);
+				}
+			} else if (s == S_COMMENT) {
+				i = this.comment(b, i, end);
+			} else if (s == S_RAW) {
+				i = this.raw(b, i, end);
+			} else if (s == S_SKIP) {
+				i = this.skip(b, i, end);
+			} else {
+				i = this.partial(b, i, end);
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Overwrite bytes if an element is hidden.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param s
+	 *            start
+	 * @param e
+	 *            end
+	 */
+	private void blank(final byte[] b, final int s, final int e) {
+		if (this.hidden != null && s < e) {
+			Arrays.fill(b, s, e, SPACE);
+		}
+	}
+
+	/**
+	 * Take a tag.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param lt
+	 *            start of tag, the '<'
+	 * @param end
+	 *            end of data
+	 * @return end of tag, -1 if it is incomplete
+	 */
+	private int tag(final byte[] b, final int lt, final int end) {
+		if (lt + 1 >= end) {
+			return -1;
+		}
+		final byte c = b[lt + 1];
+		if (c == '/') {
+			return this.endTag(b, lt, end);
+		} else if (isLetter(c)) {
+			return this.startTag(b, lt, end);
+		} else if (c != '!' && c != '?') {
+			// no tag at all
+			this.blank(b, lt, lt + 1);
+			return lt + 1;
+		}
+		if (c == '!' && lt + COMMENT.length > end) {
+			return -1; // might be a comment
+		} else if (lt + COMMENT.length <= end
+				&& HeaderParser.equalsIgnoreCase(b, lt, lt + COMMENT.length,
+						COMMENT)) {
+			this.blank(b, lt, lt + COMMENT.length);
+			this.dashes = 0;
+			this.state = S_COMMENT;
+			return lt + COMMENT.length;
+		}
+		// doctype, processing instruction or bogus comment
+		final int gt = indexOf(b, GT, lt + 2, end);
+		if (gt < 0) {
+			return -1;
+		}
+		this.blank(b, lt, gt + 1);
+		return gt + 1;
+	}
+
+	/**
+	 * Take an end tag.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param lt
+	 *            start of tag, the '<'
+	 * @param end
+	 *            end of data
+	 * @return end of tag, -1 if it is incomplete
+	 */
+	private int endTag(final byte[] b, final int lt, final int end) {
+		int i = lt + 2;
+		while (i < end && isNameChar(b[i])) {
+			++i;
+		}
+		final int gt = indexOf(b, GT, i, end);
+		if (gt < 0) {
+			return -1;
+		}
+		if (this.hidden != null
+				&& this.closed(lower(b, lt + 2, i))) {
+			Arrays.fill(b, lt, gt + 1, SPACE);
+		}
+		return gt + 1;
+	}
+
+	/**
+	 * An end tag was found while an element is hidden.
+	 * 
+	 * @param n
+	 *            tag's name
+	 * @return true, if the end tag is hidden as well
+	 */
+	private boolean closed(final String n) {
+		final String h = this.hidden;
+		if (n.equals(BODY) || n.equals(HTML)) {
+			// never hide anything behind the body
+			this.hidden = null;
+			return false;
+		}
+		if (n.equals(h)) {
+			--this.level;
+			if (--this.depth == 0) {
+				this.hidden = null;
+			}
+			return true;
+		}
+		if (this.level <= 1 && isAny(h, OPTIONAL_END)) {
+			// parent's end tag ends the hidden element
+			this.hidden = null;
+			return false;
+		}
+		if (this.level > 1) {
+			--this.level;
+		}
+		return true;
+	}
+
+	/**
+	 * Take a start tag.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param lt
+	 *            start of tag, the '<'
+	 * @param end
+	 *            end of data
+	 * @return end of tag, -1 if it is incomplete
+	 */
+	private int startTag(final byte[] b, final int lt, final int end) {
+		int i = lt + 1;
+		while (i < end && isNameChar(b[i])) {
+			++i;
+		}
+		final int ne = i;
+		this.attributeCount = 0;
+		boolean selfClosing = false;
+		while (true) {
+			while (i < end && isSpace(b[i])) {
+				++i;
+			}
+			if (i >= end) {
+				return -1;
+			}
+			final byte c = b[i];
+			if (c == '>') {
+				break;
+			} else if (c == '/') {
+				selfClosing = true;
+				++i;
+				continue;
+			}
+			selfClosing = false;
+			final int as = i;
+			while (i < end && !isSpace(b[i]) && b[i] != '>' && b[i] != '/'
+					&& b[i] != '=') {
+				++i;
+			}
+			final int ae = i;
+			while (i < end && isSpace(b[i])) {
+				++i;
+			}
+			if (i >= end) {
+				return -1;
+			}
+			int vs = -1;
+			int ve = -1;
+			if (b[i] == '=') {
+				++i;
+				while (i < end && isSpace(b[i])) {
+					++i;
+				}
+				if (i >= end) {
+					return -1;
+				}
+				final byte q = b[i];
+				if (q == '"' || q == '\'') {
+					vs = i + 1;
+					ve = indexOf(b, q, vs, end);
+					if (ve < 0) {
+						return -1;
+					}
+					i = ve + 1;
+				} else {
+					vs = i;
+					while (i < end && !isSpace(b[i]) && b[i] != '>') {
+						++i;
+					}
+					ve = i;
+				}
+			}
+			if (ae > as && this.attributeCount < MAX_ATTRIBUTES) {
+				final int[] a = this.attributes;
+				final int j = this.attributeCount++ * 4;
+				a[j] = as;
+				a[j + 1] = ae;
+				a[j + 2] = vs;
+				a[j + 3] = ve;
+			}
+		}
+		final int e = i + 1;
+		final String n = lower(b, lt + 1, ne);
+		final boolean empty = selfClosing || isAny(n, VOID);
+		this.buf = b;
+		this.name = n;
+		final String h = this.hidden;
+		if (h != null) {
+			if (n.equals(h) && isAny(h, OPTIONAL_END)) {
+				// next sibling ends the hidden element
+				this.hidden = null;
+			} else {
+				if (!empty) {
+					++this.level;
+					if (n.equals(h)) {
+						++this.depth;
+					}
+				}
+				Arrays.fill(b, lt, e, SPACE);
+			}
+		}
+		if (this.hidden == null && this.isRemoved()) {
+			Arrays.fill(b, lt, e, SPACE);
+			if (!empty) {
+				this.hidden = n;
+				this.depth = 1;
+				this.level = 1;
+			}
+		}
+		if (!empty && isAny(n, RAW)) {
+			this.rawEnd = ("</" + n).getBytes();
+			this.rawMatch = 0;
+			this.state = S_RAW;
+		}
+		this.buf = null;
+		return e;
+	}
+
+	/**
+	 * @return true, if current start tag's element is removed
+	 */
+	private boolean isRemoved() {
+		final String n = this.name;
+		if ((n.equals(SCRIPT) || n.equals(IMG)) && this.isStripped()) {
+			this.metrics.stripped();
+			return true;
+		}
+		final HidingIndex x = this.index;
+		if (x != null && x.hides(this, this.page)) {
+			this.metrics.hidden();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true, if current tag's source URL is blocked
+	 */
+	private boolean isStripped() {
+		final String src = this.getAttribute(SRC);
+		if (src == null) {
+			return false;
+		}
+		String u = src.trim().replace("&amp;", "&");
+		final int colon = u.indexOf(':');
+		final int slash = u.indexOf('/');
+		if (u.startsWith("//")) {
+			u = "http:" + u;
+		} else if (colon >= 0 && (slash < 0 || colon < slash)) {
+			final String scheme = u.substring(0, colon).toLowerCase();
+			if (scheme.equals("https")) {
+				// checked like any other request sent through the proxy
+				u = "http" + u.substring(colon);
+			} else if (!scheme.equals("http")) {
+				return false; // data:, javascript:, ...
+			}
+		} else if (slash == 0) {
+			u = "http://" + this.page + u;
+		} else if (u.length() > 0) {
+			u = "http://" + this.page + "/" + u;
+		} else {
+			return false;
+		}
+		return this.filter.isBlocked(u, this.page);
+	}
+
+	/**
+	 * Pass on an incomplete tag which can't be kept back.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param lt
+	 *            start of tag, the '<'
+	 * @param end
+	 *            end of data
+	 * @return end of data taken
+	 */
+	private int split(final byte[] b, final int lt, final int end) {
+		this.quote = 0;
+		this.afterEquals = false;
+		this.skipEnd = null;
+		if (end - lt > MAX_TAG) {
+			// too long, just find it's end
+			this.blank(b, lt, lt + 1);
+			this.state = S_SKIP;
+			return lt + 1;
+		}
+		if (this.partial == null) {
+			this.partial = new byte[MAX_TAG];
+		}
+		this.partialLen = 0;
+		this.state = S_PARTIAL;
+		return this.partial(b, lt, end);
+	}
+
+	/**
+	 * Collect a tag split by the chunks. The tag is taken into account when
+	 * it is complete, but neither part of it is removed.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param start
+	 *            start of data
+	 * @param end
+	 *            end of data
+	 * @return end of data taken
+	 */
+	private int partial(final byte[] b, final int start, final int end) {
+		final byte[] p = this.partial;
+		int i = start;
+		while (i < end) {
+			final byte c = b[i];
+			if (this.partialLen == 1 && !isLetter(c) && c != '/'
+					&& c != '!' && c != '?') {
+				// no tag at all
+				this.state = S_TEXT;
+				return i;
+			} else if (this.partialLen == MAX_TAG) {
+				this.state = S_SKIP;
+				return i;
+			}
+			p[this.partialLen++] = c;
+			++i;
+			if (this.partialLen == COMMENT.length
+					&& HeaderParser.equalsIgnoreCase(p, 0, COMMENT.length,
+							COMMENT)) {
+				this.dashes = 0;
+				this.state = S_COMMENT;
+				return i;
+			}
+			if (this.isTagEnd(c) && this.partialLen > 1) {
+				this.state = S_TEXT;
+				this.tag(p, 0, this.partialLen);
+				return i;
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * Check if a byte ends a skipped tag, quoted attribute values are taken
+	 * into account.
+	 * 
+	 * @param c
+	 *            next byte
+	 * @return true, if c ends the tag
+	 */
+	private boolean isTagEnd(final byte c) {
+		if (this.quote != 0) {
+			if (c == this.quote) {
+				this.quote = 0;
+			}
+			return false;
+		}
+		if (isSpace(c)) {
+			return false;
+		}
+		if (this.afterEquals && (c == '"' || c == '\'')) {
+			this.quote = c;
+		}
+		this.afterEquals = c == '=';
+		return c == '>';
+	}
+
+	/**
+	 * Skip the rest of a tag.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param start
+	 *            start of data
+	 * @param end
+	 *            end of data
+	 * @return end of data taken
+	 */
+	private int skip(final byte[] b, final int start, final int end) {
+		int i = start;
+		while (i < end) {
+			if (this.isTagEnd(b[i++])) {
+				this.blank(b, start, i);
+				this.state = S_TEXT;
+				final String n = this.skipEnd;
+				if (n != null && this.hidden != null) {
+					this.closed(n);
+				}
+				this.skipEnd = null;
+				return i;
+			}
+		}
+		this.blank(b, start, end);
+		return end;
+	}
+
+	/**
+	 * Read a comment.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param start
+	 *            start of data
+	 * @param end
+	 *            end of data
+	 * @return end of data taken
+	 */
+	private int comment(final byte[] b, final int start, final int end) {
+		int d = this.dashes;
+		int i = start;
+		while (i < end) {
+			final byte c = b[i++];
+			if (c == '-') {
+				++d;
+			} else if (c == '>' && d >= 2) {
+				this.state = S_TEXT;
+				break;
+			} else {
+				d = 0;
+			}
+		}
+		this.dashes = d;
+		this.blank(b, start, i);
+		return i;
+	}
+
+	/**
+	 * Read a raw text element's content up to it's end tag.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param start
+	 *            start of data
+	 * @param end
+	 *            end of data
+	 * @return end of data taken
+	 */
+	private int raw(final byte[] b, final int start, final int end) {
+		final byte[] t = this.rawEnd;
+		int m = this.rawMatch;
+		int i = start;
+		while (i < end) {
+			byte c = b[i++];
+			if (c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
+			}
+			if (c == t[m]) {
+				if (++m == t.length) {
+					// rest of end tag is skipped
+					this.skipEnd = HeaderParser.toString(t, 2, t.length);
+					this.quote = 0;
+					this.afterEquals = false;
+					this.state = S_SKIP;
+					m = 0;
+					break;
+				}
+			} else {
+				m = c == '<' ? 1 : 0;
+			}
+		}
+		this.rawMatch = m;
+		this.blank(b, start, i);
+		return i;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getTag() {
+		return this.name;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getAttribute(final String n) {
+		final byte[] b = this.buf;
+		final int[] a = this.attributes;
+		final int l = n.length();
+		for (int i = 0; i < this.attributeCount * 4; i += 4) {
+			final int s = a[i];
+			if (a[i + 1] - s != l) {
+				continue;
+			}
+			boolean eq = true;
+			for (int j = 0; j < l && eq; j++) {
+				byte c = b[s + j];
+				if (c >= 'A' && c <= 'Z') {
+					c += 'a' - 'A';
+				}
+				eq = c == n.charAt(j);
+			}
+			if (eq) {
+				if (a[i + 2] < 0) {
+					return "";
+				}
+				return HeaderParser.toString(b, a[i + 2], a[i + 3]);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getAttributeCount() {
+		return this.attributeCount;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getAttributeName(final int i) {
+		return lower(this.buf, this.attributes[i * 4],
+				this.attributes[i * 4 + 1]);
+	}
+
+	/**
+	 * @param b
+	 *            buffer
+	 * @param c
+	 *            byte to find
+	 * @param s
+	 *            start
+	 * @param e
+	 *            end
+	 * @return index of c, -1 if not found
+	 */
+	private static int indexOf(final byte[] b, final byte c, final int s,
+			final int e) {
+		for (int i = s; i < e; i++) {
+			if (b[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param b
+	 *            buffer
+	 * @param s
+	 *            start
+	 * @param e
+	 *            end
+	 * @return ASCII String in lower case
+	 */
+	private static String lower(final byte[] b, final int s, final int e) {
+		final char[] c = new char[e - s];
+		for (int i = s; i < e; i++) {
+			final byte x = b[i];
+			c[i - s] = (char) (x >= 'A' && x <= 'Z' ? x + 'a' - 'A'
+					: x & 0xff);
+		}
+		return new String(c);
+	}
+
+	/**
+	 * @param n
+	 *            name
+	 * @param list
+	 *            names
+	 * @return true, if n is any of the names
+	 */
+	private static boolean isAny(final String n, final String[] list) {
+		for (String s : list) {
+			if (s.equals(n)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param c
+	 *            byte
+	 * @return true, if c is an ASCII letter
+	 */
+	private static boolean isLetter(final byte c) {
+		return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+	}
+
+	/**
+	 * @param c
+	 *            byte
+	 * @return true, if c may be part of a tag's name
+	 */
+	private static boolean isNameChar(final byte c) {
+		return isLetter(c) || c >= '0' && c <= '9' || c == '-' || c == ':';
+	}
+
+	/**
+	 * @param c
+	 *            byte
+	 * @return true, if c is white space
+	 */
+	private static boolean isSpace(final byte c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f';
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * ListImporter downloads a filter list and compares it to the current filter.
+ * The list is streamed line by line, only the differences are kept. Unchanged
+ * lists are skipped by conditional requests. Hosts files are read into a
+ * {@link HostIndex} instead, see {@link HostsList}.
+ * 
+ * The diff holds a copy of the current filter and the added rules, rules in
+ * both are not stored again. The merged filter is saved by {@link AdBlock}
+ * and compiled into a {@link FilterSet} by the proxy on it's next start.
+ * 
+ * @author Felix Bechstein
+ */
+final class ListImporter {
+	/** Timeout for connect and read in milliseconds. */
+	private static final int TIMEOUT = 30000;
+
+	/** URL of the list. */
+	private final String url;
+	/** ETag of the last download. */
+	private String eTag;
+	/** Last-Modified of the last download. */
+	private String lastModified;
+
+	/** Rules in the list, missing in the current filter. */
+	private final ArrayList<String> added = new ArrayList<String>();
+	/** Rules in the current filter, missing in the list. */
+	private HashSet<String> removed = new HashSet<String>();
+	/** Number of rules in the list. */
+	private int count = 0;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param u
+	 *            URL of the list
+	 * @param tag
+	 *            ETag of the last download, may be null
+	 * @param modified
+	 *            Last-Modified of the last download, may be null
+	 */
+	ListImporter(final String u, final String tag, final String modified) {
+		this.url = u;
+		this.eTag = tag;
+		this.lastModified = modified;
+	}
+
+	/**
+	 * Download the list and compare it to the current filter.
+	 * 
+	 * @param current
+	 *            current filter, not modified
+	 * @return false, if the list did not change since the last download
+	 * @throws IOException
+	 *             download failed
+	 */
+	boolean run(final Collection<String> current) throws IOException {
+		final HttpURLConnection c = this.open();
+		try {
+			if (!this.check(c)) {
+				return false;
+			}
+			// current rule -> found in the list
+			final HashMap<String, Boolean> old = new HashMap<String, Boolean>();
+			for (String s : current) {
+				old.put(s, Boolean.FALSE);
+			}
+			final HashSet<String> add = new HashSet<String>();
+			int n = 0;
+			final BufferedReader reader = new BufferedReader(
+					new InputStreamReader(c.getInputStream()));
+			try {
+				String s;
+				while ((s = reader.readLine()) != null) {
+					s = s.trim();
+					if (s.length() == 0) {
+						continue;
+					}
+					final Boolean found = old.get(s);
+					if (found == null) {
+						if (add.add(s)) {
+							this.added.add(s);
+							++n;
+						}
+					} else if (!found.booleanValue()) {
+						old.put(s, Boolean.TRUE);
+						++n;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			this.count = n;
+			final HashSet<String> rm = new HashSet<String>();
+			for (Map.Entry<String, Boolean> e : old.entrySet()) {
+				if (!e.getValue().booleanValue()) {
+					rm.add(e.getKey());
+				}
+			}
+			this.removed = rm;
+			this.eTag = c.getHeaderField("ETag");
+			this.lastModified = c.getHeaderField("Last-Modified");
+			return true;
+		} finally {
+			c.disconnect();
+		}
+	}
+
+	/**
+	 * Download a hosts file.
+	 * 
+	 * @return hosts, null if the list did not change since the last download
+	 * @throws IOException
+	 *             download failed
+	 */
+	HostIndex runHosts() throws IOException {
+		final HttpURLConnection c = this.open();
+		try {
+			if (!this.check(c)) {
+				return null;
+			}
+			final InputStream in = c.getInputStream();
+			HostIndex ret;
+			try {
+				ret = HostsList.parse(in);
+			} finally {
+				in.close();
+			}
+			this.count = ret.size();
+			this.eTag = c.getHeaderField("ETag");
+			this.lastModified = c.getHeaderField("Last-Modified");
+			return ret;
+		} finally {
+			c.disconnect();
+		}
+	}
+
+	/**
+	 * Open a conditional request.
+	 * 
+	 * @return connection
+	 * @throws IOException
+	 *             IOException
+	 */
+	private HttpURLConnection open() throws IOException {
+		final HttpURLConnection c = (HttpURLConnection) new URL(this.url)
+				.openConnection();
+		c.setConnectTimeout(TIMEOUT);
+		c.setReadTimeout(TIMEOUT);
+		if (this.eTag != null && this.eTag.length() > 0) {
+			c.setRequestProperty("If-None-Match", this.eTag);
+		}
+		if (this.lastModified != null && this.lastModified.length() > 0) {
+			c.setRequestProperty("If-Modified-Since", this.lastModified);
+		}
+		return c;
+	}
+
+	/**
+	 * Check the response.
+	 * 
+	 * @param c
+	 *            connection
+	 * @return false, if the list did not change since the last download
+	 * @throws IOException
+	 *             download failed
+	 */
+	private boolean check(final HttpURLConnection c) throws IOException {
+		final int resp = c.getResponseCode();
+		if (resp == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			return false;
+		}
+		if (resp != HttpURLConnection.HTTP_OK) {
+			throw new IOException("HTTP " + resp + " "
+					+ c.getResponseMessage());
+		}
+		return true;
+	}
+
+	/**
+	 * @return rules in the list, missing in the current filter
+	 */
+	ArrayList<String> getAdded() {
+		return this.added;
+	}
+
+	/**
+	 * @return rules in the current filter, missing in the list
+	 */
+	HashSet<String> getRemoved() {
+		return this.removed;
+	}
+
+	/**
+	 * @return number of rules or hosts in the list
+	 */
+	int getCount() {
+		return this.count;
+	}
+
+	/**
+	 * @return ETag of the last download, may be null
+	 */
+	String getETag() {
+		return this.eTag;
+	}
+
+	/**
+	 * @return Last-Modified of the last download, may be null
+	 */
+	String getLastModified() {
+		return this.lastModified;
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Listeners accepts connections on any number of addresses, each on it's own
+ * Threads. The set of addresses may be changed at any time: new addresses are
+ * bound before old ones are closed, so there is always someone listening.
+ * Accepted connections are not owned by the Listeners, closing a listening
+ * socket leaves them alone.
+ * <p>
+ * There is no SO_REUSEPORT before Java 7, so several acceptors of an address
+ * share a single socket. Their accept() calls take turns, but handing over
+ * one connection overlaps accepting the next.
+ * 
+ * @author Felix Bechstein
+ */
+final class Listeners {
+	/** Tag for output. */
+	private static final String TAG = "AdBlock.Listeners";
+
+	/** Max. number of connections waiting to be accepted. */
+	private static final int BACKLOG = 128;
+	/** Time to wait after a failed accept in milliseconds. */
+	private static final int ACCEPT_BACKOFF = 100;
+
+	/**
+	 * Handler takes accepted connections.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	interface Handler {
+		/**
+		 * A connection was accepted. It is in blocking mode.
+		 * 
+		 * @param client
+		 *            client's channel
+		 */
+		void accepted(SocketChannel client);
+	}
+
+	/**
+	 * Acceptor accepts connections on a single address. It may be run by any
+	 * number of Threads.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	private final class Acceptor implements Runnable {
+		/** Listening channel. */
+		private final ServerSocketChannel channel;
+		/** Number of accepted connections. */
+		private final AtomicLong accepted = new AtomicLong();
+
+		/**
+		 * Constructor. Bind the address.
+		 * 
+		 * @param address
+		 *            address
+		 * @throws IOException
+		 *             address could not be bound
+		 */
+		Acceptor(final InetSocketAddress address) throws IOException {
+			final ServerSocketChannel c = ServerSocketChannel.open();
+			try {
+				c.socket().setReuseAddress(true);
+				c.socket().bind(address, BACKLOG);
+			} catch (IOException e) {
+				c.close();
+				throw e;
+			}
+			this.channel = c;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void run() {
+			final ServerSocketChannel c = this.channel;
+			while (c.isOpen()) {
+				try {
+					final SocketChannel client = c.accept();
+					if (client != null) {
+						this.accepted.incrementAndGet();
+						Listeners.this.handler.accepted(client);
+					}
+				} catch (ClosedChannelException e) {
+					break;
+				} catch (IOException e) {
+					// out of file descriptors or such, don't spin
+					Log.w(TAG, "accept failed: " + e);
+					try {
+						Thread.sleep(ACCEPT_BACKOFF);
+					} catch (InterruptedException e1) {
+						break;
+					}
+				}
+			}
+			Log.d(TAG, "closed: " + c.socket().getLocalSocketAddress());
+		}
+
+		/**
+		 * Stop accepting, a blocked accept fails at once.
+		 */
+		void close() {
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+				Log.d(TAG, null, e);
+			}
+		}
+	}
+
+	/** Handler taking accepted connections. */
+	private final Handler handler;
+	/** Number of Threads accepting on each address. */
+	private volatile int acceptors = 1;
+	/** Bound addresses. */
+	private final HashMap<InetSocketAddress, Acceptor> bound = // .
+	new HashMap<InetSocketAddress, Acceptor>();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param h
+	 *            {@link Handler} taking accepted connections
+	 */
+	Listeners(final Handler h) {
+		this.handler = h;
+	}
+
+	/**
+	 * Set the number of Threads accepting on each address. Takes effect for
+	 * addresses bound afterwards.
+	 * 
+	 * @param n
+	 *            number of Threads
+	 */
+	void setAcceptors(final int n) {
+		this.acceptors = Math.max(1, n);
+	}
+
+	/**
+	 * Listen on the given addresses. Addresses listened on already are kept
+	 * as they are. If any new address can not be bound, nothing changes.
+	 * 
+	 * @param addresses
+	 *            addresses
+	 * @throws IOException
+	 *             an address could not be bound
+	 */
+	synchronized void update(final Collection<InetSocketAddress> addresses)
+			throws IOException {
+		// bind new addresses first
+		final HashMap<InetSocketAddress, Acceptor> added = // .
+		new HashMap<InetSocketAddress, Acceptor>();
+		try {
+			for (InetSocketAddress a : addresses) {
+				if (!this.bound.containsKey(a) && !added.containsKey(a)) {
+					added.put(a, new Acceptor(a));
+				}
+			}
+		} catch (IOException e) {
+			for (Acceptor l : added.values()) {
+				l.close();
+			}
+			throw e;
+		}
+		final int n = this.acceptors;
+		for (Map.Entry<InetSocketAddress, Acceptor> e : added.entrySet()) {
+			Log.i(TAG, "listening on " + e.getKey());
+			for (int i = 0; i < n; i++) {
+				final Thread t = new Thread(e.getValue(), "Listener-"
+						+ e.getKey() + "-" + i);
+				t.start();
+			}
+			this.bound.put(e.getKey(), e.getValue());
+		}
+		// then stop accepting on old ones
+		final Iterator<Map.Entry<InetSocketAddress, Acceptor>> it = // .
+		this.bound.entrySet().iterator();
+		while (it.hasNext()) {
+			final Map.Entry<InetSocketAddress, Acceptor> e = it.next();
+			if (!addresses.contains(e.getKey())) {
+				Log.i(TAG, "stop listening on " + e.getKey());
+				e.getValue().close();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Stop accepting on all addresses.
+	 */
+	synchronized void close() {
+		for (Acceptor l : this.bound.values()) {
+			l.close();
+		}
+		this.bound.clear();
+	}
+
+	/**
+	 * @return addresses listened on
+	 */
+	synchronized ArrayList<InetSocketAddress> getAddresses() {
+		return new ArrayList<InetSocketAddress>(this.bound.keySet());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized String toString() {
+		final StringBuilder sb = new StringBuilder("listening:");
+		for (Map.Entry<InetSocketAddress, Acceptor> e : this.bound
+				.entrySet()) {
+			sb.append(' ').append(e.getKey()).append(" (");
+			sb.append(e.getValue().accepted.get()).append(" accepted)");
+		}
+		return sb.toString();
+	}
+}
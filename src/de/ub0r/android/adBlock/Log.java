@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Log writes the proxy's log messages. It mimics android.util.Log, so the
+ * core runs on any JVM. The Android app plugs the platform's log in by
+ * {@link #setSink(Sink)}, anywhere else messages go to stderr.
+ * 
+ * @author Felix Bechstein
+ */
+final class Log {
+	/** Priority: verbose. */
+	static final int VERBOSE = 2;
+	/** Priority: debug. */
+	static final int DEBUG = 3;
+	/** Priority: info. */
+	static final int INFO = 4;
+	/** Priority: warning. */
+	static final int WARN = 5;
+	/** Priority: error. */
+	static final int ERROR = 6;
+
+	/**
+	 * Sink takes the log messages.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	interface Sink {
+		/**
+		 * Write a log message.
+		 * 
+		 * @param priority
+		 *            priority
+		 * @param tag
+		 *            tag
+		 * @param msg
+		 *            message, including any stack trace
+		 */
+		void println(int priority, String tag, String msg);
+	}
+
+	/** Sink writing to stderr. */
+	private static final Sink STDERR = new Sink() {
+		/** Names of priorities. */
+		private final String names = "??VDIWE";
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void println(final int priority, final String tag,
+				final String msg) {
+			if (priority >= Log.level) {
+				System.err.println(this.names.charAt(priority) + "/" + tag
+						+ ": " + msg);
+			}
+		}
+	};
+
+	/** Current sink. */
+	private static volatile Sink sink = STDERR;
+	/** Min. priority written to stderr. */
+	private static volatile int level = INFO;
+
+	/**
+	 * Hide constructor.
+	 */
+	private Log() {
+		// nothing to do
+	}
+
+	/**
+	 * @param s
+	 *            {@link Sink} taking all messages, null for stderr
+	 */
+	static void setSink(final Sink s) {
+		if (s == null) {
+			sink = STDERR;
+		} else {
+			sink = s;
+		}
+	}
+
+	/**
+	 * @param priority
+	 *            min. priority written to stderr
+	 */
+	static void setLevel(final int priority) {
+		level = priority;
+	}
+
+	/**
+	 * Write a message.
+	 * 
+	 * @param priority
+	 *            priority
+	 * @param tag
+	 *            tag
+	 * @param msg
+	 *            message, may be null
+	 * @param tr
+	 *            exception, may be null
+	 */
+	private static void println(final int priority, final String tag,
+			final String msg, final Throwable tr) {
+		final Sink s = sink;
+		if (s == STDERR && priority < level) {
+			return;
+		}
+		String m = msg;
+		if (tr != null) {
+			final StringWriter sw = new StringWriter();
+			final PrintWriter pw = new PrintWriter(sw);
+			tr.printStackTrace(pw);
+			pw.flush();
+			if (m == null) {
+				m = sw.toString();
+			} else {
+				m = m + "\n" + sw.toString();
+			}
+		}
+		s.println(priority, tag, m);
+	}
+
+	/**
+	 * Write a debug message.
+	 * 
+	 * @param tag
+	 *            tag
+	 * @param msg
+	 *            message
+	 */
+	static void d(final String tag, final String msg) {
+		println(DEBUG, tag, msg, null);
+	}
+
+	/**
+	 * Write a debug message.
+	 * 
+	 * @param tag
+	 *            tag
+	 * @param msg
+	 *            message
+	 * @param tr
+	 *            exception
+	 */
+	static void d(final String tag, final String msg, final Throwable tr) {
+		println(DEBUG, tag, msg, tr);
+	}
+
+	/**
+	 * Write an info message.
+	 * 
+	 * @param tag
+	 *            tag
+	 * @param msg
+	 *            message
+	 */
+	static void i(final String tag, final String msg) {
+		println(INFO, tag, msg, null);
+	}
+
+	/**
+	 * Write a warning.
+	 * 
+	 * @param tag
+	 *            tag
+	 * @param msg
+	 *            message
+	 */
+	static void w(final String tag, final String msg) {
+		println(WARN, tag, msg, null);
+	}
+
+	/**
+	 * Write a warning.
+	 * 
+	 * @param tag
+	 *            tag
+	 * @param msg
+	 *            message
+	 * @param tr
+	 *            exception
+	 */
+	static void w(final String tag, final String msg, final Throwable tr) {
+		println(WARN, tag, msg, tr);
+	}
+
+	/**
+	 * Write an error.
+	 * 
+	 * @param tag
+	 *            tag
+	 * @param msg
+	 *            message
+	 */
+	static void e(final String tag, final String msg) {
+		println(ERROR, tag, msg, null);
+	}
+
+	/**
+	 * Write an error.
+	 * 
+	 * @param tag
+	 *            tag
+	 * @param msg
+	 *            message
+	 * @param tr
+	 *            exception
+	 */
+	static void e(final String tag, final String msg, final Throwable tr) {
+		println(ERROR, tag, msg, tr);
+	}
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics counts what the proxy does. Counters are lock-free and may be
+ * updated by any thread, {@link #toString()} dumps a snapshot as text. Hot
+ * threads may count in a shard of their own, see {@link #newShard()}.
+ * 
+ * @author Felix Bechstein
+ */
+final class Metrics {
+	/** Milliseconds per second. */
+	private static final long MILLIS = 1000L;
+	/** Nanoseconds per microsecond. */
+	private static final long NANOS = 1000L;
+	/** Unit of recorded times. */
+	private static final String UNIT = "us";
+	/** Name of time needed to connect. */
+	private static final String CONNECT = "connect";
+	/** Name of time needed to parse. */
+	private static final String PARSE = "header parse";
+	/** Name of time needed to resolve. */
+	private static final String RESOLVE = "dns lookup";
+
+	/** Time of creation. */
+	private final long created = System.currentTimeMillis();
+	/** Number of open connections. */
+	private final AtomicInteger active = new AtomicInteger();
+	/** Number of accepted connections. */
+	private final AtomicLong accepted = new AtomicLong();
+	/** Number of rejected connections. */
+	private final AtomicLong rejected = new AtomicLong();
+	/** Number of allowed requests. */
+	private final AtomicLong allowed = new AtomicLong();
+	/** Number of blocked requests. */
+	private final AtomicLong blocked = new AtomicLong();
+	/** Number of bytes sent to remote hosts. */
+	private final AtomicLong sent = new AtomicLong();
+	/** Number of bytes received from remote hosts. */
+	private final AtomicLong received = new AtomicLong();
+	/** Number of reaped connections by {@link Reaper}'s state. */
+	private final AtomicLong[] reaped = { new AtomicLong(), new AtomicLong(),
+			new AtomicLong() };
+	/** Number of rewritten HTML responses. */
+	private final AtomicLong rewritten = new AtomicLong();
+	/** Number of hidden HTML elements. */
+	private final AtomicLong hidden = new AtomicLong();
+	/** Number of stripped HTML elements. */
+	private final AtomicLong stripped = new AtomicLong();
+	/** Time needed to connect to remote hosts. */
+	private final Histogram connect = new Histogram(CONNECT, UNIT);
+	/** Time needed to parse request headers. */
+	private final Histogram parse = new Histogram(PARSE, UNIT);
+	/** Time needed to resolve hosts. */
+	private final Histogram resolve = new Histogram(RESOLVE, UNIT);
+	/** Shards, their numbers are added to this one's. */
+	private final CopyOnWriteArrayList<Metrics> shards = // .
+	new CopyOnWriteArrayList<Metrics>();
+
+	/** Time of last snapshot. */
+	private long lastTime = this.created;
+	/** Number of accepted connections at last snapshot. */
+	private long lastAccepted = 0;
+
+	/**
+	 * Get a new shard. It counts on it's own, so a single thread may update
+	 * it without contending with others. It's numbers are part of this one's
+	 * getters and {@link #toString()}. Shards are kept for good, connections
+	 * may be closed on a shard other than the one they were accepted on.
+	 * 
+	 * @return new {@link Metrics}
+	 */
+	Metrics newShard() {
+		final Metrics m = new Metrics();
+		this.shards.add(m);
+		return m;
+	}
+
+	/**
+	 * A connection was accepted.
+	 */
+	void accepted() {
+		this.accepted.incrementAndGet();
+		this.active.incrementAndGet();
+	}
+
+	/**
+	 * An accepted connection was rejected, it is closed already.
+	 */
+	void rejected() {
+		this.rejected.incrementAndGet();
+		this.active.decrementAndGet();
+	}
+
+	/**
+	 * An accepted connection was closed.
+	 */
+	void closed() {
+		this.active.decrementAndGet();
+	}
+
+	/**
+	 * A request was checked.
+	 * 
+	 * @param block
+	 *            request was blocked
+	 */
+	void request(final boolean block) {
+		if (block) {
+			this.blocked.incrementAndGet();
+		} else {
+			this.allowed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Data was sent to a remote host.
+	 * 
+	 * @param bytes
+	 *            number of bytes
+	 */
+	void sent(final long bytes) {
+		this.sent.addAndGet(bytes);
+	}
+
+	/**
+	 * Data was received from a remote host.
+	 * 
+	 * @param bytes
+	 *            number of bytes
+	 */
+	void received(final long bytes) {
+		this.received.addAndGet(bytes);
+	}
+
+	/**
+	 * A remote host was connected.
+	 * 
+	 * @param nanos
+	 *            time needed in nanoseconds
+	 */
+	void connected(final long nanos) {
+		this.connect.record(nanos / NANOS);
+	}
+
+	/**
+	 * A request header was parsed.
+	 * 
+	 * @param nanos
+	 *            time needed in nanoseconds
+	 */
+	void parsed(final long nanos) {
+		this.parse.record(nanos / NANOS);
+	}
+
+	/**
+	 * A host was resolved.
+	 * 
+	 * @param nanos
+	 *            time needed in nanoseconds
+	 */
+	void resolved(final long nanos) {
+		this.resolve.record(nanos / NANOS);
+	}
+
+	/**
+	 * A connection was reaped.
+	 * 
+	 * @param state
+	 *            {@link Reaper}'s state it was reaped in
+	 */
+	void reaped(final int state) {
+		this.reaped[state].incrementAndGet();
+	}
+
+	/**
+	 * An HTML response is rewritten.
+	 */
+	void rewritten() {
+		this.rewritten.incrementAndGet();
+	}
+
+	/**
+	 * An HTML element was hidden by an element hiding rule.
+	 */
+	void hidden() {
+		this.hidden.incrementAndGet();
+	}
+
+	/**
+	 * An HTML element was stripped, it's URL is blocked.
+	 */
+	void stripped() {
+		this.stripped.incrementAndGet();
+	}
+
+	/**
+	 * @return number of reaped connections
+	 */
+	long getReaped() {
+		long ret = 0;
+		for (int i = 0; i < this.reaped.length; i++) {
+			ret += this.getReaped(i);
+		}
+		return ret;
+	}
+
+	/**
+	 * @param state
+	 *            {@link Reaper}'s state
+	 * @return number of connections reaped in state
+	 */
+	private long getReaped(final int state) {
+		long ret = this.reaped[state].get();
+		for (Metrics m : this.shards) {
+			ret += m.getReaped(state);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return number of open connections
+	 */
+	int getActive() {
+		int ret = this.active.get();
+		for (Metrics m : this.shards) {
+			ret += m.getActive();
+		}
+		return ret;
+	}
+
+	/**
+	 * @return number of accepted connections
+	 */
+	long getAccepted() {
+		long ret = this.accepted.get();
+		for (Metrics m : this.shards) {
+			ret += m.getAccepted();
+		}
+		return ret;
+	}
+
+	/**
+	 * @return number of rejected connections
+	 */
+	private long getRejected() {
+		long ret = this.rejected.get();
+		for (Metrics m : this.shards) {
+			ret += m.getRejected();
+		}
+		return ret;
+	}
+
+	/**
+	 * @return number of allowed requests
+	 */
+	long getAllowed() {
+		long ret = this.allowed.get();
+		for (Metrics m : this.shards) {
+			ret += m.getAllowed();
+		}
+		return ret;
+	}
+
+	/**
+	 * @return number of blocked requests
+	 */
+	long getBlocked() {
+		long ret = this.blocked.get();
+		for (Metrics m : this.shards) {
+			ret += m.getBlocked();
+		}
+		return ret;
+	}
+
+	/**
+	 * @return number of bytes sent to remote hosts
+	 */
+	private long getSent() {
+		long ret = this.sent.get();
+		for (Metrics m : this.shards) {
+			ret += m.getSent();
+		}
+		return ret;
+	}
+
+	/**
+	 * @return number of bytes received from remote hosts
+	 */
+	private long getReceived() {
+		long ret = this.received.get();
+		for (Metrics m : this.shards) {
+			ret += m.getReceived();
+		}
+		return ret;
+	}
+
+	/**
+	 * @return number of rewritten HTML responses
+	 */
+	private long getRewritten() {
+		long ret = this.rewritten.get();
+		for (Metrics m : this.shards) {
+			ret += m.getRewritten();
+		}
+		return ret;
+	}
+
+	/**
+	 * @return number of hidden HTML elements
+	 */
+	private long getHidden() {
+		long ret = this.hidden.get();
+		for (Metrics m : this.shards) {
+			ret += m.getHidden();
+		}
+		return ret;
+	}
+
+	/**
+	 * @return number of stripped HTML elements
+	 */
+	private long getStripped() {
+		long ret = this.stripped.get();
+		for (Metrics m : this.shards) {
+			ret += m.getStripped();
+		}
+		return ret;
+	}
+
+	/**
+	 * Add this one's and it's shards' recorded values to new
+	 * {@link Histogram}s.
+	 * 
+	 * @param h
+	 *            resolve, connect and parse {@link Histogram}s
+	 */
+	private void addTo(final Histogram[] h) {
+		this.resolve.addTo(h[0]);
+		this.connect.addTo(h[1]);
+		this.parse.addTo(h[2]);
+		for (Metrics m : this.shards) {
+			m.addTo(h);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		final long now = System.currentTimeMillis();
+		final long a = this.getAccepted();
+		long rate;
+		synchronized (this) {
+			// accepted per second since last snapshot
+			final long t = Math.max(1, now - this.lastTime);
+			rate = (a - this.lastAccepted) * MILLIS / t;
+			this.lastTime = now;
+			this.lastAccepted = a;
+		}
+		final long up = Math.max(1, (now - this.created) / MILLIS);
+		Histogram[] h = { this.resolve, this.connect, this.parse };
+		if (!this.shards.isEmpty()) {
+			h = new Histogram[] { new Histogram(RESOLVE, UNIT),
+					new Histogram(CONNECT, UNIT), new Histogram(PARSE, UNIT) };
+			this.addTo(h);
+		}
+		return "uptime: " + up + "s\nconnections: " + this.getActive()
+				+ " active, " + a + " accepted (" + rate + "/s now, "
+				+ (a / up) + "/s avg), " + this.getRejected()
+				+ " rejected\nrequests: " + this.getAllowed() + " allowed, "
+				+ this.getBlocked() + " blocked\nbytes: " + this.getSent()
+				+ " sent, " + this.getReceived() + " received\nhtml: "
+				+ this.getRewritten() + " pages, " + this.getHidden()
+				+ " hidden, " + this.getStripped() + " stripped\nreaped: "
+				+ this.getReaped(Reaper.STATE_IDLE) + " idle, "
+				+ this.getReaped(Reaper.STATE_HEADER) + " header, "
+				+ this.getReaped(Reaper.STATE_CONNECT) + " connect\n"
+				+ h[0] + "\n" + h[1] + "\n" + h[2];
+	}
+}
@@ -18,19 +18,13 @@
  */
 package de.ub0r.android.adBlock;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.URL;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.app.Notification;
 import android.app.NotificationManager;
@@ -40,16 +34,16 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
-import android.util.Log;
 import android.widget.Toast;
 
 /**
  * This ad blocking Proxy Service will work as an ordinary HTTP proxy. Set APN's
- * proxy preferences to proxy's connection parameters.
+ * proxy preferences to proxy's connection parameters. The proxy itself is a
+ * {@link ProxyServer}, this Service configures and runs it.
  * 
  * @author Felix Bechstein
  */
-public class Proxy extends Service implements Runnable {
+public class Proxy extends Service {
 	/** Tag for output. */
 	private static final String TAG = "AdBlock.Proxy";
 
@@ -77,451 +71,57 @@ public class Proxy extends Service implements Runnable {
 	static final String PREFS_PORT = "port";
 	/** Preferences: Filter. */
 	static final String PREFS_FILTER = "filter";
-
-	/** HTTP Response: blocked. */
-	private static final String HTTP_BLOCK = "HTTP/1.1 500 blocked by AdBlock";
-	/** HTTP Response: error. */
-	private static final String HTTP_ERROR = "HTTP/1.1 500 error by AdBlock";
-	/** HTTP Response: connected. */
-	private static final String HTTP_CONNECTED = "HTTP/1.1 200 connected";
-	/** HTTP Response: flush. */
-	private static final String HTTP_RESPONSE = "\n\n";
-
-	/** Default Port for HTTP. */
-	private static final int PORT_HTTP = 80;
-	/** Default Port for HTTPS. */
-	private static final int PORT_HTTPS = 443;
-
-	/** Proxy. */
-	private Thread proxy = null;
-	/** Proxy's port. */
-	private int port = -1;
-	/** Proxy's filter. */
-	ArrayList<String> filter = new ArrayList<String>();
-	/** Stop proxy? */
-	private boolean stop = false;
-
-	/**
-	 * Connection handles a single HTTP Connection. Run this as a Thread.
-	 * 
-	 * @author Felix Bechstein
-	 */
-	private class Connection implements Runnable {
-
-		// cache object.refs
-		// no private object.refs accessed by inner classes
-		// TODO: reduce object creation
-
-		/** Local Socket. */
-		private final Socket local;
-		/** Remote Socket. */
-		private Socket remote;
-
-		/** State: normal. */
-		private static final short STATE_NORMAL = 0;
-		/** State: closed by local side. */
-		private static final short STATE_CLOSED_IN = 1;
-		/** State: closed by remote side. */
-		private static final short STATE_CLOSED_OUT = 2;
-		/** Connections state. */
-		private short state = STATE_NORMAL;
-
-		/**
-		 * CopyStream reads one stream and writes it's data into an other
-		 * stream. Run this as a Thread.
-		 * 
-		 * @author Felix Bechstein
-		 */
-		private class CopyStream implements Runnable {
-			/** Reader. */
-			private final InputStream reader;
-			/** Writer. */
-			private final OutputStream writer;
-
-			/** Size of buffer. */
-			private static final int BUFFSIZE = 32768;
-			/** Size of header buffer. */
-			private static final int HEADERBUFFSIZE = 1024;
-
-			/**
-			 * Constructor.
-			 * 
-			 * @param r
-			 *            reader
-			 * @param w
-			 *            writer
-			 */
-			public CopyStream(final InputStream r, final OutputStream w) {
-				this.reader = new BufferedInputStream(r, BUFFSIZE);
-				this.writer = w;
-			}
-
-			/**
-			 * Run by Thread.start().
-			 */
+	/** Preferences: Filter's version, changed whenever the filter changes. */
+	static final String PREFS_FILTER_VERSION = "filter_version";
+	/** Preferences: imported hosts file's version, 0 if there is none. */
+	static final String PREFS_HOSTS_VERSION = "hosts_version";
+	/** Preferences: use event loops instead of a thread per connection. */
+	static final String PREFS_EVENT_LOOP = "event_loop";
+	/** Preferences: number of event loops, 0 for one per core. */
+	static final String PREFS_EVENT_LOOPS = "event_loops";
+	/** Preferences: remove hidden elements and blocked scripts from HTML. */
+	static final String PREFS_HIDE_ELEMENTS = "hide_elements";
+	/** Preferences: max. number of running connections. */
+	static final String PREFS_MAX_CONNECTIONS = "max_connections";
+	/** Preferences: max. number of connections waiting for a worker. */
+	static final String PREFS_MAX_QUEUE = "max_queue";
+	/** Preferences: cache decisions for full URLs, not only hosts. */
+	static final String PREFS_CACHE_URLS = "cache_urls";
+	/** Preferences: size of relay buffers. */
+	static final String PREFS_BUFFER_SIZE = "buffer_size";
+	/** Preferences: max. number of idle relay buffers kept. */
+	static final String PREFS_BUFFER_POOL = "buffer_pool";
+	/** Preferences: timeout for idle connections in milliseconds. */
+	static final String PREFS_IDLE_TIMEOUT = "idle_timeout";
+	/** Preferences: timeout for reading a request header in milliseconds. */
+	static final String PREFS_HEADER_TIMEOUT = "header_timeout";
+	/** Preferences: timeout for connecting a remote host in milliseconds. */
+	static final String PREFS_CONNECT_TIMEOUT = "connect_timeout";
+
+	/** File holding the compiled filter. */
+	private static final String FILTER_FILE = "filter.bin";
+	/** File holding the hosts imported from a hosts file. */
+	static final String HOSTS_FILE = "hosts.bin";
+
+	static {
+		// core writes to the platform's log
+		Log.setSink(new Log.Sink() {
 			@Override
-			public void run() {
-				byte[] buf = new byte[BUFFSIZE];
-				int read = 0;
-				final InputStream r = this.reader;
-				final OutputStream w = this.writer;
-				try {
-					while (true) {
-						read = r.available();
-						if (read < 1 || read > BUFFSIZE) {
-							read = BUFFSIZE;
-						}
-						read = r.read(buf, 0, read);
-						if (read < 0) {
-							break;
-						}
-						w.write(buf, 0, read);
-						if (r.available() < 1) {
-							w.flush();
-						}
-					}
-					Connection.this.close(Connection.STATE_CLOSED_OUT);
-					// this.writer.close();
-				} catch (IOException e) {
-					// FIXME: java.net.SocketException: Broken pipe
-					// no idea, what causes this :/
-					// Connection c = Connection.this;
-					// String s = new String(buf, 0, read);
-					Log.e(TAG, null, e);
-				}
-			}
-		}
-
-		/**
-		 * Constructor.
-		 * 
-		 * @param socket
-		 *            local Socket
-		 */
-		public Connection(final Socket socket) {
-			this.local = socket;
-		}
-
-		/**
-		 * Check if URL is blocked.
-		 * 
-		 * @param url
-		 *            URL
-		 * @return if URL is blocked?
-		 */
-		private boolean checkURL(final String url) {
-			final ArrayList<String> f = Proxy.this.filter;
-			final int s = f.size();
-			for (int i = 0; i < s; i++) {
-				if (url.indexOf(f.get(i)) >= 0) {
-					return true;
-				}
-			}
-			return false;
-		}
-
-		/**
-		 * Read in HTTP Header. Parse for URL to connect to.
-		 * 
-		 * @param reader
-		 *            buffer reader from which we read the header
-		 * @param buffer
-		 *            buffer into which the header is written
-		 * @return URL to which we should connect, port other than 80 is given
-		 *         explicitly
-		 * @throws IOException
-		 *             inner IOException
-		 */
-		private URL readHeader(final BufferedInputStream reader,
-				final StringBuilder buffer) throws IOException {
-			URL ret = null;
-			String[] strings;
-			int avail;
-			byte[] buf = new byte[CopyStream.HEADERBUFFSIZE];
-			// read first line
-			if (this.state == STATE_CLOSED_OUT) {
-				return null;
-			}
-			avail = reader.available();
-			if (avail > CopyStream.HEADERBUFFSIZE) {
-				avail = CopyStream.HEADERBUFFSIZE;
-			} else if (avail == 0) {
-				avail = CopyStream.HEADERBUFFSIZE;
-			}
-			avail = reader.read(buf, 0, avail);
-			if (avail < 1) {
-				return null;
-			}
-			String line = new String(buf, 0, avail);
-			String testLine = line;
-			int i = line.indexOf(" http://");
-			if (i > 0) {
-				// remove "http://host:port" from line
-				int j = line.indexOf('/', i + 9);
-				if (j > i) {
-					testLine = line.substring(0, i + 1) + line.substring(j);
-				}
-			}
-			buffer.append(testLine);
-			strings = line.split(" ");
-			if (strings.length > 1) {
-				if (strings[0].equals("CONNECT")) {
-					String targetHost = strings[1];
-					int targetPort = PORT_HTTPS;
-					strings = targetHost.split(":");
-					if (strings.length > 1) {
-						targetPort = Integer.parseInt(strings[1]);
-						targetHost = strings[0];
-					}
-					ret = new URL("https://" + targetHost + ":" + targetPort);
-				} else if (strings[0].equals("GET")
-						|| strings[0].equals("POST")) {
-					String path = null;
-					if (strings[1].startsWith("http://")) {
-						ret = new URL(strings[1]);
-						path = ret.getPath();
-					} else {
-						path = strings[1];
-					}
-					// read header
-					String lastLine = line;
-					do {
-						testLine = lastLine + line;
-						i = testLine.indexOf("\nHost: ");
-						if (i >= 0) {
-							int j = testLine.indexOf("\n", i + 6);
-							if (j > 0) {
-								String tHost = testLine.substring(i + 6, j)
-										.trim();
-								ret = new URL("http://" + tHost + path);
-								break;
-							} else {
-								// test for "Host:" again with longer buffer
-								line = lastLine + line;
-							}
-						}
-						if (line.indexOf("\r\n\r\n") >= 0) {
-							break;
-						}
-						lastLine = line;
-						avail = reader.available();
-						if (avail > 0) {
-							if (avail > CopyStream.HEADERBUFFSIZE) {
-								avail = CopyStream.HEADERBUFFSIZE;
-							}
-							avail = reader.read(buf, 0, avail);
-							// FIXME: this may break
-							line = new String(buf, 0, avail);
-							buffer.append(line);
-						}
-					} while (avail > 0);
-				} else {
-					Log.d(TAG, "unknown method: " + strings[0]);
-				}
-			}
-			strings = null;
-
-			// copy rest of reader's buffer
-			avail = reader.available();
-			while (avail > 0) {
-				if (avail > CopyStream.HEADERBUFFSIZE) {
-					avail = CopyStream.HEADERBUFFSIZE;
-				}
-				avail = reader.read(buf, 0, avail);
-				// FIXME: this may break!
-				buffer.append(new String(buf, 0, avail));
-				avail = reader.available();
-			}
-			return ret;
-		}
-
-		/**
-		 * Close local and remote socket.
-		 * 
-		 * @param nextState
-		 *            state to go to
-		 * @return new state
-		 * @throws IOException
-		 *             IOException
-		 */
-		private synchronized short close(final short nextState)
-				throws IOException {
-			Log.d(TAG, "close(" + nextState + ")");
-			short mState = this.state;
-			if (mState == STATE_NORMAL || nextState == STATE_NORMAL) {
-				mState = nextState;
-			}
-			Socket mSocket;
-			if (mState != STATE_NORMAL) {
-				// close remote socket
-				mSocket = this.remote;
-				if (mSocket != null && mSocket.isConnected()) {
-					try {
-						mSocket.shutdownInput();
-						mSocket.shutdownOutput();
-					} catch (IOException e) {
-						Log.d(TAG, null, e);
-					}
-					mSocket.close();
-				}
-				this.remote = null;
-			}
-			if (mState == STATE_CLOSED_OUT) {
-				// close local socket
-				mSocket = this.local;
-				if (mSocket.isConnected()) {
-					try {
-						mSocket.shutdownOutput();
-						mSocket.shutdownInput();
-					} catch (IOException e) {
-						Log.d(TAG, null, e);
-					}
-					mSocket.close();
-				}
-			}
-			this.state = mState;
-			return mState;
-		}
-
-		/**
-		 * {@inheritDoc}
-		 */
-		@Override
-		public void run() {
-			BufferedInputStream lInStream;
-			OutputStream lOutStream;
-			BufferedWriter lWriter;
-			try {
-				lInStream = new BufferedInputStream(
-						this.local.getInputStream(), CopyStream.BUFFSIZE);
-				lOutStream = this.local.getOutputStream();
-				lWriter = new BufferedWriter(
-						new OutputStreamWriter(lOutStream), // .
-						CopyStream.BUFFSIZE);
-			} catch (IOException e) {
-				Log.e(TAG, null, e);
-				return;
+			public void println(final int priority, final String tag,
+					final String msg) {
+				android.util.Log.println(priority, tag, msg);
 			}
-			try {
-				InputStream rInStream = null;
-				OutputStream rOutStream = null;
-				BufferedWriter remoteWriter = null;
-				Thread rThread = null;
-				StringBuilder buffer = new StringBuilder();
-				boolean block = false;
-				String tHost = null;
-				int tPort = -1;
-				URL url;
-				boolean connectSSL = false;
-				while (this.local.isConnected()) {
-					buffer = new StringBuilder();
-					url = this.readHeader(lInStream, buffer);
-					if (buffer.length() == 0) {
-						break;
-					}
-					if (this.local.isConnected() && rThread != null
-							&& !rThread.isAlive()) {
-						// socket should be closed allready..
-						Log.d(TAG, "close dead remote");
-						if (connectSSL) {
-							this.local.close();
-						}
-						tHost = null;
-						rInStream = null;
-						rOutStream = null;
-						rThread = null;
-					}
-					if (url != null) {
-						block = this.checkURL(url.toString());
-						Log.d(TAG, "new url: " + url.toString());
-						if (!block) {
-							// new connection needed?
-							int p = url.getPort();
-							if (p < 0) {
-								p = PORT_HTTP;
-							}
-							if (tHost == null || !tHost.equals(url.getHost())
-									|| tPort != p) {
-								// create new connection
-								Log.d(TAG, "shutdown old remote");
-								this.close(STATE_CLOSED_IN);
-								if (rThread != null) {
-									rThread.join();
-									rThread = null;
-								}
-
-								tHost = url.getHost();
-								tPort = p;
-								Log.d(TAG, "new socket: " + url.toString());
-								this.state = STATE_NORMAL;
-								this.remote = new Socket();
-								this.remote.connect(new InetSocketAddress(
-										tHost, tPort));
-								rInStream = this.remote.getInputStream();
-								rOutStream = this.remote.getOutputStream();
-								rThread = new Thread(new CopyStream(rInStream,
-										lOutStream));
-								rThread.start();
-								if (url.getProtocol().startsWith("https")) {
-									connectSSL = true;
-									lWriter.write(HTTP_CONNECTED
-											+ HTTP_RESPONSE);
-									lWriter.flush();
-									// copy local to remote by blocks
-									Thread t2 = new Thread(new CopyStream(
-											lInStream, rOutStream));
-
-									t2.start();
-									remoteWriter = null;
-									break; // copy in separate thread. break
-									// while here
-								} else {
-									remoteWriter = new BufferedWriter(
-											new OutputStreamWriter(rOutStream),
-											CopyStream.BUFFSIZE);
-								}
-							}
-						}
-					}
-					// push data to remote if not blocked
-					if (block) {
-						lWriter.append(HTTP_BLOCK + HTTP_RESPONSE
-								+ "BLOCKED by AdBlock!");
-						lWriter.flush();
-					} else {
-						Socket mSocket = this.remote;
-						if (mSocket != null && mSocket.isConnected()
-								&& remoteWriter != null) {
-							try {
-								remoteWriter.append(buffer);
-								remoteWriter.flush();
-							} catch (IOException e) {
-								Log.d(TAG, buffer.toString(), e);
-							}
-						}
-					}
-				}
-				if (rThread != null && rThread.isAlive()) {
-					rThread.join();
-				}
-			} catch (InterruptedException e) {
-				Log.e(TAG, null, e);
-			} catch (IOException e) {
-				Log.e(TAG, null, e);
-				try {
-					lWriter.append(HTTP_ERROR + " - " + e.toString()
-							+ HTTP_RESPONSE + e.toString());
-					lWriter.flush();
-					lWriter.close();
-					this.local.close();
-				} catch (IOException e1) {
-					Log.e(TAG, null, e1);
-				}
-			}
-			Log.d(TAG, "close connection");
-		}
+		});
 	}
 
+	/** Proxy. */
+	private Thread proxy = null;
+	/** The proxy itself. */
+	private final ProxyServer server = new ProxyServer();
+	/** Thread loading the filter, reloads are done in order. */
+	private final ExecutorService loader = Executors
+			.newSingleThreadExecutor();
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -629,38 +229,102 @@ public class Proxy extends Service implements Runnable {
 		notification.defaults |= Notification.FLAG_NO_CLEAR;
 		this.startForegroundCompat(0, notification, false);
 
-		SharedPreferences preferences = PreferenceManager
+		final SharedPreferences preferences = PreferenceManager
 				.getDefaultSharedPreferences(this);
+		final ProxyServer s = this.server;
 		int p = Integer.parseInt(preferences.getString(PREFS_PORT, "8080"));
-		boolean portChanged = p != this.port;
-		this.port = p;
-
-		String f = preferences.getString(PREFS_FILTER, "");
-		final ArrayList<String> fl = this.filter;
-		fl.clear();
-		for (String s : f.split("\n")) {
-			if (s.length() > 0) {
-				fl.add(s);
+		// a running proxy binds the new port before it drops the old one
+		s.setPort(p);
+		s.setShards(preferences.getInt(PREFS_EVENT_LOOPS, 0));
+		s.setEventLoop(preferences.getBoolean(PREFS_EVENT_LOOP, false));
+		s.setRewriteHtml(preferences.getBoolean(PREFS_HIDE_ELEMENTS, false));
+		s.setMaxConnections(preferences.getInt(PREFS_MAX_CONNECTIONS,
+				ProxyServer.DEFAULT_MAX_CONNECTIONS));
+		s.setMaxQueue(preferences.getInt(PREFS_MAX_QUEUE,
+				ProxyServer.DEFAULT_MAX_QUEUE));
+		s.setBufferSize(preferences.getInt(PREFS_BUFFER_SIZE,
+				Relay.BUFFSIZE));
+		s.setBufferPool(preferences.getInt(PREFS_BUFFER_POOL,
+				ProxyServer.DEFAULT_BUFFER_POOL));
+		s.setTimeouts(preferences.getInt(PREFS_IDLE_TIMEOUT,
+				ProxyServer.DEFAULT_IDLE_TIMEOUT), preferences.getInt(
+				PREFS_HEADER_TIMEOUT, ProxyServer.DEFAULT_HEADER_TIMEOUT),
+				preferences.getInt(PREFS_CONNECT_TIMEOUT,
+						ProxyServer.DEFAULT_CONNECT_TIMEOUT));
+
+		final boolean cacheURLs = preferences.getBoolean(PREFS_CACHE_URLS,
+				false);
+		final long version = preferences.getLong(PREFS_FILTER_VERSION, 0);
+		final long hostsVersion = preferences.getLong(PREFS_HOSTS_VERSION, 0);
+		// the running proxy keeps using the old filter meanwhile
+		this.loader.execute(new Runnable() {
+			@Override
+			public void run() {
+				final FilterSet fs = Proxy.this.loadFilter(preferences,
+						version, hostsVersion, cacheURLs);
+				final FilterSet old = s.setFilter(fs);
+				// decisions made with the old filter are void
+				Log.d(TAG, "old " + old.getCacheStats());
+				Log.d(TAG, fs.toString());
 			}
-		}
+		});
 		if (this.proxy == null) {
 			// Toast.makeText(this, "starting proxy on port: " + this.port,
 			// Toast.LENGTH_SHORT).show();
-			final Thread pr = new Thread(this);
+			final Thread pr = new Thread(s);
 			pr.start();
 			this.proxy = pr;
 		} else {
 			Toast.makeText(this,
-					this.getString(R.string.proxy_running) + " " + this.port,
+					this.getString(R.string.proxy_running) + " " + p,
 					Toast.LENGTH_SHORT).show();
-			if (portChanged) {
-				Thread pr = this.proxy;
-				pr.interrupt();
-				pr = new Thread(this);
-				pr.start();
-				this.proxy = pr;
+		}
+	}
+
+	/**
+	 * Load the compiled filter, compile it if needed.
+	 * 
+	 * @param preferences
+	 *            {@link SharedPreferences} holding the filter
+	 * @param version
+	 *            filter's version
+	 * @param hostsVersion
+	 *            imported hosts file's version
+	 * @param cacheURLs
+	 *            cache decisions for full URLs, not only hosts
+	 * @return {@link FilterSet}
+	 */
+	private FilterSet loadFilter(final SharedPreferences preferences,
+			final long version, final long hostsVersion,
+			final boolean cacheURLs) {
+		HostIndex list = null;
+		if (hostsVersion != 0) {
+			list = HostsList.load(this.getFileStreamPath(HOSTS_FILE),
+					hostsVersion);
+			if (list == null) {
+				Log.w(TAG, "hosts file missing: " + hostsVersion);
+			}
+		}
+		final File file = this.getFileStreamPath(FILTER_FILE);
+		FilterSet fs = FilterSet.load(file, version, list, cacheURLs);
+		if (fs == null) {
+			// compile filter once, it is mapped on next start
+			Log.d(TAG, "compile filter: " + version);
+			final ArrayList<String> fl = new ArrayList<String>();
+			for (String s : preferences.getString(PREFS_FILTER, "").split(
+					"\n")) {
+				if (s.length() > 0) {
+					fl.add(s);
+				}
+			}
+			fs = new FilterSet(fl, list, cacheURLs);
+			try {
+				fs.write(file, version);
+			} catch (IOException e) {
+				Log.e(TAG, null, e);
 			}
 		}
+		return fs;
 	}
 
 	/**
@@ -670,33 +334,8 @@ public class Proxy extends Service implements Runnable {
 	public final void onDestroy() {
 		super.onDestroy();
 		Toast.makeText(this, R.string.proxy_stopped, Toast.LENGTH_LONG).show();
-		this.stop = true;
+		this.server.stop();
+		this.loader.shutdown();
 		this.stopForegroundCompat();
 	}
-
-	/**
-	 * {@inheritDoc}
-	 */
-	@Override
-	public final void run() {
-		try {
-			int p = this.port;
-			ServerSocket sock = new ServerSocket(p);
-			Socket client;
-			while (!this.stop && p == this.port) {
-				if (p != this.port) {
-					break;
-				}
-				client = sock.accept();
-				if (client != null) {
-					Log.d(TAG, "new client");
-					Thread t = new Thread(new Connection(client));
-					t.start();
-				}
-			}
-			sock.close();
-		} catch (IOException e) {
-			Log.e(TAG, null, e);
-		}
-	}
 }
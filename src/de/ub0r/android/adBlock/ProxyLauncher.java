@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+
+/**
+ * Run the {@link ProxyServer} on a plain JVM:
+ * 
+ * <pre>
+ * java -jar adblock-core.jar [options] [rules file ...]
+ * </pre>
+ * 
+ * Rules files hold one filter per line, just like the app's filter list.
+ * 
+ * @author Felix Bechstein
+ */
+public final class ProxyLauncher {
+	/** Tag for output. */
+	private static final String TAG = "AdBlock.ProxyLauncher";
+
+	/** Milliseconds per second. */
+	private static final int MILLIS = 1000;
+	/** Default port. */
+	private static final int DEFAULT_PORT = 8080;
+	/** Usage. */
+	private static final String USAGE = "usage: ProxyLauncher [options] "
+			+ "[rules file ...]\n"
+			+ "  -p port      listen on port on all interfaces, default "
+			+ DEFAULT_PORT + "\n"
+			+ "  -l [host:]port\n"
+			+ "               listen on address, -p and -l may be repeated\n"
+			+ "  -H file      block hosts listed in a hosts file\n"
+			+ "  -e           use event loops instead of a thread per "
+			+ "connection\n"
+			+ "  -s number    number of event loops, default one per core\n"
+			+ "  -a number    number of threads accepting on each address\n"
+			+ "  -r           remove hidden elements and blocked scripts and "
+			+ "images\n               from HTML pages\n"
+			+ "  -u           cache decisions for full URLs, not only hosts\n"
+			+ "  -c number    max. number of running connections\n"
+			+ "  -q number    max. number of connections waiting for a worker\n"
+			+ "  -t idle,header,connect\n"
+			+ "               timeouts in seconds, default "
+			+ (ProxyServer.DEFAULT_IDLE_TIMEOUT / MILLIS) + ","
+			+ (ProxyServer.DEFAULT_HEADER_TIMEOUT / MILLIS) + ","
+			+ (ProxyServer.DEFAULT_CONNECT_TIMEOUT / MILLIS) + "\n"
+			+ "  -g seconds   time given to connections to finish on stop, "
+			+ "default " + (ProxyServer.DEFAULT_GRACE_PERIOD / MILLIS) + "\n"
+			+ "  -v           log debug messages";
+
+	/**
+	 * No instances.
+	 */
+	private ProxyLauncher() {
+	}
+
+	/**
+	 * Main.
+	 * 
+	 * @param args
+	 *            options and rules files
+	 * @throws IOException
+	 *             rules or hosts file could not be read
+	 */
+	public static void main(final String[] args) throws IOException {
+		final ProxyServer server = new ProxyServer();
+		final ArrayList<InetSocketAddress> addresses = // .
+		new ArrayList<InetSocketAddress>();
+		final ArrayList<String> filter = new ArrayList<String>();
+		String hosts = null;
+		boolean cacheURLs = false;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				final String a = args[i];
+				if (a.equals("-p")) {
+					addresses.add(new InetSocketAddress(Integer
+							.parseInt(args[++i])));
+				} else if (a.equals("-l")) {
+					addresses.add(parseAddress(args[++i]));
+				} else if (a.equals("-H")) {
+					hosts = args[++i];
+				} else if (a.equals("-e")) {
+					server.setEventLoop(true);
+				} else if (a.equals("-s")) {
+					server.setShards(Integer.parseInt(args[++i]));
+				} else if (a.equals("-a")) {
+					server.setAcceptors(Integer.parseInt(args[++i]));
+				} else if (a.equals("-r")) {
+					server.setRewriteHtml(true);
+				} else if (a.equals("-u")) {
+					cacheURLs = true;
+				} else if (a.equals("-c")) {
+					server.setMaxConnections(Integer.parseInt(args[++i]));
+				} else if (a.equals("-q")) {
+					server.setMaxQueue(Integer.parseInt(args[++i]));
+				} else if (a.equals("-t")) {
+					final String[] t = args[++i].split(",");
+					server.setTimeouts(Integer.parseInt(t[0]) * MILLIS,
+							Integer.parseInt(t[1]) * MILLIS, Integer
+									.parseInt(t[2]) * MILLIS);
+				} else if (a.equals("-g")) {
+					server.setGracePeriod(Integer.parseInt(args[++i]) * MILLIS);
+				} else if (a.equals("-v")) {
+					Log.setLevel(Log.DEBUG);
+				} else if (a.startsWith("-")) {
+					usage();
+					return;
+				} else {
+					readRules(a, filter);
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			usage();
+			return;
+		} catch (IllegalArgumentException e) {
+			// NumberFormatException or bad address
+			usage();
+			return;
+		}
+		if (addresses.isEmpty()) {
+			addresses.add(new InetSocketAddress(DEFAULT_PORT));
+		}
+		server.setAddresses(addresses);
+
+		HostIndex list = null;
+		if (hosts != null) {
+			final InputStream in = new FileInputStream(hosts);
+			try {
+				list = HostsList.parse(in);
+			} finally {
+				in.close();
+			}
+		}
+		final FilterSet fs = new FilterSet(filter, list, cacheURLs);
+		server.setFilter(fs);
+		Log.i(TAG, "listening on " + addresses + ", " + fs);
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				server.stop();
+				Log.i(TAG, "stop: " + server.getResolver() + ", "
+						+ server.getFilter().getCacheStats() + "\n"
+						+ ProxyServer.getMetrics());
+			}
+		});
+		server.run();
+	}
+
+	/**
+	 * Read a rules file, one filter per line.
+	 * 
+	 * @param file
+	 *            rules file
+	 * @param filter
+	 *            list the filters are added to
+	 * @throws IOException
+	 *             IOException
+	 */
+	private static void readRules(final String file,
+			final ArrayList<String> filter) throws IOException {
+		final BufferedReader r = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		try {
+			String s;
+			while ((s = r.readLine()) != null) {
+				s = s.trim();
+				if (s.length() > 0) {
+					filter.add(s);
+				}
+			}
+		} finally {
+			r.close();
+		}
+	}
+
+	/**
+	 * Parse a listen address.
+	 * 
+	 * @param s
+	 *            [host:]port, IPv6 hosts in brackets
+	 * @return address, on all interfaces if no host is given
+	 */
+	private static InetSocketAddress parseAddress(final String s) {
+		final int i = s.lastIndexOf(':');
+		if (i < 0) {
+			return new InetSocketAddress(Integer.parseInt(s));
+		}
+		String host = s.substring(0, i);
+		if (host.startsWith("[") && host.endsWith("]")) {
+			host = host.substring(1, host.length() - 1);
+		}
+		return new InetSocketAddress(host, Integer.parseInt(s
+				.substring(i + 1)));
+	}
+
+	/**
+	 * Print usage.
+	 */
+	private static void usage() {
+		System.err.println(USAGE);
+	}
+}
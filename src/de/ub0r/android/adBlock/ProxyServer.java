@@ -0,0 +1,1362 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ProxyServer is the ad blocking HTTP proxy itself. It does not depend on
+ * Android and runs on any JVM, the {@link Proxy} Service and
+ * {@link ProxyLauncher} merely configure and run it.
+ * 
+ * @author Felix Bechstein
+ */
+final class ProxyServer implements Runnable, Listeners.Handler {
+	/** Tag for output. */
+	private static final String TAG = "AdBlock.ProxyServer";
+
+	/** HTTP Response: blocked. */
+	private static final String HTTP_BLOCK = "HTTP/1.1 500 blocked by AdBlock";
+	/** HTTP Response: error. */
+	private static final String HTTP_ERROR = "HTTP/1.1 500 error by AdBlock";
+	/** HTTP Response: connected. */
+	private static final String HTTP_CONNECTED = "HTTP/1.1 200 connected";
+	/** HTTP Response: flush. */
+	private static final String HTTP_RESPONSE = "\n\n";
+	/** Body of blocked responses. */
+	private static final String BLOCK_BODY = "BLOCKED by AdBlock!";
+	/** Time clients may cache blocked responses in seconds. */
+	private static final int BLOCK_MAX_AGE = 3600;
+	/** HTTP Response: blocked, framed header keeping the connection open. */
+	private static final String HTTP_BLOCK_HEADER = HTTP_BLOCK
+			+ "\r\nContent-Type: text/plain\r\nContent-Length: "
+			+ BLOCK_BODY.length() + "\r\nCache-Control: max-age="
+			+ BLOCK_MAX_AGE + "\r\nConnection: keep-alive\r\n\r\n";
+
+	/** HTTP Response: blocked, preencoded. */
+	static final byte[] RESPONSE_BLOCK = (HTTP_BLOCK_HEADER + BLOCK_BODY)
+			.getBytes();
+	/** HTTP Response: blocked, preencoded for HEAD requests. */
+	static final byte[] RESPONSE_BLOCK_HEAD = HTTP_BLOCK_HEADER.getBytes();
+	/** HTTP Response: error, preencoded. */
+	static final byte[] RESPONSE_ERROR = (HTTP_ERROR + HTTP_RESPONSE)
+			.getBytes();
+	/** HTTP Response: connected, preencoded. */
+	static final byte[] RESPONSE_CONNECTED = (HTTP_CONNECTED + HTTP_RESPONSE)
+			.getBytes();
+	/** HTTP Response: overloaded, preencoded. */
+	private static final byte[] RESPONSE_OVERLOADED = // .
+	("HTTP/1.1 503 overloaded by AdBlock\r\nContent-Length: 0\r\n"
+			+ "Connection: close\r\n\r\n").getBytes();
+
+	/** Default Port for HTTP. */
+	static final int PORT_HTTP = 80;
+	/** Default Port for HTTPS. */
+	static final int PORT_HTTPS = 443;
+
+	/** Default max. number of event loops, if not set explicitly. */
+	private static final int MAX_EVENT_LOOPS = 4;
+	/** Default max. number of running connections. */
+	static final int DEFAULT_MAX_CONNECTIONS = 32;
+	/** Default max. number of connections waiting for a worker. */
+	static final int DEFAULT_MAX_QUEUE = 16;
+	/** Max. number of idle remote connections per host. */
+	private static final int UPSTREAM_MAX_PER_HOST = 4;
+	/** Max. number of idle remote connections. */
+	private static final int UPSTREAM_MAX_IDLE = 16;
+	/** Timeout for idle remote connections in milliseconds. */
+	private static final int UPSTREAM_TIMEOUT = 30000;
+	/** Default max. number of idle relay buffers kept. */
+	static final int DEFAULT_BUFFER_POOL = 16;
+	/** Default timeout for idle connections in milliseconds. */
+	static final int DEFAULT_IDLE_TIMEOUT = 120000;
+	/** Default timeout for reading a request header in milliseconds. */
+	static final int DEFAULT_HEADER_TIMEOUT = 30000;
+	/** Default timeout for connecting a remote host in milliseconds. */
+	static final int DEFAULT_CONNECT_TIMEOUT = 15000;
+	/**
+	 * Default time given to connections to finish after stop or switching
+	 * modes in milliseconds.
+	 */
+	static final int DEFAULT_GRACE_PERIOD = 10000;
+	/** Time between checks for finished connections in milliseconds. */
+	private static final int DRAIN_TICK = 100;
+
+	/** Metrics of the proxy running in this process. */
+	private static final Metrics METRICS = new Metrics();
+
+	/** Proxy's addresses. */
+	private volatile List<InetSocketAddress> addresses = // .
+	new ArrayList<InetSocketAddress>();
+	/** Listening sockets of running proxy. */
+	private final Listeners listeners = new Listeners(this);
+	/** {@link Engine} serving new connections. */
+	private volatile Engine engine = null;
+	/** Is the proxy running? */
+	private boolean running = false;
+	/**
+	 * Proxy's compiled filter. It is never modified, reloads build a new one
+	 * and swap it in.
+	 */
+	private final AtomicReference<FilterSet> filterSet = // .
+	new AtomicReference<FilterSet>(new FilterSet(new ArrayList<String>(),
+			false));
+	/** {@link Resolver} caching looked up hosts. */
+	private final Resolver resolver = new Resolver(Resolver.DEFAULT_SIZE,
+			METRICS);
+	/** Stop proxy? */
+	private volatile boolean stop = false;
+	/** Use event loops? */
+	private volatile boolean eventLoop = false;
+	/** Rewrite HTML responses? */
+	private volatile boolean rewriteHtml = false;
+	/** Max. number of running connections. */
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	/** Max. number of connections waiting for a worker. */
+	private int maxQueue = DEFAULT_MAX_QUEUE;
+	/** Size of relay buffers. */
+	private int bufferSize = Relay.BUFFSIZE;
+	/** Max. number of idle relay buffers kept. */
+	private int bufferPool = DEFAULT_BUFFER_POOL;
+	/** Timeout for idle connections in milliseconds. */
+	private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	/** Timeout for reading a request header in milliseconds. */
+	private int headerTimeout = DEFAULT_HEADER_TIMEOUT;
+	/** Timeout for connecting a remote host in milliseconds. */
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	/** Time given to connections to finish in milliseconds. */
+	private int gracePeriod = DEFAULT_GRACE_PERIOD;
+	/** Number of event loops, 0 for one per core. */
+	private int shards = 0;
+
+	/**
+	 * Engine serves accepted connections in one of the proxy's modes.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	private interface Engine {
+		/**
+		 * Serve an accepted connection.
+		 * 
+		 * @param client
+		 *            client's channel, in blocking mode
+		 */
+		void serve(SocketChannel client);
+
+		/**
+		 * @return number of connections served or waiting to be served
+		 */
+		int getActive();
+
+		/**
+		 * Close all connections and release resources.
+		 */
+		void close();
+	}
+
+	/**
+	 * ThreadEngine serves each connection in it's own Thread.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	private final class ThreadEngine implements Engine {
+		/** Workers running the Connections. */
+		private final WorkerPool workers;
+		/** Relay buffers. */
+		private final BufferPool buffers;
+		/** Idle remote connections. */
+		private final UpstreamPool upstreams;
+		/** {@link Reaper} closing stalled Connections. */
+		private final Reaper reaper;
+
+		/**
+		 * Constructor. Start the {@link Reaper}.
+		 */
+		ThreadEngine() {
+			final ProxyServer p = ProxyServer.this;
+			// a remote side per Connection and the idle ones
+			this.workers = new WorkerPool(p.maxConnections, p.maxQueue,
+					p.maxConnections + UPSTREAM_MAX_IDLE);
+			this.buffers = new BufferPool(p.bufferSize, p.bufferPool);
+			this.upstreams = new UpstreamPool(UPSTREAM_MAX_PER_HOST,
+					UPSTREAM_MAX_IDLE, UPSTREAM_TIMEOUT, this.buffers,
+					p.resolver, METRICS);
+			this.reaper = p.newReaper(METRICS);
+			final Thread t = new Thread(this.reaper, "Reaper");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void serve(final SocketChannel client) {
+			final Socket s = client.socket();
+			if (!this.workers.execute(new Connection(s, this.workers,
+					this.upstreams, this.buffers, this.reaper))) {
+				Log.w(TAG, "overloaded: " + this.workers);
+				ProxyServer.this.reject(s);
+				METRICS.rejected();
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int getActive() {
+			return this.workers.getRunning() + this.workers.getQueued();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void close() {
+			this.reaper.stop();
+			this.reaper.reapAll();
+			this.upstreams.clear();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public String toString() {
+			return this.workers + ", " + this.upstreams + ", " + this.buffers
+					+ ", " + this.reaper;
+		}
+	}
+
+	/**
+	 * LoopEngine serves all connections by a fixed number of
+	 * {@link EventLoop}s. Each loop is a shard with it's own buffers and
+	 * {@link Metrics}, the acceptors hand connections to them in turn.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	private final class LoopEngine implements Engine {
+		/** Running {@link EventLoop}s. */
+		private final EventLoop[] loops;
+		/** Number of served connections, picks the next loop. */
+		private final AtomicInteger next = new AtomicInteger();
+
+		/**
+		 * Constructor. Start the {@link EventLoop}s.
+		 * 
+		 * @throws IOException
+		 *             IOException
+		 */
+		LoopEngine() throws IOException {
+			final ProxyServer p = ProxyServer.this;
+			final int cores = Runtime.getRuntime().availableProcessors();
+			int n = p.shards;
+			if (n <= 0) {
+				n = Math.min(MAX_EVENT_LOOPS, cores);
+			}
+			n = Math.max(1, n);
+			final EventLoop[] l = new EventLoop[n];
+			try {
+				for (int i = 0; i < n; i++) {
+					l[i] = new EventLoop(p, METRICS.newShard(), p.bufferSize,
+							p.bufferPool);
+					new Thread(l[i], "EventLoop-" + i).start();
+				}
+			} catch (IOException e) {
+				for (EventLoop loop : l) {
+					if (loop != null) {
+						loop.stop();
+					}
+				}
+				throw e;
+			}
+			this.loops = l;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void serve(final SocketChannel client) {
+			final EventLoop[] l = this.loops;
+			l[(this.next.getAndIncrement() & Integer.MAX_VALUE) % l.length]
+					.add(client);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int getActive() {
+			int ret = 0;
+			for (EventLoop l : this.loops) {
+				ret += l.getSessions();
+			}
+			return ret;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void close() {
+			for (EventLoop l : this.loops) {
+				l.stop();
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder("event loops: ");
+			sb.append(this.loops.length);
+			for (int i = 0; i < this.loops.length; i++) {
+				final EventLoop l = this.loops[i];
+				sb.append("\n").append(i).append(": sessions: ");
+				sb.append(l.getSessions()).append(", ");
+				sb.append(l.getBuffers());
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Connection handles a single HTTP Connection. Run this as a Thread.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	private class Connection implements Runnable, Upstream.Listener,
+			Reaper.Target {
+
+		// cache object.refs
+		// no private object.refs accessed by inner classes
+		// TODO: reduce object creation
+
+		/** Local Socket. */
+		private final Socket local;
+		/** {@link WorkerPool} running this Connection. */
+		private final WorkerPool workers;
+		/** {@link UpstreamPool} holding idle remote connections. */
+		private final UpstreamPool upstreams;
+		/** {@link BufferPool} holding relay buffers. */
+		private final BufferPool buffers;
+		/** {@link Reaper} closing this Connection when it stalls. */
+		private final Reaper reaper;
+		/** State and activity tracked by the {@link Reaper}. */
+		private Reaper.Entry activity;
+		/** Remote connection. */
+		private Upstream remote;
+		/** Remote connection is a tunnel opened by CONNECT. */
+		private boolean tunnel = false;
+
+		/** State: normal. */
+		private static final short STATE_NORMAL = 0;
+		/** State: closed by local side. */
+		private static final short STATE_CLOSED_IN = 1;
+		/** State: closed by remote side. */
+		private static final short STATE_CLOSED_OUT = 2;
+		/** Connections state. */
+		private short state = STATE_NORMAL;
+
+		/** Size of header buffer. */
+		private static final int HEADERBUFFSIZE = 4096;
+		/** Max. size of header buffer. */
+		private static final int MAX_HEADERBUFFSIZE = 65536;
+		/** Buffer holding the current request. */
+		private byte[] buf = new byte[HEADERBUFFSIZE];
+		/** Number of bytes in buf. */
+		private int len = 0;
+		/** Parser finding the end of current request's body. */
+		private final BodyParser body = new BodyParser();
+
+		/**
+		 * CopyStream reads one stream and writes it's data into an other
+		 * stream. Run this as a Thread.
+		 * 
+		 * @author Felix Bechstein
+		 */
+		private class CopyStream implements Runnable {
+			/** Reader. */
+			private final InputStream reader;
+			/** Writer. */
+			private final OutputStream writer;
+
+			/**
+			 * Constructor.
+			 * 
+			 * @param r
+			 *            reader
+			 * @param w
+			 *            writer
+			 */
+			public CopyStream(final InputStream r, final OutputStream w) {
+				this.reader = r;
+				this.writer = w;
+			}
+
+			/**
+			 * Run by Thread.start().
+			 */
+			@Override
+			public void run() {
+				final BufferPool bp = Connection.this.buffers;
+				final byte[] b = bp.get();
+				try {
+					METRICS.sent(Relay.copy(this.reader, this.writer, b,
+							Connection.this.activity));
+					Connection.this.close(Connection.STATE_CLOSED_OUT);
+					// this.writer.close();
+				} catch (IOException e) {
+					// FIXME: java.net.SocketException: Broken pipe
+					// no idea, what causes this :/
+					// Connection c = Connection.this;
+					// String s = new String(buf, 0, read);
+					if (Connection.this.activity.isReaped()) {
+						Log.d(TAG, "reaped: " + e);
+					} else {
+						Log.e(TAG, null, e);
+					}
+				} finally {
+					bp.put(b);
+				}
+			}
+		}
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param socket
+		 *            local Socket
+		 * @param pool
+		 *            {@link WorkerPool} running this Connection
+		 * @param up
+		 *            {@link UpstreamPool} holding idle remote connections
+		 * @param bp
+		 *            {@link BufferPool} holding relay buffers
+		 * @param r
+		 *            {@link Reaper} closing stalled connections
+		 */
+		public Connection(final Socket socket, final WorkerPool pool,
+				final UpstreamPool up, final BufferPool bp, final Reaper r) {
+			this.local = socket;
+			this.workers = pool;
+			this.upstreams = up;
+			this.buffers = bp;
+			this.reaper = r;
+		}
+
+		/**
+		 * Read in HTTP Header. Parse for host and port to connect to. Data
+		 * left over from the last request is parsed first, it may hold the
+		 * next pipelined request.
+		 * 
+		 * @param reader
+		 *            buffer reader from which we read the header
+		 * @param header
+		 *            {@link HeaderParser} holding the parsed header afterwards
+		 * @return number of bytes in buf, 0 if there is nothing left
+		 * @throws IOException
+		 *             inner IOException
+		 */
+		private int readHeader(final InputStream reader,
+				final HeaderParser header) throws IOException {
+			if (this.state == STATE_CLOSED_OUT) {
+				return 0;
+			}
+			header.reset(0);
+			final Reaper.Entry a = this.activity;
+			byte[] b = this.buf;
+			int len = this.len;
+			int result = HeaderParser.INCOMPLETE;
+			long nanos = 0;
+			if (len > 0) {
+				a.enter(Reaper.STATE_HEADER);
+				final long t = System.nanoTime();
+				result = header.parse(b, len);
+				nanos += System.nanoTime() - t;
+			}
+			while (result == HeaderParser.INCOMPLETE) {
+				if (len == b.length) {
+					if (len >= MAX_HEADERBUFFSIZE) {
+						break;
+					}
+					final byte[] nb = new byte[len * 2];
+					System.arraycopy(b, 0, nb, 0, len);
+					b = nb;
+					this.buf = b;
+				}
+				final int read = reader.read(b, len, b.length - len);
+				if (read < 0) {
+					break;
+				}
+				if (len == 0) {
+					// header deadline starts with it's first byte
+					a.enter(Reaper.STATE_HEADER);
+				} else {
+					a.touch();
+				}
+				len += read;
+				final long t = System.nanoTime();
+				result = header.parse(b, len);
+				nanos += System.nanoTime() - t;
+			}
+			if (result == HeaderParser.COMPLETE) {
+				METRICS.parsed(nanos);
+			}
+			a.enter(Reaper.STATE_IDLE);
+			this.len = len;
+			return len;
+		}
+
+		/**
+		 * Send or drop the rest of current request's body. Any data behind
+		 * the body is kept in buf for the next request.
+		 * 
+		 * @param reader
+		 *            local input
+		 * @param out
+		 *            remote output, null to drop the body
+		 * @param end
+		 *            end of current request's data in buf
+		 * @throws IOException
+		 *             IOException
+		 */
+		private void finishBody(final InputStream reader,
+				final OutputStream out, final int end) throws IOException {
+			final byte[] b = this.buf;
+			final BodyParser bp = this.body;
+			int len = this.len;
+			int e = end;
+			boolean flush = false;
+			while (!bp.isDone()) {
+				len = reader.read(b, 0, b.length);
+				if (len < 0) {
+					len = 0;
+					e = 0;
+					break;
+				}
+				this.activity.touch();
+				e = bp.parse(b, 0, len);
+				if (e == BodyParser.ERROR) {
+					throw new IOException("invalid request body");
+				}
+				if (out != null) {
+					out.write(b, 0, e);
+					METRICS.sent(e);
+					flush = true;
+				}
+			}
+			if (flush) {
+				out.flush();
+			}
+			System.arraycopy(b, e, b, 0, len - e);
+			this.len = len - e;
+		}
+
+		/**
+		 * Close local and remote socket.
+		 * 
+		 * @param nextState
+		 *            state to go to, remote connection is returned to the
+		 *            {@link UpstreamPool} on STATE_CLOSED_IN
+		 * @return new state
+		 * @throws IOException
+		 *             IOException
+		 */
+		private synchronized short close(final short nextState)
+				throws IOException {
+			Log.d(TAG, "close(" + nextState + ")");
+			short mState = this.state;
+			if (mState == STATE_NORMAL || nextState == STATE_NORMAL) {
+				mState = nextState;
+			}
+			if (mState != STATE_NORMAL) {
+				// release remote connection
+				final Upstream u = this.remote;
+				this.remote = null;
+				if (u != null) {
+					if (mState == STATE_CLOSED_IN && !this.tunnel
+							&& u.isIdle()) {
+						this.upstreams.put(u);
+					} else {
+						u.close();
+					}
+				}
+			}
+			if (mState == STATE_CLOSED_OUT) {
+				// close local socket
+				final Socket mSocket = this.local;
+				if (mSocket.isConnected()) {
+					try {
+						mSocket.shutdownOutput();
+						mSocket.shutdownInput();
+					} catch (IOException e) {
+						Log.d(TAG, null, e);
+					}
+					mSocket.close();
+				}
+			}
+			this.state = mState;
+			return mState;
+		}
+
+		/**
+		 * Remote host closed the connection. Close local side too, unless all
+		 * responses were complete.
+		 * 
+		 * @param upstream
+		 *            {@link Upstream}
+		 * @param complete
+		 *            all responses were sent to the client
+		 */
+		@Override
+		public void closed(final Upstream upstream, final boolean complete) {
+			synchronized (this) {
+				if (upstream != this.remote) {
+					return;
+				}
+				if (complete) {
+					// keep the client, next request gets a new Upstream
+					this.remote = null;
+					return;
+				}
+			}
+			try {
+				this.close(STATE_CLOSED_OUT);
+			} catch (IOException e) {
+				Log.d(TAG, null, e);
+			}
+		}
+
+		/**
+		 * Close local and remote socket, blocked reads and writes fail.
+		 */
+		@Override
+		public void reap() {
+			try {
+				this.close(STATE_CLOSED_OUT);
+				this.local.close();
+			} catch (IOException e) {
+				Log.d(TAG, null, e);
+			}
+		}
+
+		/**
+		 * Get a connection to the remote host, reuse an idle one if possible.
+		 * 
+		 * @param host
+		 *            host
+		 * @param port
+		 *            port
+		 * @param out
+		 *            local output
+		 * @param reuse
+		 *            take an idle connection from the {@link UpstreamPool}
+		 * @return {@link Upstream}
+		 * @throws IOException
+		 *             IOException
+		 */
+		private Upstream connect(final String host, final int port,
+				final OutputStream out, final boolean reuse)
+				throws IOException {
+			Upstream u = null;
+			if (reuse) {
+				u = this.upstreams.get(host, port);
+			}
+			if (u == null) {
+				Log.d(TAG, "new socket: " + host + ":" + port);
+				final Reaper.Entry a = this.activity;
+				a.enter(Reaper.STATE_CONNECT);
+				try {
+					u = new Upstream(this.upstreams, host, port,
+							ProxyServer.this.connectTimeout);
+				} catch (SocketTimeoutException e) {
+					// the socket hit the connect deadline before the Reaper
+					if (!a.isReaped()) {
+						METRICS.reaped(Reaper.STATE_CONNECT);
+					}
+					throw e;
+				}
+				a.enter(Reaper.STATE_IDLE);
+				u.attach(out, this, a);
+				if (!this.workers.copy(u)) {
+					u.close();
+					throw new IOException("overloaded: " + this.workers);
+				}
+			} else {
+				Log.d(TAG, "reuse socket: " + host + ":" + port);
+				u.attach(out, this, this.activity);
+			}
+			synchronized (this) {
+				this.state = STATE_NORMAL;
+				this.remote = u;
+			}
+			return u;
+		}
+
+		/**
+		 * Tell the remote connection a request is about to be sent, wait for
+		 * pending responses if there are too many.
+		 * 
+		 * @param u
+		 *            {@link Upstream}
+		 * @param header
+		 *            parsed header
+		 * @throws IOException
+		 *             IOException
+		 */
+		private void expect(final Upstream u, final HeaderParser header)
+				throws IOException {
+			final boolean head = header.getMethod() == // .
+			HeaderParser.METHOD_HEAD;
+			final HtmlFilter html = ProxyServer.this.newHtmlFilter(u
+					.getHost(), header, METRICS);
+			if (!u.expect(head, html)) {
+				u.awaitResponses();
+				u.expect(head, html);
+			}
+		}
+
+		/**
+		 * Send request to remote host.
+		 * 
+		 * @param out
+		 *            remote output
+		 * @param b
+		 *            buffer
+		 * @param len
+		 *            length of request in buffer
+		 * @param header
+		 *            parsed header
+		 * @throws IOException
+		 *             IOException
+		 */
+		private void send(final OutputStream out, final byte[] b,
+				final int len, final HeaderParser header) throws IOException {
+			if (header.isAbsolute()) {
+				// remove "http://host:port" from request
+				final int ps = header.getPathStart();
+				out.write(b, 0, header.getTargetStart());
+				if (ps == header.getTargetEnd()) {
+					out.write('/');
+				}
+				out.write(b, ps, len - ps);
+				METRICS.sent(len - ps + header.getTargetStart());
+			} else {
+				out.write(b, 0, len);
+				METRICS.sent(len);
+			}
+			out.flush();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void run() {
+			InputStream lInStream;
+			OutputStream lOutStream;
+			this.activity = this.reaper.add(this);
+			try {
+				// responses are written in parts, don't wait for their acks
+				this.local.setTcpNoDelay(true);
+				// headers are read in blocks, no need for buffering
+				lInStream = this.local.getInputStream();
+				lOutStream = this.local.getOutputStream();
+			} catch (IOException e) {
+				Log.e(TAG, null, e);
+				this.reaper.remove(this.activity);
+				METRICS.closed();
+				return;
+			}
+			try {
+				final HeaderParser header = new HeaderParser();
+				boolean block = false;
+				while (this.local.isConnected()) {
+					final int len = this.readHeader(lInStream, header);
+					if (len == 0) {
+						break;
+					}
+					final byte[] b = this.buf;
+					if (header.getResult() != HeaderParser.COMPLETE) {
+						// no request or header too long, anything behind it
+						// would reach the remote side unchecked
+						Log.d(TAG, "no request line");
+						final Upstream u = this.remote;
+						if (u != null) {
+							u.awaitResponses();
+						}
+						lOutStream.write(RESPONSE_ERROR);
+						lOutStream.flush();
+						break;
+					}
+					// split off the next request
+					if (!this.body.reset(header)) {
+						throw new IOException("invalid content length");
+					}
+					final int end = this.body.parse(b, header.getHeaderEnd(),
+							len);
+					if (end == BodyParser.ERROR) {
+						throw new IOException("invalid request body");
+					}
+					if (header.hasHost()) {
+						final String host = HeaderParser.toString(b, header
+								.getHostStart(), header.getHostEnd());
+						final boolean connect = header.getMethod() == // .
+						HeaderParser.METHOD_CONNECT;
+						block = ProxyServer.this.checkURL(host, b, header,
+								METRICS);
+						if (!block) {
+							// new connection needed?
+							final int p = header.getPort(connect ? PORT_HTTPS
+									: PORT_HTTP);
+							final Upstream u = this.remote;
+							if (u == null || !u.getHost().equals(host)
+									|| u.getPort() != p) {
+								// get new connection
+								Log.d(TAG, "shutdown old remote");
+								if (u != null) {
+									u.awaitResponses();
+								}
+								this.close(STATE_CLOSED_IN);
+								final Upstream nu = this.connect(host, p,
+										lOutStream, !connect);
+								if (connect) {
+									this.tunnel = true;
+									lOutStream.write(RESPONSE_CONNECTED);
+									lOutStream.flush();
+									// send anything sent ahead
+									final int he = header.getHeaderEnd();
+									final OutputStream o = nu
+											.getOutputStream();
+									o.write(b, he, len - he);
+									o.flush();
+									// copy local to remote by blocks
+									// in this thread
+									new CopyStream(lInStream, o).run();
+									break;
+								}
+							}
+						}
+					} else {
+						// no host, stick to current remote
+						block = false;
+					}
+					// push data to remote if not blocked
+					if (block) {
+						// keep responses in order
+						final Upstream u = this.remote;
+						if (u != null) {
+							u.awaitResponses();
+						}
+						lOutStream.write(getBlockResponse(header));
+						lOutStream.flush();
+						this.finishBody(lInStream, null, end);
+						continue;
+					}
+					Upstream u = this.remote;
+					if (u == null) {
+						this.finishBody(lInStream, null, end);
+						continue;
+					}
+					try {
+						this.expect(u, header);
+						this.send(u.getOutputStream(), b, end, header);
+					} catch (IOException e) {
+						if (!u.isReused()) {
+							throw e;
+						}
+						// idle connection was closed by remote host
+						Log.d(TAG, "stale socket, reconnect");
+						synchronized (this) {
+							this.remote = null;
+						}
+						u.close();
+						u = this.connect(u.getHost(), u.getPort(), lOutStream,
+								false);
+						this.expect(u, header);
+						this.send(u.getOutputStream(), b, end, header);
+					}
+					this.finishBody(lInStream, u.getOutputStream(), end);
+				}
+				if (this.tunnel) {
+					this.close(STATE_CLOSED_OUT);
+				} else {
+					// client is done, send it the remaining responses
+					final Upstream u = this.remote;
+					if (u != null) {
+						u.awaitResponses();
+					}
+					this.close(STATE_CLOSED_IN);
+					this.local.close();
+				}
+			} catch (IOException e) {
+				if (this.activity.isReaped()) {
+					// sockets are closed already
+					Log.d(TAG, "reaped: " + e);
+				} else {
+					Log.e(TAG, null, e);
+					try {
+						lOutStream.write((HTTP_ERROR + " - " + e.toString()
+								+ HTTP_RESPONSE + e.toString()).getBytes());
+						lOutStream.flush();
+						lOutStream.close();
+						this.close(STATE_CLOSED_OUT);
+					} catch (IOException e1) {
+						Log.e(TAG, null, e1);
+					}
+				}
+			}
+			Log.d(TAG, "close connection");
+			this.reaper.remove(this.activity);
+			METRICS.closed();
+		}
+	}
+
+	/**
+	 * @param header
+	 *            blocked request's parsed header
+	 * @return preencoded response to a blocked request
+	 */
+	static byte[] getBlockResponse(final HeaderParser header) {
+		if (header.getMethod() == HeaderParser.METHOD_HEAD) {
+			return RESPONSE_BLOCK_HEAD;
+		}
+		return RESPONSE_BLOCK;
+	}
+
+	/**
+	 * Check if a request is blocked.
+	 * 
+	 * @param host
+	 *            target host
+	 * @param b
+	 *            buffer holding the request
+	 * @param header
+	 *            parsed request header
+	 * @param m
+	 *            {@link Metrics} counting the request
+	 * @return if request is blocked?
+	 */
+	boolean checkURL(final String host, final byte[] b,
+			final HeaderParser header, final Metrics m) {
+		final boolean ret = this.filterSet.get().isBlocked(host, b, header);
+		m.request(ret);
+		return ret;
+	}
+
+	/**
+	 * Get a rewriter for a response's body.
+	 * 
+	 * @param host
+	 *            target host
+	 * @param header
+	 *            parsed request header
+	 * @param m
+	 *            {@link Metrics} counting removed elements
+	 * @return {@link HtmlFilter} rewriting the response if it is HTML, null
+	 *         if HTML is not rewritten
+	 */
+	HtmlFilter newHtmlFilter(final String host, final HeaderParser header,
+			final Metrics m) {
+		final int method = header.getMethod();
+		if (!this.rewriteHtml || method == HeaderParser.METHOD_HEAD
+				|| method == HeaderParser.METHOD_CONNECT) {
+			return null;
+		}
+		final FilterSet fs = this.filterSet.get();
+		return new HtmlFilter(fs, fs.getHiding(), host, m);
+	}
+
+	/**
+	 * Listen on a single port on all interfaces. See
+	 * {@link #setAddresses(List)}.
+	 * 
+	 * @param p
+	 *            port
+	 */
+	void setPort(final int p) {
+		final ArrayList<InetSocketAddress> l = // .
+		new ArrayList<InetSocketAddress>(1);
+		l.add(new InetSocketAddress(p));
+		this.setAddresses(l);
+	}
+
+	/**
+	 * @return port of first address, -1 if there is none
+	 */
+	int getPort() {
+		final List<InetSocketAddress> l = this.addresses;
+		if (l.isEmpty()) {
+			return -1;
+		}
+		return l.get(0).getPort();
+	}
+
+	/**
+	 * Set the addresses to listen on. A running proxy binds new addresses
+	 * before it stops accepting on old ones. Connections accepted on old
+	 * addresses are not touched. If any new address can not be bound, the
+	 * proxy keeps listening on the old ones.
+	 * 
+	 * @param a
+	 *            addresses
+	 */
+	void setAddresses(final List<InetSocketAddress> a) {
+		this.addresses = new ArrayList<InetSocketAddress>(a);
+		synchronized (this) {
+			if (this.running) {
+				this.rebind();
+			}
+		}
+	}
+
+	/**
+	 * @return addresses to listen on
+	 */
+	List<InetSocketAddress> getAddresses() {
+		return this.addresses;
+	}
+
+	/**
+	 * Use event loops instead of a thread per connection. A running proxy
+	 * serves new connections in the new mode at once, connections served
+	 * already get the grace period to finish.
+	 * 
+	 * @param el
+	 *            use event loops?
+	 */
+	void setEventLoop(final boolean el) {
+		if (this.eventLoop == el) {
+			return;
+		}
+		this.eventLoop = el;
+		this.switchEngine();
+	}
+
+	/**
+	 * @return use event loops?
+	 */
+	boolean isEventLoop() {
+		return this.eventLoop;
+	}
+
+	/**
+	 * Remove hidden elements and blocked scripts and images from HTML
+	 * responses. Takes effect with the next request.
+	 * 
+	 * @param rewrite
+	 *            rewrite HTML responses?
+	 */
+	void setRewriteHtml(final boolean rewrite) {
+		this.rewriteHtml = rewrite;
+	}
+
+	/**
+	 * @param connections
+	 *            max. number of running connections
+	 */
+	void setMaxConnections(final int connections) {
+		this.maxConnections = connections;
+	}
+
+	/**
+	 * @param queue
+	 *            max. number of connections waiting for a worker
+	 */
+	void setMaxQueue(final int queue) {
+		this.maxQueue = queue;
+	}
+
+	/**
+	 * @param size
+	 *            size of relay buffers
+	 */
+	void setBufferSize(final int size) {
+		this.bufferSize = size;
+	}
+
+	/**
+	 * @param pool
+	 *            max. number of idle relay buffers kept
+	 */
+	void setBufferPool(final int pool) {
+		this.bufferPool = pool;
+	}
+
+	/**
+	 * Set the number of event loops, each is a shard with it's own buffers
+	 * and {@link Metrics}. Takes effect with the next switch to event loops.
+	 * 
+	 * @param n
+	 *            number of event loops, 0 for one per core (up to 4)
+	 */
+	void setShards(final int n) {
+		this.shards = n;
+	}
+
+	/**
+	 * Set the number of threads accepting on each address. Takes effect for
+	 * addresses bound afterwards.
+	 * 
+	 * @param n
+	 *            number of threads
+	 */
+	void setAcceptors(final int n) {
+		this.listeners.setAcceptors(n);
+	}
+
+	/**
+	 * @param grace
+	 *            time given to connections to finish after stop or switching
+	 *            modes in milliseconds
+	 */
+	void setGracePeriod(final int grace) {
+		this.gracePeriod = grace;
+	}
+
+	/**
+	 * Set the timeouts, they take effect on the next {@link #run()}.
+	 * 
+	 * @param idle
+	 *            timeout for idle connections in milliseconds
+	 * @param header
+	 *            timeout for reading a request header in milliseconds
+	 * @param connect
+	 *            timeout for connecting a remote host in milliseconds
+	 */
+	void setTimeouts(final int idle, final int header, final int connect) {
+		this.idleTimeout = idle;
+		this.headerTimeout = header;
+		this.connectTimeout = connect;
+	}
+
+	/**
+	 * @return timeout for connecting a remote host in milliseconds
+	 */
+	int getConnectTimeout() {
+		return this.connectTimeout;
+	}
+
+	/**
+	 * @param m
+	 *            {@link Metrics} counting reaped connections
+	 * @return new {@link Reaper} using the configured timeouts
+	 */
+	Reaper newReaper(final Metrics m) {
+		return new Reaper(this.idleTimeout, this.headerTimeout,
+				this.connectTimeout, m);
+	}
+
+	/**
+	 * Swap in a new filter, the running proxy uses it for the next request.
+	 * 
+	 * @param fs
+	 *            new {@link FilterSet}
+	 * @return old {@link FilterSet}
+	 */
+	FilterSet setFilter(final FilterSet fs) {
+		return this.filterSet.getAndSet(fs);
+	}
+
+	/**
+	 * @return current {@link FilterSet}
+	 */
+	FilterSet getFilter() {
+		return this.filterSet.get();
+	}
+
+	/**
+	 * Stop the proxy. It stops accepting at once, connections served already
+	 * get the grace period to finish.
+	 */
+	synchronized void stop() {
+		this.stop = true;
+		this.notifyAll();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void run() {
+		synchronized (this) {
+			try {
+				this.engine = this.newEngine();
+			} catch (IOException e) {
+				Log.e(TAG, null, e);
+				return;
+			}
+			this.running = true;
+		}
+		this.rebind();
+		if (this.listeners.getAddresses().isEmpty()) {
+			this.stop = true;
+		}
+		synchronized (this) {
+			while (!this.stop) {
+				try {
+					this.wait();
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			this.running = false;
+		}
+		this.listeners.close();
+		this.retire(this.engine);
+		Log.d(TAG, "stop: " + this.resolver + ", "
+				+ this.filterSet.get().getCacheStats() + "\n" + METRICS);
+		this.resolver.shutdown();
+	}
+
+	/**
+	 * Listen on the configured addresses. On failure the proxy keeps
+	 * listening where it did before.
+	 */
+	private void rebind() {
+		try {
+			this.listeners.update(this.addresses);
+		} catch (IOException e) {
+			Log.e(TAG, "bind failed, " + this.listeners, e);
+		}
+	}
+
+	/**
+	 * @return new {@link Engine} for the configured mode
+	 * @throws IOException
+	 *             IOException
+	 */
+	private Engine newEngine() throws IOException {
+		if (this.eventLoop) {
+			return new LoopEngine();
+		}
+		return new ThreadEngine();
+	}
+
+	/**
+	 * Switch to a new {@link Engine} for the configured mode. New
+	 * connections go to the new one at once, the old one serves it's
+	 * connections to their end or until the grace period is over.
+	 */
+	private void switchEngine() {
+		final Engine old;
+		synchronized (this) {
+			if (!this.running) {
+				return;
+			}
+			old = this.engine;
+			try {
+				this.engine = this.newEngine();
+			} catch (IOException e) {
+				Log.e(TAG, null, e);
+				return;
+			}
+		}
+		final Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ProxyServer.this.retire(old);
+			}
+		}, "Retire");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Let an {@link Engine} finish it's connections within the grace period,
+	 * close the rest.
+	 * 
+	 * @param e
+	 *            {@link Engine}, it gets no new connections
+	 */
+	private void retire(final Engine e) {
+		final long end = System.currentTimeMillis() + this.gracePeriod;
+		while (e.getActive() > 0 && System.currentTimeMillis() < end) {
+			try {
+				Thread.sleep(DRAIN_TICK);
+			} catch (InterruptedException ex) {
+				break;
+			}
+		}
+		Log.d(TAG, "retire: " + e);
+		e.close();
+	}
+
+	/**
+	 * Hand an accepted connection to the current {@link Engine}.
+	 * 
+	 * @param client
+	 *            client's channel
+	 */
+	@Override
+	public void accepted(final SocketChannel client) {
+		Log.d(TAG, "new client");
+		METRICS.accepted();
+		this.engine.serve(client);
+	}
+
+	/**
+	 * Reject a client with HTTP 503.
+	 * 
+	 * @param client
+	 *            client's Socket
+	 */
+	private void reject(final Socket client) {
+		try {
+			final OutputStream os = client.getOutputStream();
+			os.write(RESPONSE_OVERLOADED);
+			os.flush();
+		} catch (IOException e) {
+			Log.d(TAG, null, e);
+		}
+		try {
+			client.close();
+		} catch (IOException e) {
+			Log.d(TAG, null, e);
+		}
+	}
+
+	/**
+	 * @return {@link Metrics} of the proxy running in this process
+	 */
+	static Metrics getMetrics() {
+		return METRICS;
+	}
+
+	/**
+	 * @return {@link Resolver} caching looked up hosts
+	 */
+	Resolver getResolver() {
+		return this.resolver;
+	}
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reaper closes connections past their deadlines. Each tracked connection
+ * has an {@link Entry} holding it's state and last activity:
+ * <ul>
+ * <li>{@link #STATE_HEADER}: a request header is being read, it has to be
+ * complete within the header timeout.</li>
+ * <li>{@link #STATE_CONNECT}: the remote host is resolved and connected, this
+ * has to be done within the connect timeout.</li>
+ * <li>{@link #STATE_IDLE}: anything else, some data has to flow in either
+ * direction within the idle timeout.</li>
+ * </ul>
+ * Run it as a Thread or call {@link #sweep(long)} from an event loop, the
+ * connections are reaped on the sweeping thread.
+ * 
+ * @author Felix Bechstein
+ */
+final class Reaper implements Runnable {
+	/** Tag for output. */
+	private static final String TAG = "AdBlock.Reaper";
+
+	/** State: idle or transferring data. */
+	static final int STATE_IDLE = 0;
+	/** State: reading a request header. */
+	static final int STATE_HEADER = 1;
+	/** State: connecting the remote host. */
+	static final int STATE_CONNECT = 2;
+
+	/** Time between sweeps in milliseconds. */
+	static final int TICK = 1000;
+	/** Nanoseconds per millisecond. */
+	private static final long NANOS = 1000000L;
+
+	/**
+	 * Target is a connection that may be reaped.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	interface Target {
+		/**
+		 * Close the connection, it is past it's deadline.
+		 */
+		void reap();
+	}
+
+	/**
+	 * Entry holds a tracked connection's state and activity. It may be
+	 * updated by any thread.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	static final class Entry {
+		/** Tracked connection. */
+		private final Target target;
+		/** Current state. */
+		private volatile int state = STATE_HEADER;
+		/** Time current state was entered, {@link System#nanoTime()}. */
+		private volatile long since;
+		/** Time of last activity, {@link System#nanoTime()}. */
+		private volatile long last;
+		/** Connection was reaped. */
+		private volatile boolean reaped = false;
+
+		/**
+		 * Constructor. The connection starts reading a request header.
+		 * 
+		 * @param t
+		 *            tracked connection
+		 */
+		private Entry(final Target t) {
+			this.target = t;
+			final long now = System.nanoTime();
+			this.since = now;
+			this.last = now;
+		}
+
+		/**
+		 * Some data was read or written.
+		 */
+		void touch() {
+			this.last = System.nanoTime();
+		}
+
+		/**
+		 * Enter a new state, this counts as activity.
+		 * 
+		 * @param s
+		 *            state
+		 */
+		void enter(final int s) {
+			final long now = System.nanoTime();
+			this.since = now;
+			this.last = now;
+			this.state = s;
+		}
+
+		/**
+		 * @return current state
+		 */
+		int getState() {
+			return this.state;
+		}
+
+		/**
+		 * @return connection was reaped
+		 */
+		boolean isReaped() {
+			return this.reaped;
+		}
+	}
+
+	/** Tracked connections. */
+	private final ConcurrentHashMap<Entry, Boolean> entries = // .
+	new ConcurrentHashMap<Entry, Boolean>();
+	/** Timeouts in nanoseconds by state. */
+	private final long[] timeouts = new long[3];
+	/** {@link Metrics} counting reaped connections. */
+	private final Metrics metrics;
+	/** Stop sweeping? */
+	private volatile boolean stop = false;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param idle
+	 *            idle timeout in milliseconds
+	 * @param header
+	 *            header timeout in milliseconds
+	 * @param connect
+	 *            connect timeout in milliseconds
+	 * @param m
+	 *            {@link Metrics} counting reaped connections
+	 */
+	Reaper(final int idle, final int header, final int connect,
+			final Metrics m) {
+		this.timeouts[STATE_IDLE] = idle * NANOS;
+		this.timeouts[STATE_HEADER] = header * NANOS;
+		this.timeouts[STATE_CONNECT] = connect * NANOS;
+		this.metrics = m;
+	}
+
+	/**
+	 * Track a connection.
+	 * 
+	 * @param t
+	 *            connection
+	 * @return {@link Entry} to be updated by the connection
+	 */
+	Entry add(final Target t) {
+		final Entry e = new Entry(t);
+		this.entries.put(e, Boolean.TRUE);
+		return e;
+	}
+
+	/**
+	 * Stop tracking a connection.
+	 * 
+	 * @param e
+	 *            {@link Entry}
+	 */
+	void remove(final Entry e) {
+		this.entries.remove(e);
+	}
+
+	/**
+	 * Reap all connections past their deadlines.
+	 * 
+	 * @param now
+	 *            current time, {@link System#nanoTime()}
+	 * @return number of reaped connections
+	 */
+	int sweep(final long now) {
+		int ret = 0;
+		for (Entry e : this.entries.keySet()) {
+			final int s = e.state;
+			final long t;
+			if (s == STATE_IDLE) {
+				t = e.last;
+			} else {
+				t = e.since;
+			}
+			if (now - t <= this.timeouts[s]
+					|| this.entries.remove(e) == null) {
+				continue;
+			}
+			Log.d(TAG, "reap: " + s);
+			e.reaped = true;
+			this.metrics.reaped(s);
+			e.target.reap();
+			++ret;
+		}
+		return ret;
+	}
+
+	/**
+	 * Reap all connections, whatever their deadlines. They are not counted as
+	 * reaped.
+	 * 
+	 * @return number of reaped connections
+	 */
+	int reapAll() {
+		int ret = 0;
+		for (Entry e : this.entries.keySet()) {
+			if (this.entries.remove(e) == null) {
+				continue;
+			}
+			e.reaped = true;
+			e.target.reap();
+			++ret;
+		}
+		return ret;
+	}
+
+	/**
+	 * Sweep until stopped.
+	 */
+	@Override
+	public void run() {
+		while (!this.stop) {
+			try {
+				Thread.sleep(TICK);
+			} catch (InterruptedException e) {
+				break;
+			}
+			this.sweep(System.nanoTime());
+		}
+	}
+
+	/**
+	 * Stop sweeping.
+	 */
+	void stop() {
+		this.stop = true;
+	}
+
+	/**
+	 * @return number of tracked connections
+	 */
+	int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return "reaper: " + this.size() + " tracked";
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Relay copies data from one stream into an other.
+ * 
+ * @author Felix Bechstein
+ */
+final class Relay {
+	/** Size of buffer. */
+	static final int BUFFSIZE = 32768;
+
+	/**
+	 * No instances.
+	 */
+	private Relay() {
+	}
+
+	/**
+	 * Copy everything from r to w until r is closed. w is flushed whenever r
+	 * has nothing more to read right now.
+	 * 
+	 * @param r
+	 *            reader
+	 * @param w
+	 *            writer
+	 * @param buf
+	 *            buffer
+	 * @return number of bytes copied
+	 * @throws IOException
+	 *             IOException
+	 */
+	static long copy(final InputStream r, final OutputStream w,
+			final byte[] buf) throws IOException {
+		return copy(r, w, buf, null);
+	}
+
+	/**
+	 * Copy everything from r to w until r is closed. w is flushed whenever r
+	 * has nothing more to read right now.
+	 * 
+	 * @param r
+	 *            reader
+	 * @param w
+	 *            writer
+	 * @param buf
+	 *            buffer
+	 * @param activity
+	 *            {@link Reaper.Entry} touched on every read, may be null
+	 * @return number of bytes copied
+	 * @throws IOException
+	 *             IOException
+	 */
+	static long copy(final InputStream r, final OutputStream w,
+			final byte[] buf, final Reaper.Entry activity) throws IOException {
+		final int l = buf.length;
+		long ret = 0;
+		while (true) {
+			int read = r.available();
+			if (read < 1 || read > l) {
+				read = l;
+			}
+			read = r.read(buf, 0, read);
+			if (read < 0) {
+				break;
+			}
+			if (activity != null) {
+				activity.touch();
+			}
+			w.write(buf, 0, read);
+			ret += read;
+			if (r.available() < 1) {
+				w.flush();
+			}
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolver resolves host names and caches the results. Resolved addresses are
+ * kept for {@link #TTL}, failed lookups for {@link #NEGATIVE_TTL}; the
+ * platform does not tell the TTLs of DNS records. Concurrent lookups of the
+ * same host are coalesced into a single one. Lookups may block the calling
+ * thread or run on the Resolver's own threads and call back when done.
+ * 
+ * @author Felix Bechstein
+ */
+final class Resolver {
+	/** Tag for output. */
+	private static final String TAG = "AdBlock.Resolver";
+
+	/** Time resolved addresses are kept in milliseconds. */
+	static final long TTL = 60000;
+	/** Time failed lookups are kept in milliseconds. */
+	static final long NEGATIVE_TTL = 10000;
+	/** Default max. number of cached hosts. */
+	static final int DEFAULT_SIZE = 256;
+	/** Max. number of threads doing lookups on background. */
+	private static final int THREADS = 4;
+	/** Time idle threads are kept alive in seconds. */
+	private static final long KEEP_ALIVE = 30;
+	/** Nanoseconds per millisecond. */
+	private static final long NANOS = 1000000L;
+
+	/**
+	 * Callback gets notified when a lookup is done.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	interface Callback {
+		/**
+		 * Lookup is done.
+		 * 
+		 * @param host
+		 *            host
+		 * @param address
+		 *            address, null if host is unknown
+		 */
+		void resolved(String host, InetAddress address);
+	}
+
+	/**
+	 * Lookup of a single host. It stays in the cache when done.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	private final class Lookup implements Runnable {
+		/** Host. */
+		private final String host;
+		/** Address, null if unknown. */
+		private InetAddress address = null;
+		/** Lookup is done. */
+		private volatile boolean done = false;
+		/** Time this result expires, see System.nanoTime(). */
+		private long expires = 0;
+		/** Callbacks waiting for the result, null when done. */
+		private ArrayList<Callback> callbacks = new ArrayList<Callback>(1);
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param h
+		 *            host
+		 */
+		Lookup(final String h) {
+			this.host = h;
+		}
+
+		/**
+		 * Resolve the host.
+		 */
+		@Override
+		public void run() {
+			final long t = System.nanoTime();
+			InetAddress a = null;
+			try {
+				a = InetAddress.getByName(this.host);
+			} catch (UnknownHostException e) {
+				Log.d(TAG, "unknown host: " + this.host);
+			} catch (SecurityException e) {
+				Log.e(TAG, null, e);
+			}
+			final long now = System.nanoTime();
+			Resolver.this.metrics.resolved(now - t);
+			ArrayList<Callback> cbs;
+			synchronized (Resolver.this) {
+				this.address = a;
+				this.expires = now + (a == null ? NEGATIVE_TTL : TTL) * NANOS;
+				cbs = this.callbacks;
+				this.callbacks = null;
+				this.done = true;
+				if (a == null) {
+					++Resolver.this.failures;
+				}
+			}
+			synchronized (this) {
+				this.notifyAll();
+			}
+			for (Callback c : cbs) {
+				c.resolved(this.host, a);
+			}
+		}
+
+		/**
+		 * Wait for the lookup to finish.
+		 * 
+		 * @throws InterruptedIOException
+		 *             thread was interrupted
+		 */
+		synchronized void await() throws InterruptedIOException {
+			while (!this.done) {
+				try {
+					this.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("resolving " + this.host);
+				}
+			}
+		}
+	}
+
+	/** Lookups by host, recently used last. */
+	private final LinkedHashMap<String, Lookup> cache;
+	/** Threads doing lookups on background. */
+	private final ThreadPoolExecutor executor;
+	/** {@link Metrics} timing lookups. */
+	private final Metrics metrics;
+
+	/** Number of lookups answered from cache. */
+	private long hits = 0;
+	/** Number of lookups joining a running one. */
+	private long coalesced = 0;
+	/** Number of lookups done. */
+	private long misses = 0;
+	/** Number of failed lookups. */
+	private long failures = 0;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param size
+	 *            max. number of cached hosts
+	 * @param m
+	 *            {@link Metrics} timing lookups
+	 */
+	Resolver(final int size, final Metrics m) {
+		final int max = Math.max(1, size);
+		this.cache = new LinkedHashMap<String, Lookup>(max * 4 / 3 + 1,
+				0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			/**
+			 * {@inheritDoc}
+			 */
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<String, Lookup> eldest) {
+				return this.size() > max;
+			}
+		};
+		this.metrics = m;
+		this.executor = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					/**
+					 * {@inheritDoc}
+					 */
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread t = new Thread(r, TAG);
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Get a running or cached lookup, create a new one if there is none.
+	 * 
+	 * @param host
+	 *            host
+	 * @param cb
+	 *            {@link Callback} to add to a running lookup, may be null
+	 * @param ret
+	 *            gets the {@link Lookup} at index 0
+	 * @return true, if the {@link Lookup} is new and needs to be run by the
+	 *         caller
+	 */
+	private synchronized boolean get(final String host, final Callback cb,
+			final Lookup[] ret) {
+		final Lookup l = this.cache.get(host);
+		if (l != null && (!l.done || l.expires - System.nanoTime() > 0)) {
+			if (l.done) {
+				++this.hits;
+			} else {
+				++this.coalesced;
+				if (cb != null) {
+					l.callbacks.add(cb);
+				}
+			}
+			ret[0] = l;
+			return false;
+		}
+		++this.misses;
+		final Lookup n = new Lookup(host);
+		if (cb != null) {
+			n.callbacks.add(cb);
+		}
+		this.cache.put(host, n);
+		ret[0] = n;
+		return true;
+	}
+
+	/**
+	 * Resolve a host, block until it's done.
+	 * 
+	 * @param host
+	 *            host
+	 * @return address
+	 * @throws IOException
+	 *             host is unknown or thread was interrupted
+	 */
+	InetAddress resolve(final String host) throws IOException {
+		final Lookup[] ret = new Lookup[1];
+		final boolean run = this.get(host, null, ret);
+		final Lookup l = ret[0];
+		if (run) {
+			// no need to hop threads, caller blocks anyway
+			l.run();
+		} else {
+			l.await();
+		}
+		final InetAddress a = l.address;
+		if (a == null) {
+			throw new UnknownHostException(host);
+		}
+		return a;
+	}
+
+	/**
+	 * Resolve a host on background. The callback is called right away, if
+	 * the host is cached.
+	 * 
+	 * @param host
+	 *            host
+	 * @param cb
+	 *            {@link Callback}
+	 */
+	void resolve(final String host, final Callback cb) {
+		final Lookup[] ret = new Lookup[1];
+		if (this.get(host, cb, ret)) {
+			this.executor.execute(ret[0]);
+		} else if (ret[0].done) {
+			cb.resolved(host, ret[0].address);
+		}
+	}
+
+	/**
+	 * Forget all cached hosts.
+	 */
+	synchronized void clear() {
+		this.cache.clear();
+	}
+
+	/**
+	 * Stop all threads.
+	 */
+	void shutdown() {
+		this.executor.shutdown();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized String toString() {
+		final long all = Math.max(1, this.hits + this.coalesced + this.misses);
+		return "resolver: " + this.cache.size() + " hosts, " + this.hits
+				+ " hits, " + this.coalesced + " coalesced, " + this.misses
+				+ " lookups (" + (this.hits + this.coalesced) * 100 / all
+				+ "% saved), " + this.failures + " failed";
+	}
+}
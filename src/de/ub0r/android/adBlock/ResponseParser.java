@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+/**
+ * ResponseParser splits the data sent by a remote host into single responses.
+ * It parses each response's status line and header in place and finds the
+ * end of it's body. Requests sent to the remote host are registered by
+ * {@link #expect(boolean, HtmlFilter)}, responses are matched to them in
+ * order. Uncompressed HTML bodies are rewritten by the request's
+ * {@link HtmlFilter} on their way.
+ * 
+ * @author Felix Bechstein
+ */
+final class ResponseParser {
+	/** Result: data is no valid response or nobody asked for it. */
+	static final int ERROR = -1;
+
+	/** Max. number of requests waiting for a response. */
+	static final int MAX_PENDING = 32;
+
+	/** Start of status line, lower case. */
+	private static final byte[] HTTP = { 'h', 't', 't', 'p', '/', '1', '.' };
+	/** Length of "HTTP/1.x SSS". */
+	private static final int STATUS_LENGTH = 12;
+	/** Header name: Connection, lower case. */
+	private static final byte[] CONNECTION = { 'c', 'o', 'n', 'n', 'e', 'c',
+			't', 'i', 'o', 'n' };
+	/** Header name: Content-Length, lower case. */
+	private static final byte[] CONTENT_LENGTH = { 'c', 'o', 'n', 't', 'e',
+			'n', 't', '-', 'l', 'e', 'n', 'g', 't', 'h' };
+	/** Header name: Transfer-Encoding, lower case. */
+	private static final byte[] TRANSFER_ENCODING = { 't', 'r', 'a', 'n',
+			's', 'f', 'e', 'r', '-', 'e', 'n', 'c', 'o', 'd', 'i', 'n', 'g' };
+	/** Transfer coding: chunked, lower case. */
+	private static final byte[] CHUNKED = { 'c', 'h', 'u', 'n', 'k', 'e', 'd' };
+	/** Header name: Content-Type, lower case. */
+	private static final byte[] CONTENT_TYPE = { 'c', 'o', 'n', 't', 'e', 'n',
+			't', '-', 't', 'y', 'p', 'e' };
+	/** Header name: Content-Encoding, lower case. */
+	private static final byte[] CONTENT_ENCODING = { 'c', 'o', 'n', 't', 'e',
+			'n', 't', '-', 'e', 'n', 'c', 'o', 'd', 'i', 'n', 'g' };
+	/** Content type: HTML, lower case. */
+	private static final byte[] TEXT_HTML = { 't', 'e', 'x', 't', '/', 'h',
+			't', 'm', 'l' };
+	/** Content coding: identity, lower case. */
+	private static final byte[] IDENTITY = { 'i', 'd', 'e', 'n', 't', 'i',
+			't', 'y' };
+	/** Connection option: close, lower case. */
+	private static final byte[] CLOSE = { 'c', 'l', 'o', 's', 'e' };
+	/** Connection option: keep-alive, lower case. */
+	private static final byte[] KEEP_ALIVE = { 'k', 'e', 'e', 'p', '-', 'a',
+			'l', 'i', 'v', 'e' };
+
+	/** Status: Switching Protocols. */
+	private static final int SWITCHING_PROTOCOLS = 101;
+	/** Status: No Content. */
+	private static final int NO_CONTENT = 204;
+	/** Status: Not Modified. */
+	private static final int NOT_MODIFIED = 304;
+
+	/** Pending requests, true for HEAD requests. */
+	private final boolean[] heads = new boolean[MAX_PENDING];
+	/** Pending requests' {@link HtmlFilter}s, null if not wanted. */
+	private final HtmlFilter[] filters = new HtmlFilter[MAX_PENDING];
+	/** Index of oldest pending request. */
+	private int first = 0;
+	/** Number of pending requests. */
+	private int pending = 0;
+	/** Body of current response. */
+	private final BodyParser body = new BodyParser();
+	/** {@link HtmlFilter} rewriting current body, null if none. */
+	private HtmlFilter html = null;
+	/** Reading a response's body. */
+	private boolean inBody = false;
+	/** Remote host keeps the connection open after current response. */
+	private boolean keepAlive = true;
+	/** Number of complete responses. */
+	private long responses = 0;
+
+	/** Status of parsed header. */
+	private int status;
+	/** Parsed header is HTTP/1.1 or newer. */
+	private boolean http11;
+	/** Content-Length of parsed header, -1 if there is none. */
+	private long contentLength;
+	/** Parsed header's body is chunked. */
+	private boolean chunked;
+	/** Parsed header asks to close the connection. */
+	private boolean close;
+	/** Parsed header asks to keep the connection open. */
+	private boolean keep;
+	/** Parsed header's body is HTML. */
+	private boolean isHtml;
+	/** Parsed header's body is encoded. */
+	private boolean encoded;
+
+	/**
+	 * A request was sent to the remote host.
+	 * 
+	 * @param head
+	 *            request is a HEAD request, it's response has no body
+	 * @param h
+	 *            {@link HtmlFilter} rewriting the response if it is HTML,
+	 *            may be null
+	 * @return false, if there are too many pending requests
+	 */
+	boolean expect(final boolean head, final HtmlFilter h) {
+		if (this.pending == MAX_PENDING) {
+			return false;
+		}
+		final int i = (this.first + this.pending) % MAX_PENDING;
+		this.heads[i] = head;
+		this.filters[i] = h;
+		++this.pending;
+		return true;
+	}
+
+	/**
+	 * @return number of requests waiting for their response
+	 */
+	int getPending() {
+		return this.pending;
+	}
+
+	/**
+	 * @return true, if no response is pending or incomplete
+	 */
+	boolean isIdle() {
+		return this.pending == 0;
+	}
+
+	/**
+	 * @return true, if a response's body is incomplete
+	 */
+	boolean isInBody() {
+		return this.inBody;
+	}
+
+	/**
+	 * @return false, if the remote host closes the connection after current
+	 *         response
+	 */
+	boolean isKeepAlive() {
+		return this.keepAlive;
+	}
+
+	/**
+	 * @return number of complete responses
+	 */
+	long getResponses() {
+		return this.responses;
+	}
+
+	/**
+	 * Parse responses. A header is taken as a whole, if it is incomplete
+	 * nothing of it is taken. The same goes for an HTML tag at the end of a
+	 * rewritten body. Feed the untaken data again after more was appended.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param start
+	 *            start of unparsed data
+	 * @param len
+	 *            end of data in buffer
+	 * @return end of parsed data or {@link #ERROR}
+	 */
+	int parse(final byte[] b, final int start, final int len) {
+		int i = start;
+		while (i < len) {
+			if (this.inBody) {
+				final HtmlFilter h = this.html;
+				if (h == null) {
+					i = this.body.parse(b, i, len);
+				} else {
+					i = this.rewrite(h, b, i, len);
+				}
+				if (i == BodyParser.ERROR) {
+					return ERROR;
+				}
+				if (!this.body.isDone()) {
+					break;
+				}
+				this.inBody = false;
+				this.done();
+				continue;
+			}
+			if (this.pending == 0) {
+				// nobody asked for this
+				return ERROR;
+			}
+			final int end = this.parseHeader(b, i, len);
+			if (end == ERROR) {
+				return ERROR;
+			} else if (end < 0) {
+				break; // incomplete
+			}
+			i = end;
+			final int s = this.status;
+			this.keepAlive = this.http11 ? !this.close : this.keep;
+			if (s == SWITCHING_PROTOCOLS) {
+				// anything may follow
+				this.keepAlive = false;
+				this.body.reset(BodyParser.UNTIL_CLOSE, false);
+				this.inBody = true;
+			} else if (s < 200) {
+				continue; // interim response, final one follows
+			} else if (this.heads[this.first] || s == NO_CONTENT
+					|| s == NOT_MODIFIED) {
+				this.done();
+			} else if (this.chunked) {
+				this.body.reset(0, true);
+				this.startBody();
+			} else if (this.contentLength == HeaderParser.LENGTH_INVALID) {
+				return ERROR;
+			} else if (this.contentLength >= 0) {
+				this.body.reset(this.contentLength, false);
+				if (this.body.isDone()) {
+					this.done();
+				} else {
+					this.startBody();
+				}
+			} else {
+				this.keepAlive = false;
+				this.body.reset(BodyParser.UNTIL_CLOSE, false);
+				this.startBody();
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * Start reading current response's body, rewrite it if it is
+	 * uncompressed HTML.
+	 */
+	private void startBody() {
+		this.inBody = true;
+		final HtmlFilter h = this.filters[this.first];
+		if (h != null && this.isHtml && !this.encoded) {
+			this.html = h;
+			h.start();
+		}
+	}
+
+	/**
+	 * Parse and rewrite an HTML body. The body's data is rewritten run by
+	 * run, framing in between is parsed as is.
+	 * 
+	 * @param h
+	 *            {@link HtmlFilter}
+	 * @param b
+	 *            buffer
+	 * @param start
+	 *            start of unparsed data
+	 * @param len
+	 *            end of data in buffer
+	 * @return end of parsed body, it is incomplete if a tag is kept back, or
+	 *         {@link BodyParser#ERROR}
+	 */
+	private int rewrite(final HtmlFilter h, final byte[] b, final int start,
+			final int len) {
+		final BodyParser bp = this.body;
+		int i = start;
+		while (i < len && !bp.isDone()) {
+			final long left = bp.getData();
+			if (left == 0) {
+				i = bp.parse(b, i, i + 1);
+				if (i == BodyParser.ERROR) {
+					break;
+				}
+				continue;
+			}
+			final int e = i + (int) Math.min(left, len - i);
+			int hold = 0;
+			if (e == len && left > len - i) {
+				// run goes on, keep an incomplete tag for the next round
+				hold = Math.min(HtmlFilter.MAX_TAG, b.length / 2);
+			}
+			final int r = h.rewrite(b, i, e, hold);
+			i = bp.parse(b, i, r);
+			if (r < e) {
+				break;
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * Current response is complete.
+	 */
+	private void done() {
+		this.filters[this.first] = null;
+		this.html = null;
+		this.first = (this.first + 1) % MAX_PENDING;
+		--this.pending;
+		++this.responses;
+	}
+
+	/**
+	 * Parse a response header.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param start
+	 *            start of header
+	 * @param len
+	 *            end of data in buffer
+	 * @return end of header, {@link #ERROR} or -2 if the header is incomplete
+	 */
+	private int parseHeader(final byte[] b, final int start, final int len) {
+		// find end of header first, it is parsed as a whole
+		int end = -1;
+		for (int i = start; i < len; i++) {
+			if (b[i] == '\n' && i > start
+					&& (b[i - 1] == '\n' || (b[i - 1] == '\r'
+							&& i - 1 > start && b[i - 2] == '\n'))) {
+				end = i + 1;
+				break;
+			}
+		}
+		if (end < 0) {
+			if (len - start >= HTTP.length
+					&& !HeaderParser.equalsIgnoreCase(b, start, start
+							+ HTTP.length, HTTP)) {
+				return ERROR; // fail early
+			}
+			return -2;
+		}
+		if (end - start < STATUS_LENGTH
+				|| !HeaderParser.equalsIgnoreCase(b, start, start
+						+ HTTP.length, HTTP)) {
+			return ERROR;
+		}
+		this.http11 = b[start + HTTP.length] != '0';
+		int st = 0;
+		for (int i = start + HTTP.length + 2; i < start + STATUS_LENGTH; i++) {
+			final byte c = b[i];
+			if (c < '0' || c > '9') {
+				return ERROR;
+			}
+			st = st * 10 + c - '0';
+		}
+		this.status = st;
+		this.contentLength = HeaderParser.LENGTH_NONE;
+		this.chunked = false;
+		this.close = false;
+		this.keep = false;
+		this.isHtml = false;
+		this.encoded = false;
+
+		// header fields
+		int i = start;
+		while (b[i] != '\n') {
+			++i;
+		}
+		++i;
+		while (i < end) {
+			final int ns = i;
+			while (i < end && b[i] != ':' && b[i] != '\n') {
+				++i;
+			}
+			if (i >= end || b[i] == '\n') {
+				++i;
+				continue;
+			}
+			final int ne = i;
+			++i;
+			while (i < end && (b[i] == ' ' || b[i] == '\t')) {
+				++i;
+			}
+			final int vs = i;
+			while (i < end && b[i] != '\n') {
+				++i;
+			}
+			int ve = i;
+			while (ve > vs && b[ve - 1] <= ' ') {
+				--ve;
+			}
+			++i;
+			this.parseField(b, ns, ne, vs, ve);
+		}
+		return end;
+	}
+
+	/**
+	 * Take a header field.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param ns
+	 *            start of name
+	 * @param ne
+	 *            end of name
+	 * @param vs
+	 *            start of value
+	 * @param ve
+	 *            end of value
+	 */
+	private void parseField(final byte[] b, final int ns, final int ne,
+			final int vs, final int ve) {
+		if (HeaderParser.equalsIgnoreCase(b, ns, ne, CONTENT_LENGTH)) {
+			final long l = HeaderParser.parseLength(b, vs, ve);
+			if (this.contentLength == HeaderParser.LENGTH_NONE) {
+				this.contentLength = l;
+			} else if (this.contentLength != l) {
+				this.contentLength = HeaderParser.LENGTH_INVALID;
+			}
+		} else if (HeaderParser.equalsIgnoreCase(b, ns, ne,
+				TRANSFER_ENCODING)) {
+			this.chunked = ve - vs >= CHUNKED.length
+					&& HeaderParser.equalsIgnoreCase(b, ve - CHUNKED.length,
+							ve, CHUNKED);
+		} else if (HeaderParser.equalsIgnoreCase(b, ns, ne, CONNECTION)) {
+			this.close |= contains(b, vs, ve, CLOSE);
+			this.keep |= contains(b, vs, ve, KEEP_ALIVE);
+		} else if (HeaderParser.equalsIgnoreCase(b, ns, ne, CONTENT_TYPE)) {
+			this.isHtml = ve - vs >= TEXT_HTML.length
+					&& HeaderParser.equalsIgnoreCase(b, vs, vs
+							+ TEXT_HTML.length, TEXT_HTML);
+		} else if (HeaderParser.equalsIgnoreCase(b, ns, ne,
+				CONTENT_ENCODING)) {
+			this.encoded |= !HeaderParser.equalsIgnoreCase(b, vs, ve,
+					IDENTITY);
+		}
+	}
+
+	/**
+	 * Check if a value contains a lower case ASCII pattern, ignoring case.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param s
+	 *            start
+	 * @param e
+	 *            end
+	 * @param pattern
+	 *            lower case pattern
+	 * @return true, if found
+	 */
+	private static boolean contains(final byte[] b, final int s, final int e,
+			final byte[] pattern) {
+		final int l = pattern.length;
+		for (int i = s; i + l <= e; i++) {
+			if (HeaderParser.equalsIgnoreCase(b, i, i + l, pattern)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
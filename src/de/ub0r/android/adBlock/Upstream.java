@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Upstream is a connection to a remote host. It copies everything the remote
+ * host sends to the client it is attached to. Responses are framed, so it is
+ * known when the last response the client asked for is complete. Run this as
+ * a Thread, it lives as long as the remote Socket, even while it waits in the
+ * {@link UpstreamPool} for the next client.
+ * 
+ * @author Felix Bechstein
+ */
+final class Upstream implements Runnable {
+	/** Size of output buffer, requests are small. */
+	private static final int BUFFSIZE = 8192;
+
+	/**
+	 * Listener gets notified when the remote host closed the connection.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	interface Listener {
+		/**
+		 * Remote host closed the connection.
+		 * 
+		 * @param upstream
+		 *            {@link Upstream}
+		 * @param complete
+		 *            all responses were sent to the client, it may go on
+		 *            with a new Upstream
+		 */
+		void closed(Upstream upstream, boolean complete);
+	}
+
+	/** Remote host. */
+	private final String host;
+	/** Remote port. */
+	private final int port;
+	/** {@link UpstreamPool} this Upstream returns to. */
+	private final UpstreamPool pool;
+	/** Remote Socket. */
+	private final Socket socket;
+	/** Remote Socket's input. */
+	private final InputStream reader;
+	/** Remote Socket's output. */
+	private final OutputStream writer;
+
+	/** Attached client's output. */
+	private volatile OutputStream client = null;
+	/** Attached client's {@link Listener}. */
+	private volatile Listener listener = null;
+	/** Attached client's {@link Reaper.Entry}, touched on every read. */
+	private volatile Reaper.Entry activity = null;
+	/** Upstream is closed. */
+	private volatile boolean closed = false;
+	/** Upstream was used before. */
+	private volatile boolean reused = false;
+	/** Time it was returned to the pool. */
+	private long idleSince = 0;
+	/** Splits the remote host's data into responses. */
+	private final ResponseParser responses = new ResponseParser();
+	/** Responses are not framed, everything is copied until closed. */
+	private boolean raw = false;
+	/** Number of requests whose response was not sent to the client yet. */
+	private int outstanding = 0;
+
+	/**
+	 * Constructor. Connect to remote host.
+	 * 
+	 * @param p
+	 *            {@link UpstreamPool} this Upstream returns to
+	 * @param h
+	 *            host
+	 * @param po
+	 *            port
+	 * @param connectTimeout
+	 *            connect timeout in milliseconds, 0 for none
+	 * @throws IOException
+	 *             IOException
+	 */
+	Upstream(final UpstreamPool p, final String h, final int po,
+			final int connectTimeout) throws IOException {
+		this.pool = p;
+		this.host = h;
+		this.port = po;
+		final InetAddress a = p.getResolver().resolve(h);
+		this.socket = new Socket();
+		this.socket.setTcpNoDelay(true);
+		final long t = System.nanoTime();
+		this.socket.connect(new InetSocketAddress(a, po), connectTimeout);
+		p.getMetrics().connected(System.nanoTime() - t);
+		this.socket.setSoTimeout(p.getTimeout());
+		this.reader = this.socket.getInputStream();
+		this.writer = new BufferedOutputStream(this.socket.getOutputStream(),
+				BUFFSIZE);
+	}
+
+	/**
+	 * Attach a client. Everything the remote host sends goes to the client
+	 * from now on.
+	 * 
+	 * @param out
+	 *            client's output
+	 * @param l
+	 *            {@link Listener}
+	 * @param a
+	 *            client's {@link Reaper.Entry}, may be null
+	 */
+	void attach(final OutputStream out, final Listener l,
+			final Reaper.Entry a) {
+		this.listener = l;
+		this.activity = a;
+		this.client = out;
+	}
+
+	/**
+	 * Detach the client.
+	 */
+	void detach() {
+		this.client = null;
+		this.listener = null;
+		this.activity = null;
+	}
+
+	/**
+	 * A request is about to be sent to the remote host.
+	 * 
+	 * @param head
+	 *            request is a HEAD request
+	 * @param html
+	 *            {@link HtmlFilter} rewriting the response, may be null
+	 * @return false, if too many responses are pending, wait for them first
+	 */
+	synchronized boolean expect(final boolean head, final HtmlFilter html) {
+		if (this.raw) {
+			return true;
+		}
+		if (!this.responses.expect(head, html)) {
+			return false;
+		}
+		++this.outstanding;
+		return true;
+	}
+
+	/**
+	 * Wait until all expected responses were sent to the client or the
+	 * Upstream is closed.
+	 * 
+	 * @throws InterruptedIOException
+	 *             thread was interrupted
+	 */
+	synchronized void awaitResponses() throws InterruptedIOException {
+		while (this.outstanding > 0 && !this.closed) {
+			try {
+				this.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	/**
+	 * @return true, if all responses are complete and the remote host keeps
+	 *         the connection open
+	 */
+	synchronized boolean isIdle() {
+		return !this.closed && !this.raw && this.outstanding == 0
+				&& this.responses.isKeepAlive();
+	}
+
+	/**
+	 * @return output to remote host
+	 */
+	OutputStream getOutputStream() {
+		return this.writer;
+	}
+
+	/**
+	 * @return remote host
+	 */
+	String getHost() {
+		return this.host;
+	}
+
+	/**
+	 * @return remote port
+	 */
+	int getPort() {
+		return this.port;
+	}
+
+	/**
+	 * @return Upstream was taken from the {@link UpstreamPool}
+	 */
+	boolean isReused() {
+		return this.reused;
+	}
+
+	/**
+	 * @param r
+	 *            Upstream was taken from the {@link UpstreamPool}
+	 */
+	void setReused(final boolean r) {
+		this.reused = r;
+	}
+
+	/**
+	 * @return time it was returned to the {@link UpstreamPool}
+	 */
+	long getIdleSince() {
+		return this.idleSince;
+	}
+
+	/**
+	 * @param t
+	 *            time it was returned to the {@link UpstreamPool}
+	 */
+	void setIdleSince(final long t) {
+		this.idleSince = t;
+	}
+
+	/**
+	 * @return Upstream is closed
+	 */
+	boolean isClosed() {
+		return this.closed;
+	}
+
+	/**
+	 * Close the remote Socket.
+	 */
+	void close() {
+		this.closed = true;
+		try {
+			this.socket.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+
+	/**
+	 * Split the data read into responses.
+	 * 
+	 * @param b
+	 *            buffer
+	 * @param len
+	 *            end of data in buffer
+	 * @return end of complete data, the rest is an incomplete header
+	 */
+	private synchronized int frame(final byte[] b, final int len) {
+		if (this.raw) {
+			return len;
+		}
+		final int end = this.responses.parse(b, 0, len);
+		if (end == ResponseParser.ERROR || end == 0 && len == b.length) {
+			// no idea what this is, just copy it
+			this.raw = true;
+			return len;
+		}
+		return end;
+	}
+
+	/**
+	 * Responses got sent to the client.
+	 * 
+	 * @param done
+	 *            number of complete responses
+	 */
+	private synchronized void sent(final long done) {
+		this.outstanding = this.responses.getPending();
+		if (done > 0) {
+			this.reused = true;
+		}
+		this.notifyAll();
+	}
+
+	/**
+	 * Copy remote host's data to the attached client.
+	 */
+	@Override
+	public void run() {
+		final BufferPool buffers = this.pool.getBuffers();
+		final Metrics metrics = this.pool.getMetrics();
+		final byte[] buf = buffers.get();
+		final InputStream r = this.reader;
+		int len = 0;
+		try {
+			while (!this.closed) {
+				int read;
+				try {
+					read = r.read(buf, len, buf.length - len);
+				} catch (SocketTimeoutException e) {
+					if (this.client == null && this.pool.expire(this)) {
+						break;
+					}
+					continue;
+				}
+				if (read < 0) {
+					if (len > 0 && this.responses.isInBody()) {
+						// pass on a tag kept back by the HtmlFilter
+						final OutputStream w = this.client;
+						if (w != null) {
+							w.write(buf, 0, len);
+							w.flush();
+						}
+					}
+					break;
+				}
+				final OutputStream w = this.client;
+				if (w == null) {
+					// nobody asked for this
+					break;
+				}
+				metrics.received(read);
+				final Reaper.Entry a = this.activity;
+				if (a != null) {
+					a.touch();
+				}
+				len += read;
+				final long before = this.responses.getResponses();
+				final int end = this.frame(buf, len);
+				w.write(buf, 0, end);
+				final long done = this.responses.getResponses() - before;
+				if (done > 0 || r.available() < 1) {
+					w.flush();
+				}
+				// keep incomplete header
+				System.arraycopy(buf, end, buf, 0, len - end);
+				len -= end;
+				if (done > 0) {
+					this.sent(done);
+				}
+			}
+		} catch (IOException e) {
+			// closed by either side
+		}
+		buffers.put(buf);
+		this.pool.remove(this);
+		boolean complete;
+		synchronized (this) {
+			complete = !this.raw && this.responses.isIdle() && len == 0;
+			this.close();
+			this.notifyAll();
+		}
+		final Listener l = this.listener;
+		if (l != null) {
+			l.closed(this, complete);
+		}
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * UpstreamPool keeps idle {@link Upstream}s by host and port, so the next
+ * client talking to the same host does not need to connect again.
+ * 
+ * @author Felix Bechstein
+ */
+final class UpstreamPool {
+	/** Idle {@link Upstream}s by "host:port", most recently used last. */
+	private final HashMap<String, LinkedList<Upstream>> idle = // .
+	new HashMap<String, LinkedList<Upstream>>();
+	/** Max. number of idle {@link Upstream}s per host. */
+	private final int maxPerHost;
+	/** Max. number of idle {@link Upstream}s. */
+	private final int maxIdle;
+	/** Idle timeout in milliseconds. */
+	private final int timeout;
+	/** {@link BufferPool} holding the {@link Upstream}s' buffers. */
+	private final BufferPool buffers;
+	/** {@link Resolver} looking up remote hosts. */
+	private final Resolver resolver;
+	/** {@link Metrics} counting connects and received bytes. */
+	private final Metrics metrics;
+
+	/** Number of idle {@link Upstream}s. */
+	private int count = 0;
+	/** Number of reused {@link Upstream}s. */
+	private long hits = 0;
+	/** Number of requested but missing {@link Upstream}s. */
+	private long misses = 0;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param perHost
+	 *            max. number of idle connections per host
+	 * @param max
+	 *            max. number of idle connections
+	 * @param idleTimeout
+	 *            idle timeout in milliseconds
+	 * @param b
+	 *            {@link BufferPool} holding the {@link Upstream}s' buffers
+	 * @param r
+	 *            {@link Resolver} looking up remote hosts
+	 * @param m
+	 *            {@link Metrics} counting connects and received bytes
+	 */
+	UpstreamPool(final int perHost, final int max, final int idleTimeout,
+			final BufferPool b, final Resolver r, final Metrics m) {
+		this.maxPerHost = perHost;
+		this.maxIdle = max;
+		this.timeout = idleTimeout;
+		this.buffers = b;
+		this.resolver = r;
+		this.metrics = m;
+	}
+
+	/**
+	 * @param host
+	 *            host
+	 * @param port
+	 *            port
+	 * @return key
+	 */
+	private static String key(final String host, final int port) {
+		return host + ":" + port;
+	}
+
+	/**
+	 * Take an idle {@link Upstream}.
+	 * 
+	 * @param host
+	 *            host
+	 * @param port
+	 *            port
+	 * @return {@link Upstream} or null if there is none
+	 */
+	synchronized Upstream get(final String host, final int port) {
+		final LinkedList<Upstream> l = this.idle.get(key(host, port));
+		while (l != null && !l.isEmpty()) {
+			final Upstream u = l.removeLast();
+			--this.count;
+			if (!u.isClosed()) {
+				++this.hits;
+				u.setReused(true);
+				return u;
+			}
+		}
+		++this.misses;
+		return null;
+	}
+
+	/**
+	 * Return an {@link Upstream} for later use. It gets closed if the pool is
+	 * full.
+	 * 
+	 * @param u
+	 *            detached {@link Upstream}
+	 */
+	void put(final Upstream u) {
+		u.detach();
+		synchronized (this) {
+			if (!u.isClosed() && this.count < this.maxIdle) {
+				final String k = key(u.getHost(), u.getPort());
+				LinkedList<Upstream> l = this.idle.get(k);
+				if (l == null) {
+					l = new LinkedList<Upstream>();
+					this.idle.put(k, l);
+				}
+				if (l.size() < this.maxPerHost) {
+					u.setIdleSince(System.currentTimeMillis());
+					l.add(u);
+					++this.count;
+					return;
+				}
+			}
+		}
+		u.close();
+	}
+
+	/**
+	 * Remove an {@link Upstream} from the pool.
+	 * 
+	 * @param u
+	 *            {@link Upstream}
+	 */
+	synchronized void remove(final Upstream u) {
+		final String k = key(u.getHost(), u.getPort());
+		final LinkedList<Upstream> l = this.idle.get(k);
+		if (l != null && l.remove(u)) {
+			--this.count;
+			if (l.isEmpty()) {
+				this.idle.remove(k);
+			}
+		}
+	}
+
+	/**
+	 * Remove an {@link Upstream} if it is idle for too long.
+	 * 
+	 * @param u
+	 *            {@link Upstream}
+	 * @return true, if it was removed and should be closed
+	 */
+	synchronized boolean expire(final Upstream u) {
+		final String k = key(u.getHost(), u.getPort());
+		final LinkedList<Upstream> l = this.idle.get(k);
+		if (l == null || !l.contains(u)) {
+			return false;
+		}
+		if (System.currentTimeMillis() - u.getIdleSince() < this.timeout) {
+			return false;
+		}
+		this.remove(u);
+		return true;
+	}
+
+	/**
+	 * Close all idle {@link Upstream}s.
+	 */
+	void clear() {
+		final ArrayList<Upstream> l = new ArrayList<Upstream>();
+		synchronized (this) {
+			for (LinkedList<Upstream> ul : this.idle.values()) {
+				l.addAll(ul);
+			}
+			this.idle.clear();
+			this.count = 0;
+		}
+		for (Upstream u : l) {
+			u.close();
+		}
+	}
+
+	/**
+	 * @return idle timeout in milliseconds
+	 */
+	int getTimeout() {
+		return this.timeout;
+	}
+
+	/**
+	 * @return {@link BufferPool} holding the {@link Upstream}s' buffers
+	 */
+	BufferPool getBuffers() {
+		return this.buffers;
+	}
+
+	/**
+	 * @return {@link Resolver} looking up remote hosts
+	 */
+	Resolver getResolver() {
+		return this.resolver;
+	}
+
+	/**
+	 * @return {@link Metrics} counting connects and received bytes
+	 */
+	Metrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized String toString() {
+		return "idle upstreams: " + this.count + "/" + this.maxIdle
+				+ ", reused: " + this.hits + ", new: " + this.misses;
+	}
+}
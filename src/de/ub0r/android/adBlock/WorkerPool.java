@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ * 
+ * This file is part of AdBlock.
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.adBlock;
+
+import java.util.LinkedList;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WorkerPool runs Connections and their CopyStreams on reused threads. At most
+ * maxConnections Connections run at once, up to maxQueue more wait for a free
+ * slot. Any further Connection is rejected. At most maxCopies CopyStreams run
+ * at once, any further one is rejected.
+ * 
+ * @author Felix Bechstein
+ */
+final class WorkerPool {
+	/** Tag for output. */
+	private static final String TAG = "AdBlock.WorkerPool";
+	/** Time idle threads are kept alive in seconds. */
+	private static final long KEEP_ALIVE = 30;
+
+	/** Threads running Connections and CopyStreams. */
+	private final ThreadPoolExecutor executor = new ThreadPoolExecutor(0,
+			Integer.MAX_VALUE, KEEP_ALIVE, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>());
+	/** Max. number of running Connections. */
+	private final int maxConnections;
+	/** Max. number of waiting Connections. */
+	private final int maxQueue;
+	/** Max. number of running CopyStreams. */
+	private final int maxCopies;
+	/** Waiting Connections. */
+	private final LinkedList<Runnable> queue = new LinkedList<Runnable>();
+
+	/** Number of running Connections. */
+	private int running = 0;
+	/** Max. number of running Connections seen. */
+	private int peak = 0;
+	/** Max. number of waiting Connections seen. */
+	private int peakQueued = 0;
+	/** Number of rejected Connections. */
+	private long rejected = 0;
+	/** Number of running CopyStreams. */
+	private int copies = 0;
+	/** Number of rejected CopyStreams. */
+	private long rejectedCopies = 0;
+
+	/**
+	 * Worker runs a Connection and any waiting Connection after it.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	private class Worker implements Runnable {
+		/** First Connection to run. */
+		private final Runnable first;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param r
+		 *            Connection
+		 */
+		public Worker(final Runnable r) {
+			this.first = r;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void run() {
+			Runnable r = this.first;
+			while (r != null) {
+				try {
+					r.run();
+				} catch (Throwable e) {
+					// keep going, a waiting Connection is served by no one else
+					Log.e(TAG, "connection failed", e);
+				}
+				r = WorkerPool.this.next();
+			}
+		}
+	}
+
+	/**
+	 * Copy runs a CopyStream and releases it's slot afterwards.
+	 * 
+	 * @author Felix Bechstein
+	 */
+	private class Copy implements Runnable {
+		/** CopyStream to run. */
+		private final Runnable copy;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param r
+		 *            CopyStream
+		 */
+		public Copy(final Runnable r) {
+			this.copy = r;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void run() {
+			try {
+				this.copy.run();
+			} catch (Throwable e) {
+				Log.e(TAG, "copy failed", e);
+			}
+			synchronized (WorkerPool.this) {
+				--WorkerPool.this.copies;
+			}
+		}
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param connections
+	 *            max. number of running Connections
+	 * @param waiting
+	 *            max. number of waiting Connections
+	 * @param copyStreams
+	 *            max. number of running CopyStreams
+	 */
+	WorkerPool(final int connections, final int waiting,
+			final int copyStreams) {
+		this.maxConnections = Math.max(1, connections);
+		this.maxQueue = Math.max(0, waiting);
+		this.maxCopies = Math.max(1, copyStreams);
+	}
+
+	/**
+	 * Run a Connection or queue it for later.
+	 * 
+	 * @param connection
+	 *            Connection
+	 * @return false, if pool and queue are full and connection was rejected
+	 */
+	boolean execute(final Runnable connection) {
+		synchronized (this) {
+			if (this.running >= this.maxConnections) {
+				if (this.queue.size() >= this.maxQueue) {
+					++this.rejected;
+					return false;
+				}
+				this.queue.add(connection);
+				this.peakQueued = Math.max(this.peakQueued, this.queue.size());
+				return true;
+			}
+			++this.running;
+			this.peak = Math.max(this.peak, this.running);
+		}
+		this.executor.execute(new Worker(connection));
+		return true;
+	}
+
+	/**
+	 * Run a CopyStream or {@link Upstream}. Idle {@link Upstream}s keep their
+	 * thread, so they count too.
+	 * 
+	 * @param copy
+	 *            CopyStream
+	 * @return false, if too many CopyStreams run and copy was rejected
+	 */
+	boolean copy(final Runnable copy) {
+		synchronized (this) {
+			if (this.copies >= this.maxCopies) {
+				++this.rejectedCopies;
+				return false;
+			}
+			++this.copies;
+		}
+		this.executor.execute(new Copy(copy));
+		return true;
+	}
+
+	/**
+	 * Get next waiting Connection, release the slot if there is none.
+	 * 
+	 * @return next Connection or null
+	 */
+	private synchronized Runnable next() {
+		final Runnable r = this.queue.poll();
+		if (r == null) {
+			--this.running;
+		}
+		return r;
+	}
+
+	/**
+	 * @return number of running Connections
+	 */
+	synchronized int getRunning() {
+		return this.running;
+	}
+
+	/**
+	 * @return max. number of running Connections seen
+	 */
+	synchronized int getPeak() {
+		return this.peak;
+	}
+
+	/**
+	 * @return number of waiting Connections
+	 */
+	synchronized int getQueued() {
+		return this.queue.size();
+	}
+
+	/**
+	 * @return max. number of waiting Connections seen
+	 */
+	synchronized int getPeakQueued() {
+		return this.peakQueued;
+	}
+
+	/**
+	 * @return number of rejected Connections
+	 */
+	synchronized long getRejected() {
+		return this.rejected;
+	}
+
+	/**
+	 * @return number of running CopyStreams
+	 */
+	synchronized int getCopies() {
+		return this.copies;
+	}
+
+	/**
+	 * @return number of rejected CopyStreams
+	 */
+	synchronized long getRejectedCopies() {
+		return this.rejectedCopies;
+	}
+
+	/**
+	 * @return number of threads, running or idle
+	 */
+	int getThreads() {
+		return this.executor.getPoolSize();
+	}
+
+	/**
+	 * @return max. number of threads seen
+	 */
+	int getPeakThreads() {
+		return this.executor.getLargestPoolSize();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return "connections: " + this.getRunning() + "/" + this.maxConnections
+				+ " (peak " + this.getPeak() + "), queued: "
+				+ this.getQueued() + "/" + this.maxQueue + " (peak "
+				+ this.getPeakQueued() + "), rejected: " + this.getRejected()
+				+ ", copies: " + this.getCopies() + "/" + this.maxCopies
+				+ " (rejected " + this.getRejectedCopies() + "), threads: "
+				+ this.getThreads() + " (peak " + this.getPeakThreads() + ")";
+	}
+}